@@ -0,0 +1,211 @@
+package ru.uzden.uzdenbot.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.beans.factory.ObjectProvider;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import ru.uzden.uzdenbot.config.SubscriptionPlansProperties;
+import ru.uzden.uzdenbot.entities.User;
+import ru.uzden.uzdenbot.entities.VpnKey;
+import ru.uzden.uzdenbot.repositories.UserRepository;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Горячие пути обработки апдейта без сети и БД: маршрутизация, кодек callback data,
+ * нормализация username, сборка меню из MenuTemplates и попадание в MyKeysViewCache.
+ * SubscriptionService и VpnKeyService под меню — рукописные подклассы: вызовы через прокси Mockito
+ * (сопоставление аргументов, запись вызовов) стоят больше самих меню и искажали бы замер.
+ * Моки остались только у зависимостей, которые замеряемые пути не вызывают.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BotHotPathBenchmark {
+
+    private static final String[] USERNAMES = {
+            "@Some_User", "plain", "  @MiXeD_CaSe_Name  ", null, "user.with-bad*chars"
+    };
+
+    CallbackCodec codec;
+    String[] callbacks;
+    BotMenuService menus;
+    BotMenuService uncachedMenus;
+    User user;
+    List<Update> updates;
+
+    @Setup
+    public void setUp() {
+        codec = new CallbackCodec("bench-secret", null);
+        callbacks = new String[]{
+                codec.encode(CallbackOp.KEY_SELECT, 100500L, 123456), codec.encode(CallbackOp.KEY_GET, 100500L, 42),
+                codec.encode(CallbackOp.KEY_RENEW_1M, 100500L, 98765), codec.encode(CallbackOp.KEY_DELETE, 100500L, 7),
+                codec.encode(CallbackOp.MENU_BACK), codec.encode(CallbackOp.ADMIN_BROADCAST),
+                codec.encode(CallbackOp.MENU_KEYS), codec.encode(CallbackOp.KEY_NEW)
+        };
+        user = new User();
+        user.setId(1L);
+        user.setTelegramId(100500L);
+
+        List<VpnKey> keys = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < 3; i++) {
+            VpnKey key = new VpnKey();
+            key.setId(1000L + i);
+            key.setStatus(VpnKey.Status.ACTIVE);
+            key.setPaidUntil(now.plusDays(10L * (i + 1)));
+            keys.add(key);
+        }
+        SubscriptionService subscriptionService = new FakeSubscriptionService();
+        VpnKeyService vpnKeyService = new FakeVpnKeyService(keys);
+
+        SubscriptionPlansProperties plans = new SubscriptionPlansProperties();
+        MenuTemplates templates = new MenuTemplates(codec, plans, "Добро пожаловать в Uzden.", "Инструкция", "@support");
+        menus = new BotMenuService(mock(UserRepository.class), subscriptionService, plans,
+                mock(PaymentService.class), vpnKeyService, codec, templates, viewCache(true));
+        uncachedMenus = new BotMenuService(mock(UserRepository.class), subscriptionService, plans,
+                mock(PaymentService.class), vpnKeyService, codec, templates, viewCache(false));
+
+        updates = new ArrayList<>();
+        for (String data : callbacks) {
+            updates.add(callbackUpdate(data));
+        }
+        for (String text : new String[]{"/start", "🔑 Мои ключи", "произвольный текст"}) {
+            updates.add(textUpdate(text));
+        }
+    }
+
+    @Benchmark
+    public void decodeCallback(Blackhole bh) {
+        for (String data : callbacks) {
+            bh.consume(codec.decode(data, 100500L));
+        }
+    }
+
+    @Benchmark
+    public String encodeKeyCallback() {
+        return codec.encode(CallbackOp.KEY_SELECT, 100500L, 123456);
+    }
+
+    @Benchmark
+    public void route(Blackhole bh) {
+        for (Update u : updates) {
+            bh.consume(BotUpdateHandler.route(u));
+        }
+    }
+
+    @Benchmark
+    public void normalizeUsername(Blackhole bh) {
+        for (String name : USERNAMES) {
+            bh.consume(VpnKeyService.normalizeUsername(name));
+        }
+    }
+
+    @Benchmark
+    public SendMessage mainMenu() {
+        return menus.mainMenu(100500L, false, user);
+    }
+
+    @Benchmark
+    public SendMessage myKeysMenu() {
+        return menus.myKeysMenu(100500L, user);
+    }
+
+    @Benchmark
+    public SendMessage myKeysMenuRender() {
+        return uncachedMenus.myKeysMenu(100500L, user);
+    }
+
+    @Benchmark
+    public SendMessage adminMenu() {
+        return menus.adminMenu(100500L);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MyKeysViewCache viewCache(boolean enabled) {
+        return new MyKeysViewCache(new ObjectMapper(), mock(ObjectProvider.class), mock(ObjectProvider.class),
+                enabled, 1000, 600_000, false);
+    }
+
+    private static Update callbackUpdate(String data) {
+        CallbackQuery cq = new CallbackQuery();
+        cq.setId("cb");
+        cq.setData(data);
+        cq.setMessage(message(null));
+        Update u = new Update();
+        u.setCallbackQuery(cq);
+        return u;
+    }
+
+    private static Update textUpdate(String text) {
+        Update u = new Update();
+        u.setMessage(message(text));
+        return u;
+    }
+
+    private static Message message(String text) {
+        Chat chat = new Chat();
+        chat.setId(100500L);
+        chat.setType("private");
+        Message m = new Message();
+        m.setMessageId(1);
+        m.setChat(chat);
+        m.setText(text);
+        return m;
+    }
+
+    /**
+     * Пользователь с подпиской; getDaysLeft/nextDaysLeftChange — настоящие (чистая арифметика по датам).
+     */
+    static final class FakeSubscriptionService extends SubscriptionService {
+
+        FakeSubscriptionService() {
+            super(null, null, null, null, null, null);
+        }
+
+        @Override
+        public boolean hasAnySubscription(User user) {
+            return true;
+        }
+    }
+
+    /**
+     * Фиксированный список ключей вместо запроса в БД.
+     */
+    static final class FakeVpnKeyService extends VpnKeyService {
+
+        private final List<VpnKey> keys;
+
+        FakeVpnKeyService(List<VpnKey> keys) {
+            super(null, null, null, null, null, null, null, null, null, null, null, null, false, 1, 1);
+            this.keys = List.copyOf(keys);
+        }
+
+        @Override
+        public List<VpnKey> listUserKeys(User user) {
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ru.uzden.uzdenbot.xui;
+
+import java.util.UUID;
+
+/**
+ * JSON inbound'а в том виде, в каком его отдаёт 3x-ui: settings и streamSettings — строки с JSON внутри.
+ */
+final class InboundFixtures {
+
+    private InboundFixtures() {
+    }
+
+    static String settings(int clients, UUID[] uuids) {
+        StringBuilder sb = new StringBuilder(clients * 200).append("{\"clients\":[");
+        for (int i = 0; i < clients; i++) {
+            UUID uuid = new UUID(0x5eedL, i);
+            if (uuids != null && i < uuids.length) uuids[i] = uuid;
+            if (i > 0) sb.append(',');
+            sb.append("{\"id\":\"").append(uuid)
+                    .append("\",\"flow\":\"xtls-rprx-vision\",\"email\":\"tg_user").append(i).append('_').append(100000 + i)
+                    .append('_').append(uuid.toString(), 0, 8)
+                    .append("\",\"limitIp\":0,\"totalGB\":0,\"expiryTime\":0,\"enable\":true,\"tgId\":\"\",\"subId\":\"")
+                    .append(Integer.toHexString(i * 7919)).append("\",\"reset\":0}");
+        }
+        return sb.append("],\"decryption\":\"none\",\"fallbacks\":[]}").toString();
+    }
+
+    static String inbound(long id, String settingsJson) {
+        String stream = "{\"network\":\"tcp\",\"security\":\"reality\",\"externalProxy\":[],"
+                + "\"realitySettings\":{\"show\":false,\"xver\":0,\"dest\":\"www.example.com:443\","
+                + "\"serverNames\":[\"www.example.com\"],\"privateKey\":\"priv\",\"shortIds\":[\"0123abcd\",\"ef\"],"
+                + "\"settings\":{\"publicKey\":\"benchPublicKey000000000000000000000000000000\",\"fingerprint\":\"chrome\","
+                + "\"serverName\":\"\",\"spiderX\":\"/\"}},\"tcpSettings\":{\"acceptProxyProtocol\":false,"
+                + "\"header\":{\"type\":\"none\"}}}";
+        return "{\"id\":" + id + ",\"up\":0,\"down\":0,\"total\":0,\"remark\":\"reality\",\"enable\":true,"
+                + "\"expiryTime\":0,\"listen\":\"\",\"port\":443,\"protocol\":\"vless\","
+                + "\"settings\":" + quote(settingsJson) + ","
+                + "\"streamSettings\":" + quote(stream) + ","
+                + "\"tag\":\"inbound-443\",\"sniffing\":" + quote("{\"enabled\":true,\"destOverride\":[\"http\",\"tls\"]}")
+                + ",\"clientStats\":[]}";
+    }
+
+    private static String quote(String json) {
+        return "\"" + json.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,85 @@
+package ru.uzden.uzdenbot.xui;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Строковый разбор inbound'а на 1k–50k клиентов: JsonMini и хелперы ThreeXuiClient,
+ * которыми пользуются disable/enable клиента и поиск inbound в списке.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundJsonBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    int clients;
+
+    String inbound;
+    String settings;
+    String inboundList;
+    String clientObject;
+    String middleUuid;
+    String lastUuid;
+
+    @Setup
+    public void setUp() {
+        UUID[] uuids = new UUID[clients];
+        settings = InboundFixtures.settings(clients, uuids);
+        inbound = InboundFixtures.inbound(7, settings);
+        inboundList = "[" + InboundFixtures.inbound(3, InboundFixtures.settings(10, null)) + "," + inbound + "]";
+        middleUuid = uuids[clients / 2].toString();
+        lastUuid = uuids[clients - 1].toString();
+        clientObject = ThreeXuiClient.extractClientObject(settings, lastUuid);
+    }
+
+    @Benchmark
+    public String extractSettingsField() {
+        return JsonMini.unquoteIfString(JsonMini.extractFieldValue(inbound, "settings"));
+    }
+
+    @Benchmark
+    public String extractStreamSettingsField() {
+        return JsonMini.unquoteIfString(JsonMini.extractFieldValue(inbound, "streamSettings"));
+    }
+
+    @Benchmark
+    public int findMatchingBracket() {
+        return JsonMini.findMatchingBracket(settings, 0);
+    }
+
+    @Benchmark
+    public String extractClientObjectMiddle() {
+        return ThreeXuiClient.extractClientObject(settings, middleUuid);
+    }
+
+    @Benchmark
+    public String extractClientObjectLast() {
+        return ThreeXuiClient.extractClientObject(settings, lastUuid);
+    }
+
+    @Benchmark
+    public String setBooleanField() {
+        return ThreeXuiClient.setBooleanField(clientObject, "enable", false);
+    }
+
+    @Benchmark
+    public int indexOfId() {
+        return ThreeXuiClient.indexOfId(inboundList, 7);
+    }
+}
@@ -0,0 +1,60 @@
+package ru.uzden.uzdenbot.xui;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сборка vless:// ссылки: полный разбор inbound'а (buildRealityLink) против готового шаблона.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VlessLinkBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    int clients;
+
+    VlessLinkBuilder builder;
+    VlessLinkTemplate template;
+    String inbound;
+    UUID clientUuid;
+
+    @Setup
+    public void setUp() {
+        UUID[] uuids = new UUID[clients];
+        inbound = InboundFixtures.inbound(7, InboundFixtures.settings(clients, uuids));
+        clientUuid = uuids[clients - 1];
+        builder = new VlessLinkBuilder("", "", "", "");
+        template = builder.compileRealityTemplate(7, inbound, "vpn.example.com", 8441, "reality443-auto");
+    }
+
+    @Benchmark
+    public String buildRealityLink() {
+        return builder.buildRealityLink(inbound, "vpn.example.com", 8441, clientUuid, "reality443-auto");
+    }
+
+    @Benchmark
+    public VlessLinkTemplate compileTemplate() {
+        return builder.compileRealityTemplate(7, inbound, "vpn.example.com", 8441, "reality443-auto");
+    }
+
+    @Benchmark
+    public String renderTemplate() {
+        return template.render(clientUuid);
+    }
+}
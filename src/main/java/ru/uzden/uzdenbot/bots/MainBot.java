@@ -1,15 +1,21 @@
 package ru.uzden.uzdenbot.bots;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 import ru.uzden.uzdenbot.services.BotUpdateHandler;
 import ru.uzden.uzdenbot.services.UpdateGuardService;
 
+import java.io.Serializable;
 import java.util.List;
 
 @Slf4j
@@ -18,6 +24,7 @@ public class MainBot extends TelegramLongPollingBot {
 
     private final UpdateGuardService updateGuardService;
     private final BotUpdateHandler botUpdateHandler;
+    private final MeterRegistry meterRegistry;
 
     private final String token;
     private final String username;
@@ -26,14 +33,25 @@ public class MainBot extends TelegramLongPollingBot {
     public MainBot(
             UpdateGuardService updateGuardService,
             BotUpdateHandler botUpdateHandler,
+            MeterRegistry meterRegistry,
             @Value("${telegram.bot.token}") String token,
-            @Value("${telegram.bot.username}")String username) {
+            @Value("${telegram.bot.username}")String username,
+            @Value("${telegram.bot.api-url:https://api.telegram.org/bot}") String apiUrl) {
+        super(botOptions(apiUrl), token);
         this.updateGuardService = updateGuardService;
         this.botUpdateHandler = botUpdateHandler;
+        this.meterRegistry = meterRegistry;
         this.token = token;
         this.username = username;
     }
 
+    // api-url переопределяется для нагрузочного теста (локальный fake Telegram)
+    private static DefaultBotOptions botOptions(String apiUrl) {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl(apiUrl);
+        return options;
+    }
+
     @Override
     public String getBotUsername() {
         return username;
@@ -46,16 +64,45 @@ public class MainBot extends TelegramLongPollingBot {
 
     @Override
     public void onUpdateReceived(Update update) {
+        String route = BotUpdateHandler.route(update);
+        Timer.Sample total = Timer.start(meterRegistry);
+        String outcome = "error";
         try {
+            Timer.Sample guardSample = Timer.start(meterRegistry);
             UpdateGuardService.GuardResult guard = updateGuardService.guard(update);
+            guardSample.stop(meterRegistry.timer("bot.update.guard"));
             if (guard.blocked()) {
                 executeAll(guard.responses());
+                outcome = "rejected";
                 return;
             }
 
-            executeAll(botUpdateHandler.handle(update));
+            Timer.Sample handleSample = Timer.start(meterRegistry);
+            List<BotApiMethod<?>> responses = botUpdateHandler.handle(update);
+            handleSample.stop(meterRegistry.timer("bot.update.handle", "route", route));
+            executeAll(responses);
+            outcome = "success";
         } catch (Exception e) {
             log.error("Ошибка в боте: ", e);
+        } finally {
+            // полное время апдейта, включая отправку ответов в Telegram
+            total.stop(meterRegistry.timer("bot.update", "route", route, "outcome", outcome));
+        }
+    }
+
+    @Override
+    public <T extends Serializable, Method extends BotApiMethod<T>> T execute(Method method) throws TelegramApiException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            T result = super.execute(method);
+            outcome = "success";
+            return result;
+        } catch (TelegramApiRequestException e) {
+            outcome = e.getErrorCode() == null ? "error" : "http_" + e.getErrorCode();
+            throw e;
+        } finally {
+            sample.stop(meterRegistry.timer("telegram.execute", "method", method.getMethod(), "outcome", outcome));
         }
     }
 
@@ -0,0 +1,101 @@
+package ru.uzden.uzdenbot.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.Instant;
+
+@Entity
+@Table(name = "admin_bulk_jobs")
+@Data
+public class AdminBulkJob implements LeasedJob {
+
+    public enum Operation {
+        GRANT,     // продлить подписку на days дней
+        REVOKE     // отключить активные подписки
+    }
+
+    public enum Status {
+        RESOLVING, // список/файл ещё не сопоставлен с users
+        RUNNING,   // в работе (или ждёт подхвата после рестарта)
+        DONE       // все получатели обработаны
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    /**
+     * Чат администратора, куда пишется прогресс.
+     */
+    @Column(name = "admin_chat_id", nullable = false)
+    private Long adminChatId;
+
+    @Column(name = "status_message_id")
+    private Integer statusMessageId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "operation", nullable = false)
+    private Operation operation;
+
+    @Column(name = "days", nullable = false)
+    private int days;
+
+    /**
+     * Сегмент AudienceSegment; null — получатели из sourceText или файла.
+     */
+    @Column(name = "audience")
+    private String audience;
+
+    /**
+     * @username и telegram id из сообщения администратора.
+     */
+    @Column(name = "source_text", columnDefinition = "text")
+    private String sourceText;
+
+    /**
+     * file_id документа Telegram со списком получателей.
+     */
+    @Column(name = "file_id")
+    private String fileId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false)
+    private Status status = Status.RESOLVING;
+
+    @Column(name = "total", nullable = false)
+    private int total;
+
+    @Column(name = "not_found", nullable = false)
+    private int notFound;
+
+    @Column(name = "not_found_sample", columnDefinition = "text")
+    private String notFoundSample;
+
+    /**
+     * Последний обработанный users.id; после рестарта задание продолжается с него.
+     */
+    @Column(name = "cursor_user_id", nullable = false)
+    private long cursorUserId;
+
+    @Column(name = "applied", nullable = false)
+    private int applied;
+
+    @Column(name = "skipped", nullable = false)
+    private int skipped;
+
+    @Column(name = "failed", nullable = false)
+    private int failed;
+
+    @Column(name = "error", columnDefinition = "text")
+    private String error;
+
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private Instant createdAt = Instant.now();
+
+    @Column(name = "updated_at", nullable = false)
+    private Instant updatedAt = Instant.now();
+
+    @Column(name = "finished_at")
+    private Instant finishedAt;
+}
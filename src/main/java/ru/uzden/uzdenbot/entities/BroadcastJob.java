@@ -0,0 +1,76 @@
+package ru.uzden.uzdenbot.entities;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.Instant;
+
+@Entity
+@Table(name = "broadcast_jobs")
+@Data
+public class BroadcastJob implements LeasedJob {
+
+    public enum Status {
+        RUNNING,   // в работе (или ждёт подхвата после рестарта)
+        DONE       // все получатели обработаны
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    /**
+     * Чат администратора, куда пишется прогресс.
+     */
+    @Column(name = "admin_chat_id", nullable = false)
+    private Long adminChatId;
+
+    /**
+     * Сообщение со статусом, которое редактируется по ходу рассылки.
+     */
+    @Column(name = "status_message_id")
+    private Integer statusMessageId;
+
+    @Column(name = "text", nullable = false, columnDefinition = "text")
+    private String text;
+
+    @Column(name = "audience", nullable = false)
+    private String audience = "ALL";
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false)
+    private Status status = Status.RUNNING;
+
+    @Column(name = "total", nullable = false)
+    private int total;
+
+    /**
+     * Последний обработанный users.id; после рестарта рассылка продолжается с него.
+     */
+    @Column(name = "cursor_user_id", nullable = false)
+    private long cursorUserId;
+
+    @Column(name = "delivered", nullable = false)
+    private int delivered;
+
+    @Column(name = "blocked", nullable = false)
+    private int blocked;
+
+    @Column(name = "failed", nullable = false)
+    private int failed;
+
+    /**
+     * Причина остановки, если рассылку не выполнить (аудитория не распознана).
+     */
+    @Column(name = "error", columnDefinition = "text")
+    private String error;
+
+    @Column(name = "created_at", nullable = false, updatable = false)
+    private Instant createdAt = Instant.now();
+
+    @Column(name = "updated_at", nullable = false)
+    private Instant updatedAt = Instant.now();
+
+    @Column(name = "finished_at")
+    private Instant finishedAt;
+}
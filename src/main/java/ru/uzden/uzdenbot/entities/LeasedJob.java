@@ -0,0 +1,16 @@
+package ru.uzden.uzdenbot.entities;
+
+/**
+ * Фоновое задание из админки, которое выполняется под lease (см. LeasedJobRunner):
+ * прогресс показывается правкой статусного сообщения в чате администратора.
+ */
+public interface LeasedJob {
+
+    Long getId();
+
+    Long getAdminChatId();
+
+    Integer getStatusMessageId();
+
+    void setStatusMessageId(Integer statusMessageId);
+}
@@ -56,6 +56,12 @@ public class Payment {
     @Column(name = "processed_at")
     private Instant processedAt;
 
+    /**
+     * Платёж создан заранее (при открытии меню тарифов) и ещё не выбран пользователем.
+     */
+    @Column(name = "speculative", nullable = false)
+    private boolean speculative = false;
+
     @Column(name = "updated_at", nullable = false)
     private Instant updatedAt = Instant.now();
 
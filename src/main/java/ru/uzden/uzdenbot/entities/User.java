@@ -39,6 +39,14 @@ public class User {
     @Column(name = "referred_at")
     private LocalDateTime referredAt;
 
+    @Version
+    @Column(name = "version", nullable = false)
+    private long version;
+
+    // Не отозванные ключи; ведётся триггером trg_vpn_keys_count, лимит — CHECK в БД
+    @Column(name = "active_key_count", insertable = false, updatable = false)
+    private int activeKeyCount;
+
     @OneToMany(mappedBy = "user", fetch = FetchType.LAZY)
     private List<Subscription> subscriptions = new ArrayList<>();
 }
@@ -4,6 +4,7 @@ import jakarta.persistence.*;
 import lombok.Data;
 
 import java.time.Instant;
+import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Entity
@@ -73,6 +74,19 @@ public class VpnKey {
     @Column(name = "client_email", nullable = false)
     private String clientEmail;
 
+    /**
+     * Отпечаток шаблона ссылки (VlessLinkTemplate.fingerprint), по которому собран keyValue.
+     */
+    @Column(name = "link_fingerprint", length = 32)
+    private String linkFingerprint;
+
+    /**
+     * Максимальный end_date подписок ключа (в прошлом — подписка истекла, null — подписок не было).
+     * Пишется только SubscriptionService через VpnKeyRepository.syncPaidUntil.
+     */
+    @Column(name = "paid_until", insertable = false, updatable = false)
+    private LocalDateTime paidUntil;
+
     /* ===== устойчивость / восстановление ===== */
 
     @Enumerated(EnumType.STRING)
@@ -91,8 +105,18 @@ public class VpnKey {
     @Column(name = "last_error", columnDefinition = "text")
     private String lastError;
 
+    /**
+     * Неудачные попытки KeyRecoveryService; пишется только VpnKeyRepository.scheduleRecoveryRetry.
+     */
+    @Column(name = "recovery_attempts", insertable = false, updatable = false)
+    private int recoveryAttempts;
+
     /* ===== служебные ===== */
 
+    @Version
+    @Column(name = "version", nullable = false)
+    private long version;
+
     @Column(name = "created_at", nullable = false, updatable = false)
     private Instant createdAt;
 
@@ -119,6 +143,10 @@ public class VpnKey {
         return status == Status.ACTIVE && !revoked;
     }
 
+    public boolean isPaidAt(LocalDateTime at) {
+        return paidUntil != null && paidUntil.isAfter(at);
+    }
+
     public void markFailed(String error) {
         this.status = Status.FAILED;
         this.lastError = error;
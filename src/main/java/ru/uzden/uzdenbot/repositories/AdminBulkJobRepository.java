@@ -0,0 +1,69 @@
+package ru.uzden.uzdenbot.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ru.uzden.uzdenbot.entities.AdminBulkJob;
+
+import java.util.List;
+
+@Repository
+public interface AdminBulkJobRepository extends JpaRepository<AdminBulkJob, Long> {
+
+    // незавершённые задания, не занятые живым инстансом (новые и брошенные после рестарта)
+    @Query(value = """
+           select * from admin_bulk_jobs j
+           where j.status <> 'DONE'
+             and (j.lease_until is null or j.lease_until < localtimestamp)
+           order by j.id asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<AdminBulkJob> lockResumable(@Param("limit") int limit);
+
+    // получатели сопоставлены: дальше только применение по курсору
+    @Modifying
+    @Query(value = """
+           update admin_bulk_jobs
+           set status = 'RUNNING',
+               total = :total,
+               not_found = :notFound,
+               not_found_sample = :notFoundSample,
+               updated_at = localtimestamp
+           where id = :id
+             and lease_owner = :owner
+           """, nativeQuery = true)
+    int markResolved(@Param("id") long id,
+                     @Param("total") int total,
+                     @Param("notFound") int notFound,
+                     @Param("notFoundSample") String notFoundSample,
+                     @Param("owner") String owner);
+
+    // задание не выполнить (файл не скачался, пустой список) — закрываем с причиной
+    @Modifying
+    @Query(value = """
+           update admin_bulk_jobs
+           set status = 'DONE',
+               error = :error,
+               finished_at = localtimestamp,
+               updated_at = localtimestamp,
+               lease_owner = null,
+               lease_until = null
+           where id = :id
+             and lease_owner = :owner
+           """, nativeQuery = true)
+    int markAborted(@Param("id") long id, @Param("error") String error, @Param("owner") String owner);
+
+    @Query(value = """
+           select t.user_id from admin_bulk_job_targets t
+           where t.job_id = :jobId
+             and t.user_id > :afterId
+           order by t.user_id asc
+           limit :limit
+           """, nativeQuery = true)
+    List<Long> findTargetsAfter(@Param("jobId") long jobId,
+                                @Param("afterId") long afterId,
+                                @Param("limit") int limit);
+}
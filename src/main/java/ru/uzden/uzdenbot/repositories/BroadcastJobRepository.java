@@ -0,0 +1,40 @@
+package ru.uzden.uzdenbot.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ru.uzden.uzdenbot.entities.BroadcastJob;
+
+import java.util.List;
+
+@Repository
+public interface BroadcastJobRepository extends JpaRepository<BroadcastJob, Long> {
+
+    // незавершённые рассылки, не занятые живым инстансом (новые и брошенные после рестарта)
+    @Query(value = """
+           select * from broadcast_jobs j
+           where j.status = 'RUNNING'
+             and (j.lease_until is null or j.lease_until < localtimestamp)
+           order by j.id asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<BroadcastJob> lockResumable(@Param("limit") int limit);
+
+    // рассылку не выполнить (аудитория не распознана) — закрываем с причиной
+    @Modifying
+    @Query(value = """
+           update broadcast_jobs
+           set status = 'DONE',
+               error = :error,
+               finished_at = localtimestamp,
+               updated_at = localtimestamp,
+               lease_owner = null,
+               lease_until = null
+           where id = :id
+             and lease_owner = :owner
+           """, nativeQuery = true)
+    int markAborted(@Param("id") long id, @Param("error") String error, @Param("owner") String owner);
+}
@@ -0,0 +1,92 @@
+package ru.uzden.uzdenbot.repositories;
+
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Общие запросы таблиц lease-заданий (broadcast_jobs, admin_bulk_jobs).
+ *
+ * У таких таблиц одинаковые колонки lease_owner/lease_until, keyset-курсор cursor_user_id,
+ * status_message_id и счётчики прогресса; различаются только имя таблицы и названия счётчиков.
+ * Запросы собираются один раз в конструкторе. Выборка заданий (FOR UPDATE SKIP LOCKED) остаётся
+ * в репозитории сущности — она возвращает сущности и у каждой таблицы свой фильтр.
+ */
+public final class LeasedJobTable {
+
+    private final NamedParameterJdbcTemplate jdbc;
+    private final List<String> counters;
+    private final String leaseSql;
+    private final String progressSql;
+    private final String doneSql;
+    private final String statusMessageSql;
+
+    public LeasedJobTable(NamedParameterJdbcTemplate jdbc, String table, String... counters) {
+        this.jdbc = jdbc;
+        this.counters = List.of(counters);
+        this.leaseSql = """
+                update %s
+                set lease_owner = :owner,
+                    lease_until = localtimestamp + make_interval(secs => :seconds)
+                where id in (:ids)
+                """.formatted(table);
+        StringBuilder set = new StringBuilder();
+        for (String counter : counters) {
+            set.append("    ").append(counter).append(" = :").append(counter).append(",\n");
+        }
+        this.progressSql = """
+                update %s
+                set cursor_user_id = :cursor,
+                %s    updated_at = localtimestamp,
+                    lease_until = localtimestamp + make_interval(secs => :seconds)
+                where id = :id
+                  and lease_owner = :owner
+                """.formatted(table, set);
+        this.doneSql = """
+                update %s
+                set status = 'DONE',
+                    finished_at = localtimestamp,
+                    updated_at = localtimestamp,
+                    lease_owner = null,
+                    lease_until = null
+                where id = :id
+                  and lease_owner = :owner
+                """.formatted(table);
+        this.statusMessageSql = "update %s set status_message_id = :messageId where id = :id".formatted(table);
+    }
+
+    public int leaseByIds(Collection<Long> ids, String owner, long seconds) {
+        return jdbc.update(leaseSql, new MapSqlParameterSource("ids", ids)
+                .addValue("owner", owner)
+                .addValue("seconds", seconds));
+    }
+
+    /**
+     * Сохранить курсор и счётчики (в порядке из конструктора) и продлить lease.
+     *
+     * @return 0 — lease перехватил другой инстанс
+     */
+    public int saveProgress(long id, long cursor, String owner, long seconds, int... values) {
+        if (values.length != counters.size()) {
+            throw new IllegalArgumentException("Ожидается счётчиков: " + counters.size());
+        }
+        MapSqlParameterSource params = new MapSqlParameterSource("id", id)
+                .addValue("cursor", cursor)
+                .addValue("owner", owner)
+                .addValue("seconds", seconds);
+        for (int i = 0; i < values.length; i++) {
+            params.addValue(counters.get(i), values[i]);
+        }
+        return jdbc.update(progressSql, params);
+    }
+
+    public int markDone(long id, String owner) {
+        return jdbc.update(doneSql, new MapSqlParameterSource("id", id).addValue("owner", owner));
+    }
+
+    public int setStatusMessage(long id, Integer messageId) {
+        return jdbc.update(statusMessageSql, new MapSqlParameterSource("id", id).addValue("messageId", messageId));
+    }
+}
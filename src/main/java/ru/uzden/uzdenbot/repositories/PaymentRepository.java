@@ -3,12 +3,15 @@ package ru.uzden.uzdenbot.repositories;
 import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.uzden.uzdenbot.entities.Payment;
 import ru.uzden.uzdenbot.entities.User;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,10 +19,41 @@ import java.util.Optional;
 public interface PaymentRepository extends JpaRepository<Payment, Long> {
     Optional<Payment> findByProviderPaymentId(String providerPaymentId);
 
-    List<Payment> findTop100ByProcessedAtIsNullAndProviderOrderByCreatedAtAsc(String provider);
+    /**
+     * Keyset-страница необработанных платежей строго после курсора (createdAt, id).
+     * Строки, занятые другим инстансом (row lock или живой lease), пропускаются.
+     */
+    @Query(value = """
+           select * from payments p
+           where p.processed_at is null
+             and p.provider = :provider
+             and (p.lease_until is null or p.lease_until < localtimestamp)
+             and (p.created_at > :afterCreatedAt
+                  or (p.created_at = :afterCreatedAt and p.id > :afterId))
+           order by p.created_at asc, p.id asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<Payment> lockPendingPage(@Param("provider") String provider,
+                                  @Param("afterCreatedAt") Instant afterCreatedAt,
+                                  @Param("afterId") Long afterId,
+                                  @Param("limit") int limit);
+
+    @Modifying
+    @Query(value = """
+           update payments
+           set lease_owner = :owner,
+               lease_until = localtimestamp + make_interval(secs => :seconds)
+           where id in (:ids)
+           """, nativeQuery = true)
+    int leaseByIds(@Param("ids") Collection<Long> ids,
+                   @Param("owner") String owner,
+                   @Param("seconds") long seconds);
 
     List<Payment> findTop5ByUserAndProcessedAtIsNullAndProviderOrderByCreatedAtDesc(User user, String provider);
 
+    List<Payment> findTop100BySpeculativeTrueAndProcessedAtIsNullAndCreatedAtBefore(Instant border);
+
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     @Query("select p from Payment p where p.id = :id")
     Payment lockById(@Param("id") Long id);
@@ -1,6 +1,7 @@
 package ru.uzden.uzdenbot.repositories;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -8,9 +9,12 @@ import ru.uzden.uzdenbot.entities.Subscription;
 import ru.uzden.uzdenbot.entities.User;
 import ru.uzden.uzdenbot.entities.VpnKey;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface SubscriptionRepository extends JpaRepository<Subscription, Long> {
@@ -26,6 +30,12 @@ public interface SubscriptionRepository extends JpaRepository<Subscription, Long
     // Последняя подписка по ключу
     Optional<Subscription> findTopByVpnKeyOrderByEndDateDesc(VpnKey vpnKey);
 
+    @Query("select max(s.endDate) from Subscription s where s.vpnKey.id = :keyId")
+    LocalDateTime findMaxEndDateByKeyId(@Param("keyId") Long keyId);
+
+    @Query("select max(s.endDate) from Subscription s where s.user.id = :userId")
+    LocalDateTime findMaxEndDateByUserId(@Param("userId") Long userId);
+
     @Query("""
            select s from Subscription s
            where s.user = :user
@@ -35,6 +45,14 @@ public interface SubscriptionRepository extends JpaRepository<Subscription, Long
            """)
     List<Subscription> findActiveUnassigned(@Param("user") User user, @Param("now") LocalDateTime now);
 
+    @Query("""
+           select count(s) > 0 from Subscription s
+           where s.user.id = :userId
+             and s.vpnKey is null
+             and s.endDate > :now
+           """)
+    boolean existsActiveUnassigned(@Param("userId") Long userId, @Param("now") LocalDateTime now);
+
     @Query("""
            select s from Subscription s
            where s.user = :user
@@ -43,12 +61,110 @@ public interface SubscriptionRepository extends JpaRepository<Subscription, Long
            """)
     List<Subscription> findActiveByUser(@Param("user") User user, @Param("now") LocalDateTime now);
 
+    @Query(value = """
+           select * from subscriptions s
+           where s.end_date > :now
+             and s.key_id is null
+             and (s.lease_until is null or s.lease_until < localtimestamp)
+           order by s.id asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<Subscription> lockActiveUnassigned(@Param("now") LocalDateTime now, @Param("limit") int limit);
+
+    // Окно (from, until] без уведомления "через 2 дня"
+    @Query(value = """
+           select s.id from subscriptions s
+           where s.end_date > :from
+             and s.end_date <= :until
+             and s.notified_two_days_at is null
+             and (s.lease_until is null or s.lease_until < localtimestamp)
+           order by s.end_date asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<Long> lockUnnotifiedTwoDays(@Param("from") LocalDateTime from,
+                                     @Param("until") LocalDateTime until,
+                                     @Param("limit") int limit);
+
+    // Окно (from, until] без уведомления "завтра"
+    @Query(value = """
+           select s.id from subscriptions s
+           where s.end_date > :from
+             and s.end_date <= :until
+             and s.notified_one_day_at is null
+             and (s.lease_until is null or s.lease_until < localtimestamp)
+           order by s.end_date asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<Long> lockUnnotifiedOneDay(@Param("from") LocalDateTime from,
+                                    @Param("until") LocalDateTime until,
+                                    @Param("limit") int limit);
+
     @Query("""
-           select distinct s.user.id from Subscription s
-           where s.endDate > :now
-             and s.vpnKey is null
+           select s from Subscription s
+           join fetch s.user
+           where s.id in :ids
            """)
-    List<Long> findUsersWithActiveUnassigned(@Param("now") LocalDateTime now);
+    List<Subscription> findWithUserByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Modifying
+    @Query("update Subscription s set s.notifiedTwoDaysAt = :at where s.id in :ids")
+    int markNotifiedTwoDays(@Param("ids") Collection<Long> ids, @Param("at") Instant at);
+
+    @Modifying
+    @Query("update Subscription s set s.notifiedOneDayAt = :at where s.id in :ids")
+    int markNotifiedOneDay(@Param("ids") Collection<Long> ids, @Param("at") Instant at);
+
+    @Modifying
+    @Query(value = """
+           update subscriptions
+           set lease_owner = :owner,
+               lease_until = localtimestamp + make_interval(secs => :seconds)
+           where id in (:ids)
+           """, nativeQuery = true)
+    int leaseByIds(@Param("ids") Collection<Long> ids,
+                   @Param("owner") String owner,
+                   @Param("seconds") long seconds);
 
     List<Subscription> findByEndDateAfter(LocalDateTime now);
+
+    // Подписки по ключам, истекающие в окне (from, until] — для таймера истечения
+    @Query("""
+           select s.vpnKey.id as keyId, s.endDate as endDate from Subscription s
+           where s.vpnKey is not null
+             and s.endDate > :from
+             and s.endDate <= :until
+           """)
+    List<KeyEndDate> findKeyEndDatesBetween(@Param("from") LocalDateTime from, @Param("until") LocalDateTime until);
+
+    // отчёт "активные пользователи": одна строка на пользователя, без загрузки подписок
+    @Query("""
+           select u.id as userId, u.telegramId as telegramId, u.username as username,
+                  max(s.endDate) as activeUntil
+           from Subscription s join s.user u
+           where s.endDate > :now
+             and u.disabled = false
+             and u.telegramId is not null
+           group by u.id, u.telegramId, u.username
+           order by u.id
+           """)
+    Stream<ActiveUserRow> streamActiveUsers(@Param("now") LocalDateTime now);
+
+    interface ActiveUserRow {
+        Long getUserId();
+
+        Long getTelegramId();
+
+        String getUsername();
+
+        LocalDateTime getActiveUntil();
+    }
+
+    interface KeyEndDate {
+        Long getKeyId();
+
+        LocalDateTime getEndDate();
+    }
 }
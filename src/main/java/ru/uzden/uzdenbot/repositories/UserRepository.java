@@ -1,13 +1,16 @@
 package ru.uzden.uzdenbot.repositories;
 
 import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.uzden.uzdenbot.entities.User;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -21,10 +24,61 @@ public interface UserRepository extends JpaRepository<User,Long> {
 
     long countByReferredBy(Long referredBy);
 
-    List<User> findByDisabledTrue();
+    @Query("select u.id from User u where u.disabled = true and u.id > :afterId order by u.id asc")
+    List<Long> findDisabledIdsAfter(@Param("afterId") long afterId, Pageable page);
+
+    // ключи, подписки и платежи удаляются каскадом в БД
+    @Modifying
+    @Query("delete from User u where u.id in :ids and u.disabled = true")
+    int deleteDisabledByIds(@Param("ids") Collection<Long> ids);
+
+    // Профиль и флаг отключения пишутся точечным UPDATE без проверки версии: версия users охраняет
+    // только набор ключей (touchUser), и параллельная операция с ключами не должна ронять эти записи
+    @Modifying(clearAutomatically = true)
+    @Query("update User u set u.username = :username, u.referralCode = :referralCode where u.id = :id")
+    int updateProfile(@Param("id") Long id, @Param("username") String username,
+                      @Param("referralCode") String referralCode);
+
+    @Modifying(clearAutomatically = true)
+    @Query("update User u set u.disabled = :disabled where u.id = :id")
+    int updateDisabled(@Param("id") Long id, @Param("disabled") boolean disabled);
 
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     @Query("select u from User u where u.id = :id")
     User lockUser(@Param("id") Long id);
 
+    // Без блокировки строки: версия пользователя увеличится при commit,
+    // параллельная транзакция с тем же пользователем получит OptimisticLockException
+    @Lock(LockModeType.OPTIMISTIC_FORCE_INCREMENT)
+    @Query("select u from User u where u.id = :id")
+    User touchUser(@Param("id") Long id);
+
+    // получатели рассылки: keyset по id, без загрузки сущностей
+    @Query("""
+           select u.id as id, u.telegramId as telegramId from User u
+           where u.telegramId is not null
+             and u.id > :afterId
+           order by u.id asc
+           """)
+    List<BroadcastTarget> findBroadcastTargets(@Param("afterId") long afterId, Pageable page);
+
+    @Query("""
+           select u.id as id, u.telegramId as telegramId from User u
+           where u.telegramId is not null
+             and u.id in :ids
+           order by u.id asc
+           """)
+    List<BroadcastTarget> findBroadcastTargetsByIds(@Param("ids") Collection<Long> ids);
+
+    @Query("select count(u) from User u where u.telegramId is not null")
+    long countBroadcastTargets();
+
+    @Query(value = "select active_key_count from users where id = :id", nativeQuery = true)
+    int findActiveKeyCount(@Param("id") Long id);
+
+    interface BroadcastTarget {
+        Long getId();
+
+        Long getTelegramId();
+    }
 }
@@ -1,30 +1,34 @@
 package ru.uzden.uzdenbot.repositories;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.uzden.uzdenbot.entities.VpnKey;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 
 @Repository
 public interface VpnKeyRepository extends JpaRepository<VpnKey, Long> {
 
-    @Query("""
-           select k from VpnKey k
-           where k.revoked = false
-             and k.status = ru.uzden.uzdenbot.entities.VpnKey$Status.ACTIVE
-             and not exists (
-                select 1 from Subscription s
-                where s.vpnKey = k
-                  and s.endDate > :now
-             )
-           order by k.createdAt asc
-           """)
-    List<VpnKey> findActiveKeysWithoutSubscription(@Param("now") java.time.LocalDateTime now);
+    @Query(value = """
+           select k.* from vpn_keys k
+           where k.is_revoked = false
+             and k.status = 'ACTIVE'
+             and (k.paid_until is null or k.paid_until <= :now)
+             and (k.lease_until is null or k.lease_until < localtimestamp)
+           order by k.paid_until asc nulls first
+           limit :limit
+           for update of k skip locked
+           """, nativeQuery = true)
+    List<VpnKey> lockActiveKeysWithoutSubscription(@Param("now") java.time.LocalDateTime now,
+                                                   @Param("limit") int limit);
 
     @Query("""
            select k from VpnKey k
@@ -73,49 +77,145 @@ public interface VpnKeyRepository extends JpaRepository<VpnKey, Long> {
            """)
     long countActiveKeys(@Param("userId") long userId);
 
-    @Query("""
-           select count(k) from VpnKey k
-           where k.user.id = :userId
-             and k.revoked = false
-             and k.status in (ru.uzden.uzdenbot.entities.VpnKey$Status.PENDING,
-                              ru.uzden.uzdenbot.entities.VpnKey$Status.ACTIVE,
-                              ru.uzden.uzdenbot.entities.VpnKey$Status.FAILED)
-           """)
-    long countNonRevokedKeys(@Param("userId") long userId);
+    @Query(value = """
+           select * from vpn_keys k
+           where k.is_revoked = false
+             and k.status in ('PENDING', 'FAILED')
+             and k.updated_at < :border
+             and k.recovery_attempts < :maxAttempts
+             and (k.next_recovery_at is null or k.next_recovery_at <= localtimestamp)
+             and (k.lease_until is null or k.lease_until < localtimestamp)
+           order by k.updated_at asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<VpnKey> lockRecoverable(@Param("border") Instant border,
+                                 @Param("maxAttempts") int maxAttempts,
+                                 @Param("limit") int limit);
 
-    @Query("""
-           select k from VpnKey k
-           where k.revoked = false
-             and k.status in (ru.uzden.uzdenbot.entities.VpnKey$Status.PENDING,
-                              ru.uzden.uzdenbot.entities.VpnKey$Status.FAILED)
-             and k.updatedAt < :border
-           order by k.updatedAt asc
-           """)
-    List<VpnKey> findStale(@Param("border") Instant border);
+    // неудачная попытка восстановления: следующая не раньше чем через delaySeconds
+    @Modifying
+    @Query(value = """
+           update vpn_keys
+           set recovery_attempts = recovery_attempts + 1,
+               next_recovery_at = localtimestamp + make_interval(secs => :delaySeconds),
+               version = version + 1
+           where id = :keyId
+           """, nativeQuery = true)
+    int scheduleRecoveryRetry(@Param("keyId") long keyId, @Param("delaySeconds") long delaySeconds);
+
+    @Query(value = """
+           select * from vpn_keys k
+           where k.is_revoked = false
+             and k.status = 'ACTIVE'
+             and k.created_at < :border
+             and k.id > :afterId
+             and (k.lease_until is null or k.lease_until < localtimestamp)
+           order by k.id asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<VpnKey> lockActiveOlderThan(@Param("border") Instant border, @Param("afterId") long afterId,
+                                     @Param("limit") int limit);
+
+    @Query(value = """
+           select * from vpn_keys k
+           where k.status in ('PENDING', 'FAILED')
+             and k.created_at < :border
+             and k.id > :afterId
+             and (k.lease_until is null or k.lease_until < localtimestamp)
+           order by k.id asc
+           limit :limit
+           for update skip locked
+           """, nativeQuery = true)
+    List<VpnKey> lockPendingOrFailedOlderThan(@Param("border") Instant border, @Param("afterId") long afterId,
+                                              @Param("limit") int limit);
 
+    // удаление очисткой: условия те же, что при выборке — ключ, успевший стать ACTIVE или отозванным, не трогаем
+    @Modifying
+    @Query(value = """
+           delete from vpn_keys
+           where id = :keyId
+             and status in ('PENDING', 'FAILED')
+             and created_at < :border
+           """, nativeQuery = true)
+    int deletePendingOrFailedOlderThan(@Param("keyId") long keyId, @Param("border") Instant border);
+
+    @Modifying
+    @Query(value = """
+           delete from vpn_keys
+           where id = :keyId
+             and is_revoked = false
+             and status = 'ACTIVE'
+             and created_at < :border
+           """, nativeQuery = true)
+    int deleteActiveOlderThan(@Param("keyId") long keyId, @Param("border") Instant border);
+
+    // paid_until не пишется через entity (updatable = false), только этим запросом
+    @Modifying
+    @Query(value = """
+           update vpn_keys
+           set paid_until = (select max(s.end_date) from subscriptions s where s.key_id = :keyId)
+           where id = :keyId
+           """, nativeQuery = true)
+    int syncPaidUntil(@Param("keyId") long keyId);
+
+    @Modifying
+    @Query(value = """
+           update vpn_keys
+           set lease_owner = :owner,
+               lease_until = localtimestamp + make_interval(secs => :seconds)
+           where id in (:ids)
+           """, nativeQuery = true)
+    int leaseByIds(@Param("ids") Collection<Long> ids,
+                   @Param("owner") String owner,
+                   @Param("seconds") long seconds);
+
+    // lease снимается сразу после пачки, чтобы другие задачи не ждали его истечения
+    @Modifying
+    @Query(value = """
+           update vpn_keys
+           set lease_owner = null,
+               lease_until = null
+           where id in (:ids)
+             and lease_owner = :owner
+           """, nativeQuery = true)
+    int releaseLeases(@Param("ids") Collection<Long> ids, @Param("owner") String owner);
+
+    // keyset-проход очистки: только то, что нужно для disable в 3x-ui
     @Query("""
-           select k from VpnKey k
-           where k.revoked = false
-             and k.status = ru.uzden.uzdenbot.entities.VpnKey$Status.ACTIVE
-             and k.createdAt < :border
-           order by k.createdAt asc
+           select k.id as id, k.user.id as userId, k.inboundId as inboundId, k.clientUuid as clientUuid
+           from VpnKey k
+           where (k.revoked = true
+                  or k.status = ru.uzden.uzdenbot.entities.VpnKey$Status.REVOKED)
+             and k.id > :afterId
+           order by k.id asc
            """)
-    List<VpnKey> findActiveOlderThan(@Param("border") Instant border);
+    List<KeyRef> findRevokedRefsAfter(@Param("afterId") long afterId, Pageable page);
 
     @Query("""
-           select k from VpnKey k
-           where k.status in (ru.uzden.uzdenbot.entities.VpnKey$Status.PENDING,
-                              ru.uzden.uzdenbot.entities.VpnKey$Status.FAILED)
-             and k.createdAt < :border
-           order by k.createdAt asc
+           select k.id as id, k.user.id as userId, k.inboundId as inboundId, k.clientUuid as clientUuid
+           from VpnKey k
+           where k.user.id in :userIds
            """)
-    List<VpnKey> findPendingOrFailedOlderThan(@Param("border") Instant border);
+    List<KeyRef> findRefsByUserIds(@Param("userIds") Collection<Long> userIds);
 
+    @Modifying
     @Query("""
-           select k from VpnKey k
-           where k.revoked = true
-              or k.status = ru.uzden.uzdenbot.entities.VpnKey$Status.REVOKED
-           order by k.createdAt asc
+           delete from VpnKey k
+           where k.id in :ids
+             and (k.revoked = true
+                  or k.status = ru.uzden.uzdenbot.entities.VpnKey$Status.REVOKED)
            """)
-    List<VpnKey> findRevokedKeys();
+    int deleteRevokedByIds(@Param("ids") Collection<Long> ids);
+
+    interface KeyRef {
+        Long getId();
+
+        Long getUserId();
+
+        Long getInboundId();
+
+        UUID getClientUuid();
+    }
 }
@@ -0,0 +1,143 @@
+package ru.uzden.uzdenbot.services;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import ru.uzden.uzdenbot.repositories.SubscriptionRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Максимальный end_date подписок пользователя в памяти (null — подписок не было).
+ *
+ * Из него отвечают hasActiveSubscription / hasAnySubscription / getActiveUntil без запроса в БД.
+ * Запись сбрасывается по SubscriptionChangedEvent после commit; между инстансами —
+ * через Redis pub/sub (app.subscriptions.cache.redis-invalidation). ttl — страховка
+ * на случай потерянного сообщения. «Нет активной подписки» живёт не дольше negative-ttl:
+ * без Redis-инвалидации другой инстанс иначе отказывал бы только что оплатившему пользователю до ttl. Для ключей кеш не нужен: срок лежит в vpn_keys.paid_until.
+ */
+@Slf4j
+@Service
+public class ActiveSubscriptionCache {
+
+    static final String CHANNEL = "uzden:subscriptions:invalidate";
+
+    private final SubscriptionRepository subscriptionRepository;
+    private final StringRedisTemplate redis;
+    private final long ttlMs;
+    private final long negativeTtlMs;
+    private final boolean redisInvalidation;
+    private final Map<Long, Entry> entries;
+    // растёт при каждом сбросе: значение, прочитанное из БД до сброса, в кеш не кладём
+    private final AtomicLong evictions = new AtomicLong();
+    private RedisMessageListenerContainer listenerContainer;
+
+    public ActiveSubscriptionCache(
+            SubscriptionRepository subscriptionRepository,
+            ObjectProvider<StringRedisTemplate> redis,
+            ObjectProvider<RedisConnectionFactory> connectionFactory,
+            @Value("${app.subscriptions.cache.max-size:10000}") int maxSize,
+            @Value("${app.subscriptions.cache.ttl-ms:600000}") long ttlMs,
+            @Value("${app.subscriptions.cache.negative-ttl-ms:5000}") long negativeTtlMs,
+            @Value("${app.subscriptions.cache.redis-invalidation:false}") boolean redisInvalidation) {
+        this.subscriptionRepository = subscriptionRepository;
+        this.ttlMs = Math.max(0, ttlMs);
+        this.negativeTtlMs = Math.min(this.ttlMs, Math.max(0, negativeTtlMs));
+        int capacity = Math.max(1, maxSize);
+        // LRU: при переполнении выбрасываем давно не читавшихся пользователей
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > capacity;
+            }
+        });
+
+        StringRedisTemplate template = redisInvalidation ? redis.getIfAvailable() : null;
+        RedisConnectionFactory factory = redisInvalidation ? connectionFactory.getIfAvailable() : null;
+        this.redis = template;
+        this.redisInvalidation = template != null && factory != null;
+        if (this.redisInvalidation) {
+            RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+            container.setConnectionFactory(factory);
+            container.addMessageListener((message, pattern) -> onRemoteInvalidation(
+                    new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(CHANNEL));
+            container.afterPropertiesSet();
+            container.start();
+            this.listenerContainer = container;
+        }
+    }
+
+    public Optional<LocalDateTime> getMaxEndDate(Long userId) {
+        if (userId == null) return Optional.empty();
+        long now = System.currentTimeMillis();
+        Entry e = entries.get(userId);
+        if (e != null && now - e.loadedAt < ttlOf(e.maxEndDate)) {
+            return Optional.ofNullable(e.maxEndDate);
+        }
+        long epoch = evictions.get();
+        LocalDateTime loaded = subscriptionRepository.findMaxEndDateByUserId(userId);
+        if (evictions.get() == epoch) {
+            entries.put(userId, new Entry(loaded, now));
+        }
+        return Optional.ofNullable(loaded);
+    }
+
+    private long ttlOf(LocalDateTime maxEndDate) {
+        return maxEndDate != null && maxEndDate.isAfter(LocalDateTime.now()) ? ttlMs : negativeTtlMs;
+    }
+
+    public void evict(Long userId) {
+        if (userId == null) return;
+        evictions.incrementAndGet();
+        entries.remove(userId);
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onSubscriptionChanged(SubscriptionService.SubscriptionChangedEvent event) {
+        if (event == null || event.userId() == null) return;
+        evict(event.userId());
+        if (redisInvalidation) {
+            try {
+                redis.convertAndSend(CHANNEL, event.userId().toString());
+            } catch (Exception e) {
+                log.debug("Failed to publish subscription cache invalidation: {}", e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (listenerContainer != null) {
+            try {
+                listenerContainer.destroy();
+            } catch (Exception e) {
+                log.debug("Failed to stop invalidation listener: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void onRemoteInvalidation(String body) {
+        try {
+            evict(Long.parseLong(body.trim()));
+        } catch (NumberFormatException e) {
+            log.debug("Bad subscription cache invalidation message: {}", body);
+        }
+    }
+
+    private record Entry(LocalDateTime maxEndDate, long loadedAt) {
+    }
+}
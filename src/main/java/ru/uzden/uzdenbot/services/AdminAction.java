@@ -6,5 +6,8 @@ public enum AdminAction {
     REVOKE_SUBSCRIPTION,
     DISABLE_USER,
     ENABLE_USER,
-    BROADCAST
+    BROADCAST,
+    BROADCAST_REFERRER,
+    BULK_GRANT,
+    BULK_REVOKE
 }
@@ -0,0 +1,417 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
+import org.telegram.telegrambots.meta.api.objects.File;
+import ru.uzden.uzdenbot.bots.MainBot;
+import ru.uzden.uzdenbot.entities.AdminBulkJob;
+import ru.uzden.uzdenbot.repositories.AdminBulkJobRepository;
+import ru.uzden.uzdenbot.repositories.LeasedJobTable;
+import ru.uzden.uzdenbot.repositories.UserRepository;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Выполнение массовых операций из админки (выдача дней, отключение подписок).
+ *
+ * Список или файл сначала сопоставляется с users пачками IN-запросов по telegram_id и lower(username);
+ * найденные id пишутся в admin_bulk_job_targets. Дальше получатели (или сегмент AudienceSegmentService)
+ * обходятся keyset-страницами по users.id: каждая страница применяется одной транзакцией
+ * SubscriptionService вместе с сохранением курсора, поэтому после рестарта resume продолжит ровно
+ * со следующей страницы. Упавшая страница повторяется chunk-attempts раз; если не прошла и тогда,
+ * её пользователи помечаются failed в admin_bulk_job_targets, а курсор идёт дальше.
+ * Очередь, lease и статусное сообщение — в LeasedJobRunner.
+ */
+@Slf4j
+@Service
+public class AdminBulkRunner extends LeasedJobRunner<AdminBulkJob> {
+
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s,;\"']+");
+    private static final Pattern USERNAME = Pattern.compile("[a-z0-9_]{1,64}");
+    private static final int NOT_FOUND_SAMPLE = 20;
+
+    private static final String INSERT_TARGET = """
+            insert into admin_bulk_job_targets (job_id, user_id)
+            values (?, ?)
+            on conflict do nothing
+            """;
+
+    // для сегмента строк получателей нет — неудавшиеся добавляются сразу с failed = true
+    private static final String MARK_FAILED = """
+            insert into admin_bulk_job_targets (job_id, user_id, failed)
+            values (?, ?, true)
+            on conflict (job_id, user_id) do update set failed = true
+            """;
+
+    private final AdminBulkJobRepository adminBulkJobRepository;
+    private final SubscriptionService subscriptionService;
+    private final AudienceSegmentService audienceSegmentService;
+    private final NamedParameterJdbcTemplate jdbc;
+    private final int chunkSize;
+    private final int chunkAttempts;
+    private final long chunkRetryDelayMs;
+    private final int resolveChunkSize;
+    private final int maxTargets;
+    private final long maxFileBytes;
+    private final long progressIntervalMs;
+
+    public AdminBulkRunner(
+            AdminBulkJobRepository adminBulkJobRepository,
+            SubscriptionService subscriptionService,
+            AudienceSegmentService audienceSegmentService,
+            JobLeaseService jobLeaseService,
+            NamedParameterJdbcTemplate jdbc,
+            TransactionTemplate tx,
+            MainBot mainBot,
+            @Value("${app.admin-bulk.chunk-size:500}") int chunkSize,
+            @Value("${app.admin-bulk.chunk-attempts:3}") int chunkAttempts,
+            @Value("${app.admin-bulk.chunk-retry-delay-ms:1000}") long chunkRetryDelayMs,
+            @Value("${app.admin-bulk.resolve-chunk-size:1000}") int resolveChunkSize,
+            @Value("${app.admin-bulk.max-targets:50000}") int maxTargets,
+            @Value("${app.admin-bulk.max-file-bytes:1048576}") long maxFileBytes,
+            @Value("${app.admin-bulk.progress-interval-ms:3000}") long progressIntervalMs,
+            @Value("${app.jobs.lease-seconds:300}") long leaseSeconds) {
+        super("admin-bulk", new LeasedJobTable(jdbc, "admin_bulk_jobs", "applied", "skipped", "failed"),
+                jobLeaseService, tx, mainBot, leaseSeconds);
+        this.adminBulkJobRepository = adminBulkJobRepository;
+        this.subscriptionService = subscriptionService;
+        this.audienceSegmentService = audienceSegmentService;
+        this.jdbc = jdbc;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.chunkAttempts = Math.max(1, chunkAttempts);
+        this.chunkRetryDelayMs = Math.max(0, chunkRetryDelayMs);
+        this.resolveChunkSize = Math.max(1, resolveChunkSize);
+        this.maxTargets = Math.max(1, maxTargets);
+        this.maxFileBytes = Math.max(1, maxFileBytes);
+        this.progressIntervalMs = Math.max(0, progressIntervalMs);
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onBulkJobCreated(AdminBulkService.BulkJobCreatedEvent event) {
+        schedule();
+    }
+
+    /**
+     * Подхват заданий, брошенных упавшим/перезапущенным инстансом (истёк lease).
+     */
+    @Scheduled(fixedDelayString = "${app.admin-bulk.resume-delay-ms:60000}")
+    public void resume() {
+        schedule();
+    }
+
+    @Override
+    protected List<AdminBulkJob> lockResumable(int limit) {
+        return adminBulkJobRepository.lockResumable(limit);
+    }
+
+    @Override
+    protected void run(AdminBulkJob job, String owner) throws InterruptedException {
+        long jobId = job.getId();
+        if (!AudienceSegmentService.isKnown(job.getAudience())) {
+            log.warn("Bulk job #{} aborted: unknown audience {}", jobId, job.getAudience());
+            abort(job, owner, "неизвестный сегмент " + job.getAudience());
+            return;
+        }
+        if (job.getStatus() == AdminBulkJob.Status.RESOLVING && !resolve(job, owner)) {
+            return;
+        }
+        log.info("Bulk job #{} {} started from cursor {}", jobId, job.getOperation(), job.getCursorUserId());
+
+        long lastProgress = System.currentTimeMillis();
+        while (true) {
+            long cursor = job.getCursorUserId();
+            List<Long> userIds;
+            long lastId;
+            boolean lastPage;
+            if (job.getAudience() != null) {
+                AudienceSegmentService.AudiencePage page = audienceSegmentService.page(job.getAudience(), cursor, chunkSize);
+                userIds = page.targets().stream().map(UserRepository.BroadcastTarget::getId).toList();
+                lastId = page.lastId();
+                lastPage = page.last();
+            } else {
+                userIds = adminBulkJobRepository.findTargetsAfter(jobId, cursor, chunkSize);
+                lastId = userIds.isEmpty() ? cursor : userIds.get(userIds.size() - 1);
+                lastPage = userIds.size() < chunkSize;
+            }
+            if (lastId == cursor) break;
+
+            if (!applyChunk(job, userIds, lastId, owner)) {
+                log.warn("Bulk job #{} lease lost, stopping", jobId);
+                return;
+            }
+            job.setCursorUserId(lastId);
+            if (System.currentTimeMillis() - lastProgress >= progressIntervalMs) {
+                lastProgress = System.currentTimeMillis();
+                editStatus(job, false);
+            }
+            if (lastPage) break;
+        }
+
+        finish(job, owner);
+        log.info("Bulk job #{} done: applied={}, skipped={}, failed={}, notFound={}",
+                jobId, job.getApplied(), job.getSkipped(), job.getFailed(), job.getNotFound());
+    }
+
+    /**
+     * Применить страницу (с повторами) и сдвинуть курсор на lastId. false — lease потерян.
+     */
+    private boolean applyChunk(AdminBulkJob job, List<Long> userIds, long lastId, String owner)
+            throws InterruptedException {
+        long jobId = job.getId();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // изменения подписок и курсор — в одной транзакции: страница применяется ровно один раз
+                SubscriptionService.BulkResult r = tx.execute(s -> {
+                    SubscriptionService.BulkResult res = job.getOperation() == AdminBulkJob.Operation.GRANT
+                            ? subscriptionService.extendSubscriptions(userIds, job.getDays())
+                            : subscriptionService.revokeActiveSubscriptions(userIds);
+                    int updated = table.saveProgress(jobId, lastId, owner, leaseSeconds,
+                            job.getApplied() + res.applied(), job.getSkipped() + res.skipped(), job.getFailed());
+                    if (updated == 0) {
+                        s.setRollbackOnly();
+                        return null;
+                    }
+                    return res;
+                });
+                if (r == null) return false;
+                job.setApplied(job.getApplied() + r.applied());
+                job.setSkipped(job.getSkipped() + r.skipped());
+                return true;
+            } catch (RuntimeException e) {
+                if (attempt >= chunkAttempts) {
+                    log.warn("Bulk job #{} chunk after {} failed {} times, marking {} users failed: {}",
+                            jobId, job.getCursorUserId(), attempt, userIds.size(), e.getMessage());
+                    return markChunkFailed(job, userIds, lastId, owner);
+                }
+                log.info("Bulk job #{} chunk after {} failed (attempt {}), retrying: {}",
+                        jobId, job.getCursorUserId(), attempt, e.getMessage());
+                Thread.sleep(chunkRetryDelayMs * attempt);
+            }
+        }
+    }
+
+    private boolean markChunkFailed(AdminBulkJob job, List<Long> userIds, long lastId, String owner) {
+        long jobId = job.getId();
+        int failed = job.getFailed() + userIds.size();
+        Integer updated = tx.execute(s -> {
+            List<Object[]> rows = new ArrayList<>(userIds.size());
+            for (Long userId : userIds) {
+                rows.add(new Object[]{jobId, userId});
+            }
+            jdbc.getJdbcOperations().batchUpdate(MARK_FAILED, rows);
+            int n = table.saveProgress(jobId, lastId, owner, leaseSeconds, job.getApplied(), job.getSkipped(), failed);
+            if (n == 0) s.setRollbackOnly();
+            return n;
+        });
+        if (updated == null || updated == 0) return false;
+        job.setFailed(failed);
+        return true;
+    }
+
+    /**
+     * Сопоставить список/файл с users. false — задание закрыто с ошибкой или lease потерян.
+     */
+    private boolean resolve(AdminBulkJob job, String owner) {
+        long jobId = job.getId();
+        Identifiers ids;
+        try {
+            String raw = job.getFileId() != null ? download(job.getFileId()) : job.getSourceText();
+            ids = parseIdentifiers(raw, maxTargets);
+        } catch (Exception e) {
+            log.warn("Bulk job #{} source unreadable: {}", jobId, e.getMessage());
+            abort(job, owner, "не удалось прочитать список: " + e.getMessage());
+            return false;
+        }
+        if (ids.isEmpty()) {
+            abort(job, owner, "в списке нет @username или telegram id");
+            return false;
+        }
+
+        Set<Long> found = new LinkedHashSet<>();
+        List<String> notFound = new ArrayList<>(ids.invalid());
+        resolveChunked(new ArrayList<>(ids.telegramIds()), """
+                        select id, telegram_id as ident from users
+                        where telegram_id in (:ids)
+                        """, found, notFound, String::valueOf);
+        resolveChunked(new ArrayList<>(ids.usernames()), """
+                        select distinct on (lower(username)) id, lower(username) as ident from users
+                        where lower(username) in (:ids)
+                        order by lower(username), id
+                        """, found, notFound, name -> "@" + name);
+
+        String sample = notFoundSample(notFound, ids.overLimit());
+        Integer resolved = tx.execute(s -> {
+            List<Object[]> rows = new ArrayList<>(found.size());
+            for (Long userId : found) {
+                rows.add(new Object[]{jobId, userId});
+            }
+            jdbc.getJdbcOperations().batchUpdate(INSERT_TARGET, rows);
+            int updated = adminBulkJobRepository.markResolved(jobId, found.size(), notFound.size(), sample, owner);
+            if (updated == 0) s.setRollbackOnly();
+            return updated;
+        });
+        if (resolved == null || resolved == 0) {
+            log.warn("Bulk job #{} lease lost while resolving", jobId);
+            return false;
+        }
+        job.setTotal(found.size());
+        job.setNotFound(notFound.size());
+        job.setNotFoundSample(sample);
+        job.setStatus(AdminBulkJob.Status.RUNNING);
+        log.info("Bulk job #{} resolved: {} users, {} not found", jobId, found.size(), notFound.size());
+        return true;
+    }
+
+    private <T> void resolveChunked(List<T> idents, String sql, Set<Long> found, List<String> notFound,
+                                    Function<T, String> label) {
+        for (int from = 0; from < idents.size(); from += resolveChunkSize) {
+            List<T> chunk = idents.subList(from, Math.min(idents.size(), from + resolveChunkSize));
+            Set<String> matched = new LinkedHashSet<>();
+            jdbc.query(sql, new MapSqlParameterSource("ids", chunk), rs -> {
+                found.add(rs.getLong("id"));
+                matched.add(rs.getString("ident"));
+            });
+            for (T ident : chunk) {
+                if (!matched.contains(String.valueOf(ident))) {
+                    notFound.add(label.apply(ident));
+                }
+            }
+        }
+    }
+
+    private String download(String fileId) throws Exception {
+        File file = mainBot.execute(GetFile.builder().fileId(fileId).build());
+        if (file.getFileSize() != null && file.getFileSize() > maxFileBytes) {
+            throw new IllegalStateException("файл больше " + maxFileBytes + " байт");
+        }
+        try (InputStream in = mainBot.downloadFileAsStream(file)) {
+            byte[] bytes = in.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, maxFileBytes + 1));
+            if (bytes.length > maxFileBytes) {
+                throw new IllegalStateException("файл больше " + maxFileBytes + " байт");
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void abort(AdminBulkJob job, String owner, String error) {
+        job.setError(error);
+        tx.executeWithoutResult(s -> adminBulkJobRepository.markAborted(job.getId(), error, owner));
+        editStatus(job, true);
+    }
+
+    /**
+     * Разбор списка: @username или telegram id через пробелы, запятые, точки с запятой, кавычки и переводы строк.
+     * Повторы схлопываются, всё сверх limit не обрабатывается (и попадает в отчёт).
+     */
+    static Identifiers parseIdentifiers(String raw, int limit) {
+        Set<Long> telegramIds = new LinkedHashSet<>();
+        Set<String> usernames = new LinkedHashSet<>();
+        List<String> invalid = new ArrayList<>();
+        int overLimit = 0;
+        if (raw != null) {
+            for (String token : SEPARATORS.split(raw.strip())) {
+                if (token.isEmpty()) continue;
+                String t = token.startsWith("@") ? token.substring(1) : token;
+                boolean numeric = !token.startsWith("@") && !t.isEmpty() && t.chars().allMatch(Character::isDigit);
+                if (numeric) {
+                    try {
+                        long id = Long.parseLong(t);
+                        if (telegramIds.contains(id)) continue;
+                        if (telegramIds.size() + usernames.size() >= limit) {
+                            overLimit++;
+                            continue;
+                        }
+                        telegramIds.add(id);
+                    } catch (NumberFormatException e) {
+                        invalid.add(token);
+                    }
+                    continue;
+                }
+                String name = t.toLowerCase(Locale.ROOT);
+                if (!USERNAME.matcher(name).matches()) {
+                    invalid.add(token);
+                    continue;
+                }
+                if (usernames.contains(name)) continue;
+                if (telegramIds.size() + usernames.size() >= limit) {
+                    overLimit++;
+                    continue;
+                }
+                usernames.add(name);
+            }
+        }
+        return new Identifiers(telegramIds, usernames, invalid, overLimit);
+    }
+
+    private static String notFoundSample(List<String> notFound, int overLimit) {
+        StringBuilder sb = new StringBuilder();
+        int n = Math.min(NOT_FOUND_SAMPLE, notFound.size());
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(notFound.get(i));
+        }
+        if (notFound.size() > n) {
+            sb.append(" … и ещё ").append(notFound.size() - n);
+        }
+        if (overLimit > 0) {
+            if (!sb.isEmpty()) sb.append("\n");
+            sb.append("Сверх лимита не обработано: ").append(overLimit);
+        }
+        return sb.isEmpty() ? null : sb.toString();
+    }
+
+    @Override
+    protected String statusText(AdminBulkJob job, boolean done) {
+        String title = job.getOperation() == AdminBulkJob.Operation.GRANT
+                ? "➕ Выдача +" + job.getDays() + " дн. #" + job.getId()
+                : "🛑 Отключение подписок #" + job.getId();
+        if (job.getError() != null) {
+            return title + " остановлена: " + job.getError();
+        }
+        if (job.getStatus() == AdminBulkJob.Status.RESOLVING) {
+            return title + ": ищем пользователей из " + (job.getFileId() != null ? "файла" : "списка") + "…";
+        }
+        int processed = job.getApplied() + job.getSkipped() + job.getFailed();
+        String header = done
+                ? title + " завершена."
+                : title + " идёт: " + processed + " из " + job.getTotal();
+        String source = job.getAudience() != null
+                ? audienceSegmentService.label(job.getAudience())
+                : (job.getFileId() != null ? "файл" : "список");
+        StringBuilder sb = new StringBuilder(header).append("\n")
+                .append("👥 Получатели: ").append(source).append("\n")
+                .append("✅ Применено: ").append(job.getApplied()).append("\n")
+                .append("⏭ Пропущено: ").append(job.getSkipped()).append("\n")
+                .append("❌ Ошибки: ").append(job.getFailed());
+        if (job.getNotFound() > 0) {
+            sb.append("\n🔎 Не найдены: ").append(job.getNotFound());
+        }
+        if (done && job.getNotFoundSample() != null) {
+            sb.append("\n\n").append(job.getNotFoundSample());
+        }
+        return sb.toString();
+    }
+
+    record Identifiers(Set<Long> telegramIds, Set<String> usernames, List<String> invalid, int overLimit) {
+
+        boolean isEmpty() {
+            return telegramIds.isEmpty() && usernames.isEmpty();
+        }
+    }
+}
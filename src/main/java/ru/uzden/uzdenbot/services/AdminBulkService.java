@@ -0,0 +1,83 @@
+package ru.uzden.uzdenbot.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import ru.uzden.uzdenbot.entities.AdminBulkJob;
+import ru.uzden.uzdenbot.repositories.AdminBulkJobRepository;
+
+/**
+ * Постановка массовой операции из админки: строка admin_bulk_jobs + BulkJobCreatedEvent.
+ * Сопоставлением получателей и применением занимается AdminBulkRunner в своём потоке.
+ */
+@Service
+public class AdminBulkService {
+
+    private final AdminBulkJobRepository adminBulkJobRepository;
+    private final AudienceSegmentService audienceSegmentService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final long maxFileBytes;
+
+    public AdminBulkService(
+            AdminBulkJobRepository adminBulkJobRepository,
+            AudienceSegmentService audienceSegmentService,
+            ApplicationEventPublisher eventPublisher,
+            @Value("${app.admin-bulk.max-file-bytes:1048576}") long maxFileBytes) {
+        this.adminBulkJobRepository = adminBulkJobRepository;
+        this.audienceSegmentService = audienceSegmentService;
+        this.eventPublisher = eventPublisher;
+        this.maxFileBytes = Math.max(1, maxFileBytes);
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    @Transactional
+    public AdminBulkJob createForSegment(Long adminChatId, AdminBulkJob.Operation operation, int days,
+                                         AudienceSegment segment) {
+        AdminBulkJob job = newJob(adminChatId, operation, days);
+        job.setAudience(segment.name());
+        job.setTotal(audienceSegmentService.size(segment.name()));
+        // сегмент — это уже users.id, сопоставлять нечего
+        job.setStatus(AdminBulkJob.Status.RUNNING);
+        return save(job);
+    }
+
+    /**
+     * @param sourceText @username и telegram id через пробелы, запятые или переводы строк
+     */
+    @Transactional
+    public AdminBulkJob createForList(Long adminChatId, AdminBulkJob.Operation operation, int days,
+                                      String sourceText) {
+        AdminBulkJob job = newJob(adminChatId, operation, days);
+        job.setSourceText(sourceText);
+        return save(job);
+    }
+
+    @Transactional
+    public AdminBulkJob createForFile(Long adminChatId, AdminBulkJob.Operation operation, int days,
+                                      String fileId) {
+        AdminBulkJob job = newJob(adminChatId, operation, days);
+        job.setFileId(fileId);
+        return save(job);
+    }
+
+    private AdminBulkJob newJob(Long adminChatId, AdminBulkJob.Operation operation, int days) {
+        AdminBulkJob job = new AdminBulkJob();
+        job.setAdminChatId(adminChatId);
+        job.setOperation(operation);
+        job.setDays(operation == AdminBulkJob.Operation.GRANT ? days : 0);
+        return job;
+    }
+
+    private AdminBulkJob save(AdminBulkJob job) {
+        AdminBulkJob saved = adminBulkJobRepository.save(job);
+        eventPublisher.publishEvent(new BulkJobCreatedEvent(saved.getId()));
+        return saved;
+    }
+
+    public record BulkJobCreatedEvent(long jobId) {
+    }
+}
@@ -2,15 +2,24 @@ package ru.uzden.uzdenbot.services;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Document;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import ru.uzden.uzdenbot.entities.AdminBulkJob;
+import ru.uzden.uzdenbot.entities.BroadcastJob;
 import ru.uzden.uzdenbot.entities.Subscription;
 import ru.uzden.uzdenbot.entities.User;
 import ru.uzden.uzdenbot.utils.BotMessageFactory;
 import ru.uzden.uzdenbot.utils.BotTextUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 
 @Slf4j
@@ -22,6 +31,13 @@ public class AdminFlowService {
     private final SubscriptionService subscriptionService;
     private final UserService userService;
     private final VpnKeyService vpnKeyService;
+    private final BroadcastService broadcastService;
+    private final AudienceSegmentService audienceSegmentService;
+    private final CallbackCodec callbackCodec;
+    private final AdminBulkService adminBulkService;
+
+    @Value("${app.admin-bulk.confirm-threshold:100}")
+    private int bulkConfirmThreshold;
 
     public List<SendMessage> handleAdminInput(Long chatId, String text, AdminAction action) {
         List<SendMessage> out = new ArrayList<>();
@@ -33,37 +49,111 @@ public class AdminFlowService {
             case DISABLE_USER -> handleDisableUser(chatId, trimmed, out);
             case ENABLE_USER -> handleEnableUser(chatId, trimmed, out);
             case BROADCAST -> handleBroadcast(chatId, text, out);
+            case BROADCAST_REFERRER -> handleBroadcastReferrer(chatId, trimmed, out);
+            case BULK_GRANT, BULK_REVOKE -> handleBulk(chatId, trimmed, null, action, out);
             default -> {
             }
         }
         return out;
     }
 
-    public SendMessage buildActiveUsersMessage(Long chatId) {
-        List<User> users = subscriptionService.getActiveUsersWithSubscription();
-        if (users.isEmpty()) {
-            return BotMessageFactory.simpleMessage(chatId, "Активных подписок нет.");
+    /**
+     * Выбор аудитории рассылки: сегменты с текущими размерами (из памяти AudienceSegmentService).
+     */
+    public SendMessage broadcastAudienceMenu(Long chatId) {
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        for (Map.Entry<AudienceSegment, Integer> e : audienceSegmentService.sizes().entrySet()) {
+            rows.add(List.of(InlineKeyboardButton.builder()
+                    .text(audienceSegmentService.label(e.getKey().name()) + " — " + e.getValue())
+                    .callbackData(callbackCodec.encode(CallbackOp.ADMIN_BCAST_AUD, chatId, e.getKey().code()))
+                    .build()));
+        }
+        rows.add(List.of(InlineKeyboardButton.builder()
+                .text("🤝 Приглашённые пользователем")
+                .callbackData(callbackCodec.encode(CallbackOp.ADMIN_BCAST_REFERRED))
+                .build()));
+        return SendMessage.builder()
+                .chatId(chatId.toString())
+                .text("📣 Кому отправить рассылку?\n\n/cancel — отмена.")
+                .replyMarkup(InlineKeyboardMarkup.builder().keyboard(rows).build())
+                .build();
+    }
+
+    public List<SendMessage> selectBroadcastAudience(Long chatId, long segmentCode) {
+        AudienceSegment segment = AudienceSegment.byCode(segmentCode);
+        if (segment == null) {
+            return List.of(BotMessageFactory.simpleMessage(chatId, "❌ Неизвестная аудитория."));
+        }
+        return List.of(askBroadcastText(chatId, segment.name()));
+    }
+
+    public List<SendMessage> askBroadcastReferrer(Long chatId) {
+        adminStateService.set(chatId, AdminAction.BROADCAST_REFERRER);
+        return List.of(BotMessageFactory.simpleMessage(chatId,
+                "Отправьте @username пригласившего пользователя.\n\n/cancel — отмена."));
+    }
+
+    /**
+     * Запрос получателей массовой операции (BULK_GRANT / BULK_REVOKE).
+     */
+    public List<SendMessage> askBulkTargets(Long chatId, AdminAction action) {
+        adminStateService.set(chatId, action);
+        String segments = String.join(", ", Arrays.stream(AudienceSegment.values()).map(Enum::name).toList());
+        String text = action == AdminAction.BULK_GRANT
+                ? "➕ Массовая выдача дней.\n\n" +
+                "Отправьте число дней и получателей — @username или telegram id через пробел или с новой строки:\n\n" +
+                "30 @user1 @user2 123456789\n\n" +
+                "Вместо списка можно указать сегмент: 30 ACTIVE (" + segments + ").\n" +
+                "Или пришлите .txt/.csv файл со списком, в подписи — число дней."
+                : "🛑 Массовое отключение подписок.\n\n" +
+                "Отправьте получателей — @username или telegram id через пробел или с новой строки, " +
+                "сегмент (" + segments + ") или .txt/.csv файл со списком.";
+        return List.of(BotMessageFactory.simpleMessage(chatId, text + "\n\nОтмена (или /cancel) — отмена."));
+    }
+
+    /**
+     * Файл от администратора: список получателей для ожидаемой массовой операции.
+     */
+    public List<SendMessage> handleAdminDocument(Long chatId, Document document, String caption, AdminAction action) {
+        List<SendMessage> out = new ArrayList<>();
+        if (action != AdminAction.BULK_GRANT && action != AdminAction.BULK_REVOKE) {
+            out.add(BotMessageFactory.simpleMessage(chatId, "Сейчас файл не ожидается."));
+            return out;
+        }
+        if (document.getFileSize() != null && document.getFileSize() > adminBulkService.getMaxFileBytes()) {
+            out.add(BotMessageFactory.simpleMessage(chatId,
+                    "Файл слишком большой (макс " + adminBulkService.getMaxFileBytes() / 1024 + " КБ)."));
+            return out;
         }
-        StringBuilder sb = new StringBuilder("👥 Активные пользователи (" + users.size() + "):\n");
-        for (User u : users) {
-            String uname = u.getUsername();
+        handleBulk(chatId, caption == null ? "" : caption.trim(), document.getFileId(), action, out);
+        return out;
+    }
+
+    public List<SendMessage> buildActiveUsersMessages(Long chatId) {
+        List<String> lines = new ArrayList<>();
+        lines.add("");
+        subscriptionService.forEachActiveUser(row -> {
+            StringBuilder sb = new StringBuilder();
+            String uname = row.getUsername();
             if (uname != null && !uname.isBlank()) {
                 if (!uname.startsWith("@")) {
                     uname = "@" + uname;
                 }
                 sb.append(uname);
-            } else if (u.getTelegramId() != null) {
-                sb.append("tg_").append(u.getTelegramId());
+            } else if (row.getTelegramId() != null) {
+                sb.append("tg_").append(row.getTelegramId());
             } else {
-                sb.append("user_").append(u.getId());
+                sb.append("user_").append(row.getUserId());
             }
-            long daysLeft = subscriptionService.getActiveSubscription(u)
-                    .map(subscriptionService::getDaysLeft)
-                    .orElse(0L);
+            long daysLeft = subscriptionService.getDaysLeft(row.getActiveUntil());
             sb.append(" — ").append(formatDaysLeft(daysLeft));
-            sb.append("\n");
+            lines.add(sb.toString());
+        });
+        if (lines.size() == 1) {
+            return List.of(BotMessageFactory.simpleMessage(chatId, "Активных подписок нет."));
         }
-        return BotMessageFactory.simpleMessage(chatId, sb.toString().trim());
+        lines.set(0, "👥 Активные пользователи (" + (lines.size() - 1) + "):");
+        return BotMessageFactory.paginatedMessages(chatId, lines);
     }
 
     private String formatDaysLeft(long daysLeft) {
@@ -130,7 +220,6 @@ public class AdminFlowService {
             return;
         }
         User user = userOpt.get();
-        vpnKeyService.ensureKeyForActiveSubscription(user);
         var keys = vpnKeyService.listUserKeys(user);
         if (keys.isEmpty()) {
             Optional<Subscription> subOpt = subscriptionService.getActiveSubscription(user);
@@ -145,12 +234,11 @@ public class AdminFlowService {
             StringBuilder sb = new StringBuilder("📦 Подписки по ключам:\n");
             for (int i = 0; i < keys.size(); i++) {
                 var key = keys.get(i);
-                var active = subscriptionService.getActiveSubscription(key);
-                if (active.isPresent()) {
-                    long daysLeft = subscriptionService.getDaysLeft(active.get());
+                if (subscriptionService.hasActiveSubscriptionForKey(key)) {
+                    long daysLeft = subscriptionService.getDaysLeft(key.getPaidUntil());
                     sb.append("Ключ ").append(i + 1)
                             .append(": ").append(daysLeft).append(" дн. до ")
-                            .append(BotTextUtils.formatDate(active.get().getEndDate()))
+                            .append(BotTextUtils.formatDate(key.getPaidUntil()))
                             .append("\n");
                 } else {
                     sb.append("Ключ ").append(i + 1).append(": подписка не активна\n");
@@ -226,24 +314,148 @@ public class AdminFlowService {
             return;
         }
 
-        List<User> users = userService.listAll();
-        if (users.isEmpty()) {
-            adminStateService.clear(chatId);
-            out.add(BotMessageFactory.simpleMessage(chatId, "Пользователей нет. Рассылка не отправлена."));
+        String audience = adminStateService.getBroadcastAudience(chatId).orElse(AudienceSegment.ALL.name());
+        adminStateService.clear(chatId);
+        BroadcastJob job = broadcastService.create(chatId, message, audience);
+        if (job.getTotal() == 0) {
+            out.add(BotMessageFactory.simpleMessage(chatId, "В аудитории нет пользователей. Рассылка не отправлена."));
             return;
         }
+        out.add(BotMessageFactory.simpleMessage(chatId,
+                "📣 Рассылка #" + job.getId() + " запущена: " + job.getTotal() + " получателей. Прогресс — в отдельном сообщении."));
+    }
+
+    private void handleBulk(Long chatId, String text, String fileId, AdminAction action, List<SendMessage> out) {
+        AdminBulkJob.Operation operation = action == AdminAction.BULK_GRANT
+                ? AdminBulkJob.Operation.GRANT
+                : AdminBulkJob.Operation.REVOKE;
+        int days = 0;
+        String targets = text;
+        if (operation == AdminBulkJob.Operation.GRANT) {
+            String[] parts = text.split("\\s+", 2);
+            Integer parsed = parseDays(parts[0]);
+            if (parsed == null || parsed <= 0) {
+                out.add(BotMessageFactory.simpleMessage(chatId,
+                        "Первым должно идти число дней, например: 30 @user1 @user2\n\n/cancel — отмена."));
+                return;
+            }
+            days = parsed;
+            targets = parts.length > 1 ? parts[1].trim() : "";
+        }
 
-        int delivered = 0;
-        for (User u : users) {
-            Long telegramId = u.getTelegramId();
-            if (telegramId == null) continue;
-            out.add(BotMessageFactory.simpleMessage(telegramId, message));
-            delivered++;
+        if (fileId == null && targets.isEmpty()) {
+            out.add(BotMessageFactory.simpleMessage(chatId,
+                    "Нужен список получателей, сегмент или файл.\n\n/cancel — отмена."));
+            return;
+        }
+        AudienceSegment segment = fileId == null ? parseSegment(targets) : null;
+        String request;
+        String scope;
+        int count;
+        if (fileId != null) {
+            request = "FILE:" + days + ":" + fileId;
+            scope = "получатели из файла (число станет известно после разбора)";
+            count = -1;
+        } else if (segment != null) {
+            request = "SEGMENT:" + days + ":" + segment.name();
+            count = audienceSegmentService.size(segment.name());
+            scope = "сегмент «" + audienceSegmentService.label(segment.name()) + "» — " + count + " польз.";
+        } else {
+            request = "LIST:" + days + ":" + targets;
+            AdminBulkRunner.Identifiers ids = AdminBulkRunner.parseIdentifiers(targets, Integer.MAX_VALUE);
+            count = ids.telegramIds().size() + ids.usernames().size();
+            scope = "список — " + count + " получателей";
         }
 
+        // отключение сегмента, файла или большого списка — только после подтверждения кнопкой
+        boolean confirm = operation == AdminBulkJob.Operation.REVOKE
+                && (segment != null || fileId != null || count > bulkConfirmThreshold);
+        if (!confirm) {
+            enqueueBulk(chatId, operation, request, out);
+            return;
+        }
+        adminStateService.setPendingBulk(chatId, request);
+        out.add(SendMessage.builder()
+                .chatId(chatId.toString())
+                .text("🛑 Отключить подписки: " + scope + ".\n\nЗапустить?")
+                .replyMarkup(InlineKeyboardMarkup.builder()
+                        .keyboard(List.of(List.of(
+                                InlineKeyboardButton.builder()
+                                        .text("✅ Да, отключить")
+                                        .callbackData(callbackCodec.encode(CallbackOp.ADMIN_BULK_CONFIRM))
+                                        .build(),
+                                InlineKeyboardButton.builder()
+                                        .text("✖️ Отмена")
+                                        .callbackData(callbackCodec.encode(CallbackOp.ADMIN_BULK_CANCEL))
+                                        .build())))
+                        .build())
+                .build());
+    }
+
+    /**
+     * Подтверждение массовой операции, отложенной handleBulk.
+     */
+    public List<SendMessage> confirmBulk(Long chatId) {
+        List<SendMessage> out = new ArrayList<>();
+        Optional<AdminAction> action = adminStateService.get(chatId);
+        Optional<String> request = adminStateService.getPendingBulk(chatId);
+        if (request.isEmpty() || action.isEmpty()
+                || (action.get() != AdminAction.BULK_GRANT && action.get() != AdminAction.BULK_REVOKE)) {
+            out.add(BotMessageFactory.simpleMessage(chatId, "Нет операции для подтверждения."));
+            return out;
+        }
+        enqueueBulk(chatId, action.get() == AdminAction.BULK_GRANT
+                ? AdminBulkJob.Operation.GRANT
+                : AdminBulkJob.Operation.REVOKE, request.get(), out);
+        return out;
+    }
+
+    /**
+     * @param request KIND:days:payload — SEGMENT:0:ACTIVE, LIST:0:@a @b, FILE:0:fileId
+     */
+    private void enqueueBulk(Long chatId, AdminBulkJob.Operation operation, String request, List<SendMessage> out) {
+        String[] parts = request.split(":", 3);
+        int days = Integer.parseInt(parts[1]);
+        AdminBulkJob job = switch (parts[0]) {
+            case "FILE" -> adminBulkService.createForFile(chatId, operation, days, parts[2]);
+            case "SEGMENT" -> adminBulkService.createForSegment(chatId, operation, days, AudienceSegment.valueOf(parts[2]));
+            default -> adminBulkService.createForList(chatId, operation, days, parts[2]);
+        };
         adminStateService.clear(chatId);
-        out.add(0, BotMessageFactory.simpleMessage(chatId,
-                "📣 Рассылка отправлена: " + delivered + " пользователей."));
+        out.add(BotMessageFactory.simpleMessage(chatId,
+                "📦 Массовая операция #" + job.getId() + " поставлена в очередь. Прогресс — в отдельном сообщении."));
+    }
+
+    private AudienceSegment parseSegment(String raw) {
+        if (raw.contains(" ") || raw.contains("\n")) return null;
+        try {
+            return AudienceSegment.valueOf(raw.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void handleBroadcastReferrer(Long chatId, String text, List<SendMessage> out) {
+        String username = firstTokenUsername(text);
+        if (username == null) {
+            out.add(BotMessageFactory.simpleMessage(chatId, "Нужно указать @username."));
+            return;
+        }
+        Optional<User> userOpt = findUserByIdentifier(username);
+        if (userOpt.isEmpty()) {
+            out.add(BotMessageFactory.simpleMessage(chatId, "Пользователь не найден. Он должен сначала написать /start."));
+            return;
+        }
+        out.add(askBroadcastText(chatId, AudienceSegmentService.referredBy(userOpt.get().getId())));
+    }
+
+    private SendMessage askBroadcastText(Long chatId, String audience) {
+        adminStateService.set(chatId, AdminAction.BROADCAST);
+        adminStateService.setBroadcastAudience(chatId, audience);
+        return BotMessageFactory.simpleMessage(chatId,
+                "👥 Аудитория: " + audienceSegmentService.label(audience) +
+                        " (" + audienceSegmentService.size(audience) + ")\n\n" +
+                        "Отправьте текст рассылки.\n\n/cancel — отмена.");
     }
 
     private Optional<User> findUserByIdentifier(String identifier) {
@@ -1,27 +1,69 @@
 package ru.uzden.uzdenbot.services;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Незавершённое действие администратора по чату. Хранится в ConversationStateStore,
+ * поэтому переживает рестарт и работает, когда апдейты одного чата попадают на разные инстансы.
+ */
 @Service
+@RequiredArgsConstructor
 public class AdminStateService {
 
-    private final Map<Long, AdminAction> pending = new ConcurrentHashMap<>();
+    private static final String ACTION = "action";
+    // выбранная аудитория рассылки, пока администратор набирает текст
+    private static final String BROADCAST_AUDIENCE = "broadcastAudience";
+    // массовая операция, ждущая подтверждения кнопкой
+    private static final String PENDING_BULK = "pendingBulk";
+
+    private final ConversationStateStore store;
 
     public Optional<AdminAction> get(Long chatId) {
-        return Optional.ofNullable(pending.get(chatId));
+        if (chatId == null) return Optional.empty();
+        String action = store.get(key(chatId)).get(ACTION);
+        if (action == null) return Optional.empty();
+        try {
+            return Optional.of(AdminAction.valueOf(action));
+        } catch (IllegalArgumentException e) {
+            // действие из старой версии бота
+            return Optional.empty();
+        }
     }
 
     public void set(Long chatId, AdminAction action) {
         if (chatId == null || action == null) return;
-        pending.put(chatId, action);
+        store.put(key(chatId), ACTION, action.name());
     }
 
     public void clear(Long chatId) {
         if (chatId == null) return;
-        pending.remove(chatId);
+        store.remove(key(chatId));
+    }
+
+    public void setBroadcastAudience(Long chatId, String audience) {
+        if (chatId == null || audience == null) return;
+        store.put(key(chatId), BROADCAST_AUDIENCE, audience);
+    }
+
+    public Optional<String> getBroadcastAudience(Long chatId) {
+        if (chatId == null) return Optional.empty();
+        return Optional.ofNullable(store.get(key(chatId)).get(BROADCAST_AUDIENCE));
+    }
+
+    public void setPendingBulk(Long chatId, String request) {
+        if (chatId == null || request == null) return;
+        store.put(key(chatId), PENDING_BULK, request);
+    }
+
+    public Optional<String> getPendingBulk(Long chatId) {
+        if (chatId == null) return Optional.empty();
+        return Optional.ofNullable(store.get(key(chatId)).get(PENDING_BULK));
+    }
+
+    private static String key(Long chatId) {
+        return "admin:" + chatId;
     }
 }
@@ -0,0 +1,42 @@
+package ru.uzden.uzdenbot.services;
+
+/**
+ * Предопределённые аудитории рассылки. Кроме них есть параметризованная "REFERRED:<userId>"
+ * (приглашённые пользователем), см. AudienceSegmentService.
+ *
+ * code уходит аргументом в callback кнопки выбора аудитории, поэтому не переиспользуется
+ * и не зависит от порядка констант: новый сегмент получает следующий свободный номер.
+ */
+public enum AudienceSegment {
+    ALL(1, "Все пользователи"),
+    ACTIVE(2, "С активной подпиской"),
+    EXPIRING(3, "Подписка скоро закончится"),
+    EXPIRED_RECENTLY(4, "Подписка недавно закончилась"),
+    NEVER_PAID(5, "Ни разу не оплачивали"),
+    NO_KEYS(6, "Без ключей");
+
+    private final int code;
+    private final String label;
+
+    AudienceSegment(int code, String label) {
+        this.code = code;
+        this.label = label;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public static AudienceSegment byCode(long code) {
+        for (AudienceSegment segment : values()) {
+            if (segment.code == code) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
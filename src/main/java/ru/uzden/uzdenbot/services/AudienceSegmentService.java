@@ -0,0 +1,332 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import ru.uzden.uzdenbot.repositories.UserRepository;
+import ru.uzden.uzdenbot.utils.SortedIdSet;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.LongStream;
+
+/**
+ * Аудитории рассылок как отсортированные множества users.id в памяти.
+ *
+ * Сегменты по подпискам/платежам/ключам целиком пересчитываются раз в refresh-delay-ms
+ * (время само переводит пользователей из "активных" в "истёкшие"); первый проход @Scheduled
+ * стартует сразу после запуска и прогревает множества. Между пересчётами они поддерживаются
+ * точечно: SubscriptionChangedEvent, KeysChangedEvent и успешная оплата только отмечают
+ * пользователя, а раз в flush-delay-ms отмеченные пересчитываются одним запросом (или,
+ * если их больше full-refresh-threshold, — полным пересчётом). Размер сегмента и страница
+ * получателей — чтение из памяти; в БД рассылка ходит только за telegram_id нужных id.
+ */
+@Slf4j
+@Service
+public class AudienceSegmentService {
+
+    public static final String REFERRED_PREFIX = "REFERRED:";
+
+    private static final String WITH_MAX_END = """
+            select u.id from users u
+            join (select user_id, max(end_date) as max_end from subscriptions group by user_id) s
+              on s.user_id = u.id
+            where u.telegram_id is not null
+            """;
+
+    private final JdbcTemplate jdbc;
+    private final UserRepository userRepository;
+    private final int expiringDays;
+    private final int expiredDays;
+    private final int flushBatchSize;
+    private final int fullRefreshThreshold;
+
+    private final Map<AudienceSegment, SortedIdSet> sets = new ConcurrentHashMap<>();
+    // изменившиеся пользователи, ждущие flush; повторные события по одному id схлопываются
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+    public AudienceSegmentService(
+            JdbcTemplate jdbc,
+            UserRepository userRepository,
+            @Value("${app.segments.expiring-days:7}") int expiringDays,
+            @Value("${app.segments.expired-days:30}") int expiredDays,
+            @Value("${app.segments.flush-batch-size:1000}") int flushBatchSize,
+            @Value("${app.segments.full-refresh-threshold:5000}") int fullRefreshThreshold) {
+        this.jdbc = jdbc;
+        this.userRepository = userRepository;
+        this.expiringDays = Math.max(1, expiringDays);
+        this.expiredDays = Math.max(1, expiredDays);
+        this.flushBatchSize = Math.max(1, flushBatchSize);
+        this.fullRefreshThreshold = Math.max(1, fullRefreshThreshold);
+    }
+
+    public static String referredBy(long referrerUserId) {
+        return REFERRED_PREFIX + referrerUserId;
+    }
+
+    public String label(String audience) {
+        if (audience != null && audience.startsWith(REFERRED_PREFIX)) {
+            return "Приглашённые пользователем #" + audience.substring(REFERRED_PREFIX.length());
+        }
+        if (!isKnown(audience)) return audience;
+        AudienceSegment segment = parse(audience);
+        return switch (segment) {
+            case EXPIRING -> segment.getLabel() + " (≤ " + expiringDays + " дн.)";
+            case EXPIRED_RECENTLY -> segment.getLabel() + " (≤ " + expiredDays + " дн. назад)";
+            default -> segment.getLabel();
+        };
+    }
+
+    /**
+     * Аудитория сохранённого задания распознаётся: сегмент, REFERRED-аудитория или null (все).
+     * Задание с нераспознанной аудиторией останавливают, а не расширяют до всех.
+     */
+    public static boolean isKnown(String audience) {
+        if (audience == null) return true;
+        if (audience.startsWith(REFERRED_PREFIX)) {
+            try {
+                Long.parseLong(audience.substring(REFERRED_PREFIX.length()));
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        try {
+            AudienceSegment.valueOf(audience);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public int size(String audience) {
+        if (audience != null && audience.startsWith(REFERRED_PREFIX)) {
+            return loadReferred(audience).size();
+        }
+        AudienceSegment segment = parse(audience);
+        if (segment == AudienceSegment.ALL) {
+            return (int) userRepository.countBroadcastTargets();
+        }
+        return set(segment).size();
+    }
+
+    public Map<AudienceSegment, Integer> sizes() {
+        Map<AudienceSegment, Integer> out = new EnumMap<>(AudienceSegment.class);
+        for (AudienceSegment segment : AudienceSegment.values()) {
+            out.put(segment, size(segment.name()));
+        }
+        return out;
+    }
+
+    /**
+     * Следующая страница получателей после afterId. lastId — новый курсор (считается по id сегмента,
+     * поэтому пользователи без telegram_id в середине страницы не обрывают обход).
+     */
+    public AudiencePage page(String audience, long afterId, int limit) {
+        if (audience == null || AudienceSegment.ALL.name().equals(audience)) {
+            List<UserRepository.BroadcastTarget> targets =
+                    userRepository.findBroadcastTargets(afterId, PageRequest.of(0, limit));
+            long lastId = targets.isEmpty() ? afterId : targets.get(targets.size() - 1).getId();
+            return new AudiencePage(targets, lastId, targets.size() < limit);
+        }
+        SortedIdSet set = audience.startsWith(REFERRED_PREFIX) ? loadReferred(audience) : set(parse(audience));
+        long[] ids = set.after(afterId, limit);
+        if (ids.length == 0) {
+            return new AudiencePage(List.of(), afterId, true);
+        }
+        List<Long> boxed = Arrays.stream(ids).boxed().toList();
+        return new AudiencePage(userRepository.findBroadcastTargetsByIds(boxed), ids[ids.length - 1], ids.length < limit);
+    }
+
+    @Scheduled(fixedDelayString = "${app.segments.refresh-delay-ms:600000}")
+    public synchronized void refresh() {
+        // отметки, сделанные до начала загрузки, она и так учтёт
+        List<Long> covered = new ArrayList<>(pending);
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            Map<AudienceSegment, SortedIdSet> fresh = new EnumMap<>(AudienceSegment.class);
+            for (AudienceSegment segment : AudienceSegment.values()) {
+                if (segment == AudienceSegment.ALL) continue;
+                fresh.put(segment, load(segment, now));
+            }
+            sets.putAll(fresh);
+            covered.forEach(pending::remove);
+        } catch (Exception e) {
+            log.warn("Audience segments refresh failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Пересчитать отмеченных пользователей. Массовая операция на десятки тысяч пользователей
+     * даёт одну полную перезагрузку, а не запрос на каждого.
+     */
+    @Scheduled(fixedDelayString = "${app.segments.flush-delay-ms:1000}")
+    public synchronized void flush() {
+        if (pending.isEmpty()) return;
+        if (sets.isEmpty()) {
+            // множеств ещё нет — их загрузка и так увидит текущее состояние
+            pending.clear();
+            return;
+        }
+        if (pending.size() > fullRefreshThreshold) {
+            refresh();
+            return;
+        }
+        List<Long> batch = new ArrayList<>(pending);
+        for (int from = 0; from < batch.size(); from += flushBatchSize) {
+            List<Long> chunk = batch.subList(from, Math.min(batch.size(), from + flushBatchSize));
+            updateUsers(chunk);
+            chunk.forEach(pending::remove);
+        }
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onSubscriptionChanged(SubscriptionService.SubscriptionChangedEvent event) {
+        if (event == null || event.userId() == null) return;
+        pending.add(event.userId());
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onKeysChanged(VpnKeyService.KeysChangedEvent event) {
+        if (event == null || event.userId() == null) return;
+        pending.add(event.userId());
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onPaymentStatus(PaymentService.PaymentStatusEvent event) {
+        if (event == null || event.userId() == null || !"succeeded".equalsIgnoreCase(event.status())) return;
+        pending.add(event.userId());
+    }
+
+    /**
+     * Пересчитать членство пачки пользователей во всех сегментах одним запросом.
+     */
+    private void updateUsers(List<Long> userIds) {
+        Map<Long, UserState> states = new HashMap<>();
+        jdbc.query("""
+                        select u.id, u.telegram_id,
+                               (select max(s.end_date) from subscriptions s where s.user_id = u.id) as max_end,
+                               exists(select 1 from payments p
+                                      where p.user_id = u.id and lower(p.status) = 'succeeded') as paid,
+                               u.active_key_count
+                        from users u where u.id = any(?)
+                        """,
+                (PreparedStatement ps) -> ps.setArray(1, ps.getConnection().createArrayOf("bigint", userIds.toArray())),
+                (ResultSet rs) -> {
+                    Timestamp maxEnd = rs.getTimestamp("max_end");
+                    states.put(rs.getLong("id"), new UserState(
+                            rs.getObject("telegram_id") != null,
+                            maxEnd == null ? null : maxEnd.toLocalDateTime(),
+                            rs.getBoolean("paid"),
+                            rs.getInt("active_key_count")));
+                });
+        long[] sorted = userIds.stream().mapToLong(Long::longValue).sorted().toArray();
+        LocalDateTime now = LocalDateTime.now();
+        for (AudienceSegment segment : AudienceSegment.values()) {
+            if (segment == AudienceSegment.ALL) continue;
+            LongStream.Builder add = LongStream.builder();
+            LongStream.Builder remove = LongStream.builder();
+            for (long userId : sorted) {
+                UserState st = states.get(userId);
+                boolean member = st != null && st.hasTelegram() && matches(segment, st, now);
+                (member ? add : remove).add(userId);
+            }
+            long[] added = add.build().toArray();
+            long[] removed = remove.build().toArray();
+            sets.computeIfPresent(segment, (s, set) -> set.update(added, removed));
+        }
+    }
+
+    private boolean matches(AudienceSegment segment, UserState st, LocalDateTime now) {
+        LocalDateTime end = st.maxEnd();
+        return switch (segment) {
+            case ALL -> true;
+            case ACTIVE -> end != null && end.isAfter(now);
+            case EXPIRING -> end != null && end.isAfter(now) && !end.isAfter(now.plusDays(expiringDays));
+            case EXPIRED_RECENTLY -> end != null && !end.isAfter(now) && end.isAfter(now.minusDays(expiredDays));
+            case NEVER_PAID -> !st.paid();
+            case NO_KEYS -> st.activeKeyCount() == 0;
+        };
+    }
+
+    private SortedIdSet set(AudienceSegment segment) {
+        SortedIdSet set = sets.get(segment);
+        if (set != null) return set;
+        // прогрев ещё идёт (или не удался): дождаться его и, если сегмента всё равно нет, загрузить только его
+        synchronized (this) {
+            return sets.computeIfAbsent(segment, s -> load(s, LocalDateTime.now()));
+        }
+    }
+
+    private SortedIdSet load(AudienceSegment segment, LocalDateTime now) {
+        Timestamp ts = Timestamp.valueOf(now);
+        return switch (segment) {
+            case ALL -> loadIds("select id from users where telegram_id is not null order by id");
+            case ACTIVE -> loadIds(WITH_MAX_END + " and s.max_end > ? order by u.id", ts);
+            case EXPIRING -> loadIds(WITH_MAX_END + " and s.max_end > ? and s.max_end <= ? order by u.id",
+                    ts, Timestamp.valueOf(now.plusDays(expiringDays)));
+            case EXPIRED_RECENTLY -> loadIds(WITH_MAX_END + " and s.max_end <= ? and s.max_end > ? order by u.id",
+                    ts, Timestamp.valueOf(now.minusDays(expiredDays)));
+            case NEVER_PAID -> loadIds("""
+                    select u.id from users u
+                    where u.telegram_id is not null
+                      and not exists (select 1 from payments p
+                                      where p.user_id = u.id and lower(p.status) = 'succeeded')
+                    order by u.id
+                    """);
+            case NO_KEYS -> loadIds("""
+                    select id from users
+                    where telegram_id is not null and active_key_count = 0
+                    order by id
+                    """);
+        };
+    }
+
+    private SortedIdSet loadReferred(String audience) {
+        long referrerId;
+        try {
+            referrerId = Long.parseLong(audience.substring(REFERRED_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return SortedIdSet.EMPTY;
+        }
+        return loadIds("select id from users where referred_by = ? and telegram_id is not null order by id",
+                referrerId);
+    }
+
+    private SortedIdSet loadIds(String sql, Object... args) {
+        long[][] buf = {new long[1024]};
+        int[] n = {0};
+        jdbc.query(sql, rs -> {
+            if (n[0] == buf[0].length) buf[0] = Arrays.copyOf(buf[0], n[0] * 2);
+            buf[0][n[0]++] = rs.getLong(1);
+        }, args);
+        return SortedIdSet.ofSorted(buf[0], n[0]);
+    }
+
+    // неизвестная строка — IllegalArgumentException: молча расширять аудиторию до ALL нельзя
+    private static AudienceSegment parse(String audience) {
+        if (audience == null) return AudienceSegment.ALL;
+        return AudienceSegment.valueOf(audience);
+    }
+
+    private record UserState(boolean hasTelegram, LocalDateTime maxEnd, boolean paid, int activeKeyCount) {
+    }
+
+    public record AudiencePage(List<UserRepository.BroadcastTarget> targets, long lastId, boolean last) {
+    }
+}
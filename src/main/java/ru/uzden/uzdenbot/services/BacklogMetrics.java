@@ -0,0 +1,53 @@
+package ru.uzden.uzdenbot.services;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gauges очередей: PENDING/FAILED ключи и неоплаченные платежи.
+ *
+ * Значения пересчитываются по расписанию одним запросом, а не на каждый scrape —
+ * Prometheus (и несколько scrape'еров) не создают нагрузку на БД.
+ */
+@Slf4j
+@Service
+public class BacklogMetrics {
+
+    private static final String COUNT_BACKLOG = """
+            select
+              (select count(*) from vpn_keys where is_revoked = false and status = 'PENDING') as keys_pending,
+              (select count(*) from vpn_keys where is_revoked = false and status = 'FAILED') as keys_failed,
+              (select count(*) from payments where lower(status) = 'pending') as payments_pending
+            """;
+
+    private final JdbcTemplate jdbc;
+    private final AtomicLong keysPending = new AtomicLong();
+    private final AtomicLong keysFailed = new AtomicLong();
+    private final AtomicLong paymentsPending = new AtomicLong();
+
+    public BacklogMetrics(JdbcTemplate jdbc, MeterRegistry meterRegistry) {
+        this.jdbc = jdbc;
+        Gauge.builder("vpn.keys", keysPending, AtomicLong::get).tag("status", "PENDING").register(meterRegistry);
+        Gauge.builder("vpn.keys", keysFailed, AtomicLong::get).tag("status", "FAILED").register(meterRegistry);
+        Gauge.builder("payments.pending", paymentsPending, AtomicLong::get).register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.metrics.backlog-refresh-ms:30000}")
+    public void refresh() {
+        try {
+            jdbc.query(COUNT_BACKLOG, rs -> {
+                keysPending.set(rs.getLong("keys_pending"));
+                keysFailed.set(rs.getLong("keys_failed"));
+                paymentsPending.set(rs.getLong("payments_pending"));
+            });
+        } catch (Exception e) {
+            log.debug("Backlog metrics refresh failed: {}", e.getMessage());
+        }
+    }
+}
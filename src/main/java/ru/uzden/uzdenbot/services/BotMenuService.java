@@ -1,14 +1,10 @@
 package ru.uzden.uzdenbot.services;
 
 import lombok.RequiredArgsConstructor;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
-import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
 import ru.uzden.uzdenbot.config.SubscriptionPlansProperties;
 import ru.uzden.uzdenbot.entities.Subscription;
 import ru.uzden.uzdenbot.entities.User;
@@ -32,67 +28,18 @@ public class BotMenuService {
     private final SubscriptionPlansProperties subscriptionPlansProperties;
     private final PaymentService paymentService;
     private final VpnKeyService vpnKeyService;
-
-    @Value("${telegram.main-menu-text:Добро пожаловать в Uzden.\\n\\nЗдесь всё просто: управляйте подпиской и получайте доступ к сервису в пару нажатий.\\n\\nВыберите нужный раздел ниже.}")
-    private String mainMenuText;
-
-    @Value("${telegram.instructions-text:Инструкция}")
-    private String instructionsText;
-
-    @Value("${telegram.support-username:@support}")
-    private String supportUsername;
+    private final CallbackCodec callbackCodec;
+    private final MenuTemplates menuTemplates;
+    private final MyKeysViewCache myKeysViewCache;
 
     private static final DateTimeFormatter DT_FMT   = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm");
 
     public SendMessage mainMenu(Long chatId, boolean isAdmin, User user) {
-        vpnKeyService.ensureKeyForActiveSubscription(user);
-        boolean hasAnySubscription = user != null && subscriptionService.getLastSubscription(user).isPresent();
-
-        InlineKeyboardButton b1 = InlineKeyboardButton.builder()
-                .text("📦 Подписка и тарифы")
-                .callbackData("MENU_SUBSCRIPTION")
-                .build();
-        InlineKeyboardButton bKeys = InlineKeyboardButton.builder()
-                .text("🔑 Мои ключи")
-                .callbackData("MENU_KEYS")
-                .build();
-        InlineKeyboardButton bAdmin = InlineKeyboardButton.builder()
-                .text("🛠 Админ‑панель")
-                .callbackData("MENU_ADMIN")
-                .build();
-        InlineKeyboardButton bHelp = InlineKeyboardButton.builder()
-                .text("📘 Инструкция")
-                .callbackData("MENU_HELP")
-                .build();
-        InlineKeyboardButton bReferral = InlineKeyboardButton.builder()
-                .text("🎁 Пригласить друга")
-                .callbackData("MENU_REFERRAL")
-                .build();
-        InlineKeyboardButton bSupport = InlineKeyboardButton.builder()
-                .text("💬 Техподдержка")
-                .url(buildSupportUrl())
-                .build();
-
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(b1));
-        if (hasAnySubscription) {
-            rows.add(List.of(bKeys));
-        }
-        rows.add(List.of(bHelp));
-        rows.add(List.of(bReferral));
-        rows.add(List.of(bSupport));
-        if (isAdmin) {
-            rows.add(List.of(bAdmin));
-        }
-
-        InlineKeyboardMarkup markup = InlineKeyboardMarkup.builder()
-                .keyboard(rows)
-                .build();
-
+        boolean hasAnySubscription = subscriptionService.hasAnySubscription(user);
         return SendMessage.builder()
                 .chatId(chatId.toString())
-                .text(mainMenuText + buildMainMenuKeysSummary(user))
-                .replyMarkup(markup)
+                .text(menuTemplates.mainMenuText() + buildMainMenuKeysSummary(user))
+                .replyMarkup(menuTemplates.mainMenu(hasAnySubscription, isAdmin))
                 .build();
     }
 
@@ -100,83 +47,32 @@ public class BotMenuService {
         return SendMessage.builder()
                 .chatId(chatId.toString())
                 .text("\u200B")
-                .replyMarkup(buildCommandKeyboard(isAdmin))
+                .replyMarkup(menuTemplates.commandKeyboard(isAdmin))
                 .build();
     }
 
     public SendMessage adminMenu(Long chatId) {
-        InlineKeyboardButton bAddSub = InlineKeyboardButton.builder()
-                .text("➕ Выдать подписку")
-                .callbackData("ADMIN_ADD_SUB")
-                .build();
-        InlineKeyboardButton bCheckSub = InlineKeyboardButton.builder()
-                .text("🔎 Проверить подписку")
-                .callbackData("ADMIN_CHECK_SUB")
-                .build();
-        InlineKeyboardButton bActiveUsers = InlineKeyboardButton.builder()
-                .text("👥 Активные пользователи")
-                .callbackData("ADMIN_ACTIVE_USERS")
-                .build();
-        InlineKeyboardButton bBroadcast = InlineKeyboardButton.builder()
-                .text("📣 Рассылка")
-                .callbackData("ADMIN_BROADCAST")
-                .build();
-        InlineKeyboardButton bRevokeSub = InlineKeyboardButton.builder()
-                .text("🛑 Отключить подписку")
-                .callbackData("ADMIN_REVOKE_SUB")
-                .build();
-        InlineKeyboardButton bDisableUser = InlineKeyboardButton.builder()
-                .text("🚫 Заблокировать пользователя")
-                .callbackData("ADMIN_DISABLE_USER")
-                .build();
-        InlineKeyboardButton bEnableUser = InlineKeyboardButton.builder()
-                .text("✅ Разблокировать пользователя")
-                .callbackData("ADMIN_ENABLE_USER")
-                .build();
-        InlineKeyboardButton bPurgeDisabled = InlineKeyboardButton.builder()
-                .text("🧹 Удалить отключённых клиентов")
-                .callbackData("ADMIN_PURGE_DISABLED_KEYS")
-                .build();
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_BACK")
-                .build();
-
-        InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                .keyboard(List.of(
-                        List.of(bAddSub),
-                        List.of(bCheckSub),
-                        List.of(bActiveUsers),
-                        List.of(bBroadcast),
-                        List.of(bRevokeSub),
-                        List.of(bDisableUser),
-                        List.of(bEnableUser),
-                        List.of(bPurgeDisabled),
-                        List.of(bBack)
-                ))
-                .build();
-
         return SendMessage.builder()
                 .chatId(chatId.toString())
                 .text("🛠 Админ-меню")
-                .replyMarkup(keyboardMarkup)
+                .replyMarkup(menuTemplates.adminMenu())
                 .build();
     }
 
-    public SendMessage instructionsMenu(Long chatId) {
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_BACK")
-                .build();
-
-        InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                .keyboard(List.of(List.of(bBack)))
+    public SendMessage bulkMenu(Long chatId) {
+        return SendMessage.builder()
+                .chatId(chatId.toString())
+                .text("📦 Массовые операции\n\nПолучатели — список @username / telegram id, файл со списком или сегмент. " +
+                        "Задание выполняется в фоне, прогресс придёт отдельным сообщением.")
+                .replyMarkup(menuTemplates.bulkMenu())
                 .build();
+    }
 
+    public SendMessage instructionsMenu(Long chatId) {
         return SendMessage.builder()
                 .chatId(chatId.toString())
-                .text(instructionsText)
-                .replyMarkup(keyboardMarkup)
+                .text(menuTemplates.instructionsText())
+                .replyMarkup(menuTemplates.backToMain())
                 .build();
     }
 
@@ -198,19 +94,10 @@ public class BotMenuService {
                 "🔗 Ссылка:\n" + link + "\n" +
                 "🔑 Код: " + code;
 
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_BACK")
-                .build();
-
-        InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                .keyboard(List.of(List.of(bBack)))
-                .build();
-
         return SendMessage.builder()
                 .chatId(chatId.toString())
                 .text(text)
-                .replyMarkup(keyboardMarkup)
+                .replyMarkup(menuTemplates.backToMain())
                 .build();
     }
 
@@ -219,7 +106,6 @@ public class BotMenuService {
                 .orElseThrow(() -> new IllegalStateException("User not found for chatId: " + chatId));
 
         reconcileUserPaymentsSafe(user);
-        vpnKeyService.ensureKeyForActiveSubscription(user);
 
         Optional<Subscription> activeSubOpt = subscriptionService.getActiveSubscription(user);
         Optional<Subscription> lastSubOpt = subscriptionService.getLastSubscription(user);
@@ -230,53 +116,12 @@ public class BotMenuService {
         boolean wasExpired = !isActive && lastSubOpt.isPresent()
                 && lastSubOpt.get().getEndDate() != null
                 && lastSubOpt.get().getEndDate().isBefore(LocalDateTime.now());
-        String buyOrExtendText = isActive
-                ? "Продлить подписку"
-                : (wasExpired ? "Возобновить подписку" : "Купить подписку");
         String menuText = buildSubscriptionMenuText(activeSubOpt, lastSubOpt);
 
-        InlineKeyboardButton bMyKeys = InlineKeyboardButton.builder()
-                .text("🔑 Мои ключи")
-                .callbackData("MENU_KEYS")
-                .build();
-
-//        InlineKeyboardButton b2 = InlineKeyboardButton.builder()
-//                .text("Остаток дней")
-//                .callbackData("MENU_STATUS")
-//                .build();
-
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_BACK")
-                .build();
-
-
-
-        InlineKeyboardMarkup keyboardMarkup;
-        if (hasKeys) {
-            keyboardMarkup = InlineKeyboardMarkup.builder()
-                    .keyboard(List.of(
-                            List.of(bMyKeys),
-                            List.of(bBack)
-                    ))
-                    .build();
-        } else {
-            InlineKeyboardButton bBuy = InlineKeyboardButton.builder()
-                    .text(buyOrExtendText)
-                    .callbackData("MENU_BUY")
-                    .build();
-            keyboardMarkup = InlineKeyboardMarkup.builder()
-                    .keyboard(List.of(
-                            List.of(bBuy, bBack)
-                    ))
-                    .build();
-        }
-
-
         return SendMessage.builder()
                 .chatId(chatId.toString())
                 .text(menuText)
-                .replyMarkup(keyboardMarkup)
+                .replyMarkup(menuTemplates.subscriptionMenu(hasKeys, isActive, wasExpired))
                 .build();
     }
 
@@ -288,121 +133,79 @@ public class BotMenuService {
         Optional<Subscription> lastSubOpt = subscriptionService.getLastSubscription(user);
         String baseText = buildSubscriptionMenuText(activeSubOpt, lastSubOpt);
 
-        SubscriptionPlansProperties.Plan p1 = subscriptionPlansProperties.getPlan1();
-        SubscriptionPlansProperties.Plan p2 = subscriptionPlansProperties.getPlan2();
-        int price1 = p1.getPrice();
-        int price2 = p2.getPrice();
-        int baseMonthlyPrice = p1.getPrice();
-        String label1 = normalizeLabel(p1.getLabel(), "1 месяц");
-        String label2 = normalizeLabel(p2.getLabel(), "2 месяца");
-
-        String text = baseText + "\n\n" +
-                "💳 Тарифы\n" +
-                "━━━━━━━━━━━━\n" +
-                "• " + label1 + " — " + price1 + "₽\n" +
-                "• " + label2 + " — " + price2 + "₽ (−" + discountPercent(baseMonthlyPrice, price2, p2.getMonths()) + "%)\n" +
-                "\nВыберите срок ниже 👇";
-
-        InlineKeyboardButton b1 = InlineKeyboardButton.builder()
-                .text("💳 " + label1 + " — " + price1 + "₽")
-                .callbackData("BUY_1M")
-                .build();
-        InlineKeyboardButton b2 = InlineKeyboardButton.builder()
-                .text("🔥 " + label2 + " — " + price2 + "₽ (−" + discountPercent(baseMonthlyPrice, price2, p2.getMonths()) + "%)")
-                .callbackData("BUY_2M")
-                .build();
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_SUBSCRIPTION")
-                .build();
-
-        InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                .keyboard(List.of(
-                        List.of(b1),
-                        List.of(b2),
-                        List.of(bBack)
-                ))
-                .build();
+        prefetchCheckoutSafe(user, null, subscriptionPlansProperties.getPlan1(), menuTemplates.plan1Label());
+        prefetchCheckoutSafe(user, null, subscriptionPlansProperties.getPlan2(), menuTemplates.plan2Label());
 
         return SendMessage.builder()
                 .chatId(chatId.toString())
-                .text(text)
-                .replyMarkup(keyboardMarkup)
+                .text(baseText + "\n\n" + menuTemplates.tariffsText())
+                .replyMarkup(menuTemplates.planMenu())
                 .build();
     }
 
     public SendMessage keyPlanMenu(Long chatId, User user, Long keyId, boolean isNewKey) {
-        SubscriptionPlansProperties.Plan p1 = subscriptionPlansProperties.getPlan1();
-        SubscriptionPlansProperties.Plan p2 = subscriptionPlansProperties.getPlan2();
-        int baseMonthlyPrice = p1.getPrice();
-        String label1 = normalizeLabel(p1.getLabel(), "1 месяц");
-        String label2 = normalizeLabel(p2.getLabel(), "2 месяца");
-
         String title = isNewKey ? "Новый ключ" : "Продление ключа";
         String keyInfo = "";
+        VpnKey key = null;
         if (!isNewKey && keyId != null) {
             try {
-                VpnKey key = vpnKeyService.findKeyForUser(user, keyId);
+                key = vpnKeyService.findKeyForUser(user, keyId);
                 String daysInfo = keyDaysLeftText(key);
                 int idx = resolveKeyIndex(user, keyId);
                 String label = idx > 0 ? "Ключ №" + idx : "Ключ";
                 keyInfo = "\n" + label + " • " + daysInfo;
             } catch (Exception e) {
-                InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                        .text("⬅️ Назад")
-                        .callbackData("MENU_KEYS")
-                        .build();
-                InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                        .keyboard(List.of(List.of(bBack)))
-                        .build();
                 return SendMessage.builder()
                         .chatId(chatId.toString())
                         .text("Ключ не найден.")
-                        .replyMarkup(keyboardMarkup)
+                        .replyMarkup(menuTemplates.backToKeys())
                         .build();
             }
         }
 
-        String text = title + keyInfo + "\n\n" +
-                "💳 Тарифы\n" +
-                "━━━━━━━━━━━━\n" +
-                "• " + label1 + " — " + p1.getPrice() + "₽\n" +
-                "• " + label2 + " — " + p2.getPrice() + "₽ (−" + discountPercent(baseMonthlyPrice, p2.getPrice(), p2.getMonths()) + "%)\n" +
-                "\nВыберите срок ниже 👇";
-
-        InlineKeyboardButton b1 = InlineKeyboardButton.builder()
-                .text("💳 " + label1 + " — " + p1.getPrice() + "₽")
-                .callbackData(isNewKey ? "KEY_NEW_BUY_1M" : "KEY_RENEW_1M:" + keyId)
-                .build();
-        InlineKeyboardButton b2 = InlineKeyboardButton.builder()
-                .text("🔥 " + label2 + " — " + p2.getPrice() + "₽ (−" + discountPercent(baseMonthlyPrice, p2.getPrice(), p2.getMonths()) + "%)")
-                .callbackData(isNewKey ? "KEY_NEW_BUY_2M" : "KEY_RENEW_2M:" + keyId)
-                .build();
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_KEYS")
-                .build();
+        InlineKeyboardMarkup keyboardMarkup;
+        if (isNewKey) {
+            keyboardMarkup = menuTemplates.newKeyPlanMenu();
+        } else {
+            // кнопки продления подписаны под конкретный ключ и чат — собираются на месте
+            keyboardMarkup = MenuTemplates.markup(List.of(
+                    List.of(MenuTemplates.button(menuTemplates.plan1ButtonText(),
+                            callbackCodec.encode(CallbackOp.KEY_RENEW_1M, chatId, keyId))),
+                    List.of(MenuTemplates.button(menuTemplates.plan2ButtonText(),
+                            callbackCodec.encode(CallbackOp.KEY_RENEW_2M, chatId, keyId))),
+                    List.of(menuTemplates.backToKeysButton())
+            ));
+        }
 
-        InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                .keyboard(List.of(
-                        List.of(b1),
-                        List.of(b2),
-                        List.of(bBack)
-                ))
-                .build();
+        // canCreateNewKey — запрос в БД: без предсоздания платежей он не нужен
+        if (paymentService.isPrefetchEnabled() && (!isNewKey || vpnKeyService.canCreateNewKey(user))) {
+            prefetchCheckoutSafe(user, key, subscriptionPlansProperties.getPlan1(), menuTemplates.plan1Label());
+            prefetchCheckoutSafe(user, key, subscriptionPlansProperties.getPlan2(), menuTemplates.plan2Label());
+        }
 
         return SendMessage.builder()
                 .chatId(chatId.toString())
-                .text(text)
+                .text(title + keyInfo + "\n\n" + menuTemplates.tariffsText())
                 .replyMarkup(keyboardMarkup)
                 .build();
     }
 
     public SendMessage myKeysMenu(Long chatId, User user) {
-        vpnKeyService.ensureKeyForActiveSubscription(user);
+        Long userId = user == null ? null : user.getId();
+        MyKeysViewCache.View view = myKeysViewCache.get(userId, chatId, () -> renderMyKeys(chatId, user));
+        return SendMessage.builder()
+                .chatId(chatId.toString())
+                .text(view.text())
+                .replyMarkup(view.markup())
+                .build();
+    }
+
+    private MyKeysViewCache.View renderMyKeys(Long chatId, User user) {
         List<VpnKey> keys = vpnKeyService.listUserKeys(user);
         int maxKeys = vpnKeyService.getMaxKeysPerUser();
 
+        // экран устаревает, когда у любого ключа сменится «осталось N дней» или наступит «истекла»
+        LocalDateTime nextChange = null;
         StringBuilder text = new StringBuilder("🔑 Мои ключи\n━━━━━━━━━━━━\n");
         if (keys.isEmpty()) {
             text.append("У вас пока нет ключей");
@@ -415,49 +218,34 @@ public class BotMenuService {
                         .append(" • ")
                         .append(keyDaysLeftText(key))
                         .append("\n");
+                LocalDateTime change = subscriptionService.nextDaysLeftChange(key.getPaidUntil());
+                if (change != null && (nextChange == null || change.isBefore(nextChange))) {
+                    nextChange = change;
+                }
             }
         }
         if (keys.size() < maxKeys) {
             text.append("\nМожно создать новый ключ (макс ").append(maxKeys).append(")");
         }
 
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>(keys.size() + 2);
         for (int i = 0; i < keys.size(); i++) {
             VpnKey key = keys.get(i);
-            InlineKeyboardButton b = InlineKeyboardButton.builder()
-                    .text("🔑 Ключ " + (i + 1))
-                    .callbackData("KEY_SELECT:" + key.getId())
-                    .build();
-            rows.add(List.of(b));
+            rows.add(List.of(MenuTemplates.button("🔑 Ключ " + (i + 1),
+                    callbackCodec.encode(CallbackOp.KEY_SELECT, chatId, key.getId()))));
         }
-
         if (keys.size() < maxKeys) {
-            InlineKeyboardButton bNew = InlineKeyboardButton.builder()
-                    .text("➕ Новый ключ")
-                    .callbackData("KEY_NEW")
-                    .build();
-            rows.add(List.of(bNew));
+            rows.add(List.of(menuTemplates.newKeyButton()));
         }
+        rows.add(List.of(menuTemplates.backToMainButton()));
 
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_BACK")
-                .build();
-        rows.add(List.of(bBack));
-
-        InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                .keyboard(rows)
-                .build();
-
-        return SendMessage.builder()
-                .chatId(chatId.toString())
-                .text(text.toString())
-                .replyMarkup(keyboardMarkup)
-                .build();
+        long expiresAt = nextChange == null
+                ? Long.MAX_VALUE
+                : nextChange.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return new MyKeysViewCache.View(chatId, text.toString(), MenuTemplates.markup(List.copyOf(rows)), expiresAt);
     }
 
     public SendMessage keyActionsMenu(Long chatId, User user, long keyId) {
-        vpnKeyService.ensureKeyForActiveSubscription(user);
         List<VpnKey> keys = vpnKeyService.listUserKeys(user);
         int index = -1;
         VpnKey target = null;
@@ -470,58 +258,46 @@ public class BotMenuService {
             }
         }
         if (target == null) {
-            InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                    .text("⬅️ Назад")
-                    .callbackData("MENU_KEYS")
-                    .build();
-            InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
-                    .keyboard(List.of(List.of(bBack)))
-                    .build();
             return SendMessage.builder()
                     .chatId(chatId.toString())
                     .text("Ключ не найден.")
-                    .replyMarkup(keyboardMarkup)
+                    .replyMarkup(menuTemplates.backToKeys())
                     .build();
         }
 
         String created = formatInstant(target.getCreatedAt());
-        Optional<Subscription> keySubOpt = subscriptionService.getActiveSubscription(target);
+        boolean keyPaid = subscriptionService.hasActiveSubscriptionForKey(target);
         String text = "🔑 Ключ №" + (index + 1) + "\n" +
                 "━━━━━━━━━━━━\n" +
                 "Статус: " + keyStatusLabel(target) + "\n" +
                 "Срок: " + keyDaysLeftText(target) + "\n" +
                 "Создан: " + created +
-                (keySubOpt.isPresent() ? "\nУдаление после окончания срока" : "");
+                (keyPaid ? "\nУдаление после окончания срока" : "");
 
         InlineKeyboardButton bGet = InlineKeyboardButton.builder()
                 .text("📋 Получить ключ")
-                .callbackData("KEY_GET:" + target.getId())
+                .callbackData(callbackCodec.encode(CallbackOp.KEY_GET, chatId, target.getId()))
                 .build();
         InlineKeyboardButton bReplace = InlineKeyboardButton.builder()
                 .text("♻️ Заменить ключ")
-                .callbackData("KEY_REPLACE:" + target.getId())
+                .callbackData(callbackCodec.encode(CallbackOp.KEY_REPLACE, chatId, target.getId()))
                 .build();
         InlineKeyboardButton bRenew = InlineKeyboardButton.builder()
                 .text("🔁 Продлить")
-                .callbackData("KEY_RENEW:" + target.getId())
-                .build();
-        InlineKeyboardButton bBack = InlineKeyboardButton.builder()
-                .text("⬅️ Назад")
-                .callbackData("MENU_KEYS")
+                .callbackData(callbackCodec.encode(CallbackOp.KEY_RENEW, chatId, target.getId()))
                 .build();
-
         List<List<InlineKeyboardButton>> rows = new ArrayList<>();
         rows.add(List.of(bGet));
         rows.add(List.of(bReplace));
         rows.add(List.of(bRenew));
-        if (keySubOpt.isEmpty()) {
+        if (!keyPaid) {
             InlineKeyboardButton bDelete = InlineKeyboardButton.builder()
                     .text("🗑 Удалить ключ")
-                    .callbackData("KEY_DELETE:" + target.getId())
+                    .callbackData(callbackCodec.encode(CallbackOp.KEY_DELETE, chatId, target.getId()))
                     .build();
             rows.add(List.of(bDelete));
         }
-        rows.add(List.of(bBack));
+        rows.add(List.of(menuTemplates.backToKeysButton()));
 
         InlineKeyboardMarkup keyboardMarkup = InlineKeyboardMarkup.builder()
                 .keyboard(rows)
@@ -581,20 +357,6 @@ public class BotMenuService {
         return daysLeft + " " + word;
     }
 
-    private int discountPercent(int baseMonthlyPrice, int planPrice, int months) {
-        if (months <= 1 || baseMonthlyPrice <= 0) return 0;
-        double baseTotal = baseMonthlyPrice * (double) months;
-        if (baseTotal <= 0) return 0;
-        double discount = 100.0 - (planPrice / baseTotal) * 100.0;
-        int rounded = (int) Math.round(discount / 5.0) * 5;
-        return Math.max(0, rounded);
-    }
-
-    private String normalizeLabel(String label, String fallback) {
-        if (label == null || label.isBlank()) return fallback;
-        return label;
-    }
-
     private String buildMainMenuKeysSummary(User user) {
         if (user == null) return "";
         List<VpnKey> keys = vpnKeyService.listUserKeys(user);
@@ -609,31 +371,23 @@ public class BotMenuService {
     }
 
     private String shortKeyDays(VpnKey key) {
-        Optional<Subscription> active = subscriptionService.getActiveSubscription(key);
-        if (active.isPresent()) {
-            long days = subscriptionService.getDaysLeft(active.get());
-            return days + "д";
-        }
-        Optional<Subscription> last = subscriptionService.getLastSubscription(key);
-        if (last.isPresent()) {
-            return "0д";
+        LocalDateTime paidUntil = key.getPaidUntil();
+        if (paidUntil == null) {
+            return "-";
         }
-        return "-";
+        return subscriptionService.getDaysLeft(paidUntil) + "д";
     }
 
     private String keyDaysLeftText(VpnKey key) {
-        Optional<Subscription> active = subscriptionService.getActiveSubscription(key);
-        if (active.isPresent()) {
-            long days = subscriptionService.getDaysLeft(active.get());
-            String until = active.get().getEndDate().format(DT_FMT);
-            return formatDaysLeft(days) + " • до " + until;
+        LocalDateTime paidUntil = key.getPaidUntil();
+        if (paidUntil == null) {
+            return "нет подписки";
         }
-        Optional<Subscription> last = subscriptionService.getLastSubscription(key);
-        if (last.isPresent() && last.get().getEndDate() != null) {
-            String endedAt = last.get().getEndDate().format(DT_FMT);
-            return "истекла • " + endedAt;
+        if (key.isPaidAt(LocalDateTime.now())) {
+            long days = subscriptionService.getDaysLeft(paidUntil);
+            return formatDaysLeft(days) + " • до " + paidUntil.format(DT_FMT);
         }
-        return "нет подписки";
+        return "истекла • " + paidUntil.format(DT_FMT);
     }
 
     private int resolveKeyIndex(User user, Long keyId) {
@@ -664,17 +418,6 @@ public class BotMenuService {
         return LocalDateTime.ofInstant(instant, ZoneId.systemDefault()).format(DT_FMT);
     }
 
-    private String buildSupportUrl() {
-        String u = supportUsername == null ? "" : supportUsername.trim();
-        if (u.isEmpty()) {
-            return "https://t.me";
-        }
-        if (u.startsWith("@")) {
-            u = u.substring(1);
-        }
-        return "https://t.me/" + u;
-    }
-
     private void reconcileUserPaymentsSafe(User user) {
         try {
             paymentService.reconcileUserPayments(user);
@@ -683,22 +426,11 @@ public class BotMenuService {
         }
     }
 
-    private ReplyKeyboardMarkup buildCommandKeyboard(boolean isAdmin) {
-        List<KeyboardRow> rows = new ArrayList<>();
-        KeyboardRow row1 = new KeyboardRow();
-        row1.add(KeyboardButton.builder().text("Старт").build());
-        rows.add(row1);
-
-        if (isAdmin) {
-            KeyboardRow row2 = new KeyboardRow();
-            row2.add(KeyboardButton.builder().text("Админ").build());
-            row2.add(KeyboardButton.builder().text("Отмена").build());
-            rows.add(row2);
+    private void prefetchCheckoutSafe(User user, VpnKey key, SubscriptionPlansProperties.Plan plan, String label) {
+        try {
+            paymentService.prefetchCheckout(user, key, plan.getDays(), plan.getPrice(), label);
+        } catch (Exception ignored) {
+            // Предсоздание платежа — оптимизация, меню должно открыться в любом случае
         }
-
-        return ReplyKeyboardMarkup.builder()
-                .keyboard(rows)
-                .resizeKeyboard(true)
-                .build();
     }
 }
@@ -36,17 +36,49 @@ public class BotUpdateHandler {
     private final PaymentService paymentService;
     private final SubscriptionPlansProperties subscriptionPlansProperties;
     private final ReferralService referralService;
+    private final KeyIssuanceService keyIssuanceService;
+    private final PurgeService purgeService;
+    private final CallbackCodec callbackCodec;
 
     @Value("${app.idempotency.ttl-seconds:10}")
     private long idempotencyTtlSeconds;
     @Value("${telegram.bot.username}")
     private String botUsername;
 
+    /**
+     * Маршрут апдейта для метрик: команда или действие кнопки (без id ключей).
+     * Набор значений конечен — подходит для тега.
+     */
+    public static String route(Update update) {
+        if (update == null) return "none";
+        if (update.hasMessage() && update.getMessage().hasText()) {
+            String t = update.getMessage().getText().trim().toLowerCase();
+            if (t.equals("/start") || t.startsWith("/start ") || t.equals("старт")) return "message:start";
+            if (t.equals("/admin") || t.equals("админ")) return "message:admin";
+            if (t.equals("/cancel") || t.equals("отмена")) return "message:cancel";
+            return "message:text";
+        }
+        if (update.hasMessage() && update.getMessage().hasDocument()) return "message:document";
+        if (update.hasCallbackQuery()) {
+            String data = update.getCallbackQuery().getData();
+            if (data == null) return "callback:none";
+            // тег — только имя CallbackOp: произвольная data от клиента не плодит серии
+            CallbackOp op = !data.isEmpty() && data.charAt(0) == CallbackCodec.MARKER
+                    ? CallbackCodec.peekOp(data)
+                    : CallbackCodec.peekLegacyOp(data);
+            return op == null ? "callback:other" : "callback:" + op.name();
+        }
+        return "other";
+    }
+
     public List<BotApiMethod<?>> handle(Update update) {
         if (update == null) return List.of();
         if (update.hasMessage() && update.getMessage().hasText()) {
             return handleMessage(update);
         }
+        if (update.hasMessage() && update.getMessage().hasDocument()) {
+            return handleDocument(update);
+        }
         if (update.hasCallbackQuery()) {
             return handleCallback(update);
         }
@@ -97,13 +129,33 @@ public class BotUpdateHandler {
         return out;
     }
 
+    /**
+     * Файл принимаем только от администратора, который ждёт список для массовой операции.
+     */
+    private List<BotApiMethod<?>> handleDocument(Update update) {
+        var message = update.getMessage();
+        Long chatId = message.getChatId();
+        if (message.getFrom() == null || !adminService.isAdmin(message.getFrom().getId())) return List.of();
+        Optional<AdminAction> pending = adminStateService.get(chatId);
+        if (pending.isEmpty()) return List.of();
+        return new ArrayList<>(adminFlowService.handleAdminDocument(
+                chatId, message.getDocument(), message.getCaption(), pending.get()));
+    }
+
     private List<BotApiMethod<?>> handleCallback(Update update) {
         List<BotApiMethod<?>> out = new ArrayList<>();
         var cq = update.getCallbackQuery();
-        String data = cq.getData();
         Long chatId = cq.getMessage().getChatId();
         Integer messageId = cq.getMessage().getMessageId();
         String callbackId = cq.getId();
+
+        // подпись проверяется до регистрации пользователя и любых запросов в БД
+        CallbackCodec.Callback callback = callbackCodec.decode(cq.getData(), chatId);
+        if (callback == null) {
+            out.add(BotMessageFactory.callbackAnswer(callbackId, "Кнопка устарела, откройте меню заново."));
+            return out;
+        }
+        long arg = callback.arg();
         boolean isAdmin = adminService.isAdmin(cq.getFrom().getId());
         boolean answered = false;
 
@@ -114,85 +166,63 @@ public class BotUpdateHandler {
             return out;
         }
 
-        if (data != null && data.startsWith("KEY_SELECT:")) {
-            Long keyId = parseKeyId(data, "KEY_SELECT:");
-            if (keyId != null) {
-                out.add(BotMessageFactory.editFromSendMessage(
-                        botMenuService.keyActionsMenu(chatId, user, keyId), chatId, messageId));
-            } else {
-                out.add(BotMessageFactory.simpleMessage(chatId, "❌ Не удалось определить ключ."));
-            }
-        } else if (data != null && data.startsWith("KEY_GET:")) {
-            Long keyId = parseKeyId(data, "KEY_GET:");
-            answered = handleKeyGet(out, chatId, callbackId, user, keyId);
-        } else if (data != null && data.startsWith("KEY_REPLACE:")) {
-            Long keyId = parseKeyId(data, "KEY_REPLACE:");
-            answered = handleKeyReplace(out, chatId, callbackId, user, keyId);
-        } else if (data != null && data.startsWith("KEY_DELETE:")) {
-            Long keyId = parseKeyId(data, "KEY_DELETE:");
-            answered = handleKeyDelete(out, chatId, callbackId, user, keyId);
-        } else if (data != null && data.startsWith("KEY_RENEW:")) {
-            Long keyId = parseKeyId(data, "KEY_RENEW:");
-            if (keyId != null) {
-                out.add(BotMessageFactory.editFromSendMessage(
-                        botMenuService.keyPlanMenu(chatId, user, keyId, false), chatId, messageId));
-            } else {
-                out.add(BotMessageFactory.simpleMessage(chatId, "❌ Не удалось определить ключ."));
-            }
-        } else if ("KEY_NEW_BUY_1M".equals(data)) {
-            SubscriptionPlansProperties.Plan p1 = subscriptionPlansProperties.getPlan1();
-            answered = handleKeyPlanPurchase(out, chatId, callbackId, user, null,
-                    p1.getDays(), p1.getPrice(), planLabel(p1, "1 месяц"));
-        } else if ("KEY_NEW_BUY_2M".equals(data)) {
-            SubscriptionPlansProperties.Plan p2 = subscriptionPlansProperties.getPlan2();
-            answered = handleKeyPlanPurchase(out, chatId, callbackId, user, null,
-                    p2.getDays(), p2.getPrice(), planLabel(p2, "2 месяца"));
-        } else if (data != null && data.startsWith("KEY_RENEW_1M:")) {
-            Long keyId = parseKeyId(data, "KEY_RENEW_1M:");
-            if (keyId == null) {
-                out.add(BotMessageFactory.simpleMessage(chatId, "❌ Не удалось определить ключ."));
-            } else {
+        switch (callback.op()) {
+            case KEY_SELECT -> out.add(BotMessageFactory.editFromSendMessage(
+                    botMenuService.keyActionsMenu(chatId, user, arg), chatId, messageId));
+            case KEY_GET -> answered = handleKeyGet(out, chatId, messageId, callbackId, user, arg);
+            case KEY_REPLACE -> answered = handleKeyReplace(out, chatId, messageId, callbackId, user, arg);
+            case KEY_DELETE -> answered = handleKeyDelete(out, chatId, callbackId, user, arg);
+            case KEY_RENEW -> out.add(BotMessageFactory.editFromSendMessage(
+                    botMenuService.keyPlanMenu(chatId, user, arg, false), chatId, messageId));
+            case KEY_RENEW_1M -> {
                 SubscriptionPlansProperties.Plan p1 = subscriptionPlansProperties.getPlan1();
-                answered = handleKeyPlanPurchase(out, chatId, callbackId, user, keyId,
+                answered = handleKeyPlanPurchase(out, chatId, callbackId, user, arg,
                         p1.getDays(), p1.getPrice(), planLabel(p1, "1 месяц"));
             }
-        } else if (data != null && data.startsWith("KEY_RENEW_2M:")) {
-            Long keyId = parseKeyId(data, "KEY_RENEW_2M:");
-            if (keyId == null) {
-                out.add(BotMessageFactory.simpleMessage(chatId, "❌ Не удалось определить ключ."));
-            } else {
+            case KEY_RENEW_2M -> {
                 SubscriptionPlansProperties.Plan p2 = subscriptionPlansProperties.getPlan2();
-                answered = handleKeyPlanPurchase(out, chatId, callbackId, user, keyId,
+                answered = handleKeyPlanPurchase(out, chatId, callbackId, user, arg,
                         p2.getDays(), p2.getPrice(), planLabel(p2, "2 месяца"));
             }
-        } else {
-            switch (data) {
-            case "MENU_SUBSCRIPTION" -> out.add(BotMessageFactory.editFromSendMessage(
+            case ADMIN_BCAST_AUD -> {
+                if (isAdmin) {
+                    out.addAll(adminFlowService.selectBroadcastAudience(chatId, arg));
+                }
+            }
+            case ADMIN_BCAST_REFERRED -> {
+                if (isAdmin) {
+                    out.addAll(adminFlowService.askBroadcastReferrer(chatId));
+                }
+            }
+            case MENU_SUBSCRIPTION -> out.add(BotMessageFactory.editFromSendMessage(
                     botMenuService.subscriptionMenu(chatId), chatId, messageId));
-            case "MENU_KEYS" -> out.add(BotMessageFactory.editFromSendMessage(
+            case MENU_KEYS -> out.add(BotMessageFactory.editFromSendMessage(
                     botMenuService.myKeysMenu(chatId, user), chatId, messageId));
-            case "MENU_HELP" -> out.add(BotMessageFactory.editFromSendMessage(
+            case MENU_HELP -> out.add(BotMessageFactory.editFromSendMessage(
                     botMenuService.instructionsMenu(chatId), chatId, messageId));
-            case "MENU_REFERRAL" -> out.add(BotMessageFactory.editFromSendMessage(
+            case MENU_REFERRAL -> out.add(BotMessageFactory.editFromSendMessage(
                     botMenuService.referralMenu(chatId, user, botUsername), chatId, messageId));
-            case "MENU_BACK" -> {
-                adminStateService.clear(chatId);
+            case MENU_BACK -> {
+                // состояние диалога бывает только у админа: у остальных не ходим в хранилище на каждый «Назад»
+                if (isAdmin) {
+                    adminStateService.clear(chatId);
+                }
                 out.add(BotMessageFactory.editFromSendMessage(
                         botMenuService.mainMenu(chatId, isAdmin, user), chatId, messageId));
             }
-            case "MENU_ADMIN" -> {
+            case MENU_ADMIN -> {
                 if (isAdmin) {
                     adminStateService.clear(chatId);
                     out.add(BotMessageFactory.editFromSendMessage(
                             botMenuService.adminMenu(chatId), chatId, messageId));
                 }
             }
-            case "ADMIN_ACTIVE_USERS" -> {
+            case ADMIN_ACTIVE_USERS -> {
                 if (isAdmin) {
-                    out.add(adminFlowService.buildActiveUsersMessage(chatId));
+                    out.addAll(adminFlowService.buildActiveUsersMessages(chatId));
                 }
             }
-            case "MENU_BUY" -> {
+            case MENU_BUY -> {
                 if (vpnKeyService.listUserKeys(user).isEmpty()) {
                     out.add(BotMessageFactory.editFromSendMessage(
                             botMenuService.subscriptionPlanMenu(chatId), chatId, messageId));
@@ -201,23 +231,23 @@ public class BotUpdateHandler {
                             botMenuService.myKeysMenu(chatId, user), chatId, messageId));
                 }
             }
-            case "BUY_1M" -> {
+            case BUY_1M, KEY_NEW_BUY_1M -> {
                 SubscriptionPlansProperties.Plan p1 = subscriptionPlansProperties.getPlan1();
                 answered = handleKeyPlanPurchase(out, chatId, callbackId, user, null,
                         p1.getDays(), p1.getPrice(), planLabel(p1, "1 месяц"));
             }
-            case "BUY_2M" -> {
+            case BUY_2M, KEY_NEW_BUY_2M -> {
                 SubscriptionPlansProperties.Plan p2 = subscriptionPlansProperties.getPlan2();
                 answered = handleKeyPlanPurchase(out, chatId, callbackId, user, null,
                         p2.getDays(), p2.getPrice(), planLabel(p2, "2 месяца"));
             }
-            case "KEY_NEW" -> out.add(BotMessageFactory.editFromSendMessage(
+            case KEY_NEW -> out.add(BotMessageFactory.editFromSendMessage(
                     botMenuService.keyPlanMenu(chatId, user, null, true), chatId, messageId));
-            case "MENU_GET_KEY" -> out.add(BotMessageFactory.editFromSendMessage(
+            case MENU_GET_KEY -> out.add(BotMessageFactory.editFromSendMessage(
                     botMenuService.myKeysMenu(chatId, user), chatId, messageId));
-            case "MENU_REPLACE_KEY" -> out.add(BotMessageFactory.editFromSendMessage(
+            case MENU_REPLACE_KEY -> out.add(BotMessageFactory.editFromSendMessage(
                     botMenuService.myKeysMenu(chatId, user), chatId, messageId));
-            case "ADMIN_ADD_SUB" -> {
+            case ADMIN_ADD_SUB -> {
                 if (isAdmin) {
                     adminStateService.set(chatId, AdminAction.ADD_SUBSCRIPTION);
                     out.add(BotMessageFactory.simpleMessage(chatId,
@@ -225,72 +255,91 @@ public class BotUpdateHandler {
                                     "Подписка будет привязана к первому ключу (или ключ будет создан).\n\nОтмена (или /cancel) — отмена."));
                 }
             }
-            case "ADMIN_CHECK_SUB" -> {
+            case ADMIN_CHECK_SUB -> {
                 if (isAdmin) {
                     adminStateService.set(chatId, AdminAction.CHECK_SUBSCRIPTION);
                     out.add(BotMessageFactory.simpleMessage(chatId,
                             "Отправьте @username для проверки подписок по ключам.\n\nОтмена (или /cancel) — отмена."));
                 }
             }
-            case "ADMIN_REVOKE_SUB" -> {
+            case ADMIN_REVOKE_SUB -> {
                 if (isAdmin) {
                     adminStateService.set(chatId, AdminAction.REVOKE_SUBSCRIPTION);
                     out.add(BotMessageFactory.simpleMessage(chatId,
                             "Отправьте @username, чтобы отключить все активные подписки.\n\nОтмена (или /cancel) — отмена."));
                 }
             }
-            case "ADMIN_DISABLE_USER" -> {
+            case ADMIN_DISABLE_USER -> {
                 if (isAdmin) {
                     adminStateService.set(chatId, AdminAction.DISABLE_USER);
                     out.add(BotMessageFactory.simpleMessage(chatId,
                             "Отправьте @username, чтобы отключить пользователя.\n\nОтмена (или /cancel) — отмена."));
                 }
             }
-            case "ADMIN_ENABLE_USER" -> {
+            case ADMIN_ENABLE_USER -> {
                 if (isAdmin) {
                     adminStateService.set(chatId, AdminAction.ENABLE_USER);
                     out.add(BotMessageFactory.simpleMessage(chatId,
                             "Отправьте @username, чтобы включить пользователя.\n\nОтмена (или /cancel) — отмена."));
                 }
             }
-            case "ADMIN_BROADCAST" -> {
+            case ADMIN_BROADCAST -> {
                 if (isAdmin) {
-                    adminStateService.set(chatId, AdminAction.BROADCAST);
-                    out.add(BotMessageFactory.simpleMessage(chatId,
-                            "Отправьте текст рассылки. Сообщение будет отправлено всем пользователям.\n\nОтмена (или /cancel) — отмена."));
+                    adminStateService.clear(chatId);
+                    out.add(adminFlowService.broadcastAudienceMenu(chatId));
+                }
+            }
+            case ADMIN_BULK -> {
+                if (isAdmin) {
+                    adminStateService.clear(chatId);
+                    out.add(botMenuService.bulkMenu(chatId));
                 }
             }
-            case "ADMIN_PURGE_DISABLED_KEYS" -> {
+            case ADMIN_BULK_GRANT -> {
+                if (isAdmin) out.addAll(adminFlowService.askBulkTargets(chatId, AdminAction.BULK_GRANT));
+            }
+            case ADMIN_BULK_REVOKE -> {
+                if (isAdmin) out.addAll(adminFlowService.askBulkTargets(chatId, AdminAction.BULK_REVOKE));
+            }
+            case ADMIN_BULK_CONFIRM -> {
+                if (isAdmin) out.addAll(adminFlowService.confirmBulk(chatId));
+            }
+            case ADMIN_BULK_CANCEL -> {
+                if (isAdmin) {
+                    adminStateService.clear(chatId);
+                    out.add(BotMessageFactory.simpleMessage(chatId, "Отменено."));
+                }
+            }
+            case ADMIN_PURGE_DISABLED_KEYS -> {
                 if (isAdmin) {
                     InlineKeyboardButton bYes = InlineKeyboardButton.builder()
                             .text("✅ Да, удалить")
-                            .callbackData("ADMIN_PURGE_DISABLED_CONFIRM")
+                            .callbackData(callbackCodec.encode(CallbackOp.ADMIN_PURGE_DISABLED_CONFIRM))
                             .build();
                     InlineKeyboardButton bNo = InlineKeyboardButton.builder()
                             .text("✖️ Отмена")
-                            .callbackData("ADMIN_PURGE_DISABLED_CANCEL")
+                            .callbackData(callbackCodec.encode(CallbackOp.ADMIN_PURGE_DISABLED_CANCEL))
                             .build();
                     InlineKeyboardMarkup markup = InlineKeyboardMarkup.builder()
                             .keyboard(List.of(List.of(bYes, bNo)))
                             .build();
                     SendMessage sm = SendMessage.builder()
                             .chatId(chatId.toString())
-                            .text("Удалить всех отключённых пользователей и их ключи? Действие необратимо.")
+                            .text("Удалить всех отключённых пользователей с их ключами и все отозванные ключи? Действие необратимо.")
                             .replyMarkup(markup)
                             .build();
                     out.add(sm);
                 }
             }
-            case "ADMIN_PURGE_DISABLED_CONFIRM" -> {
+            case ADMIN_PURGE_DISABLED_CONFIRM -> {
                 if (isAdmin) {
-                    int removed = vpnKeyService.purgeDisabledUsers();
-                    String msg = removed == 0
-                            ? "🧹 Отключённых пользователей для удаления нет."
-                            : "🧹 Удалено отключённых пользователей: " + removed;
-                    out.add(BotMessageFactory.simpleMessage(chatId, msg));
+                    // прогресс очистки приходит правкой сообщения с подтверждением
+                    if (!purgeService.start(chatId, messageId)) {
+                        out.add(BotMessageFactory.simpleMessage(chatId, "🧹 Очистка уже выполняется."));
+                    }
                 }
             }
-            case "ADMIN_PURGE_DISABLED_CANCEL" -> {
+            case ADMIN_PURGE_DISABLED_CANCEL -> {
                 if (isAdmin) {
                     out.add(BotMessageFactory.simpleMessage(chatId, "Отменено."));
                 }
@@ -298,7 +347,6 @@ public class BotUpdateHandler {
             default -> {
             }
         }
-        }
 
         if (!answered) {
             out.add(BotMessageFactory.callbackAnswer(callbackId, null));
@@ -360,7 +408,8 @@ public class BotUpdateHandler {
         return t.equalsIgnoreCase("/cancel") || t.equalsIgnoreCase("отмена");
     }
 
-    private boolean handleKeyGet(List<BotApiMethod<?>> out, Long chatId, String callbackId, User user, Long keyId) {
+    private boolean handleKeyGet(List<BotApiMethod<?>> out, Long chatId, Integer messageId, String callbackId,
+                                 User user, Long keyId) {
         if (keyId == null) {
             out.add(BotMessageFactory.simpleMessage(chatId, "❌ Не удалось определить ключ."));
             out.add(botMenuService.myKeysMenu(chatId, user));
@@ -373,25 +422,31 @@ public class BotUpdateHandler {
 
         try {
             vpnKeyService.ensureKeyForActiveSubscription(user);
-            var key = vpnKeyService.getKeyForUser(user, keyId);
-            String msg = "🔑 Ваш VPN-ключ:\n\n" +
-                    "<code>" + BotTextUtils.escapeHtml(key.getKeyValue()) + "</code>\n\n" +
-                    "📌 Скопируйте ссылку и импортируйте в клиент.";
-            SendMessage sm = SendMessage.builder()
-                    .chatId(chatId.toString())
-                    .text(msg)
-                    .parseMode("HTML")
-                    .build();
-            out.add(sm);
+            var key = vpnKeyService.findIssuableKey(user, keyId);
+            if (vpnKeyService.isReady(key)) {
+                String msg = "🔑 Ваш VPN-ключ:\n\n" +
+                        "<code>" + BotTextUtils.escapeHtml(key.getKeyValue()) + "</code>\n\n" +
+                        "📌 Скопируйте ссылку и импортируйте в клиент.";
+                SendMessage sm = SendMessage.builder()
+                        .chatId(chatId.toString())
+                        .text(msg)
+                        .parseMode("HTML")
+                        .build();
+                out.add(sm);
+            } else {
+                // выпуск в 3x-ui идёт в фоне, ссылка появится в текущем сообщении
+                keyIssuanceService.submit(KeyIssuanceService.IssueRequest.of(
+                        key.getId(), chatId, messageId, "🔑 Ваш VPN-ключ:"));
+            }
         } catch (Exception e) {
             if (isNoActiveSubscriptionError(e)) {
                 InlineKeyboardButton bRenew = InlineKeyboardButton.builder()
                         .text("🔁 Продлить")
-                        .callbackData("KEY_RENEW:" + keyId)
+                        .callbackData(callbackCodec.encode(CallbackOp.KEY_RENEW, chatId, keyId))
                         .build();
                 InlineKeyboardButton bBack = InlineKeyboardButton.builder()
                         .text("⬅️ Назад")
-                        .callbackData("MENU_KEYS")
+                        .callbackData(callbackCodec.encode(CallbackOp.MENU_KEYS))
                         .build();
                 InlineKeyboardMarkup markup = InlineKeyboardMarkup.builder()
                         .keyboard(List.of(List.of(bRenew), List.of(bBack)))
@@ -426,17 +481,16 @@ public class BotUpdateHandler {
             vpnKeyService.ensureKeyForActiveSubscription(user);
             if (!vpnKeyService.canDeleteKey(user, keyId)) {
                 VpnKey key = vpnKeyService.findKeyForUser(user, keyId);
-                var activeSub = vpnKeyService.getActiveSubscriptionForKey(key);
-                String until = activeSub.isPresent()
-                        ? BotTextUtils.formatDate(activeSub.get().getEndDate())
+                String until = key.getPaidUntil() != null
+                        ? BotTextUtils.formatDate(key.getPaidUntil())
                         : "-";
                 InlineKeyboardButton bRenew = InlineKeyboardButton.builder()
                         .text("🔁 Продлить")
-                        .callbackData("KEY_RENEW:" + keyId)
+                        .callbackData(callbackCodec.encode(CallbackOp.KEY_RENEW, chatId, keyId))
                         .build();
                 InlineKeyboardButton bBack = InlineKeyboardButton.builder()
                         .text("⬅️ Назад")
-                        .callbackData("MENU_KEYS")
+                        .callbackData(callbackCodec.encode(CallbackOp.MENU_KEYS))
                         .build();
                 InlineKeyboardMarkup markup = InlineKeyboardMarkup.builder()
                         .keyboard(List.of(List.of(bRenew), List.of(bBack)))
@@ -461,38 +515,41 @@ public class BotUpdateHandler {
         return false;
     }
 
-    private boolean handleKeyReplace(List<BotApiMethod<?>> out, Long chatId, String callbackId, User user, Long keyId) {
+    private boolean handleKeyReplace(List<BotApiMethod<?>> out, Long chatId, Integer messageId, String callbackId,
+                                     User user, Long keyId) {
         if (keyId == null) {
             out.add(BotMessageFactory.simpleMessage(chatId, "❌ Не удалось определить ключ."));
             out.add(botMenuService.myKeysMenu(chatId, user));
             return false;
         }
 
+        if (!keyIssuanceService.isAccepting()) {
+            // старый ключ ещё не отозван — не начинаем замену, которую пул всё равно отклонит
+            out.add(BotMessageFactory.simpleMessage(chatId, "⏳ Сейчас выпускается слишком много ключей, попробуйте позже."));
+            out.add(botMenuService.myKeysMenu(chatId, user));
+            return false;
+        }
+
         if (!acquireIdempotency(out, callbackId, "replace_key:" + user.getId() + ":" + keyId)) {
             return true;
         }
 
         try {
             vpnKeyService.ensureKeyForActiveSubscription(user);
-            var key = vpnKeyService.replaceKeyForUser(user, keyId);
-            String msg = "🔄 Ключ заменён. Новый ключ:\n\n" +
-                    "<code>" + BotTextUtils.escapeHtml(key.getKeyValue()) + "</code>\n\n" +
-                    "📌 Старый ключ отключён.";
-            SendMessage sm = SendMessage.builder()
-                    .chatId(chatId.toString())
-                    .text(msg)
-                    .parseMode("HTML")
-                    .build();
-            out.add(sm);
+            var replace = vpnKeyService.startReplaceKeyForUser(user, keyId);
+            keyIssuanceService.submit(new KeyIssuanceService.IssueRequest(
+                    replace.newKeyId(), chatId, messageId,
+                    "🔄 Ключ заменён, старый ключ отключён. Новый ключ:", true,
+                    replace.oldInboundId(), replace.oldClientUuid()));
         } catch (Exception e) {
             if (isNoActiveSubscriptionError(e)) {
                 InlineKeyboardButton bRenew = InlineKeyboardButton.builder()
                         .text("🔁 Продлить")
-                        .callbackData("KEY_RENEW:" + keyId)
+                        .callbackData(callbackCodec.encode(CallbackOp.KEY_RENEW, chatId, keyId))
                         .build();
                 InlineKeyboardButton bBack = InlineKeyboardButton.builder()
                         .text("⬅️ Назад")
-                        .callbackData("MENU_KEYS")
+                        .callbackData(callbackCodec.encode(CallbackOp.MENU_KEYS))
                         .build();
                 InlineKeyboardMarkup markup = InlineKeyboardMarkup.builder()
                         .keyboard(List.of(List.of(bRenew), List.of(bBack)))
@@ -561,16 +618,6 @@ public class BotUpdateHandler {
         return false;
     }
 
-    private Long parseKeyId(String data, String prefix) {
-        if (data == null || prefix == null || !data.startsWith(prefix)) return null;
-        String raw = data.substring(prefix.length()).trim();
-        if (raw.isEmpty()) return null;
-        try {
-            return Long.parseLong(raw);
-        } catch (NumberFormatException e) {
-            return null;
-        }
-    }
 
     private boolean isNoActiveSubscriptionError(Exception e) {
         String msg = e == null ? null : e.getMessage();
@@ -0,0 +1,182 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import ru.uzden.uzdenbot.bots.MainBot;
+import ru.uzden.uzdenbot.entities.BroadcastJob;
+import ru.uzden.uzdenbot.repositories.BroadcastJobRepository;
+import ru.uzden.uzdenbot.repositories.LeasedJobTable;
+import ru.uzden.uzdenbot.repositories.UserRepository;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Отправка рассылок.
+ *
+ * Получатели читаются keyset-страницами по users.id из аудитории рассылки (AudienceSegmentService),
+ * сообщения уходят не чаще rate-per-second. После каждой страницы курсор и счётчики сохраняются
+ * в broadcast_jobs вместе с продлением lease — после рестарта (или падения инстанса) рассылку
+ * подхватит resume с сохранённого курсора. Очередь, lease и статусное сообщение — в LeasedJobRunner.
+ */
+@Slf4j
+@Service
+public class BroadcastRunner extends LeasedJobRunner<BroadcastJob> {
+
+    private final BroadcastJobRepository broadcastJobRepository;
+    private final AudienceSegmentService audienceSegmentService;
+    private final int pageSize;
+    private final long sendIntervalNanos;
+    private final long progressIntervalMs;
+
+    private long nextSendAt;
+
+    public BroadcastRunner(
+            BroadcastJobRepository broadcastJobRepository,
+            AudienceSegmentService audienceSegmentService,
+            JobLeaseService jobLeaseService,
+            NamedParameterJdbcTemplate jdbc,
+            TransactionTemplate tx,
+            MainBot mainBot,
+            @Value("${app.broadcast.page-size:200}") int pageSize,
+            @Value("${app.broadcast.rate-per-second:25}") int ratePerSecond,
+            @Value("${app.broadcast.progress-interval-ms:3000}") long progressIntervalMs,
+            @Value("${app.jobs.lease-seconds:300}") long leaseSeconds) {
+        super("broadcast", new LeasedJobTable(jdbc, "broadcast_jobs", "delivered", "blocked", "failed"),
+                jobLeaseService, tx, mainBot, leaseSeconds);
+        this.broadcastJobRepository = broadcastJobRepository;
+        this.audienceSegmentService = audienceSegmentService;
+        this.pageSize = Math.max(1, pageSize);
+        this.sendIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, ratePerSecond);
+        this.progressIntervalMs = Math.max(0, progressIntervalMs);
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onBroadcastCreated(BroadcastService.BroadcastCreatedEvent event) {
+        schedule();
+    }
+
+    /**
+     * Подхват рассылок, брошенных упавшим/перезапущенным инстансом (истёк lease).
+     */
+    @Scheduled(fixedDelayString = "${app.broadcast.resume-delay-ms:60000}")
+    public void resume() {
+        schedule();
+    }
+
+    @Override
+    protected List<BroadcastJob> lockResumable(int limit) {
+        return broadcastJobRepository.lockResumable(limit);
+    }
+
+    @Override
+    protected void run(BroadcastJob job, String owner) throws InterruptedException {
+        if (!AudienceSegmentService.isKnown(job.getAudience())) {
+            String error = "неизвестная аудитория " + job.getAudience();
+            log.warn("Broadcast #{} aborted: {}", job.getId(), error);
+            job.setError(error);
+            tx.executeWithoutResult(s -> broadcastJobRepository.markAborted(job.getId(), error, owner));
+            editStatus(job, true);
+            return;
+        }
+        log.info("Broadcast #{} started from cursor {}", job.getId(), job.getCursorUserId());
+
+        long lastProgress = System.currentTimeMillis();
+        while (true) {
+            AudienceSegmentService.AudiencePage page = audienceSegmentService.page(
+                    job.getAudience(), job.getCursorUserId(), pageSize);
+            if (page.lastId() == job.getCursorUserId()) break;
+
+            for (UserRepository.BroadcastTarget target : page.targets()) {
+                switch (send(target.getTelegramId(), job.getText())) {
+                    case DELIVERED -> job.setDelivered(job.getDelivered() + 1);
+                    case BLOCKED -> job.setBlocked(job.getBlocked() + 1);
+                    case FAILED -> job.setFailed(job.getFailed() + 1);
+                }
+            }
+            job.setCursorUserId(page.lastId());
+
+            if (!saveProgress(job, job.getCursorUserId(), owner,
+                    job.getDelivered(), job.getBlocked(), job.getFailed())) {
+                return;
+            }
+            if (System.currentTimeMillis() - lastProgress >= progressIntervalMs) {
+                lastProgress = System.currentTimeMillis();
+                editStatus(job, false);
+            }
+            if (page.last()) break;
+        }
+
+        finish(job, owner);
+        log.info("Broadcast #{} done: delivered={}, blocked={}, failed={}",
+                job.getId(), job.getDelivered(), job.getBlocked(), job.getFailed());
+    }
+
+    private Result send(Long telegramId, String text) throws InterruptedException {
+        SendMessage sm = SendMessage.builder()
+                .chatId(telegramId.toString())
+                .text(text)
+                .build();
+        for (int attempt = 0; attempt < 2; attempt++) {
+            pace();
+            try {
+                mainBot.execute(sm);
+                return Result.DELIVERED;
+            } catch (TelegramApiRequestException e) {
+                Integer code = e.getErrorCode();
+                if (code != null && code == 403) {
+                    // бот заблокирован пользователем или чат удалён
+                    return Result.BLOCKED;
+                }
+                Integer retryAfter = e.getParameters() == null ? null : e.getParameters().getRetryAfter();
+                if (code != null && code == 429 && retryAfter != null) {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(retryAfter));
+                    continue;
+                }
+                log.debug("Broadcast to {} failed: {}", telegramId, e.getMessage());
+                return Result.FAILED;
+            } catch (Exception e) {
+                log.debug("Broadcast to {} failed: {}", telegramId, e.getMessage());
+                return Result.FAILED;
+            }
+        }
+        return Result.FAILED;
+    }
+
+    private void pace() throws InterruptedException {
+        long now = System.nanoTime();
+        if (nextSendAt > now) {
+            TimeUnit.NANOSECONDS.sleep(nextSendAt - now);
+            now = nextSendAt;
+        }
+        nextSendAt = now + sendIntervalNanos;
+    }
+
+    @Override
+    protected String statusText(BroadcastJob job, boolean done) {
+        if (job.getError() != null) {
+            return "📣 Рассылка #" + job.getId() + " остановлена: " + job.getError();
+        }
+        int processed = job.getDelivered() + job.getBlocked() + job.getFailed();
+        String header = done
+                ? "📣 Рассылка #" + job.getId() + " завершена."
+                : "📣 Рассылка #" + job.getId() + " идёт: " + processed + " из " + job.getTotal();
+        return header + "\n" +
+                "👥 Аудитория: " + audienceSegmentService.label(job.getAudience()) + "\n" +
+                "✅ Доставлено: " + job.getDelivered() + "\n" +
+                "🚫 Заблокировали бота: " + job.getBlocked() + "\n" +
+                "❌ Ошибки: " + job.getFailed();
+    }
+
+    private enum Result {
+        DELIVERED, BLOCKED, FAILED
+    }
+}
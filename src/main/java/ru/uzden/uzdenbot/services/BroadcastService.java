@@ -0,0 +1,44 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import ru.uzden.uzdenbot.entities.BroadcastJob;
+import ru.uzden.uzdenbot.repositories.BroadcastJobRepository;
+
+/**
+ * Постановка рассылки: строка broadcast_jobs + BroadcastCreatedEvent.
+ * Отправкой занимается BroadcastRunner в своём потоке, обработчик апдейтов не ждёт.
+ */
+@Service
+@RequiredArgsConstructor
+public class BroadcastService {
+
+    private final BroadcastJobRepository broadcastJobRepository;
+    private final AudienceSegmentService audienceSegmentService;
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Transactional
+    public BroadcastJob create(Long adminChatId, String text) {
+        return create(adminChatId, text, AudienceSegment.ALL.name());
+    }
+
+    /**
+     * @param audience имя AudienceSegment или "REFERRED:<userId>"
+     */
+    @Transactional
+    public BroadcastJob create(Long adminChatId, String text, String audience) {
+        BroadcastJob job = new BroadcastJob();
+        job.setAdminChatId(adminChatId);
+        job.setText(text);
+        job.setAudience(audience == null ? AudienceSegment.ALL.name() : audience);
+        job.setTotal(audienceSegmentService.size(job.getAudience()));
+        BroadcastJob saved = broadcastJobRepository.save(job);
+        eventPublisher.publishEvent(new BroadcastCreatedEvent(saved.getId()));
+        return saved;
+    }
+
+    public record BroadcastCreatedEvent(long jobId) {
+    }
+}
@@ -0,0 +1,302 @@
+package ru.uzden.uzdenbot.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Компактная подписанная callback data для inline-кнопок.
+ *
+ * Формат: '~' + base64url без паддинга от [версия][код действия][varint аргумента][первые 6 байт HMAC-SHA256].
+ * Кнопка с id ключа занимает не больше 25 символов из 64, разрешённых Telegram.
+ * Для действий с аргументом в подпись входит chatId, поэтому id из чужой кнопки не подставить.
+ *
+ * decode не режет строку на подстроки: символы разворачиваются в байтовый буфер потока,
+ * HMAC считается в заранее выделенный массив. Поддельная или устаревшая кнопка отбрасывается
+ * до регистрации пользователя и любых запросов в БД.
+ *
+ * Старые строковые кнопки (MENU_KEYS, KEY_GET:123) не подписаны, поэтому по умолчанию отбрасываются.
+ * На время перехода их можно принимать до момента app.callbacks.legacy-until (ISO-8601, не дальше
+ * MAX_LEGACY_WINDOW от старта) — после него старые кнопки перестают работать без перезапуска.
+ */
+@Service
+public class CallbackCodec {
+
+    public static final char MARKER = '~';
+
+    static final int VERSION = 1;
+    private static final int SIG_BYTES = 6;
+    private static final int MAX_VARINT_BYTES = 10;
+    private static final int MAX_BYTES = 2 + MAX_VARINT_BYTES + SIG_BYTES;
+    private static final int MIN_CHARS = encodedLength(2 + SIG_BYTES);
+    private static final int MAX_CHARS = encodedLength(MAX_BYTES);
+    static final Duration MAX_LEGACY_WINDOW = Duration.ofDays(14);
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] INDEX = new byte[128];
+
+    private static final Map<String, CallbackOp> LEGACY_NAMES = new HashMap<>();
+
+    static {
+        Arrays.fill(INDEX, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            INDEX[ALPHABET[i]] = (byte) i;
+        }
+        for (CallbackOp op : CallbackOp.values()) {
+            if (op != CallbackOp.ADMIN_BCAST_REFERRED) {
+                LEGACY_NAMES.put(op.name(), op);
+            }
+        }
+    }
+
+    private final SecretKeySpec key;
+    private final long legacyUntilMillis;
+    private final ThreadLocal<Scratch> scratch;
+    private final String[] plain = new String[256];
+    private final Callback[] plainDecoded = new Callback[256];
+
+    public CallbackCodec(
+            @Value("${app.callbacks.secret:${telegram.bot.token}}") String secret,
+            @Value("${app.callbacks.legacy-until:}") String legacyUntil) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("app.callbacks.secret не задан");
+        }
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.legacyUntilMillis = parseLegacyUntil(legacyUntil);
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(key));
+        // кнопки без аргумента одинаковы во всех чатах — собираем один раз
+        for (CallbackOp op : CallbackOp.values()) {
+            if (!op.withArg()) {
+                plain[op.code()] = pack(op, 0, 0);
+                plainDecoded[op.code()] = new Callback(op, 0);
+            }
+        }
+    }
+
+    public record Callback(CallbackOp op, long arg) {
+    }
+
+    public String encode(CallbackOp op) {
+        if (op.withArg()) {
+            throw new IllegalArgumentException("Для " + op + " нужен аргумент");
+        }
+        return plain[op.code()];
+    }
+
+    public String encode(CallbackOp op, long chatId, long arg) {
+        if (!op.withArg()) {
+            throw new IllegalArgumentException(op + " без аргумента");
+        }
+        if (arg < 0) {
+            throw new IllegalArgumentException("Отрицательный аргумент callback: " + arg);
+        }
+        return pack(op, chatId, arg);
+    }
+
+    /**
+     * @return действие кнопки или null, если data не разобрать, подпись не сошлась или кнопка из другого чата
+     */
+    public Callback decode(String data, long chatId) {
+        if (data == null || data.isEmpty()) return null;
+        if (data.charAt(0) != MARKER) {
+            return System.currentTimeMillis() < legacyUntilMillis ? decodeLegacy(data) : null;
+        }
+        int chars = data.length() - 1;
+        if (chars < MIN_CHARS || chars > MAX_CHARS) return null;
+
+        Scratch s = scratch.get();
+        byte[] buf = s.buf;
+        int n = 0;
+        int bits = 0;
+        int acc = 0;
+        for (int i = 1; i <= chars; i++) {
+            char c = data.charAt(i);
+            int v = c < 128 ? INDEX[c] : -1;
+            if (v < 0) return null;
+            acc = (acc << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                buf[n++] = (byte) (acc >>> bits);
+            }
+        }
+        if (buf[0] != VERSION) return null;
+        CallbackOp op = CallbackOp.byCode(buf[1] & 0xff);
+        if (op == null) return null;
+
+        int end = n - SIG_BYTES;
+        int pos = 2;
+        long arg = 0;
+        if (op.withArg()) {
+            int shift = 0;
+            while (true) {
+                if (pos >= end || shift >= 64) return null;
+                int b = buf[pos++];
+                arg |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) break;
+                shift += 7;
+            }
+        }
+        if (pos != end) return null;
+
+        byte[] digest = s.sign(buf, end, op.withArg(), chatId);
+        int diff = 0;
+        for (int i = 0; i < SIG_BYTES; i++) {
+            diff |= digest[i] ^ buf[end + i];
+        }
+        if (diff != 0) return null;
+        return op.withArg() ? new Callback(op, arg) : plainDecoded[op.code()];
+    }
+
+    /**
+     * Действие по data без проверки подписи — только для меток метрик.
+     */
+    public static CallbackOp peekOp(String data) {
+        if (data == null || data.length() < 4 || data.charAt(0) != MARKER) return null;
+        int acc = 0;
+        for (int i = 1; i <= 3; i++) {
+            char c = data.charAt(i);
+            int v = c < 128 ? INDEX[c] : -1;
+            if (v < 0) return null;
+            acc = (acc << 6) | v;
+        }
+        if ((acc >>> 10) != VERSION) return null;
+        return CallbackOp.byCode((acc >>> 2) & 0xff);
+    }
+
+    /**
+     * Действие старой строковой кнопки («KEY_GET:42») — только для меток метрик; незнакомое имя — null.
+     */
+    public static CallbackOp peekLegacyOp(String data) {
+        if (data == null) return null;
+        int colon = data.indexOf(':');
+        return LEGACY_NAMES.get(colon < 0 ? data : data.substring(0, colon));
+    }
+
+    private String pack(CallbackOp op, long chatId, long arg) {
+        Scratch s = scratch.get();
+        byte[] buf = s.buf;
+        buf[0] = VERSION;
+        buf[1] = (byte) op.code();
+        int n = 2;
+        if (op.withArg()) {
+            long v = arg;
+            while ((v & ~0x7fL) != 0) {
+                buf[n++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[n++] = (byte) v;
+        }
+        byte[] digest = s.sign(buf, n, op.withArg(), chatId);
+        System.arraycopy(digest, 0, buf, n, SIG_BYTES);
+        n += SIG_BYTES;
+
+        char[] out = s.chars;
+        int len = 0;
+        out[len++] = MARKER;
+        int acc = 0;
+        int bits = 0;
+        for (int i = 0; i < n; i++) {
+            acc = (acc << 8) | (buf[i] & 0xff);
+            bits += 8;
+            while (bits >= 6) {
+                bits -= 6;
+                out[len++] = ALPHABET[(acc >>> bits) & 0x3f];
+            }
+        }
+        if (bits > 0) {
+            out[len++] = ALPHABET[(acc << (6 - bits)) & 0x3f];
+        }
+        return new String(out, 0, len);
+    }
+
+    private Callback decodeLegacy(String data) {
+        int colon = data.indexOf(':');
+        CallbackOp op = LEGACY_NAMES.get(colon < 0 ? data : data.substring(0, colon));
+        if (op == null) return null;
+        if (!op.withArg()) {
+            return colon < 0 ? plainDecoded[op.code()] : null;
+        }
+        if (colon < 0) return null;
+        String raw = data.substring(colon + 1).trim();
+        if (op == CallbackOp.ADMIN_BCAST_AUD) {
+            if ("REFERRED".equals(raw)) return plainDecoded[CallbackOp.ADMIN_BCAST_REFERRED.code()];
+            try {
+                return new Callback(op, AudienceSegment.valueOf(raw).code());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        try {
+            long arg = Long.parseLong(raw);
+            return arg < 0 ? null : new Callback(op, arg);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseLegacyUntil(String legacyUntil) {
+        if (legacyUntil == null || legacyUntil.isBlank()) return 0L;
+        Instant until;
+        try {
+            until = Instant.parse(legacyUntil.trim());
+        } catch (DateTimeParseException e) {
+            throw new IllegalStateException("app.callbacks.legacy-until: ожидается ISO-8601, получено " + legacyUntil, e);
+        }
+        if (until.isAfter(Instant.now().plus(MAX_LEGACY_WINDOW))) {
+            throw new IllegalStateException("app.callbacks.legacy-until дальше " + MAX_LEGACY_WINDOW.toDays()
+                    + " дней: старые неподписанные кнопки нельзя принимать бессрочно");
+        }
+        return until.toEpochMilli();
+    }
+
+    private static int encodedLength(int bytes) {
+        return (bytes * 8 + 5) / 6;
+    }
+
+    private static final class Scratch {
+        final byte[] buf = new byte[MAX_BYTES + 1];
+        final char[] chars = new char[MAX_CHARS + 1];
+        final byte[] chat = new byte[Long.BYTES];
+        final byte[] digest = new byte[32];
+        final Mac mac;
+
+        Scratch(SecretKeySpec key) {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 недоступен", e);
+            }
+        }
+
+        byte[] sign(byte[] payload, int len, boolean withChat, long chatId) {
+            mac.update(payload, 0, len);
+            if (withChat) {
+                for (int i = Long.BYTES - 1; i >= 0; i--) {
+                    chat[i] = (byte) chatId;
+                    chatId >>>= 8;
+                }
+                mac.update(chat, 0, Long.BYTES);
+            }
+            try {
+                mac.doFinal(digest, 0);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            return digest;
+        }
+    }
+}
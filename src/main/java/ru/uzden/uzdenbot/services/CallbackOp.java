@@ -0,0 +1,81 @@
+package ru.uzden.uzdenbot.services;
+
+/**
+ * Действия inline-кнопок. Код — байт в закодированной callback data, поэтому коды не переиспользуются:
+ * удалённое действие оставляет дыру, новое получает следующий свободный номер.
+ *
+ * withArg — у кнопки есть числовой аргумент (id ключа, сегмент аудитории). Такие callback'и подписываются
+ * вместе с chatId: кнопку из чужого чата или с подменённым id кодек отбросит.
+ */
+public enum CallbackOp {
+    MENU_SUBSCRIPTION(1, false),
+    MENU_KEYS(2, false),
+    MENU_HELP(3, false),
+    MENU_REFERRAL(4, false),
+    MENU_BACK(5, false),
+    MENU_ADMIN(6, false),
+    MENU_BUY(7, false),
+    MENU_GET_KEY(9, false),
+    MENU_REPLACE_KEY(10, false),
+    BUY_1M(11, false),
+    BUY_2M(12, false),
+    KEY_NEW(13, false),
+    KEY_NEW_BUY_1M(14, false),
+    KEY_NEW_BUY_2M(15, false),
+    KEY_SELECT(16, true),
+    KEY_GET(17, true),
+    KEY_REPLACE(18, true),
+    KEY_DELETE(19, true),
+    KEY_RENEW(20, true),
+    KEY_RENEW_1M(21, true),
+    KEY_RENEW_2M(22, true),
+    ADMIN_ADD_SUB(32, false),
+    ADMIN_CHECK_SUB(33, false),
+    ADMIN_REVOKE_SUB(34, false),
+    ADMIN_DISABLE_USER(35, false),
+    ADMIN_ENABLE_USER(36, false),
+    ADMIN_BROADCAST(37, false),
+    ADMIN_ACTIVE_USERS(38, false),
+    ADMIN_PURGE_DISABLED_KEYS(39, false),
+    ADMIN_PURGE_DISABLED_CONFIRM(40, false),
+    ADMIN_PURGE_DISABLED_CANCEL(41, false),
+    // аргумент — AudienceSegment.code()
+    ADMIN_BCAST_AUD(42, true),
+    ADMIN_BCAST_REFERRED(43, false),
+    ADMIN_BULK(44, false),
+    ADMIN_BULK_GRANT(45, false),
+    ADMIN_BULK_REVOKE(46, false),
+    ADMIN_BULK_CONFIRM(47, false),
+    ADMIN_BULK_CANCEL(48, false);
+
+    private static final CallbackOp[] BY_CODE = new CallbackOp[256];
+
+    static {
+        for (CallbackOp op : values()) {
+            if (BY_CODE[op.code] != null) {
+                throw new IllegalStateException("Повтор кода callback: " + op.code);
+            }
+            BY_CODE[op.code] = op;
+        }
+    }
+
+    private final int code;
+    private final boolean withArg;
+
+    CallbackOp(int code, boolean withArg) {
+        this.code = code;
+        this.withArg = withArg;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public boolean withArg() {
+        return withArg;
+    }
+
+    public static CallbackOp byCode(int code) {
+        return code < 0 || code >= BY_CODE.length ? null : BY_CODE[code];
+    }
+}
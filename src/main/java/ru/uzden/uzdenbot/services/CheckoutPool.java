@@ -0,0 +1,88 @@
+package ru.uzden.uzdenbot.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Пул заранее созданных платежей: (user, key, plan) -> готовая ссылка на оплату.
+ * Заполняется в фоне при открытии меню тарифов, забирается при нажатии на тариф.
+ */
+@Component
+public class CheckoutPool {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final Duration ttl;
+
+    public CheckoutPool(
+            @Value("${app.payments.prefetch.enabled:false}") boolean enabled,
+            @Value("${app.payments.prefetch.ttl-seconds:600}") long ttlSeconds) {
+        this.enabled = enabled;
+        this.ttl = Duration.ofSeconds(ttlSeconds);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    public static String key(Long userId, Long keyId, int days) {
+        return userId + ":" + (keyId == null ? "new" : keyId) + ":" + days;
+    }
+
+    /**
+     * Занять слот под предсоздание. false — слот уже занят свежей записью (готовой или в процессе).
+     */
+    public boolean reserve(String key) {
+        Instant now = Instant.now();
+        Entry reserved = new Entry(null, null, now);
+        Entry prev = entries.putIfAbsent(key, reserved);
+        if (prev == null) return true;
+        if (!isExpired(prev, now)) return false;
+        return entries.replace(key, prev, reserved);
+    }
+
+    public void complete(String key, Long paymentId, String confirmationUrl) {
+        entries.put(key, new Entry(paymentId, confirmationUrl, Instant.now()));
+    }
+
+    public void release(String key) {
+        Entry e = entries.get(key);
+        if (e != null && e.paymentId() == null) {
+            entries.remove(key, e);
+        }
+    }
+
+    /**
+     * Забрать готовый платёж. Запись удаляется из пула в любом случае,
+     * чтобы один и тот же платёж не был выдан дважды.
+     */
+    public Optional<Entry> take(String key) {
+        Entry e = entries.get(key);
+        if (e == null || e.paymentId() == null) return Optional.empty();
+        if (!entries.remove(key, e)) return Optional.empty();
+        if (isExpired(e, Instant.now())) return Optional.empty();
+        return Optional.of(e);
+    }
+
+    public void evictExpired() {
+        Instant now = Instant.now();
+        entries.entrySet().removeIf(en -> isExpired(en.getValue(), now));
+    }
+
+    private boolean isExpired(Entry e, Instant now) {
+        return e.createdAt().plus(ttl).isBefore(now);
+    }
+
+    public record Entry(Long paymentId, String confirmationUrl, Instant createdAt) {
+    }
+}
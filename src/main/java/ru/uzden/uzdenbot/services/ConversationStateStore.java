@@ -0,0 +1,22 @@
+package ru.uzden.uzdenbot.services;
+
+import java.util.Map;
+
+/**
+ * Хранилище состояния многошаговых диалогов (админские действия, будущие пользовательские сценарии).
+ *
+ * Состояние диалога — набор строковых полей под ключом; каждая запись продлевает TTL всего диалога,
+ * брошенный на середине диалог исчезает сам. Реализация выбирается app.conversation-state.store:
+ * redis (по умолчанию, общее для всех инстансов) или memory (один инстанс, локальная разработка).
+ */
+public interface ConversationStateStore {
+
+    /**
+     * Все поля диалога; пустая map, если диалога нет или он истёк.
+     */
+    Map<String, String> get(String key);
+
+    void put(String key, String field, String value);
+
+    void remove(String key);
+}
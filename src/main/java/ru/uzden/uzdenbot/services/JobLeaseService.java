@@ -0,0 +1,94 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Распределение работы фоновых задач между инстансами.
+ *
+ * Пачка строк выбирается через SELECT ... FOR UPDATE SKIP LOCKED и в той же транзакции
+ * помечается lease_owner/lease_until. После commit строки остаются за этим инстансом
+ * до истечения lease, остальные инстансы их пропускают и берут следующие.
+ */
+@Slf4j
+@Service
+public class JobLeaseService {
+
+    private final TransactionTemplate tx;
+    private final String owner;
+    private final long leaseSeconds;
+    private final int batchSize;
+
+    public JobLeaseService(
+            TransactionTemplate tx,
+            @Value("${app.jobs.instance-id:}") String instanceId,
+            @Value("${app.jobs.lease-seconds:300}") long leaseSeconds,
+            @Value("${app.jobs.batch-size:100}") int batchSize) {
+        this.tx = tx;
+        this.owner = resolveOwner(instanceId);
+        this.leaseSeconds = Math.max(1, leaseSeconds);
+        this.batchSize = Math.max(1, batchSize);
+        log.info("Job lease owner: {}", owner);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Забрать пачку строк под lease этого инстанса.
+     *
+     * @param lockBatch запрос с FOR UPDATE SKIP LOCKED и фильтром по истёкшему lease
+     * @param idOf      id строки
+     * @param writer    UPDATE ... SET lease_owner, lease_until по id
+     */
+    public <T> List<T> claim(Supplier<List<T>> lockBatch, Function<T, Long> idOf, LeaseWriter writer) {
+        List<T> claimed = tx.execute(status -> {
+            List<T> rows = lockBatch.get();
+            if (rows == null || rows.isEmpty()) return List.<T>of();
+            List<Long> ids = rows.stream().map(idOf).toList();
+            writer.lease(ids, owner, leaseSeconds);
+            return rows;
+        });
+        return claimed == null ? List.of() : claimed;
+    }
+
+    /**
+     * Снять lease этого инстанса с обработанной пачки: строки, оставшиеся в БД, сразу доступны
+     * другим задачам по той же таблице, а не через leaseSeconds.
+     */
+    public <T> void release(List<T> rows, Function<T, Long> idOf, LeaseReleaser releaser) {
+        if (rows == null || rows.isEmpty()) return;
+        List<Long> ids = rows.stream().map(idOf).toList();
+        tx.executeWithoutResult(status -> releaser.release(ids, owner));
+    }
+
+    private static String resolveOwner(String configured) {
+        if (configured != null && !configured.isBlank()) return configured.trim();
+        String host = System.getenv("HOSTNAME");
+        String suffix = UUID.randomUUID().toString().substring(0, 8);
+        return (host == null || host.isBlank()) ? "bot-" + suffix : host + "-" + suffix;
+    }
+
+    @FunctionalInterface
+    public interface LeaseWriter {
+        int lease(Collection<Long> ids, String owner, long seconds);
+    }
+
+    @FunctionalInterface
+    public interface LeaseReleaser {
+        int release(Collection<Long> ids, String owner);
+    }
+}
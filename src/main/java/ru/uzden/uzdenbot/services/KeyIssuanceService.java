@@ -0,0 +1,198 @@
+package ru.uzden.uzdenbot.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+import ru.uzden.uzdenbot.entities.VpnKey;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронный выпуск ключей.
+ *
+ * Обработчик апдейта создаёт PENDING-ключ и сразу отвечает "выпускаем…",
+ * а пул воркеров доводит ключ до ACTIVE в 3x-ui (с повторами) и публикует
+ * KeyIssuedEvent — KeyIssueNotificationListener редактирует сообщение ссылкой.
+ *
+ * Очередь пула ограничена queue-capacity: при недоступной 3x-ui задачи не копятся бесконечно,
+ * а лишние запросы сразу получают ответ "попробуйте позже". Ключ при этом остаётся PENDING
+ * и позже доводится KeyRecoveryService.
+ */
+@Slf4j
+@Service
+public class KeyIssuanceService {
+
+    static final String BUSY_ERROR = "сейчас выпускается слишком много ключей, попробуйте позже";
+
+    private final VpnKeyService vpnKeyService;
+    private final TaskScheduler taskScheduler;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ThreadPoolExecutor workers;
+    private final int maxAttempts;
+    private final Duration retryDelay;
+
+    private final Timer totalTimer;
+    private final Counter succeeded;
+    private final Counter failed;
+    private final Counter retried;
+    private final Counter rejected;
+
+    public KeyIssuanceService(
+            VpnKeyService vpnKeyService,
+            TaskScheduler taskScheduler,
+            ApplicationEventPublisher eventPublisher,
+            MeterRegistry meterRegistry,
+            @Value("${app.vpn-keys.issue.workers:4}") int workers,
+            @Value("${app.vpn-keys.issue.queue-capacity:200}") int queueCapacity,
+            @Value("${app.vpn-keys.issue.max-attempts:3}") int maxAttempts,
+            @Value("${app.vpn-keys.issue.retry-delay-ms:2000}") long retryDelayMs) {
+        this.vpnKeyService = vpnKeyService;
+        this.taskScheduler = taskScheduler;
+        this.eventPublisher = eventPublisher;
+        int threads = Math.max(1, workers);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), namedThreads("key-issue-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = Duration.ofMillis(Math.max(0, retryDelayMs));
+
+        this.totalTimer = Timer.builder("vpn.key.issue.total")
+                .description("Время от постановки в очередь до выдачи ключа")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.succeeded = Counter.builder("vpn.key.issue.result").tag("result", "succeeded").register(meterRegistry);
+        this.failed = Counter.builder("vpn.key.issue.result").tag("result", "failed").register(meterRegistry);
+        this.retried = Counter.builder("vpn.key.issue.retries").register(meterRegistry);
+        this.rejected = Counter.builder("vpn.key.issue.result").tag("result", "rejected").register(meterRegistry);
+        Gauge.builder("vpn.key.issue.queue", this.workers, w -> w.getQueue().size())
+                .description("Выпуски ключей, ждущие свободного воркера")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Поставить выпуск в очередь. messageId — сообщение, которое будет отредактировано результатом
+     * (null — результат придёт новым сообщением); announce — сначала заменить его на "выпускаем…".
+     *
+     * Статус "выпускаем…" публикуется синхронно, до постановки задачи в пул: слушатель доставляет его
+     * в этом же потоке, поэтому результат воркера не может прийти раньше статуса и быть им перезаписан.
+     * Если очередь заполнена, вместо статуса пользователь сразу получает "попробуйте позже".
+     */
+    public void submit(IssueRequest request) {
+        if (!isAccepting()) {
+            reject(request);
+            return;
+        }
+        if (request.announce()) {
+            eventPublisher.publishEvent(new KeyIssuingEvent(request));
+        }
+        Instant queuedAt = Instant.now();
+        if (!dispatch(() -> run(request, 1, queuedAt))) {
+            reject(request);
+        }
+    }
+
+    /**
+     * В очереди пула есть место. Проверка до транзакционной части (например, замены ключа),
+     * чтобы не начинать операцию, которую всё равно придётся отклонить.
+     */
+    public boolean isAccepting() {
+        return !workers.isShutdown() && workers.getQueue().remainingCapacity() > 0;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private void run(IssueRequest request, int attempt, Instant queuedAt) {
+        try {
+            VpnKey key = vpnKeyService.finalizeIssueAttempt(request.keyId());
+            vpnKeyService.disableClientQuietly(request.oldInboundId(), request.oldClientUuid());
+            totalTimer.record(Duration.between(queuedAt, Instant.now()));
+            succeeded.increment();
+            eventPublisher.publishEvent(new KeyIssuedEvent(request, key.getKeyValue(), null));
+        } catch (Exception e) {
+            if (attempt < maxAttempts && !isRevoked(e)) {
+                retried.increment();
+                log.warn("Выпуск keyId={} не удался (попытка {}/{}): {}", request.keyId(), attempt, maxAttempts, e.getMessage());
+                Instant at = Instant.now().plus(retryDelay.multipliedBy(attempt));
+                taskScheduler.schedule(() -> {
+                    if (!dispatch(() -> run(request, attempt + 1, queuedAt))) {
+                        reject(request);
+                    }
+                }, at);
+                return;
+            }
+            if (!isRevoked(e)) {
+                vpnKeyService.markIssueFailed(request.keyId(), e);
+            }
+            failed.increment();
+            eventPublisher.publishEvent(new KeyIssuedEvent(request, null, e.getMessage()));
+        }
+    }
+
+    private boolean dispatch(Runnable task) {
+        try {
+            workers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void reject(IssueRequest request) {
+        rejected.increment();
+        log.warn("Key issue queue is full or shut down, keyId={} left PENDING for recovery", request.keyId());
+        eventPublisher.publishEvent(new KeyIssuedEvent(request, null, BUSY_ERROR));
+    }
+
+    private static boolean isRevoked(Exception e) {
+        return e instanceof VpnKeyService.KeyRevokedException;
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * @param title         заголовок сообщения с ключом
+     * @param announce      сначала показать в messageId статус "выпускаем…"
+     * @param oldInboundId  клиент, которого нужно отключить после выпуска (замена ключа)
+     */
+    public record IssueRequest(long keyId, Long chatId, Integer messageId, String title, boolean announce,
+                               Long oldInboundId, UUID oldClientUuid) {
+
+        public static IssueRequest of(long keyId, Long chatId, Integer messageId, String title) {
+            return new IssueRequest(keyId, chatId, messageId, title, true, null, null);
+        }
+    }
+
+    public record KeyIssuingEvent(IssueRequest request) {
+    }
+
+    /**
+     * keyValue == null — выпуск не удался, error содержит причину.
+     */
+    public record KeyIssuedEvent(IssueRequest request, String keyValue, String error) {
+    }
+}
@@ -0,0 +1,87 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import ru.uzden.uzdenbot.bots.MainBot;
+import ru.uzden.uzdenbot.utils.BotTextUtils;
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class KeyIssueNotificationListener {
+
+    public static final String ISSUING_TEXT = "⏳ Выпускаем ключ… Ссылка появится в этом сообщении.";
+
+    private final MainBot mainBot;
+
+    @EventListener
+    public void onKeyIssuing(KeyIssuanceService.KeyIssuingEvent event) {
+        KeyIssuanceService.IssueRequest request = event.request();
+        if (request.chatId() == null || request.messageId() == null) {
+            return;
+        }
+        try {
+            mainBot.execute(EditMessageText.builder()
+                    .chatId(request.chatId().toString())
+                    .messageId(request.messageId())
+                    .text(ISSUING_TEXT)
+                    .build());
+        } catch (Exception e) {
+            log.debug("Failed to show issuing status for keyId={}: {}", request.keyId(), e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void onKeyIssued(KeyIssuanceService.KeyIssuedEvent event) {
+        KeyIssuanceService.IssueRequest request = event.request();
+        if (request.chatId() == null) {
+            return;
+        }
+        String text = event.keyValue() != null
+                ? request.title() + "\n\n" +
+                  "<code>" + BotTextUtils.escapeHtml(event.keyValue()) + "</code>\n\n" +
+                  "📌 Скопируйте ссылку и импортируйте в клиент."
+                : "❌ Не удалось выпустить ключ: " + BotTextUtils.escapeHtml(event.error());
+        try {
+            if (request.messageId() != null) {
+                mainBot.execute(EditMessageText.builder()
+                        .chatId(request.chatId().toString())
+                        .messageId(request.messageId())
+                        .text(text)
+                        .parseMode("HTML")
+                        .build());
+            } else {
+                mainBot.execute(SendMessage.builder()
+                        .chatId(request.chatId().toString())
+                        .text(text)
+                        .parseMode("HTML")
+                        .build());
+            }
+        } catch (Exception e) {
+            log.warn("Failed to deliver issued keyId={}: {}", request.keyId(), e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void onKeyLinksRefreshed(LinkRefreshService.KeyLinksRefreshedEvent event) {
+        for (LinkRefreshService.RefreshedLink link : event.links()) {
+            if (link.telegramId() == null) continue;
+            String text = "🔄 Настройки сервера обновились. Новая ссылка для вашего ключа:\n\n" +
+                    "<code>" + BotTextUtils.escapeHtml(link.keyValue()) + "</code>\n\n" +
+                    "📌 Замените ключ в клиенте — старая ссылка больше не подключится.";
+            try {
+                mainBot.execute(SendMessage.builder()
+                        .chatId(link.telegramId().toString())
+                        .text(text)
+                        .parseMode("HTML")
+                        .build());
+            } catch (Exception e) {
+                log.warn("Failed to push refreshed link for keyId={}: {}", link.keyId(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package ru.uzden.uzdenbot.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.uzden.uzdenbot.entities.VpnKey;
+import ru.uzden.uzdenbot.repositories.VpnKeyRepository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Восстановление зависших PENDING/FAILED ключей (упал инстанс, лежала панель 3x-ui).
+ *
+ * Ключи забираются пачками под lease и доводятся до ACTIVE параллельно ограниченным пулом.
+ * После неудачи ключ откладывается с экспоненциальной задержкой (recovery_attempts/next_recovery_at),
+ * после max-attempts — бросается: FAILED + disable клиента, дальше его удалит VpnKeyCleanupService.
+ */
+@Slf4j
+@Service
+public class KeyRecoveryService {
+
+    private final VpnKeyRepository vpnKeyRepository;
+    private final VpnKeyService vpnKeyService;
+    private final JobLeaseService jobLeaseService;
+    private final TransactionTemplate tx;
+    private final ExecutorService workers;
+    private final Duration staleAfter;
+    private final int maxAttempts;
+    private final long backoffBaseSeconds;
+    private final long backoffMaxSeconds;
+
+    private final Counter recovered;
+    private final Counter failed;
+    private final Counter abandoned;
+
+    public KeyRecoveryService(
+            VpnKeyRepository vpnKeyRepository,
+            VpnKeyService vpnKeyService,
+            JobLeaseService jobLeaseService,
+            TransactionTemplate tx,
+            MeterRegistry meterRegistry,
+            @Value("${app.vpn-keys.recovery.workers:4}") int workers,
+            @Value("${app.vpn-keys.recovery.stale-after-ms:120000}") long staleAfterMs,
+            @Value("${app.vpn-keys.recovery.max-attempts:6}") int maxAttempts,
+            @Value("${app.vpn-keys.recovery.backoff-base-seconds:30}") long backoffBaseSeconds,
+            @Value("${app.vpn-keys.recovery.backoff-max-seconds:3600}") long backoffMaxSeconds) {
+        this.vpnKeyRepository = vpnKeyRepository;
+        this.vpnKeyService = vpnKeyService;
+        this.jobLeaseService = jobLeaseService;
+        this.tx = tx;
+        AtomicInteger seq = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+            Thread t = new Thread(r, "key-recovery-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.staleAfter = Duration.ofMillis(Math.max(0, staleAfterMs));
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffBaseSeconds = Math.max(1, backoffBaseSeconds);
+        this.backoffMaxSeconds = Math.max(this.backoffBaseSeconds, backoffMaxSeconds);
+
+        this.recovered = Counter.builder("vpn.key.recovery").tag("result", "recovered").register(meterRegistry);
+        this.failed = Counter.builder("vpn.key.recovery").tag("result", "failed").register(meterRegistry);
+        this.abandoned = Counter.builder("vpn.key.recovery").tag("result", "abandoned").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.vpn-keys.recovery.delay-ms:60000}")
+    public void scheduledRecovery() {
+        try {
+            int ok = recoverStale();
+            if (ok > 0) {
+                log.info("Recovered stale keys: {}", ok);
+            }
+        } catch (Exception e) {
+            log.warn("Stale key recovery failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Один проход по всем готовым к повтору ключам.
+     * Возвращает количество ключей, доведённых до ACTIVE.
+     */
+    public int recoverStale() {
+        Instant border = Instant.now().minus(staleAfter);
+        int batchSize = jobLeaseService.getBatchSize();
+        AtomicInteger ok = new AtomicInteger();
+        while (true) {
+            List<VpnKey> batch = jobLeaseService.claim(
+                    () -> vpnKeyRepository.lockRecoverable(border, maxAttempts, batchSize),
+                    VpnKey::getId,
+                    vpnKeyRepository::leaseByIds
+            );
+            if (batch.isEmpty()) break;
+
+            List<Callable<Void>> tasks = new ArrayList<>(batch.size());
+            for (VpnKey key : batch) {
+                tasks.add(() -> {
+                    if (recoverOne(key)) ok.incrementAndGet();
+                    return null;
+                });
+            }
+            try {
+                for (Future<Void> f : workers.invokeAll(tasks)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.warn("Recovery task failed: {}", e.getMessage());
+            }
+            if (batch.size() < batchSize) break;
+        }
+        return ok.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private boolean recoverOne(VpnKey key) {
+        long keyId = key.getId();
+        try {
+            vpnKeyService.finalizeIssueAttempt(keyId);
+            recovered.increment();
+            return true;
+        } catch (Exception e) {
+            if (e instanceof VpnKeyService.KeyRevokedException) {
+                return false;
+            }
+            int attempt = key.getRecoveryAttempts() + 1;
+            if (attempt >= maxAttempts) {
+                abandoned.increment();
+                log.warn("Recovery keyId={} abandoned after {} attempts: {}", keyId, attempt, e.getMessage());
+                vpnKeyService.markIssueFailed(keyId, e);
+            } else {
+                failed.increment();
+                log.warn("Recovery keyId={} failed (attempt {}/{}): {}", keyId, attempt, maxAttempts, e.getMessage());
+            }
+            // счётчик растёт и у брошенного ключа — lockRecoverable его больше не выберет
+            long delay = Math.min(backoffMaxSeconds, backoffBaseSeconds << Math.min(attempt - 1, 20));
+            tx.executeWithoutResult(status -> vpnKeyRepository.scheduleRecoveryRetry(keyId, delay));
+            return false;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ru.uzden.uzdenbot.services;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import ru.uzden.uzdenbot.bots.MainBot;
+import ru.uzden.uzdenbot.entities.LeasedJob;
+import ru.uzden.uzdenbot.repositories.LeasedJobTable;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Общий цикл фоновых заданий из админки (рассылки, массовые операции).
+ *
+ * Задания выполняются по одному в собственном потоке: schedule() ставит не больше одного прохода
+ * в очередь, проход забирает задания под lease (JobLeaseService) и выполняет их до конца.
+ * Если задание прервано исключением, lease истечёт, и его продолжит следующий resume —
+ * подкласс сохраняет курсор через saveProgress после каждой пачки. Прогресс показывается правкой
+ * одного статусного сообщения в чате администратора; подкласс даёт только выборку заданий,
+ * обработку и текст статуса.
+ */
+@Slf4j
+abstract class LeasedJobRunner<J extends LeasedJob> {
+
+    protected final LeasedJobTable table;
+    protected final JobLeaseService jobLeaseService;
+    protected final TransactionTemplate tx;
+    protected final MainBot mainBot;
+    protected final long leaseSeconds;
+
+    private final String name;
+    private final ExecutorService executor;
+    private final AtomicBoolean queued = new AtomicBoolean();
+
+    protected LeasedJobRunner(String name, LeasedJobTable table, JobLeaseService jobLeaseService,
+                              TransactionTemplate tx, MainBot mainBot, long leaseSeconds) {
+        this.name = name;
+        this.table = table;
+        this.jobLeaseService = jobLeaseService;
+        this.tx = tx;
+        this.mainBot = mainBot;
+        this.leaseSeconds = Math.max(1, leaseSeconds);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Незавершённые задания без живого lease, FOR UPDATE SKIP LOCKED.
+     */
+    protected abstract List<J> lockResumable(int limit);
+
+    /**
+     * Выполнить задание до конца (или до потери lease). Статусное сообщение к этому моменту уже отправлено.
+     */
+    protected abstract void run(J job, String owner) throws Exception;
+
+    protected abstract String statusText(J job, boolean done);
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    protected final void schedule() {
+        // не копим в очереди повторные проходы: один уже ждёт — он заберёт и новые задания
+        if (!queued.compareAndSet(false, true)) return;
+        executor.execute(() -> {
+            queued.set(false);
+            runAvailable();
+        });
+    }
+
+    private void runAvailable() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<J> claimed = jobLeaseService.claim(() -> lockResumable(1), LeasedJob::getId, table::leaseByIds);
+            if (claimed.isEmpty()) return;
+            J job = claimed.get(0);
+            try {
+                ensureStatusMessage(job);
+                run(job, jobLeaseService.getOwner());
+            } catch (Exception e) {
+                log.warn("{} #{} interrupted: {}", name, job.getId(), e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Курсор, счётчики и продление lease одной транзакцией. false — lease перехватил другой инстанс.
+     */
+    protected final boolean saveProgress(J job, long cursor, String owner, int... counters) {
+        Integer saved = tx.execute(s -> table.saveProgress(job.getId(), cursor, owner, leaseSeconds, counters));
+        if (saved == null || saved == 0) {
+            log.warn("{} #{} lease lost, stopping", name, job.getId());
+            return false;
+        }
+        return true;
+    }
+
+    protected final void finish(J job, String owner) {
+        tx.executeWithoutResult(s -> table.markDone(job.getId(), owner));
+        editStatus(job, true);
+    }
+
+    protected final void editStatus(J job, boolean done) {
+        if (job.getStatusMessageId() == null) {
+            if (done) sendStatus(job, true);
+            return;
+        }
+        try {
+            mainBot.execute(EditMessageText.builder()
+                    .chatId(job.getAdminChatId().toString())
+                    .messageId(job.getStatusMessageId())
+                    .text(statusText(job, done))
+                    .build());
+        } catch (Exception e) {
+            log.debug("Failed to edit {} status: {}", name, e.getMessage());
+        }
+    }
+
+    private void ensureStatusMessage(J job) {
+        if (job.getStatusMessageId() != null) return;
+        Integer messageId = sendStatus(job, false);
+        if (messageId != null) {
+            job.setStatusMessageId(messageId);
+            tx.executeWithoutResult(s -> table.setStatusMessage(job.getId(), messageId));
+        }
+    }
+
+    private Integer sendStatus(J job, boolean done) {
+        try {
+            Message m = mainBot.execute(SendMessage.builder()
+                    .chatId(job.getAdminChatId().toString())
+                    .text(statusText(job, done))
+                    .build());
+            return m == null ? null : m.getMessageId();
+        } catch (Exception e) {
+            log.debug("Failed to send {} status: {}", name, e.getMessage());
+            return null;
+        }
+    }
+}
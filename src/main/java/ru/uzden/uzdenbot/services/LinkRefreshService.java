@@ -0,0 +1,144 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.uzden.uzdenbot.xui.VlessLinkTemplate;
+import ru.uzden.uzdenbot.xui.VlessLinkTemplateCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Фоновая пересборка ссылок после смены настроек inbound (ротация Reality-ключа, linkTag/linkGroup).
+ *
+ * На inbound — один getInbound: шаблон перечитывается, и все ACTIVE-ключи, чей link_fingerprint
+ * отличается от отпечатка шаблона, переписываются пачками через JDBC batch update.
+ * Update условный, поэтому параллельный проход другого инстанса не задваивает уведомления.
+ */
+@Slf4j
+@Service
+public class LinkRefreshService {
+
+    private static final String SELECT_INBOUNDS = """
+            select distinct inbound_id from vpn_keys
+            where is_revoked = false and status = 'ACTIVE'
+            """;
+
+    private static final String SELECT_STALE = """
+            select k.id, k.client_uuid, k.key_value, u.telegram_id
+            from vpn_keys k
+            join users u on u.id = k.user_id
+            where k.inbound_id = ?
+              and k.is_revoked = false
+              and k.status = 'ACTIVE'
+              and k.id > ?
+              and k.link_fingerprint is distinct from ?
+            order by k.id
+            limit ?
+            """;
+
+    private static final String UPDATE_LINK = """
+            update vpn_keys
+            set key_value = ?, link_fingerprint = ?, updated_at = now(), version = version + 1
+            where id = ?
+              and is_revoked = false
+              and status = 'ACTIVE'
+              and link_fingerprint is distinct from ?
+            """;
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final VlessLinkTemplateCache linkTemplates;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int batchSize;
+    private final boolean notifyUsers;
+
+    public LinkRefreshService(
+            JdbcTemplate jdbc,
+            TransactionTemplate tx,
+            VlessLinkTemplateCache linkTemplates,
+            ApplicationEventPublisher eventPublisher,
+            @Value("${app.vpn-keys.link-refresh.batch-size:500}") int batchSize,
+            @Value("${app.vpn-keys.link-refresh.notify-users:false}") boolean notifyUsers) {
+        this.jdbc = jdbc;
+        this.tx = tx;
+        this.linkTemplates = linkTemplates;
+        this.eventPublisher = eventPublisher;
+        this.batchSize = Math.max(1, batchSize);
+        this.notifyUsers = notifyUsers;
+    }
+
+    @Scheduled(fixedDelayString = "${app.vpn-keys.link-refresh.delay-ms:600000}")
+    public void refreshAll() {
+        for (Long inboundId : jdbc.queryForList(SELECT_INBOUNDS, Long.class)) {
+            if (inboundId == null) continue;
+            try {
+                refreshInbound(inboundId);
+            } catch (Exception e) {
+                log.warn("Link refresh failed for inbound {}: {}", inboundId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return сколько ключей получили новую ссылку
+     */
+    public int refreshInbound(long inboundId) {
+        VlessLinkTemplate template = linkTemplates.reload(inboundId);
+        String fingerprint = template.fingerprint();
+        long lastId = 0;
+        int updated = 0;
+        while (true) {
+            List<StaleKey> batch = jdbc.query(SELECT_STALE,
+                    (rs, i) -> new StaleKey(
+                            rs.getLong("id"),
+                            rs.getObject("client_uuid", UUID.class),
+                            rs.getString("key_value"),
+                            (Long) rs.getObject("telegram_id")),
+                    inboundId, lastId, fingerprint, batchSize);
+            if (batch.isEmpty()) break;
+            lastId = batch.get(batch.size() - 1).id();
+
+            List<Object[]> args = new ArrayList<>(batch.size());
+            List<RefreshedLink> links = new ArrayList<>(batch.size());
+            for (StaleKey k : batch) {
+                String link = template.render(k.clientUuid());
+                args.add(new Object[]{link, fingerprint, k.id(), fingerprint});
+                // ключи без отпечатка (собраны до V23) часто уже с актуальной ссылкой — их не уведомляем
+                links.add(link.equals(k.keyValue()) ? null : new RefreshedLink(k.id(), k.telegramId(), link));
+            }
+            int[] counts = tx.execute(status -> jdbc.batchUpdate(UPDATE_LINK, args));
+
+            List<RefreshedLink> changed = new ArrayList<>();
+            for (int i = 0; i < links.size(); i++) {
+                if (links.get(i) != null && counts != null && i < counts.length && counts[i] > 0) {
+                    changed.add(links.get(i));
+                }
+            }
+            updated += changed.size();
+            if (notifyUsers && !changed.isEmpty()) {
+                eventPublisher.publishEvent(new KeyLinksRefreshedEvent(changed));
+            }
+            if (batch.size() < batchSize) break;
+        }
+        if (updated > 0) {
+            log.info("Refreshed links for {} keys on inbound {} (fingerprint {})", updated, inboundId, fingerprint);
+        }
+        return updated;
+    }
+
+    private record StaleKey(long id, UUID clientUuid, String keyValue, Long telegramId) {
+    }
+
+    public record RefreshedLink(long keyId, Long telegramId, String keyValue) {
+    }
+
+    public record KeyLinksRefreshedEvent(List<RefreshedLink> links) {
+    }
+}
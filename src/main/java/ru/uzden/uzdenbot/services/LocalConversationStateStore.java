@@ -0,0 +1,64 @@
+package ru.uzden.uzdenbot.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Состояние диалогов в памяти процесса: ограниченный LRU с тем же TTL, что и у Redis-реализации.
+ * Только для одного инстанса (app.conversation-state.store=memory).
+ */
+@Service
+@ConditionalOnProperty(name = "app.conversation-state.store", havingValue = "memory")
+public class LocalConversationStateStore implements ConversationStateStore {
+
+    private final long ttlMs;
+    private final Map<String, Entry> entries;
+
+    public LocalConversationStateStore(
+            @Value("${app.conversation-state.ttl-seconds:1800}") long ttlSeconds,
+            @Value("${app.conversation-state.max-size:10000}") int maxSize) {
+        this.ttlMs = Math.max(1, ttlSeconds) * 1000;
+        int capacity = Math.max(1, maxSize);
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, String> get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) return Map.of();
+        if (e.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key, e);
+            return Map.of();
+        }
+        return e.fields;
+    }
+
+    @Override
+    public void put(String key, String field, String value) {
+        long expiresAt = System.currentTimeMillis() + ttlMs;
+        entries.compute(key, (k, e) -> {
+            Map<String, String> fields = new LinkedHashMap<>();
+            if (e != null && e.expiresAt > System.currentTimeMillis()) fields.putAll(e.fields);
+            fields.put(field, value);
+            return new Entry(Collections.unmodifiableMap(fields), expiresAt);
+        });
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    private record Entry(Map<String, String> fields, long expiresAt) {
+    }
+}
@@ -0,0 +1,285 @@
+package ru.uzden.uzdenbot.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
+import ru.uzden.uzdenbot.config.SubscriptionPlansProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Статичные части меню, собранные один раз при старте: клавиатуры, тексты кнопок и список тарифов.
+ *
+ * Клавиатуры общие для всех пользователей и ответов — после сборки их не меняют (строки — List.of).
+ * BotMenuService подставляет только пользовательское: ключи, остаток дней, статус подписки.
+ * Тарифы и тексты читаются из конфигурации при создании бина; новые значения применяются перезапуском.
+ */
+@Component
+public class MenuTemplates {
+
+    private final String mainMenuText;
+    private final String instructionsText;
+
+    private final InlineKeyboardButton backToMainButton;
+    private final InlineKeyboardButton backToKeysButton;
+    private final InlineKeyboardButton newKeyButton;
+
+    // [hasAnySubscription][isAdmin]
+    private final InlineKeyboardMarkup[][] mainMenu = new InlineKeyboardMarkup[2][2];
+    private final InlineKeyboardMarkup adminMenu;
+    private final InlineKeyboardMarkup bulkMenu;
+    private final InlineKeyboardMarkup backToMain;
+    private final InlineKeyboardMarkup backToKeys;
+    private final InlineKeyboardMarkup subscriptionWithKeys;
+    private final InlineKeyboardMarkup subscriptionBuy;
+    private final InlineKeyboardMarkup subscriptionExtend;
+    private final InlineKeyboardMarkup subscriptionResume;
+    private final InlineKeyboardMarkup planMenu;
+    private final InlineKeyboardMarkup newKeyPlanMenu;
+    private final ReplyKeyboardMarkup userCommands;
+    private final ReplyKeyboardMarkup adminCommands;
+
+    private final String plan1Label;
+    private final String plan2Label;
+    private final String plan1ButtonText;
+    private final String plan2ButtonText;
+    private final String tariffsText;
+
+    public MenuTemplates(
+            CallbackCodec callbackCodec,
+            SubscriptionPlansProperties subscriptionPlansProperties,
+            @Value("${telegram.main-menu-text:Добро пожаловать в Uzden.\\n\\nЗдесь всё просто: управляйте подпиской и получайте доступ к сервису в пару нажатий.\\n\\nВыберите нужный раздел ниже.}") String mainMenuText,
+            @Value("${telegram.instructions-text:Инструкция}") String instructionsText,
+            @Value("${telegram.support-username:@support}") String supportUsername) {
+        this.mainMenuText = mainMenuText;
+        this.instructionsText = instructionsText;
+
+        backToMainButton = button("⬅️ Назад", callbackCodec.encode(CallbackOp.MENU_BACK));
+        backToKeysButton = button("⬅️ Назад", callbackCodec.encode(CallbackOp.MENU_KEYS));
+        newKeyButton = button("➕ Новый ключ", callbackCodec.encode(CallbackOp.KEY_NEW));
+        backToMain = markup(List.of(List.of(backToMainButton)));
+        backToKeys = markup(List.of(List.of(backToKeysButton)));
+
+        InlineKeyboardButton bSubscription = button("📦 Подписка и тарифы", callbackCodec.encode(CallbackOp.MENU_SUBSCRIPTION));
+        InlineKeyboardButton bKeys = button("🔑 Мои ключи", callbackCodec.encode(CallbackOp.MENU_KEYS));
+        InlineKeyboardButton bAdmin = button("🛠 Админ‑панель", callbackCodec.encode(CallbackOp.MENU_ADMIN));
+        InlineKeyboardButton bHelp = button("📘 Инструкция", callbackCodec.encode(CallbackOp.MENU_HELP));
+        InlineKeyboardButton bReferral = button("🎁 Пригласить друга", callbackCodec.encode(CallbackOp.MENU_REFERRAL));
+        InlineKeyboardButton bSupport = InlineKeyboardButton.builder()
+                .text("💬 Техподдержка")
+                .url(buildSupportUrl(supportUsername))
+                .build();
+        for (int sub = 0; sub < 2; sub++) {
+            for (int admin = 0; admin < 2; admin++) {
+                List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+                rows.add(List.of(bSubscription));
+                if (sub == 1) {
+                    rows.add(List.of(bKeys));
+                }
+                rows.add(List.of(bHelp));
+                rows.add(List.of(bReferral));
+                rows.add(List.of(bSupport));
+                if (admin == 1) {
+                    rows.add(List.of(bAdmin));
+                }
+                mainMenu[sub][admin] = markup(List.copyOf(rows));
+            }
+        }
+
+        adminMenu = markup(List.of(
+                List.of(button("➕ Выдать подписку", callbackCodec.encode(CallbackOp.ADMIN_ADD_SUB))),
+                List.of(button("🔎 Проверить подписку", callbackCodec.encode(CallbackOp.ADMIN_CHECK_SUB))),
+                List.of(button("👥 Активные пользователи", callbackCodec.encode(CallbackOp.ADMIN_ACTIVE_USERS))),
+                List.of(button("📣 Рассылка", callbackCodec.encode(CallbackOp.ADMIN_BROADCAST))),
+                List.of(button("🛑 Отключить подписку", callbackCodec.encode(CallbackOp.ADMIN_REVOKE_SUB))),
+                List.of(button("🚫 Заблокировать пользователя", callbackCodec.encode(CallbackOp.ADMIN_DISABLE_USER))),
+                List.of(button("✅ Разблокировать пользователя", callbackCodec.encode(CallbackOp.ADMIN_ENABLE_USER))),
+                List.of(button("📦 Массовые операции", callbackCodec.encode(CallbackOp.ADMIN_BULK))),
+                List.of(button("🧹 Удалить отключённых клиентов", callbackCodec.encode(CallbackOp.ADMIN_PURGE_DISABLED_KEYS))),
+                List.of(backToMainButton)
+        ));
+        bulkMenu = markup(List.of(
+                List.of(button("➕ Выдать дни списку или сегменту", callbackCodec.encode(CallbackOp.ADMIN_BULK_GRANT))),
+                List.of(button("🛑 Отключить подписки списку или сегменту", callbackCodec.encode(CallbackOp.ADMIN_BULK_REVOKE))),
+                List.of(button("⬅️ Назад", callbackCodec.encode(CallbackOp.MENU_ADMIN)))
+        ));
+
+        subscriptionWithKeys = markup(List.of(List.of(bKeys), List.of(backToMainButton)));
+        String buy = callbackCodec.encode(CallbackOp.MENU_BUY);
+        subscriptionBuy = markup(List.of(List.of(button("Купить подписку", buy), backToMainButton)));
+        subscriptionExtend = markup(List.of(List.of(button("Продлить подписку", buy), backToMainButton)));
+        subscriptionResume = markup(List.of(List.of(button("Возобновить подписку", buy), backToMainButton)));
+
+        SubscriptionPlansProperties.Plan p1 = subscriptionPlansProperties.getPlan1();
+        SubscriptionPlansProperties.Plan p2 = subscriptionPlansProperties.getPlan2();
+        int discount = discountPercent(p1.getPrice(), p2.getPrice(), p2.getMonths());
+        plan1Label = normalizeLabel(p1.getLabel(), "1 месяц");
+        plan2Label = normalizeLabel(p2.getLabel(), "2 месяца");
+        plan1ButtonText = "💳 " + plan1Label + " — " + p1.getPrice() + "₽";
+        plan2ButtonText = "🔥 " + plan2Label + " — " + p2.getPrice() + "₽ (−" + discount + "%)";
+        tariffsText = "💳 Тарифы\n" +
+                "━━━━━━━━━━━━\n" +
+                "• " + plan1Label + " — " + p1.getPrice() + "₽\n" +
+                "• " + plan2Label + " — " + p2.getPrice() + "₽ (−" + discount + "%)\n" +
+                "\nВыберите срок ниже 👇";
+        planMenu = markup(List.of(
+                List.of(button(plan1ButtonText, callbackCodec.encode(CallbackOp.BUY_1M))),
+                List.of(button(plan2ButtonText, callbackCodec.encode(CallbackOp.BUY_2M))),
+                List.of(button("⬅️ Назад", callbackCodec.encode(CallbackOp.MENU_SUBSCRIPTION)))
+        ));
+        newKeyPlanMenu = markup(List.of(
+                List.of(button(plan1ButtonText, callbackCodec.encode(CallbackOp.KEY_NEW_BUY_1M))),
+                List.of(button(plan2ButtonText, callbackCodec.encode(CallbackOp.KEY_NEW_BUY_2M))),
+                List.of(backToKeysButton)
+        ));
+
+        userCommands = buildCommandKeyboard(false);
+        adminCommands = buildCommandKeyboard(true);
+    }
+
+    public String mainMenuText() {
+        return mainMenuText;
+    }
+
+    public String instructionsText() {
+        return instructionsText;
+    }
+
+    public InlineKeyboardMarkup mainMenu(boolean hasAnySubscription, boolean isAdmin) {
+        return mainMenu[hasAnySubscription ? 1 : 0][isAdmin ? 1 : 0];
+    }
+
+    public InlineKeyboardMarkup adminMenu() {
+        return adminMenu;
+    }
+
+    public InlineKeyboardMarkup bulkMenu() {
+        return bulkMenu;
+    }
+
+    public InlineKeyboardMarkup backToMain() {
+        return backToMain;
+    }
+
+    public InlineKeyboardMarkup backToKeys() {
+        return backToKeys;
+    }
+
+    public InlineKeyboardButton backToMainButton() {
+        return backToMainButton;
+    }
+
+    public InlineKeyboardButton backToKeysButton() {
+        return backToKeysButton;
+    }
+
+    public InlineKeyboardButton newKeyButton() {
+        return newKeyButton;
+    }
+
+    /**
+     * Меню подписки: с ключами — переход к ключам, без ключей — кнопка покупки под статус подписки.
+     */
+    public InlineKeyboardMarkup subscriptionMenu(boolean hasKeys, boolean isActive, boolean wasExpired) {
+        if (hasKeys) return subscriptionWithKeys;
+        if (isActive) return subscriptionExtend;
+        return wasExpired ? subscriptionResume : subscriptionBuy;
+    }
+
+    public InlineKeyboardMarkup planMenu() {
+        return planMenu;
+    }
+
+    public InlineKeyboardMarkup newKeyPlanMenu() {
+        return newKeyPlanMenu;
+    }
+
+    public ReplyKeyboardMarkup commandKeyboard(boolean isAdmin) {
+        return isAdmin ? adminCommands : userCommands;
+    }
+
+    public String plan1Label() {
+        return plan1Label;
+    }
+
+    public String plan2Label() {
+        return plan2Label;
+    }
+
+    public String plan1ButtonText() {
+        return plan1ButtonText;
+    }
+
+    public String plan2ButtonText() {
+        return plan2ButtonText;
+    }
+
+    /**
+     * Блок «Тарифы» для меню покупки и продления.
+     */
+    public String tariffsText() {
+        return tariffsText;
+    }
+
+    static InlineKeyboardButton button(String text, String callbackData) {
+        return InlineKeyboardButton.builder()
+                .text(text)
+                .callbackData(callbackData)
+                .build();
+    }
+
+    static InlineKeyboardMarkup markup(List<List<InlineKeyboardButton>> rows) {
+        return InlineKeyboardMarkup.builder()
+                .keyboard(rows)
+                .build();
+    }
+
+    private static int discountPercent(int baseMonthlyPrice, int planPrice, int months) {
+        if (months <= 1 || baseMonthlyPrice <= 0) return 0;
+        double baseTotal = baseMonthlyPrice * (double) months;
+        if (baseTotal <= 0) return 0;
+        double discount = 100.0 - (planPrice / baseTotal) * 100.0;
+        int rounded = (int) Math.round(discount / 5.0) * 5;
+        return Math.max(0, rounded);
+    }
+
+    private static String normalizeLabel(String label, String fallback) {
+        if (label == null || label.isBlank()) return fallback;
+        return label;
+    }
+
+    private static String buildSupportUrl(String supportUsername) {
+        String u = supportUsername == null ? "" : supportUsername.trim();
+        if (u.isEmpty()) {
+            return "https://t.me";
+        }
+        if (u.startsWith("@")) {
+            u = u.substring(1);
+        }
+        return "https://t.me/" + u;
+    }
+
+    private static ReplyKeyboardMarkup buildCommandKeyboard(boolean isAdmin) {
+        List<KeyboardRow> rows = new ArrayList<>();
+        KeyboardRow row1 = new KeyboardRow();
+        row1.add(KeyboardButton.builder().text("Старт").build());
+        rows.add(row1);
+
+        if (isAdmin) {
+            KeyboardRow row2 = new KeyboardRow();
+            row2.add(KeyboardButton.builder().text("Админ").build());
+            row2.add(KeyboardButton.builder().text("Отмена").build());
+            rows.add(row2);
+        }
+
+        return ReplyKeyboardMarkup.builder()
+                .keyboard(rows)
+                .resizeKeyboard(true)
+                .build();
+    }
+}
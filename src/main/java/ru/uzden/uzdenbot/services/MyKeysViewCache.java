@@ -0,0 +1,226 @@
+package ru.uzden.uzdenbot.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Готовый экран «Мои ключи» (текст и клавиатура) по пользователям.
+ *
+ * L1 — LRU в памяти, L2 — Redis (app.my-keys-cache.redis), общий для инстансов.
+ * Запись живёт до ближайшей смены «осталось N дней» у ключей пользователя, но не дольше ttl.
+ * Сбрасывается после commit по KeysChangedEvent, SubscriptionChangedEvent и успешной оплате;
+ * между инстансами — удалением из Redis и сообщением в pub/sub, как в ActiveSubscriptionCache.
+ */
+@Slf4j
+@Service
+public class MyKeysViewCache {
+
+    static final String CHANNEL = "uzden:mykeys:invalidate";
+    private static final String KEY_PREFIX = "uzden:mykeys:";
+
+    private final ObjectMapper objectMapper;
+    private final StringRedisTemplate redis;
+    private final boolean enabled;
+    private final long ttlMs;
+    private final Map<Long, View> entries;
+    // растёт при каждом сбросе: экран, собранный до сброса, в кеш не кладём
+    private final AtomicLong evictions = new AtomicLong();
+    private RedisMessageListenerContainer listenerContainer;
+
+    public MyKeysViewCache(
+            ObjectMapper objectMapper,
+            ObjectProvider<StringRedisTemplate> redis,
+            ObjectProvider<RedisConnectionFactory> connectionFactory,
+            @Value("${app.my-keys-cache.enabled:true}") boolean enabled,
+            @Value("${app.my-keys-cache.max-size:10000}") int maxSize,
+            @Value("${app.my-keys-cache.ttl-ms:600000}") long ttlMs,
+            @Value("${app.my-keys-cache.redis:false}") boolean useRedis) {
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.ttlMs = Math.max(0, ttlMs);
+        int capacity = Math.max(1, maxSize);
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, View> eldest) {
+                return size() > capacity;
+            }
+        });
+
+        StringRedisTemplate template = enabled && useRedis ? redis.getIfAvailable() : null;
+        RedisConnectionFactory factory = enabled && useRedis ? connectionFactory.getIfAvailable() : null;
+        this.redis = template != null && factory != null ? template : null;
+        if (this.redis != null) {
+            RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+            container.setConnectionFactory(factory);
+            container.addMessageListener((message, pattern) -> onRemoteInvalidation(
+                    new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(CHANNEL));
+            container.afterPropertiesSet();
+            container.start();
+            this.listenerContainer = container;
+        }
+    }
+
+    /**
+     * Экран из кеша или собранный render. chatId входит в запись: кнопки ключей подписаны на него.
+     */
+    public View get(Long userId, long chatId, Supplier<View> render) {
+        if (!enabled || userId == null) return render.get();
+        long now = System.currentTimeMillis();
+        View cached = entries.get(userId);
+        if (cached != null && cached.chatId() == chatId && now < cached.expiresAt()) {
+            return cached;
+        }
+        long epoch = evictions.get();
+        View remote = readRemote(userId);
+        if (remote != null && remote.chatId() == chatId && now < remote.expiresAt()) {
+            if (evictions.get() == epoch) {
+                entries.put(userId, remote);
+            }
+            return remote;
+        }
+        View rendered = render.get();
+        long expiresAt = Math.min(rendered.expiresAt(), now + ttlMs);
+        View view = new View(rendered.chatId(), rendered.text(), rendered.markup(), expiresAt);
+        if (expiresAt > now && evictions.get() == epoch) {
+            entries.put(userId, view);
+            writeRemote(userId, view, expiresAt - now);
+        }
+        return view;
+    }
+
+    public void evict(Long userId) {
+        if (userId == null) return;
+        evictions.incrementAndGet();
+        entries.remove(userId);
+    }
+
+    // HIGHEST_PRECEDENCE: сброс раньше слушателей, которые после оплаты сразу показывают «Мои ключи»
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onKeysChanged(VpnKeyService.KeysChangedEvent event) {
+        if (event != null) invalidate(event.userId());
+    }
+
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onSubscriptionChanged(SubscriptionService.SubscriptionChangedEvent event) {
+        if (event != null) invalidate(event.userId());
+    }
+
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onPaymentStatus(PaymentService.PaymentStatusEvent event) {
+        if (event != null && "succeeded".equals(event.status())) invalidate(event.userId());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (listenerContainer != null) {
+            try {
+                listenerContainer.destroy();
+            } catch (Exception e) {
+                log.debug("Failed to stop my-keys invalidation listener: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void invalidate(Long userId) {
+        if (!enabled || userId == null) return;
+        evict(userId);
+        if (redis != null) {
+            try {
+                redis.delete(KEY_PREFIX + userId);
+                redis.convertAndSend(CHANNEL, userId.toString());
+            } catch (Exception e) {
+                log.debug("Failed to invalidate my-keys view userId={}: {}", userId, e.getMessage());
+            }
+        }
+    }
+
+    private void onRemoteInvalidation(String body) {
+        try {
+            evict(Long.parseLong(body.trim()));
+        } catch (NumberFormatException e) {
+            log.debug("Bad my-keys invalidation message: {}", body);
+        }
+    }
+
+    private View readRemote(Long userId) {
+        if (redis == null) return null;
+        try {
+            String json = redis.opsForValue().get(KEY_PREFIX + userId);
+            return json == null ? null : objectMapper.readValue(json, Stored.class).toView();
+        } catch (Exception e) {
+            log.debug("Failed to read my-keys view userId={}: {}", userId, e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeRemote(Long userId, View view, long ttlMs) {
+        if (redis == null) return;
+        try {
+            redis.opsForValue().set(KEY_PREFIX + userId,
+                    objectMapper.writeValueAsString(Stored.of(view)), Duration.ofMillis(ttlMs));
+        } catch (Exception e) {
+            log.debug("Failed to write my-keys view userId={}: {}", userId, e.getMessage());
+        }
+    }
+
+    /**
+     * @param expiresAt epoch millis, после которых экран нужно собрать заново
+     */
+    public record View(long chatId, String text, InlineKeyboardMarkup markup, long expiresAt) {
+    }
+
+    // в Redis кладём только callback-кнопки: других на экране ключей нет
+    record Stored(long chatId, String text, long expiresAt, List<List<String[]>> rows) {
+
+        static Stored of(View view) {
+            List<List<String[]>> rows = new ArrayList<>();
+            for (List<InlineKeyboardButton> row : view.markup().getKeyboard()) {
+                List<String[]> out = new ArrayList<>(row.size());
+                for (InlineKeyboardButton b : row) {
+                    out.add(new String[]{b.getText(), b.getCallbackData()});
+                }
+                rows.add(out);
+            }
+            return new Stored(view.chatId(), view.text(), view.expiresAt(), rows);
+        }
+
+        View toView() {
+            List<List<InlineKeyboardButton>> keyboard = new ArrayList<>(rows.size());
+            for (List<String[]> row : rows) {
+                List<InlineKeyboardButton> out = new ArrayList<>(row.size());
+                for (String[] b : row) {
+                    out.add(MenuTemplates.button(b[0], b[1]));
+                }
+                keyboard.add(List.copyOf(out));
+            }
+            return new View(chatId, text, MenuTemplates.markup(List.copyOf(keyboard)), expiresAt);
+        }
+    }
+}
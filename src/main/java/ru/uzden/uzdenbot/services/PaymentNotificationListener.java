@@ -6,6 +6,7 @@ import org.springframework.transaction.event.TransactionPhase;
 import org.springframework.transaction.event.TransactionalEventListener;
 import org.springframework.stereotype.Service;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Message;
 import ru.uzden.uzdenbot.bots.MainBot;
 import ru.uzden.uzdenbot.entities.User;
 import ru.uzden.uzdenbot.repositories.UserRepository;
@@ -20,6 +21,7 @@ public class PaymentNotificationListener {
     private final BotMenuService botMenuService;
     private final UserRepository userRepository;
     private final VpnKeyService vpnKeyService;
+    private final KeyIssuanceService keyIssuanceService;
 
     @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
     public void onPaymentStatus(PaymentService.PaymentStatusEvent event) {
@@ -72,7 +74,17 @@ public class PaymentNotificationListener {
 
     private void sendKeyIfPossible(User user, Long keyId) {
         try {
-            var key = vpnKeyService.getKeyForUser(user, keyId);
+            var key = vpnKeyService.findIssuableKey(user, keyId);
+            if (!vpnKeyService.isReady(key)) {
+                Message placeholder = mainBot.execute(SendMessage.builder()
+                        .chatId(user.getTelegramId().toString())
+                        .text(KeyIssueNotificationListener.ISSUING_TEXT)
+                        .build());
+                keyIssuanceService.submit(new KeyIssuanceService.IssueRequest(
+                        key.getId(), user.getTelegramId(), placeholder.getMessageId(),
+                        "🔑 Ваш VPN-ключ:", false, null, null));
+                return;
+            }
             String msg = "🔑 Ваш VPN-ключ:\n\n" +
                     "<code>" + BotTextUtils.escapeHtml(key.getKeyValue()) + "</code>\n\n" +
                     "📌 Скопируйте ссылку и импортируйте в клиент.";
@@ -48,10 +48,20 @@ public class PaymentService {
     private final ApplicationEventPublisher eventPublisher;
     private final TaskScheduler taskScheduler;
     private final TransactionTemplate tx;
+    private final CheckoutPool checkoutPool;
+    private final JobLeaseService jobLeaseService;
 
     @Value("${app.payments.fast-check-delays-ms:3000,8000,15000}")
     private String fastCheckDelaysMs;
 
+    @Value("${app.payments.reconcile-batch-size:100}")
+    private int reconcileBatchSize;
+
+    @Value("${app.payments.reconcile-max-pages:10}")
+    private int reconcileMaxPages;
+
+    private volatile PendingCursor reconcileCursor = PendingCursor.START;
+
     @Transactional
     public PaymentInitResult createPayment(User user, int days, int price, String label) {
         return createPayment(user, null, days, price, label);
@@ -59,30 +69,15 @@ public class PaymentService {
 
     @Transactional
     public PaymentInitResult createPayment(User user, VpnKey vpnKey, int days, int price, String label) {
-        BigDecimal amount = BigDecimal.valueOf(price).setScale(2);
-        Payment payment = new Payment(user, amount, "pending");
-        payment.setVpnKey(vpnKey);
-        payment.setProvider(PROVIDER);
-        payment.setPlanDays(days);
-        payment.setPlanLabel(label);
-        payment.setDescription("Подписка " + label);
+        PaymentInitResult precreated = claimPrecreated(user, vpnKey, days, price);
+        if (precreated != null) {
+            return precreated;
+        }
 
-        String idempotencyKey = UUID.randomUUID().toString();
-        payment.setIdempotencyKey(idempotencyKey);
-        payment = paymentRepository.save(payment);
+        Payment payment = paymentRepository.save(buildPayment(user, vpnKey, days, price, label, false));
 
         try {
-            YooKassaCreatePaymentRequest request = buildRequest(payment, user);
-            YooKassaPayment response = yooKassaClient.createPayment(request, idempotencyKey);
-            if (response == null) {
-                throw new IllegalStateException("Пустой ответ от YooKassa");
-            }
-            payment.setProviderPaymentId(response.getId());
-            payment.setStatus(response.getStatus());
-            if (response.getConfirmation() != null) {
-                payment.setConfirmationUrl(response.getConfirmation().getConfirmationUrl());
-            }
-            payment = paymentRepository.save(payment);
+            payment = applyCreateResponse(payment, requestPayment(payment, user));
             scheduleFastChecks(payment);
             return new PaymentInitResult(payment, payment.getConfirmationUrl());
         } catch (Exception e) {
@@ -92,6 +87,56 @@ public class PaymentService {
         }
     }
 
+    public boolean isPrefetchEnabled() {
+        return checkoutPool.isEnabled();
+    }
+
+    /**
+     * Предсоздать платёж в фоне, чтобы ссылка на оплату была готова к нажатию кнопки тарифа.
+     * Работает только при app.payments.prefetch.enabled=true.
+     */
+    public void prefetchCheckout(User user, VpnKey vpnKey, int days, int price, String label) {
+        if (!checkoutPool.isEnabled()) return;
+        if (user == null || user.getId() == null || user.isDisabled()) return;
+        String poolKey = CheckoutPool.key(user.getId(), vpnKey == null ? null : vpnKey.getId(), days);
+        if (!checkoutPool.reserve(poolKey)) return;
+        try {
+            taskScheduler.schedule(
+                    () -> precreatePayment(poolKey, user, vpnKey, days, price, label),
+                    Instant.now()
+            );
+        } catch (Exception e) {
+            checkoutPool.release(poolKey);
+            log.debug("Prefetch scheduling failed for userId={}: {}", user.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Закрыть локально предсозданные платежи, которые так никому и не показали.
+     * В YooKassa их не отменяем: платёж в статусе pending через API не отменить (cancel — только для
+     * waiting_for_capture), а неподтверждённый платёж YooKassa сама переводит в canceled
+     * (expired_on_confirmation). Ссылку на него пользователь не видел, поэтому оплатить его некому.
+     */
+    @Scheduled(fixedDelayString = "${app.payments.prefetch.sweep-delay-ms:60000}")
+    public void expireSpeculativePayments() {
+        if (!checkoutPool.isEnabled()) return;
+        checkoutPool.evictExpired();
+        // двойной запас: запись в пуле может быть моложе строки в БД на время запроса к YooKassa
+        Instant border = Instant.now().minus(checkoutPool.getTtl().multipliedBy(2));
+        tx.execute(status -> {
+            var stale = paymentRepository.findTop100BySpeculativeTrueAndProcessedAtIsNullAndCreatedAtBefore(border);
+            for (Payment payment : stale) {
+                payment.setStatus("expired");
+                payment.setProcessedAt(Instant.now());
+                paymentRepository.save(payment);
+            }
+            if (!stale.isEmpty()) {
+                log.debug("Expired unused pre-created payments: {}", stale.size());
+            }
+            return null;
+        });
+    }
+
     @Transactional
     public void handleWebhook(YooKassaWebhook webhook) {
         if (webhook == null || webhook.getObject() == null) return;
@@ -109,18 +154,34 @@ public class PaymentService {
         processVerifiedPayment(payment, verified, "webhook");
     }
 
-    @Transactional
+    /**
+     * Обходит необработанные платежи keyset-страницами, продолжая с места прошлого запуска.
+     * За запуск — не больше reconcile-max-pages страниц, после конца списка курсор сбрасывается,
+     * поэтому каждый pending-платёж посещается за ограниченное число запусков.
+     * Страницы забираются под lease, так что несколько инстансов делят платежи между собой.
+     */
     @Scheduled(fixedDelayString = "${app.payments.reconcile-delay-ms:60000}")
     public void reconcilePendingPayments() {
-        var pending = paymentRepository.findTop100ByProcessedAtIsNullAndProviderOrderByCreatedAtAsc(PROVIDER);
-        for (Payment payment : pending) {
-            if (payment.getProviderPaymentId() == null || payment.getProviderPaymentId().isBlank()) {
-                continue;
+        PendingCursor cursor = reconcileCursor;
+        int batchSize = Math.max(1, reconcileBatchSize);
+        for (int page = 0; page < Math.max(1, reconcileMaxPages); page++) {
+            PendingCursor from = cursor;
+            List<Payment> batch = jobLeaseService.claim(
+                    () -> paymentRepository.lockPendingPage(PROVIDER, from.createdAt(), from.id(), batchSize),
+                    Payment::getId,
+                    paymentRepository::leaseByIds
+            );
+            for (Payment payment : batch) {
+                reconcileOne(payment, "reconcile");
             }
-            YooKassaPayment verified = fetchVerifiedPayment(payment.getProviderPaymentId(), "reconcile");
-            Payment locked = paymentRepository.lockById(payment.getId());
-            processVerifiedPayment(locked, verified, "reconcile");
+            if (batch.size() < batchSize) {
+                cursor = PendingCursor.START;
+                break;
+            }
+            Payment last = batch.get(batch.size() - 1);
+            cursor = new PendingCursor(last.getCreatedAt(), last.getId());
         }
+        reconcileCursor = cursor;
     }
 
     @Transactional
@@ -141,6 +202,105 @@ public class PaymentService {
         return processed;
     }
 
+    private void precreatePayment(String poolKey, User user, VpnKey vpnKey, int days, int price, String label) {
+        Payment payment = null;
+        try {
+            Payment created = tx.execute(status ->
+                    paymentRepository.save(buildPayment(user, vpnKey, days, price, label, true)));
+            payment = created;
+            YooKassaPayment response = requestPayment(created, user);
+            Payment saved = tx.execute(status -> applyCreateResponse(created, response));
+            if (saved.getConfirmationUrl() == null || saved.getConfirmationUrl().isBlank()) {
+                checkoutPool.release(poolKey);
+                return;
+            }
+            checkoutPool.complete(poolKey, saved.getId(), saved.getConfirmationUrl());
+        } catch (Exception e) {
+            checkoutPool.release(poolKey);
+            log.debug("Prefetch failed for userId={}: {}", user.getId(), e.getMessage());
+            if (payment != null) {
+                Payment failed = payment;
+                try {
+                    tx.execute(status -> {
+                        failed.setStatus("failed");
+                        failed.setProcessedAt(Instant.now());
+                        return paymentRepository.save(failed);
+                    });
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    private PaymentInitResult claimPrecreated(User user, VpnKey vpnKey, int days, int price) {
+        if (!checkoutPool.isEnabled() || user == null || user.getId() == null) return null;
+        String poolKey = CheckoutPool.key(user.getId(), vpnKey == null ? null : vpnKey.getId(), days);
+        CheckoutPool.Entry entry = checkoutPool.take(poolKey).orElse(null);
+        if (entry == null) return null;
+
+        Payment payment = paymentRepository.lockById(entry.paymentId());
+        if (payment == null
+                || !payment.isSpeculative()
+                || payment.getProcessedAt() != null
+                || payment.getProviderPaymentId() == null
+                || payment.getPlanDays() == null || payment.getPlanDays() != days
+                || payment.getAmount().compareTo(BigDecimal.valueOf(price)) != 0) {
+            return null;
+        }
+        payment.setSpeculative(false);
+        payment = paymentRepository.save(payment);
+        scheduleFastChecks(payment);
+        return new PaymentInitResult(payment, entry.confirmationUrl());
+    }
+
+    private Payment buildPayment(User user, VpnKey vpnKey, int days, int price, String label, boolean speculative) {
+        BigDecimal amount = BigDecimal.valueOf(price).setScale(2);
+        Payment payment = new Payment(user, amount, "pending");
+        payment.setVpnKey(vpnKey);
+        payment.setProvider(PROVIDER);
+        payment.setPlanDays(days);
+        payment.setPlanLabel(label);
+        payment.setDescription("Подписка " + label);
+        payment.setIdempotencyKey(UUID.randomUUID().toString());
+        payment.setSpeculative(speculative);
+        return payment;
+    }
+
+    private YooKassaPayment requestPayment(Payment payment, User user) {
+        YooKassaCreatePaymentRequest request = buildRequest(payment, user);
+        YooKassaPayment response = yooKassaClient.createPayment(request, payment.getIdempotencyKey());
+        if (response == null) {
+            throw new IllegalStateException("Пустой ответ от YooKassa");
+        }
+        return response;
+    }
+
+    private Payment applyCreateResponse(Payment payment, YooKassaPayment response) {
+        payment.setProviderPaymentId(response.getId());
+        payment.setStatus(response.getStatus());
+        if (response.getConfirmation() != null) {
+            payment.setConfirmationUrl(response.getConfirmation().getConfirmationUrl());
+        }
+        return paymentRepository.save(payment);
+    }
+
+    private void reconcileOne(Payment payment, String source) {
+        if (payment.getProviderPaymentId() == null || payment.getProviderPaymentId().isBlank()) {
+            return;
+        }
+        try {
+            YooKassaPayment verified = fetchVerifiedPayment(payment.getProviderPaymentId(), source);
+            if (verified == null) return;
+            tx.execute(status -> {
+                Payment locked = paymentRepository.lockById(payment.getId());
+                processVerifiedPayment(locked, verified, source);
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("Reconcile failed for paymentId={} source={}: {}", payment.getId(), source, e.getMessage());
+        }
+    }
+
     private void scheduleFastChecks(Payment payment) {
         if (payment == null || payment.getId() == null) return;
         List<Long> delays = parseFastCheckDelays();
@@ -276,6 +436,10 @@ public class PaymentService {
             }
             payment.setProcessedAt(Instant.now());
             paymentRepository.save(payment);
+            if (payment.isSpeculative()) {
+                // пользователь эту ссылку не видел — уведомлять не о чем
+                return false;
+            }
             eventPublisher.publishEvent(new PaymentStatusEvent(
                     payment.getId(),
                     payment.getUser().getId(),
@@ -372,6 +536,10 @@ public class PaymentService {
         return currency;
     }
 
+    private record PendingCursor(Instant createdAt, Long id) {
+        static final PendingCursor START = new PendingCursor(Instant.EPOCH, 0L);
+    }
+
     public record PaymentInitResult(Payment payment, String confirmationUrl) {
     }
 
@@ -0,0 +1,51 @@
+package ru.uzden.uzdenbot.services;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import ru.uzden.uzdenbot.bots.MainBot;
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PurgeNotificationListener {
+
+    private final MainBot mainBot;
+
+    @EventListener
+    public void onPurgeProgress(PurgeService.PurgeProgressEvent event) {
+        if (event.chatId() == null) {
+            return;
+        }
+        String header;
+        if (event.error() != null) {
+            header = "❌ Очистка прервана: " + event.error();
+        } else if (event.done()) {
+            header = "🧹 Очистка завершена.";
+        } else {
+            header = "🧹 Идёт очистка…";
+        }
+        String text = header + "\n" +
+                "Удалено отключённых пользователей: " + event.usersRemoved() + "\n" +
+                "Удалено отозванных ключей: " + event.keysRemoved();
+        try {
+            if (event.messageId() != null) {
+                mainBot.execute(EditMessageText.builder()
+                        .chatId(event.chatId().toString())
+                        .messageId(event.messageId())
+                        .text(text)
+                        .build());
+            } else {
+                mainBot.execute(SendMessage.builder()
+                        .chatId(event.chatId().toString())
+                        .text(text)
+                        .build());
+            }
+        } catch (Exception e) {
+            log.debug("Failed to show purge progress: {}", e.getMessage());
+        }
+    }
+}
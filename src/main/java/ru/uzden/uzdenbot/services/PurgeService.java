@@ -0,0 +1,102 @@
+package ru.uzden.uzdenbot.services;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Очистка отключённых пользователей и отозванных ключей из админки.
+ *
+ * Выполняется в фоне пачками (см. VpnKeyService.purge*), прогресс публикуется
+ * PurgeProgressEvent — PurgeNotificationListener правит сообщение администратора.
+ */
+@Slf4j
+@Service
+public class PurgeService {
+
+    private static final long PROGRESS_INTERVAL_MS = 2000;
+
+    private final VpnKeyService vpnKeyService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "purge");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public PurgeService(VpnKeyService vpnKeyService, ApplicationEventPublisher eventPublisher) {
+        this.vpnKeyService = vpnKeyService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * false — очистка уже идёт.
+     */
+    public boolean start(Long chatId, Integer messageId) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.execute(() -> {
+            Progress p = new Progress(chatId, messageId);
+            try {
+                p.publish(true);
+                vpnKeyService.purgeDisabledUsers(n -> {
+                    p.users = n;
+                    p.publish(false);
+                });
+                vpnKeyService.purgeRevokedKeys(n -> {
+                    p.keys = n;
+                    p.publish(false);
+                });
+                p.done = true;
+            } catch (Exception e) {
+                log.warn("Purge failed: {}", e.getMessage());
+                p.error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            } finally {
+                running.set(false);
+                p.publish(true);
+            }
+        });
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private final class Progress {
+        final Long chatId;
+        final Integer messageId;
+        int users;
+        int keys;
+        boolean done;
+        String error;
+        long lastPublished;
+
+        Progress(Long chatId, Integer messageId) {
+            this.chatId = chatId;
+            this.messageId = messageId;
+        }
+
+        void publish(boolean force) {
+            long now = System.currentTimeMillis();
+            if (!force && now - lastPublished < PROGRESS_INTERVAL_MS) return;
+            lastPublished = now;
+            eventPublisher.publishEvent(new PurgeProgressEvent(chatId, messageId, users, keys, done, error));
+        }
+    }
+
+    /**
+     * error != null — очистка прервана; done — завершена.
+     */
+    public record PurgeProgressEvent(Long chatId, Integer messageId, int usersRemoved, int keysRemoved,
+                                     boolean done, String error) {
+    }
+}
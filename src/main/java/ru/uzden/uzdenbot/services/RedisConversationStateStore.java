@@ -0,0 +1,98 @@
+package ru.uzden.uzdenbot.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Состояние диалогов в Redis hash (ключ на диалог, EXPIRE на каждую запись).
+ *
+ * Перед Redis — маленький локальный LRU с коротким ttl: апдейты одного чата обычно идут пачкой,
+ * а большинство чтений — "диалога нет". Записи идут сразу в Redis и сбрасывают локальную копию,
+ * поэтому другой инстанс видит изменение не позже чем через local-cache-ttl-ms.
+ */
+@Service
+@ConditionalOnProperty(name = "app.conversation-state.store", havingValue = "redis", matchIfMissing = true)
+public class RedisConversationStateStore implements ConversationStateStore {
+
+    private static final String PREFIX = "uzden:conv:";
+
+    private final StringRedisTemplate redis;
+    private final Duration ttl;
+    private final long localTtlMs;
+    private final Map<String, Entry> local;
+    // растёт при каждой записи: значение, прочитанное из Redis до записи, локально не кешируем
+    private final AtomicLong writes = new AtomicLong();
+
+    public RedisConversationStateStore(
+            StringRedisTemplate redis,
+            @Value("${app.conversation-state.ttl-seconds:1800}") long ttlSeconds,
+            @Value("${app.conversation-state.local-cache-size:1000}") int localCacheSize,
+            @Value("${app.conversation-state.local-cache-ttl-ms:1000}") long localTtlMs) {
+        this.redis = redis;
+        this.ttl = Duration.ofSeconds(Math.max(1, ttlSeconds));
+        this.localTtlMs = Math.max(0, localTtlMs);
+        int capacity = Math.max(1, localCacheSize);
+        this.local = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, String> get(String key) {
+        long now = System.currentTimeMillis();
+        Entry e = local.get(key);
+        if (e != null && now - e.loadedAt < localTtlMs) {
+            return e.fields;
+        }
+        long epoch = writes.get();
+        Map<Object, Object> raw = redis.opsForHash().entries(PREFIX + key);
+        Map<String, String> fields = new LinkedHashMap<>(raw.size());
+        raw.forEach((k, v) -> fields.put(k.toString(), v.toString()));
+        Map<String, String> result = Collections.unmodifiableMap(fields);
+        if (writes.get() == epoch) {
+            local.put(key, new Entry(result, now));
+        }
+        return result;
+    }
+
+    @Override
+    public void put(String key, String field, String value) {
+        writes.incrementAndGet();
+        local.remove(key);
+        String redisKey = PREFIX + key;
+        // HSET и EXPIRE в MULTI/EXEC: ключа без TTL не остаётся даже при обрыве соединения между командами
+        redis.execute(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object execute(RedisOperations operations) {
+                operations.multi();
+                operations.opsForHash().put(redisKey, field, value);
+                operations.expire(redisKey, ttl);
+                return operations.exec();
+            }
+        });
+    }
+
+    @Override
+    public void remove(String key) {
+        writes.incrementAndGet();
+        local.remove(key);
+        redis.delete(PREFIX + key);
+    }
+
+    private record Entry(Map<String, String> fields, long loadedAt) {
+    }
+}
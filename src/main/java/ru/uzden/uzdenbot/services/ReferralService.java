@@ -1,9 +1,11 @@
 package ru.uzden.uzdenbot.services;
 
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.uzden.uzdenbot.entities.User;
 import ru.uzden.uzdenbot.entities.VpnKey;
 import ru.uzden.uzdenbot.repositories.UserRepository;
@@ -12,6 +14,7 @@ import ru.uzden.uzdenbot.repositories.VpnKeyRepository;
 import java.time.LocalDateTime;
 import java.util.Optional;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class ReferralService {
@@ -20,6 +23,7 @@ public class ReferralService {
     private final VpnKeyRepository vpnKeyRepository;
     private final SubscriptionService subscriptionService;
     private final VpnKeyService vpnKeyService;
+    private final TransactionTemplate tx;
 
     @Value("${app.referral.referrer-days:7}")
     private int referrerDays;
@@ -27,8 +31,28 @@ public class ReferralService {
     @Value("${app.referral.referred-days:3}")
     private int referredDays;
 
-    @Transactional
+    @Value("${app.vpn-keys.optimistic-retries:3}")
+    private int optimisticRetries;
+
+    /**
+     * Начисление по реферальной ссылке. Ключи внутри меняются с проверкой версии пользователя,
+     * поэтому при конфликте повторяется вся транзакция — это внешний уровень для VpnKeyService.writeTx.
+     */
     public ReferralResult applyReferral(User newUser, String rawCode) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return tx.execute(status -> applyReferralTx(newUser, rawCode));
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= Math.max(1, optimisticRetries)) {
+                    throw e;
+                }
+                log.debug("Конфликт версий при начислении реферала, повтор {}/{}: {}",
+                        attempt, optimisticRetries, e.getMessage());
+            }
+        }
+    }
+
+    private ReferralResult applyReferralTx(User newUser, String rawCode) {
         String code = normalizeCode(rawCode);
         if (code == null) {
             return ReferralResult.noCode();
@@ -0,0 +1,191 @@
+package ru.uzden.uzdenbot.services;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import ru.uzden.uzdenbot.entities.VpnKey;
+import ru.uzden.uzdenbot.repositories.SubscriptionRepository;
+import ru.uzden.uzdenbot.repositories.VpnKeyRepository;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Отзыв ключей точно в момент окончания подписки.
+ *
+ * В памяти держим только ключи, чей срок истекает в ближайшие expiry-horizon-hours:
+ * окно периодически подгружается из БД, а продления/отзывы приходят событиями
+ * SubscriptionChangedEvent. Полный проход SubscriptionExpiryService остаётся редкой страховкой.
+ */
+@Slf4j
+@Service
+public class SubscriptionExpiryScheduler {
+
+    private static final long GRACE_MS = 1000;
+
+    private final SubscriptionRepository subscriptionRepository;
+    private final VpnKeyRepository vpnKeyRepository;
+    private final SubscriptionService subscriptionService;
+    private final VpnKeyService vpnKeyService;
+    private final IdempotencyService idempotencyService;
+    private final Duration horizon;
+
+    private final DelayQueue<Deadline> queue = new DelayQueue<>();
+    // актуальный срок по ключу; записи очереди с другим сроком считаются устаревшими
+    private final Map<Long, Long> deadlines = new ConcurrentHashMap<>();
+    private volatile Thread worker;
+    private volatile boolean running;
+
+    public SubscriptionExpiryScheduler(
+            SubscriptionRepository subscriptionRepository,
+            VpnKeyRepository vpnKeyRepository,
+            SubscriptionService subscriptionService,
+            VpnKeyService vpnKeyService,
+            IdempotencyService idempotencyService,
+            @Value("${app.subscriptions.expiry-horizon-hours:24}") long horizonHours) {
+        this.subscriptionRepository = subscriptionRepository;
+        this.vpnKeyRepository = vpnKeyRepository;
+        this.subscriptionService = subscriptionService;
+        this.vpnKeyService = vpnKeyService;
+        this.idempotencyService = idempotencyService;
+        this.horizon = Duration.ofHours(Math.max(1, horizonHours));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (worker != null) return;
+        running = true;
+        Thread t = new Thread(this::runLoop, "subscription-expiry");
+        t.setDaemon(true);
+        worker = t;
+        t.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        Thread t = worker;
+        if (t != null) t.interrupt();
+    }
+
+    /**
+     * Подгрузить сроки, попадающие в горизонт. Работа пропорциональна числу истекающих подписок.
+     */
+    @Scheduled(fixedDelayString = "${app.subscriptions.expiry-refresh-delay-ms:900000}")
+    public void refreshWindow() {
+        LocalDateTime now = LocalDateTime.now();
+        var upcoming = subscriptionRepository.findKeyEndDatesBetween(now, now.plus(horizon));
+        for (SubscriptionRepository.KeyEndDate row : upcoming) {
+            if (row.getKeyId() == null || row.getEndDate() == null) continue;
+            long fireAt = toEpochMillis(row.getEndDate());
+            // в очередь — только новый или сдвинутый срок: каждое обновление окна видит те же подписки
+            boolean[] moved = {false};
+            deadlines.compute(row.getKeyId(), (keyId, prev) -> {
+                if (prev != null && prev >= fireAt) return prev;
+                moved[0] = true;
+                return fireAt;
+            });
+            if (moved[0]) {
+                queue.add(new Deadline(row.getKeyId(), fireAt));
+            }
+        }
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onSubscriptionChanged(SubscriptionService.SubscriptionChangedEvent event) {
+        if (event == null || event.keyId() == null || event.endDate() == null) return;
+        schedule(event.keyId(), event.endDate());
+    }
+
+    public int scheduledCount() {
+        return deadlines.size();
+    }
+
+    void schedule(Long keyId, LocalDateTime endDate) {
+        long fireAt = toEpochMillis(endDate);
+        if (fireAt > System.currentTimeMillis() + horizon.toMillis()) {
+            // срок ушёл за горизонт — старая запись очереди станет устаревшей, окно подхватит позже
+            deadlines.remove(keyId);
+            return;
+        }
+        Long prev = deadlines.put(keyId, fireAt);
+        if (prev == null || prev != fireAt) {
+            queue.add(new Deadline(keyId, fireAt));
+        }
+    }
+
+    private void runLoop() {
+        while (running) {
+            try {
+                Deadline d = queue.poll(1, TimeUnit.SECONDS);
+                if (d == null) continue;
+                Long current = deadlines.get(d.keyId);
+                if (current == null || current != d.fireAt) continue;
+                deadlines.remove(d.keyId, current);
+                fire(d.keyId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Expiry timer iteration failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void fire(long keyId) {
+        VpnKey key = vpnKeyRepository.findById(keyId).orElse(null);
+        if (key == null || !key.isActive()) return;
+        if (subscriptionService.hasActiveSubscriptionForKey(key)) return;
+        // несколько инстансов держат одинаковые таймеры — отзывает только первый
+        try {
+            if (!idempotencyService.tryAcquire("expiry:key:" + keyId, Duration.ofMinutes(5))) return;
+        } catch (Exception e) {
+            log.debug("Expiry idempotency check failed: {}", e.getMessage());
+        }
+        try {
+            vpnKeyService.revokeById(keyId);
+            log.info("Revoked expired keyId={}", keyId);
+        } catch (Exception e) {
+            log.warn("Failed to revoke expired keyId={}: {}", keyId, e.getMessage());
+        }
+    }
+
+    private static long toEpochMillis(LocalDateTime dt) {
+        return dt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + GRACE_MS;
+    }
+
+    private static final class Deadline implements Delayed {
+        final long keyId;
+        final long fireAt;
+
+        private Deadline(long keyId, long fireAt) {
+            this.keyId = keyId;
+            this.fireAt = fireAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(fireAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof Deadline d) {
+                return Long.compare(fireAt, d.fireAt);
+            }
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
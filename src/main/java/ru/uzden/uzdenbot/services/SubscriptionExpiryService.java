@@ -4,12 +4,15 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru.uzden.uzdenbot.entities.Subscription;
 import ru.uzden.uzdenbot.entities.VpnKey;
 import ru.uzden.uzdenbot.repositories.SubscriptionRepository;
 import ru.uzden.uzdenbot.repositories.VpnKeyRepository;
 
 import java.time.LocalDateTime;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 @Slf4j
 @Service
@@ -19,14 +22,25 @@ public class SubscriptionExpiryService {
     private final VpnKeyRepository vpnKeyRepository;
     private final SubscriptionRepository subscriptionRepository;
     private final VpnKeyService vpnKeyService;
+    private final JobLeaseService jobLeaseService;
 
-    @Scheduled(fixedDelayString = "${app.subscriptions.expire-check-delay-ms:300000}")
+    @Scheduled(fixedDelayString = "${app.subscriptions.expire-check-delay-ms:3600000}")
     public void revokeExpiredKeys() {
         LocalDateTime now = LocalDateTime.now();
-        List<VpnKey> keys = vpnKeyRepository.findActiveKeysWithoutSubscription(now);
-        List<Long> usersWithUnassigned = subscriptionRepository.findUsersWithActiveUnassigned(now);
-        if (!usersWithUnassigned.isEmpty()) {
-            for (Long userId : usersWithUnassigned) {
+        int batchSize = jobLeaseService.getBatchSize();
+
+        // сначала привязываем "висящие" подписки к ключам, чтобы не отозвать оплаченный ключ
+        while (true) {
+            List<Subscription> unassigned = jobLeaseService.claim(
+                    () -> subscriptionRepository.lockActiveUnassigned(now, batchSize),
+                    Subscription::getId,
+                    subscriptionRepository::leaseByIds
+            );
+            Set<Long> userIds = new LinkedHashSet<>();
+            for (Subscription sub : unassigned) {
+                if (sub.getUser() != null) userIds.add(sub.getUser().getId());
+            }
+            for (Long userId : userIds) {
                 if (userId == null) continue;
                 try {
                     vpnKeyService.ensureKeyForActiveSubscriptionByUserId(userId);
@@ -34,25 +48,29 @@ public class SubscriptionExpiryService {
                     log.warn("Failed to attach unassigned subscription for userId={}: {}", userId, e.getMessage());
                 }
             }
-            keys = vpnKeyRepository.findActiveKeysWithoutSubscription(now);
-        }
-
-        if (keys.isEmpty()) {
-            return;
+            if (unassigned.size() < batchSize) break;
         }
 
         int revoked = 0;
-        for (VpnKey key : keys) {
-            Long keyId = key.getId();
-            if (keyId == null) {
-                continue;
-            }
-            try {
-                vpnKeyService.revokeById(keyId);
-                revoked++;
-            } catch (Exception e) {
-                log.warn("Failed to revoke expired keyId={}: {}", keyId, e.getMessage());
+        while (true) {
+            List<VpnKey> keys = jobLeaseService.claim(
+                    () -> vpnKeyRepository.lockActiveKeysWithoutSubscription(now, batchSize),
+                    VpnKey::getId,
+                    vpnKeyRepository::leaseByIds
+            );
+            for (VpnKey key : keys) {
+                Long keyId = key.getId();
+                if (keyId == null) {
+                    continue;
+                }
+                try {
+                    vpnKeyService.revokeById(keyId);
+                    revoked++;
+                } catch (Exception e) {
+                    log.warn("Failed to revoke expired keyId={}: {}", keyId, e.getMessage());
+                }
             }
+            if (keys.size() < batchSize) break;
         }
 
         if (revoked > 0) {
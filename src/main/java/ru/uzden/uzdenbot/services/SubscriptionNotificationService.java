@@ -4,7 +4,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import ru.uzden.uzdenbot.bots.MainBot;
 import ru.uzden.uzdenbot.entities.Subscription;
@@ -14,7 +14,10 @@ import ru.uzden.uzdenbot.utils.BotTextUtils;
 
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Function;
 
 @Slf4j
 @Service
@@ -22,28 +25,52 @@ import java.util.List;
 public class SubscriptionNotificationService {
 
     private final SubscriptionRepository subscriptionRepository;
-    private final SubscriptionService subscriptionService;
     private final MainBot mainBot;
+    private final JobLeaseService jobLeaseService;
+    private final TransactionTemplate tx;
 
     @Scheduled(fixedDelayString = "${app.subscriptions.notify-delay-ms:3600000}")
-    @Transactional
     public void notifyExpiringSubscriptions() {
-        List<Subscription> active = subscriptionRepository.findByEndDateAfter(LocalDateTime.now());
-        for (Subscription sub : active) {
-            User user = sub.getUser();
-            if (user == null || user.isDisabled() || user.getTelegramId() == null) {
-                continue;
-            }
-            long daysLeft = subscriptionService.getDaysLeft(sub);
-            if (daysLeft == 2 && sub.getNotifiedTwoDaysAt() == null) {
-                if (sendNotification(user, sub, "⏰ Подписка истекает через 2 дня.")) {
-                    sub.setNotifiedTwoDaysAt(Instant.now());
+        LocalDateTime now = LocalDateTime.now();
+        // окна совпадают с getDaysLeft: (now+1d, now+2d] -> 2 дня, (now, now+1d] -> 1 день
+        notifyWindow(
+                (limit) -> subscriptionRepository.lockUnnotifiedTwoDays(now.plusDays(1), now.plusDays(2), limit),
+                subscriptionRepository::markNotifiedTwoDays,
+                "⏰ Подписка истекает через 2 дня."
+        );
+        notifyWindow(
+                (limit) -> subscriptionRepository.lockUnnotifiedOneDay(now, now.plusDays(1), limit),
+                subscriptionRepository::markNotifiedOneDay,
+                "⏰ Подписка истекает завтра."
+        );
+    }
+
+    private void notifyWindow(Function<Integer, List<Long>> lockBatch, NotifiedMarker marker, String title) {
+        int batchSize = jobLeaseService.getBatchSize();
+        while (true) {
+            List<Long> ids = jobLeaseService.claim(
+                    () -> lockBatch.apply(batchSize),
+                    Function.identity(),
+                    subscriptionRepository::leaseByIds
+            );
+            if (ids.isEmpty()) break;
+
+            // отправка вне транзакции; неотправленные остаются под lease до следующего запуска
+            List<Long> sent = new ArrayList<>();
+            for (Subscription sub : subscriptionRepository.findWithUserByIdIn(ids)) {
+                User user = sub.getUser();
+                if (user == null || user.isDisabled() || user.getTelegramId() == null) {
+                    continue;
                 }
-            } else if (daysLeft == 1 && sub.getNotifiedOneDayAt() == null) {
-                if (sendNotification(user, sub, "⏰ Подписка истекает завтра.")) {
-                    sub.setNotifiedOneDayAt(Instant.now());
+                if (sendNotification(user, sub, title)) {
+                    sent.add(sub.getId());
                 }
             }
+            if (!sent.isEmpty()) {
+                Instant at = Instant.now();
+                tx.executeWithoutResult(status -> marker.mark(sent, at));
+            }
+            if (ids.size() < batchSize) break;
         }
     }
 
@@ -64,4 +91,9 @@ public class SubscriptionNotificationService {
             return false;
         }
     }
+
+    @FunctionalInterface
+    private interface NotifiedMarker {
+        int mark(Collection<Long> ids, Instant at);
+    }
 }
@@ -1,5 +1,8 @@
 package ru.uzden.uzdenbot.services;
 
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import ru.uzden.uzdenbot.entities.Subscription;
@@ -7,32 +10,109 @@ import ru.uzden.uzdenbot.entities.User;
 import ru.uzden.uzdenbot.entities.VpnKey;
 import ru.uzden.uzdenbot.repositories.SubscriptionRepository;
 import ru.uzden.uzdenbot.repositories.UserRepository;
+import ru.uzden.uzdenbot.repositories.VpnKeyRepository;
 
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.Optional;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Service
 public class SubscriptionService {
 
+    // первый не отозванный ключ — тот же, что берёт одиночная выдача из админки
+    private static final String LOCK_FOR_GRANT = """
+            select u.id, u.is_disabled, k.id as key_id, k.paid_until,
+                   (select max(s.end_date) from subscriptions s where s.user_id = u.id) as user_end
+            from users u
+            left join lateral (
+                select vk.id, vk.paid_until from vpn_keys vk
+                where vk.user_id = u.id
+                  and vk.is_revoked = false
+                  and vk.status <> 'REVOKED'
+                order by vk.created_at asc
+                limit 1
+            ) k on true
+            where u.id in (:ids)
+            order by u.id
+            for update of u
+            """;
+
+    private static final String INSERT_SUBSCRIPTION = """
+            insert into subscriptions (user_id, key_id, start_date, end_date, created_at, is_active)
+            values (?, ?, ?, ?, ?, true)
+            """;
+
+    private static final String SYNC_PAID_UNTIL = """
+            update vpn_keys k
+            set paid_until = (select max(s.end_date) from subscriptions s where s.key_id = k.id)
+            where k.id in (:ids)
+            """;
+
+    // активность определяет end_date, как в findActiveByUser/revokeAllActiveSubscriptions:
+    // is_active = false ставится только вместе с end_date = now, поэтому отдельный фильтр по нему не нужен
+    private static final String REVOKE_ACTIVE = """
+            update subscriptions
+            set end_date = :now, is_active = false
+            where user_id in (:ids)
+              and end_date > :now
+            returning user_id, key_id
+            """;
+
     private final SubscriptionRepository subscriptionRepository;
     private final UserRepository userRepository;
+    private final VpnKeyRepository vpnKeyRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final ActiveSubscriptionCache activeCache;
+    private final NamedParameterJdbcTemplate jdbc;
 
-    public SubscriptionService(SubscriptionRepository subscriptionRepository, UserRepository userRepository) {
+    public SubscriptionService(SubscriptionRepository subscriptionRepository,
+                               UserRepository userRepository,
+                               VpnKeyRepository vpnKeyRepository,
+                               ApplicationEventPublisher eventPublisher,
+                               ActiveSubscriptionCache activeCache,
+                               NamedParameterJdbcTemplate jdbc) {
         this.subscriptionRepository = subscriptionRepository;
         this.userRepository = userRepository;
+        this.vpnKeyRepository = vpnKeyRepository;
+        this.eventPublisher = eventPublisher;
+        this.activeCache = activeCache;
+        this.jdbc = jdbc;
     }
 
     public boolean hasActiveSubscription(User user) {
         if (user == null || user.isDisabled()) return false;
-        return subscriptionRepository.findTopByUserAndEndDateAfterOrderByEndDateDesc(user, LocalDateTime.now()).isPresent();
+        return getActiveUntil(user).isPresent();
+    }
+
+    /**
+     * Была ли у пользователя хоть одна подписка (из кеша).
+     */
+    public boolean hasAnySubscription(User user) {
+        if (user == null) return false;
+        return activeCache.getMaxEndDate(user.getId()).isPresent();
+    }
+
+    /**
+     * До какого момента оплачен пользователь (из кеша); empty — активной подписки нет.
+     */
+    public Optional<LocalDateTime> getActiveUntil(User user) {
+        if (user == null) return Optional.empty();
+        LocalDateTime now = LocalDateTime.now();
+        return activeCache.getMaxEndDate(user.getId()).filter(end -> end.isAfter(now));
     }
 
     public boolean hasActiveSubscriptionForKey(VpnKey key) {
         if (key == null) return false;
-        return subscriptionRepository.findTopByVpnKeyAndEndDateAfterOrderByEndDateDesc(key, LocalDateTime.now()).isPresent();
+        return key.isPaidAt(LocalDateTime.now());
     }
 
     @Transactional
@@ -58,7 +138,9 @@ public class SubscriptionService {
         subscription.setCreatedAt(createdAt);
         subscription.setActive(true);
 
-        return subscriptionRepository.save(subscription);
+        Subscription saved = subscriptionRepository.save(subscription);
+        publishChanged(user.getId(), null, saved.getEndDate());
+        return saved;
     }
 
     @Transactional
@@ -87,11 +169,16 @@ public class SubscriptionService {
         subscription.setCreatedAt(createdAt);
         subscription.setActive(true);
 
-        return subscriptionRepository.save(subscription);
+        Subscription saved = subscriptionRepository.save(subscription);
+        syncPaidUntil(key);
+        publishChanged(user.getId(), key.getId(), saved.getEndDate());
+        return saved;
     }
 
     @Transactional(readOnly = true)
     public Optional<Subscription> getActiveSubscription(User user) {
+        // без активной подписки (частый случай в меню) в БД не ходим
+        if (getActiveUntil(user).isEmpty()) return Optional.empty();
         return subscriptionRepository.findTopByUserAndEndDateAfterOrderByEndDateDesc(
                 user, LocalDateTime.now()
         );
@@ -123,12 +210,16 @@ public class SubscriptionService {
             return Optional.empty();
         }
         userRepository.lockUser(user.getId());
-        Optional<Subscription> active = getActiveSubscription(user);
+        Optional<Subscription> active = subscriptionRepository.findTopByUserAndEndDateAfterOrderByEndDateDesc(
+                user, LocalDateTime.now());
         if (active.isEmpty()) return Optional.empty();
         Subscription sub = active.get();
         sub.setEndDate(LocalDateTime.now());
         sub.setActive(false);
-        return Optional.of(subscriptionRepository.save(sub));
+        Subscription saved = subscriptionRepository.save(sub);
+        syncPaidUntil(saved.getVpnKey());
+        publishChanged(user.getId(), keyIdOf(saved), saved.getEndDate());
+        return Optional.of(saved);
     }
 
     @Transactional
@@ -144,35 +235,166 @@ public class SubscriptionService {
             sub.setEndDate(now);
             sub.setActive(false);
             subscriptionRepository.save(sub);
+            syncPaidUntil(sub.getVpnKey());
+            publishChanged(user.getId(), keyIdOf(sub), now);
         }
         return active.size();
     }
 
+    /**
+     * Массовая выдача: продлить подписку пачке пользователей на days дней так же, как extendSubscriptionForKey
+     * (к первому ключу, без ключа — «висящая» подписка, её привяжет ensureKeyForActiveSubscription).
+     * Пользователи блокируются одним SELECT ... FOR UPDATE, подписки вставляются JDBC batch,
+     * paid_until ключей пересчитывается одним запросом. Отключённые пользователи пропускаются.
+     */
+    @Transactional
+    public BulkResult extendSubscriptions(Collection<Long> userIds, int days) {
+        if (userIds == null || userIds.isEmpty()) return new BulkResult(0, 0);
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp createdAt = Timestamp.from(Instant.now());
+        List<GrantTarget> targets = jdbc.query(LOCK_FOR_GRANT, new MapSqlParameterSource("ids", userIds),
+                (rs, i) -> {
+                    Timestamp paidUntil = rs.getTimestamp("paid_until");
+                    Timestamp userEnd = rs.getTimestamp("user_end");
+                    return new GrantTarget(
+                            rs.getLong("id"),
+                            rs.getBoolean("is_disabled"),
+                            (Long) rs.getObject("key_id"),
+                            paidUntil == null ? null : paidUntil.toLocalDateTime(),
+                            userEnd == null ? null : userEnd.toLocalDateTime());
+                });
+
+        List<Object[]> rows = new ArrayList<>(targets.size());
+        List<SubscriptionChangedEvent> events = new ArrayList<>(targets.size());
+        Set<Long> keyIds = new LinkedHashSet<>();
+        for (GrantTarget t : targets) {
+            if (t.disabled()) continue;
+            // как findTopBy...EndDateAfter: продолжаем от конца текущей подписки ключа (или пользователя без ключа)
+            LocalDateTime end = t.keyId() != null ? t.paidUntil() : t.userEnd();
+            LocalDateTime start = end != null && end.isAfter(now) ? end : now;
+            LocalDateTime newEnd = start.plusDays(days);
+            rows.add(new Object[]{t.userId(), t.keyId(), Timestamp.valueOf(start), Timestamp.valueOf(newEnd), createdAt});
+            events.add(new SubscriptionChangedEvent(t.userId(), t.keyId(), newEnd));
+            if (t.keyId() != null) keyIds.add(t.keyId());
+        }
+        if (!rows.isEmpty()) {
+            jdbc.getJdbcOperations().batchUpdate(INSERT_SUBSCRIPTION, rows);
+        }
+        if (!keyIds.isEmpty()) {
+            jdbc.update(SYNC_PAID_UNTIL, new MapSqlParameterSource("ids", keyIds));
+        }
+        events.forEach(eventPublisher::publishEvent);
+        return new BulkResult(rows.size(), userIds.size() - rows.size());
+    }
+
+    /**
+     * Массовое отключение: то же, что revokeAllActiveSubscriptions, для пачки пользователей.
+     * Ключи с обрезанной подпиской отзовёт SubscriptionExpiryScheduler по SubscriptionChangedEvent.
+     */
+    @Transactional
+    public BulkResult revokeActiveSubscriptions(Collection<Long> userIds) {
+        if (userIds == null || userIds.isEmpty()) return new BulkResult(0, 0);
+        LocalDateTime now = LocalDateTime.now();
+        jdbc.query("select id from users where id in (:ids) order by id for update",
+                new MapSqlParameterSource("ids", userIds), (rs, i) -> rs.getLong(1));
+        List<SubscriptionChangedEvent> events = jdbc.query(REVOKE_ACTIVE,
+                new MapSqlParameterSource("ids", userIds).addValue("now", Timestamp.valueOf(now)),
+                (rs, i) -> new SubscriptionChangedEvent(rs.getLong("user_id"), (Long) rs.getObject("key_id"), now));
+
+        Set<Long> users = new LinkedHashSet<>();
+        Set<Long> keyIds = new LinkedHashSet<>();
+        for (SubscriptionChangedEvent e : events) {
+            users.add(e.userId());
+            if (e.keyId() != null) keyIds.add(e.keyId());
+        }
+        if (!keyIds.isEmpty()) {
+            jdbc.update(SYNC_PAID_UNTIL, new MapSqlParameterSource("ids", keyIds));
+        }
+        events.forEach(eventPublisher::publishEvent);
+        return new BulkResult(users.size(), userIds.size() - users.size());
+    }
+
     public long getDaysLeft(Subscription sub) {
+        return getDaysLeft(sub.getEndDate());
+    }
+
+    public long getDaysLeft(LocalDateTime endDate) {
         // считаем дни до конца, округляя вверх: осталось 0.2 дня -> покажем 1 день
-        long minutesLeft = Duration.between(LocalDateTime.now(), sub.getEndDate()).toMinutes();
+        if (endDate == null) return 0;
+        long minutesLeft = Duration.between(LocalDateTime.now(), endDate).toMinutes();
         if (minutesLeft <= 0) return 0;
         return (long) Math.ceil(minutesLeft / 1440.0);
     }
 
+    /**
+     * Момент, когда getDaysLeft(endDate) или признак «истекла» сменится; null — меняться больше нечему.
+     * Может быть раньше фактической смены на минуту, но не позже.
+     */
+    public LocalDateTime nextDaysLeftChange(LocalDateTime endDate) {
+        if (endDate == null) return null;
+        LocalDateTime now = LocalDateTime.now();
+        if (!endDate.isAfter(now)) return null;
+        long minutesLeft = Duration.between(now, endDate).toMinutes();
+        if (minutesLeft <= 0) return endDate;
+        long days = (long) Math.ceil(minutesLeft / 1440.0);
+        return endDate.minusMinutes((days - 1) * 1440 + 1);
+    }
+
+    /**
+     * Пройти по пользователям с активной подпиской (userId, telegramId, username, max end_date)
+     * одним агрегирующим запросом; строки читаются потоком внутри транзакции.
+     */
     @Transactional(readOnly = true)
-    public List<User> getActiveUsersWithSubscription() {
-        List<Subscription> active = subscriptionRepository.findByEndDateAfter(LocalDateTime.now());
-        if (active.isEmpty()) {
-            return List.of();
-        }
-        java.util.LinkedHashMap<Long, User> map = new java.util.LinkedHashMap<>();
-        for (Subscription sub : active) {
-            User user = sub.getUser();
-            if (user == null || user.isDisabled() || user.getTelegramId() == null) {
-                continue;
-            }
-            Long id = user.getId();
-            if (id != null) {
-                map.putIfAbsent(id, user);
-            }
+    public void forEachActiveUser(Consumer<SubscriptionRepository.ActiveUserRow> consumer) {
+        try (Stream<SubscriptionRepository.ActiveUserRow> rows =
+                     subscriptionRepository.streamActiveUsers(LocalDateTime.now())) {
+            rows.forEach(consumer);
         }
-        return new java.util.ArrayList<>(map.values());
     }
 
+    /**
+     * Подписка перепривязана к другому ключу (замена ключа, привязка "висящей" подписки).
+     */
+    void keyReassigned(Subscription sub, VpnKey previousKey) {
+        syncPaidUntil(previousKey);
+        syncPaidUntil(sub.getVpnKey());
+        Long userId = sub.getUser() == null ? null : sub.getUser().getId();
+        publishChanged(userId, keyIdOf(sub), sub.getEndDate());
+    }
+
+    /**
+     * Пересчитать vpn_keys.paid_until по подпискам ключа. Вызывается в той же транзакции,
+     * что и изменение подписки, под блокировкой пользователя.
+     */
+    private void syncPaidUntil(VpnKey key) {
+        if (key == null || key.getId() == null) return;
+        // JPQL-запрос сбрасывает несохранённые изменения подписок до native update
+        key.setPaidUntil(subscriptionRepository.findMaxEndDateByKeyId(key.getId()));
+        vpnKeyRepository.syncPaidUntil(key.getId());
+    }
+
+    private void publishChanged(Long userId, Long keyId, LocalDateTime endDate) {
+        eventPublisher.publishEvent(new SubscriptionChangedEvent(userId, keyId, endDate));
+    }
+
+    private static Long keyIdOf(Subscription sub) {
+        return sub.getVpnKey() == null ? null : sub.getVpnKey().getId();
+    }
+
+    private record GrantTarget(long userId, boolean disabled, Long keyId,
+                               LocalDateTime paidUntil, LocalDateTime userEnd) {
+    }
+
+    /**
+     * @param applied пользователи, к которым применена операция
+     * @param skipped отключённые или без активной подписки (для отзыва)
+     */
+    public record BulkResult(int applied, int skipped) {
+    }
+
+    /**
+     * Срок подписки изменился (продление или отзыв). keyId == null — подписка без ключа.
+     */
+    public record SubscriptionChangedEvent(Long userId, Long keyId, LocalDateTime endDate) {
+    }
 }
@@ -1,5 +1,7 @@
 package ru.uzden.uzdenbot.services;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -20,14 +22,19 @@ public class UpdateGuardService {
     private final RateLimiterService rateLimiterService;
     private final IdempotencyService idempotencyService;
     private final Duration updateIdempotencyTtl;
+    private final Counter rateLimited;
+    private final Counter duplicates;
 
     public UpdateGuardService(
             RateLimiterService rateLimiterService,
             IdempotencyService idempotencyService,
+            MeterRegistry meterRegistry,
             @Value("${app.idempotency.update-ttl-seconds:600}") long updateTtlSeconds) {
         this.rateLimiterService = rateLimiterService;
         this.idempotencyService = idempotencyService;
         this.updateIdempotencyTtl = Duration.ofSeconds(updateTtlSeconds);
+        this.rateLimited = Counter.builder("bot.update.rejected").tag("reason", "rate_limited").register(meterRegistry);
+        this.duplicates = Counter.builder("bot.update.rejected").tag("reason", "duplicate").register(meterRegistry);
     }
 
     public GuardResult guard(Update update) {
@@ -36,6 +43,7 @@ public class UpdateGuardService {
             try {
                 String key = "rl:user:" + ctx.userId;
                 if (!rateLimiterService.allow(key)) {
+                    rateLimited.increment();
                     List<BotApiMethod<?>> responses = new ArrayList<>();
                     if (ctx.callbackId != null) {
                         AnswerCallbackQuery ack = BotMessageFactory.callbackAnswer(
@@ -59,6 +67,7 @@ public class UpdateGuardService {
             try {
                 boolean ok = idempotencyService.tryAcquire("idemp:update:" + updateId, updateIdempotencyTtl);
                 if (!ok) {
+                    duplicates.increment();
                     return GuardResult.blocked(List.of());
                 }
             } catch (Exception e) {
@@ -9,6 +9,7 @@ import ru.uzden.uzdenbot.repositories.UserRepository;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 @Service
@@ -24,10 +25,17 @@ public class UserService {
 
         return userRepository.findUserByTelegramId(telegramId)
                 .map(u -> {
-                    if (username != null && !username.equals(u.getUsername())) {
-                        u.setUsername(username);
+                    String newUsername = username != null ? username : u.getUsername();
+                    String referralCode = u.getReferralCode() == null || u.getReferralCode().isBlank()
+                            ? generateReferralCode(telegramId)
+                            : u.getReferralCode();
+                    if (!Objects.equals(newUsername, u.getUsername())
+                            || !Objects.equals(referralCode, u.getReferralCode())) {
+                        // без версии: конкурирующая операция с ключами не должна ронять апдейт
+                        userRepository.updateProfile(u.getId(), newUsername, referralCode);
+                        u.setUsername(newUsername);
+                        u.setReferralCode(referralCode);
                     }
-                    ensureReferralCode(u, telegramId);
                     return u;
                 }).orElseGet(() -> {
                     User u = new User();
@@ -55,10 +63,15 @@ public class UserService {
         return userRepository.findUserByUsernameIgnoreCase(username);
     }
 
+    /**
+     * Точечный UPDATE флага: user мог быть загружен давно, и merge устаревшей версии
+     * упал бы на любой параллельной операции с ключами.
+     */
     @Transactional
     public User setDisabled(User user, boolean disabled) {
+        userRepository.updateDisabled(user.getId(), disabled);
         user.setDisabled(disabled);
-        return userRepository.save(user);
+        return user;
     }
 
     @Transactional(readOnly = true)
@@ -66,13 +79,6 @@ public class UserService {
         return userRepository.findAll();
     }
 
-    private void ensureReferralCode(User user, Long telegramId) {
-        if (user == null) return;
-        if (user.getReferralCode() == null || user.getReferralCode().isBlank()) {
-            user.setReferralCode(generateReferralCode(telegramId));
-        }
-    }
-
     private String generateReferralCode(Long telegramId) {
         if (telegramId == null) return null;
         return telegramId.toString();
@@ -3,9 +3,10 @@ package ru.uzden.uzdenbot.services;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.uzden.uzdenbot.entities.VpnKey;
 import ru.uzden.uzdenbot.repositories.VpnKeyRepository;
 import ru.uzden.uzdenbot.xui.ThreeXuiClient;
@@ -14,6 +15,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.OptionalLong;
+import java.util.function.IntSupplier;
 
 @Slf4j
 @Service
@@ -22,6 +24,9 @@ public class VpnKeyCleanupService {
 
     private final VpnKeyRepository vpnKeyRepository;
     private final ThreeXuiClient threeXuiClient;
+    private final JobLeaseService jobLeaseService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TransactionTemplate tx;
 
     @Value("${app.vpn-keys.unused-ttl-hours:24}")
     private long unusedTtlHours;
@@ -33,41 +38,92 @@ public class VpnKeyCleanupService {
         cleanupActiveWithoutTraffic(border);
     }
 
-    @Transactional
     protected void cleanupPendingAndFailed(Instant border) {
-        List<VpnKey> stale = vpnKeyRepository.findPendingOrFailedOlderThan(border);
-        for (VpnKey key : stale) {
-            tryDisableInXui(key);
-            vpnKeyRepository.delete(key);
+        int batchSize = jobLeaseService.getBatchSize();
+        int removed = 0;
+        long afterId = 0;
+        while (true) {
+            long cursor = afterId;
+            List<VpnKey> stale = jobLeaseService.claim(
+                    () -> vpnKeyRepository.lockPendingOrFailedOlderThan(border, cursor, batchSize),
+                    VpnKey::getId,
+                    vpnKeyRepository::leaseByIds
+            );
+            if (stale.isEmpty()) break;
+            afterId = stale.get(stale.size() - 1).getId();
+            try {
+                for (VpnKey key : stale) {
+                    if (deleteKey(key, () -> vpnKeyRepository.deletePendingOrFailedOlderThan(key.getId(), border))) {
+                        removed++;
+                    }
+                }
+            } finally {
+                jobLeaseService.release(stale, VpnKey::getId, vpnKeyRepository::releaseLeases);
+            }
+            if (stale.size() < batchSize) break;
         }
-        if (!stale.isEmpty()) {
-            log.info("Removed stale pending/failed keys: {}", stale.size());
+        if (removed > 0) {
+            log.info("Removed stale pending/failed keys: {}", removed);
         }
     }
 
-    @Transactional
     protected void cleanupActiveWithoutTraffic(Instant border) {
-        List<VpnKey> candidates = vpnKeyRepository.findActiveOlderThan(border);
+        int batchSize = jobLeaseService.getBatchSize();
         int removed = 0;
-        for (VpnKey key : candidates) {
-            OptionalLong traffic = threeXuiClient.getClientTraffic(
-                    key.getInboundId(), key.getClientUuid(), key.getClientEmail()
+        long afterId = 0;
+        while (true) {
+            long cursor = afterId;
+            List<VpnKey> candidates = jobLeaseService.claim(
+                    () -> vpnKeyRepository.lockActiveOlderThan(border, cursor, batchSize),
+                    VpnKey::getId,
+                    vpnKeyRepository::leaseByIds
             );
-            if (traffic.isEmpty()) {
-                continue;
-            }
-            if (traffic.getAsLong() > 0) {
-                continue;
+            if (candidates.isEmpty()) break;
+            afterId = candidates.get(candidates.size() - 1).getId();
+            // ключи с трафиком остаются в БД: lease снимаем, иначе их пропустит проверка истёкших подписок
+            try {
+                for (VpnKey key : candidates) {
+                    OptionalLong traffic = threeXuiClient.getClientTraffic(
+                            key.getInboundId(), key.getClientUuid(), key.getClientEmail()
+                    );
+                    if (traffic.isEmpty()) {
+                        continue;
+                    }
+                    if (traffic.getAsLong() > 0) {
+                        continue;
+                    }
+                    if (deleteKey(key, () -> vpnKeyRepository.deleteActiveOlderThan(key.getId(), border))) {
+                        removed++;
+                    }
+                }
+            } finally {
+                jobLeaseService.release(candidates, VpnKey::getId, vpnKeyRepository::releaseLeases);
             }
-            tryDisableInXui(key);
-            vpnKeyRepository.delete(key);
-            removed++;
+            if (candidates.size() < batchSize) break;
         }
         if (removed > 0) {
             log.info("Removed unused active keys: {}", removed);
         }
     }
 
+    /**
+     * Удалить ключ запросом по id с условиями выборки: за время пачки его могли восстановить, отозвать
+     * или изменить (version), поэтому detached-entity не удаляем. Ошибка одного ключа не прерывает проход.
+     * В 3x-ui клиент выключается только после удаления строки.
+     */
+    private boolean deleteKey(VpnKey key, IntSupplier delete) {
+        try {
+            Integer deleted = tx.execute(status -> delete.getAsInt());
+            if (deleted == null || deleted == 0) return false;
+        } catch (Exception e) {
+            log.warn("Failed to delete keyId={}: {}", key.getId(), e.getMessage());
+            return false;
+        }
+        tryDisableInXui(key);
+        eventPublisher.publishEvent(new VpnKeyService.KeysChangedEvent(key.getUser().getId()));
+        return true;
+    }
+
     private void tryDisableInXui(VpnKey key) {
         try {
             if (key.getClientUuid() != null && key.getInboundId() != null) {
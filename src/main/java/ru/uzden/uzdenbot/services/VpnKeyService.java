@@ -1,10 +1,17 @@
 package ru.uzden.uzdenbot.services;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.transaction.support.TransactionTemplate;
 import ru.uzden.uzdenbot.entities.User;
 import ru.uzden.uzdenbot.entities.VpnKey;
@@ -13,13 +20,21 @@ import ru.uzden.uzdenbot.repositories.UserRepository;
 import ru.uzden.uzdenbot.repositories.VpnKeyRepository;
 import ru.uzden.uzdenbot.repositories.SubscriptionRepository;
 import ru.uzden.uzdenbot.xui.ThreeXuiClient;
-import ru.uzden.uzdenbot.xui.VlessLinkBuilder;
+import ru.uzden.uzdenbot.xui.VlessLinkTemplate;
+import ru.uzden.uzdenbot.xui.VlessLinkTemplateCache;
 
-import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 @Slf4j
 @Service
@@ -30,15 +45,20 @@ public class VpnKeyService {
     private final SubscriptionService subscriptionService;
     private final SubscriptionRepository subscriptionRepository;
     private final ThreeXuiClient xuiClient;
-    private final VlessLinkBuilder linkBuilder;
+    private final VlessLinkTemplateCache linkTemplates;
     private final TransactionTemplate tx;
+    private final MeterRegistry meterRegistry;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
 
     private final Long inbound;
-    private final String publicHost;
-    private final int publicPort;
     private final String linkTag;
     private final String linkGroup;
+    private final boolean optimisticLocking;
+    private final int optimisticRetries;
+    private final int purgeChunkSize;
 
+    // совпадает с CHECK chk_users_active_key_count (V22)
     private static final int MAX_KEYS_PER_USER = 3;
 
     @Autowired
@@ -48,25 +68,31 @@ public class VpnKeyService {
             SubscriptionService subscriptionService,
             SubscriptionRepository subscriptionRepository,
             ThreeXuiClient xuiClient,
-            VlessLinkBuilder linkBuilder,
+            VlessLinkTemplateCache linkTemplates,
             TransactionTemplate tx,
+            MeterRegistry meterRegistry,
+            ApplicationEventPublisher eventPublisher,
             @Value("${xui.inbound-id:3}") Long inbound,
-            @Value("${xui.public-host:62.60.229.102}") String publicHost,
-            @Value("${xui.public-port:8441}") int publicPort,
             @Value("${xui.link-tag:reality443-auto}") String linkTag,
-            @Value("${xui.link-group:}") String linkGroup) {
+            @Value("${xui.link-group:}") String linkGroup,
+            @Value("${app.vpn-keys.optimistic-locking:true}") boolean optimisticLocking,
+            @Value("${app.vpn-keys.optimistic-retries:3}") int optimisticRetries,
+            @Value("${app.vpn-keys.purge-chunk-size:500}") int purgeChunkSize) {
         this.vpnKeyRepository = vpnKeyRepository;
         this.userRepository = userRepository;
         this.subscriptionService = subscriptionService;
         this.subscriptionRepository = subscriptionRepository;
         this.xuiClient = xuiClient;
-        this.linkBuilder = linkBuilder;
+        this.linkTemplates = linkTemplates;
         this.tx = tx;
+        this.meterRegistry = meterRegistry;
+        this.eventPublisher = eventPublisher;
         this.inbound = inbound;
-        this.publicHost = publicHost;
-        this.publicPort = publicPort;
         this.linkTag = linkTag;
         this.linkGroup = linkGroup;
+        this.optimisticLocking = optimisticLocking;
+        this.optimisticRetries = Math.max(1, optimisticRetries);
+        this.purgeChunkSize = Math.max(1, purgeChunkSize);
     }
 
     public int getMaxKeysPerUser() {
@@ -80,8 +106,7 @@ public class VpnKeyService {
 
     public boolean canCreateNewKey(User user) {
         if (user == null || user.getId() == null) return false;
-        long existing = vpnKeyRepository.countNonRevokedKeys(user.getId());
-        return existing < MAX_KEYS_PER_USER;
+        return userRepository.findActiveKeyCount(user.getId()) < MAX_KEYS_PER_USER;
     }
 
     public List<VpnKey> listUserKeys(User user) {
@@ -96,77 +121,83 @@ public class VpnKeyService {
         VpnKey key = vpnKeyRepository.findByIdAndUserId(keyId, user.getId())
                 .orElseThrow(() -> new IllegalStateException("Ключ не найден"));
         if (key.isRevoked() || key.getStatus() == VpnKey.Status.REVOKED) {
-            throw new IllegalStateException("Ключ отозван");
+            throw new KeyRevokedException();
         }
         return key;
     }
 
-    public Optional<Subscription> getActiveSubscriptionForKey(VpnKey key) {
-        return subscriptionService.getActiveSubscription(key);
-    }
-
     public boolean canDeleteKey(User user, long keyId) {
         VpnKey key = findKeyForUser(user, keyId);
         return !subscriptionService.hasActiveSubscriptionForKey(key);
     }
 
+    /**
+     * Привязать активные подписки без ключа к ключу пользователя. Блокировка пользователя
+     * берётся только если такие подписки есть — в обычном случае это один индексный запрос.
+     */
     public void ensureKeyForActiveSubscription(User user) {
         if (user == null || user.getId() == null) return;
-        tx.execute(status -> ensureKeyForActiveSubscriptionTx(user.getId()));
+        if (!subscriptionRepository.existsActiveUnassigned(user.getId(), java.time.LocalDateTime.now())) return;
+        writeTx(status -> ensureKeyForActiveSubscriptionTx(user.getId()));
     }
 
     public void ensureKeyForActiveSubscriptionByUserId(Long userId) {
         if (userId == null) return;
-        tx.execute(status -> ensureKeyForActiveSubscriptionTx(userId));
+        writeTx(status -> ensureKeyForActiveSubscriptionTx(userId));
     }
 
-    public VpnKey replaceKeyForUser(User user, long keyId) {
-        if (user == null || user.getId() == null) {
-            throw new IllegalArgumentException("User is required");
-        }
-        ReplaceContext ctx = tx.execute(status -> replaceKeyForUserTx(user.getId(), keyId));
-
-        VpnKey newKey = finalizeIssueOutsideTx(ctx.newKeyId);
-
-        if (ctx.oldInboundId != null && ctx.oldClientUuid != null) {
-            try {
-                xuiClient.disableClient(ctx.oldInboundId, ctx.oldClientUuid);
-            } catch (Exception e) {
-                log.error("Не удалось выключить старый ключ клиента: inbound:{}, uuid:{}", ctx.oldInboundId, ctx.oldClientUuid, e);
-            }
-        }
-
-        return newKey;
-    }
-
-    public VpnKey getKeyForUser(User user, long keyId) {
+    /**
+     * Ключ пользователя, который можно выдать (есть активная подписка).
+     * Выпуск/обновление ссылки не выполняется — см. isReady и KeyIssuanceService.
+     */
+    public VpnKey findIssuableKey(User user, long keyId) {
         VpnKey key = findKeyForUser(user, keyId);
         if (!subscriptionService.hasActiveSubscriptionForKey(key)) {
             throw new IllegalStateException("Нет активной подписки для этого ключа");
         }
+        return key;
+    }
 
-        if (key.getStatus() == VpnKey.Status.ACTIVE) {
-            if (needsLinkRefresh(key)) {
-                return refreshActiveLink(key);
-            }
-            return key;
+    /**
+     * Ключ можно отдать сразу, без запросов к 3x-ui.
+     */
+    public boolean isReady(VpnKey key) {
+        return key != null && key.isActive() && !needsLinkRefresh(key);
+    }
+
+    /**
+     * Транзакционная часть замены ключа: старый отозван, новый PENDING.
+     * Выпуск нового и отключение старого в 3x-ui — в KeyIssuanceService.
+     */
+    public PendingReplace startReplaceKeyForUser(User user, long keyId) {
+        if (user == null || user.getId() == null) {
+            throw new IllegalArgumentException("User is required");
         }
+        ReplaceContext ctx = writeTx(status -> replaceKeyForUserTx(user.getId(), keyId));
+        return new PendingReplace(ctx.newKeyId, ctx.oldInboundId, ctx.oldClientUuid);
+    }
 
-        return finalizeIssueOutsideTx(key.getId());
+    public void disableClientQuietly(Long inboundId, UUID clientUuid) {
+        if (inboundId == null || clientUuid == null) return;
+        try {
+            xuiClient.disableClient(inboundId, clientUuid);
+        } catch (Exception e) {
+            log.error("Не удалось выключить старый ключ клиента: inbound:{}, uuid:{}", inboundId, clientUuid, e);
+        }
     }
 
     public VpnKey createPendingKey(User user) {
         if (user == null || user.getId() == null) {
             throw new IllegalArgumentException("User is required");
         }
-        return tx.execute(status -> createNewPendingKeyTx(user.getId()));
+        return writeTx(status -> createNewPendingKeyTx(user.getId()));
     }
 
     public void revokeKeyForUser(User user, long keyId) {
         if (user == null || user.getId() == null) {
             throw new IllegalArgumentException("User is required");
         }
-        VpnKey key = tx.execute(status -> revokeByIdForUserTx(user.getId(), keyId));
+        VpnKey key = writeTx(status -> revokeByIdForUserTx(user.getId(), keyId));
         if (key == null) {
             throw new IllegalStateException("Ключ не найден");
         }
@@ -179,53 +210,19 @@ public class VpnKeyService {
         }
     }
 
-    /**
-     * Выдать ключ пользователю.
-     * Создаёт новый ключ (максимум 3 на пользователя).
-     * Устойчиво: PENDING -> (3x-ui) -> ACTIVE, при ошибке FAILED.
-     */
-    public VpnKey issueKey(User user) {
-        VpnKey key = tx.execute(status -> createNewPendingKeyTx(user.getId()));
-        return finalizeIssueOutsideTx(key.getId());
-    }
-
-    /**
-     * Автовыдача ключа (после оплаты) без pessimistic-lock на user.
-     * Уменьшает риск ошибки "no active transaction" в фоновом обработчике.
-     */
-    public VpnKey issueKeyAuto(User user) {
-        VpnKey key = tx.execute(status -> createNewPendingKeyTx(user.getId()));
-        return finalizeIssueOutsideTx(key.getId());
-    }
-
-
-    /**
-     * Отозвать ключ
-     */
-    public void revokeActiveKey(User user) {
-        VpnKey key = tx.execute(status -> revokeTx(user.getId()));
-        if (key == null) return;
-
-        try {
-            xuiClient.disableClient(key.getInboundId(), key.getClientUuid());
-        } catch (Exception e) {
-            log.error("Не удалось выключить ключ клиента: inbound:{}, uuid:{}", key.getInboundId(), key.getClientUuid());
-            tx.execute(s -> markErrorTx(key.getId(), "disable failed: " + safeMsg(e)));
-        }
-    }
-
     public int revokeAllKeys(User user) {
         if (user == null || user.getId() == null) return 0;
         List<VpnKey> keys = vpnKeyRepository.findUserKeys(user.getId());
         if (keys.isEmpty()) return 0;
         for (VpnKey key : keys) {
-            tx.execute(status -> {
+            writeTx(status -> {
                 VpnKey fresh = vpnKeyRepository.findById(key.getId()).orElse(null);
                 if (fresh == null) return null;
                 if (fresh.getStatus() == VpnKey.Status.REVOKED || fresh.isRevoked()) return null;
                 fresh.markRevoked();
                 fresh.setLastError(null);
                 vpnKeyRepository.save(fresh);
+                keysChanged(user.getId());
                 return null;
             });
             try {
@@ -240,32 +237,11 @@ public class VpnKeyService {
     }
 
 
-    /**
-     * Заменить ключ
-     * (сначала создается новый, потом отзывается старый)
-     */
-    public VpnKey replaceKey(User user) {
-        ReplaceContext ctx = tx.execute(status -> replaceTx(user.getId()));
-
-        VpnKey newKey = finalizeIssueOutsideTx(ctx.newKeyId);
-
-        if (ctx.oldInboundId != null && ctx.oldClientUuid != null) {
-            try {
-                xuiClient.disableClient(ctx.oldInboundId, ctx.oldClientUuid);
-            } catch (Exception e) {
-                log.error("Не удалось выключить старый ключ клиента: inbound:{}, uuid:{}", ctx.oldInboundId, ctx.oldClientUuid, e);
-            }
-        }
-
-        return newKey;
-    }
-
-
     /**
      * Отозвать ключ по id
      */
     public void revokeById(long vpnKeyId) {
-        VpnKey key = tx.execute(status -> revokeByIdTx(vpnKeyId));
+        VpnKey key = writeTx(status -> revokeByIdTx(vpnKeyId));
 
         try {
             xuiClient.disableClient(key.getInboundId(), key.getClientUuid());
@@ -278,93 +254,106 @@ public class VpnKeyService {
 
 
     /**
-     * Попытаться доделать оставшиеся PENDING/FAILED старше порога (olderThan)
-     * возвращает кол-во успешно выполненных
+     * Удалить все отключённые ключи (revoked/REVOKED).
+     * Идём keyset-пачками по purgeChunkSize: disable в 3x-ui, delete пачки, commit.
+     * Ключи, которые не удалось выключить в 3x-ui, остаются в БД до следующей очистки —
+     * без строки их клиента потом не найти.
+     * progress получает число удалённых после каждой пачки.
+     * Возвращает количество удалённых записей.
      */
-    public int recoverStale(Duration olderThan) {
-        Instant border = Instant.now().minus(olderThan);
-        List<VpnKey> stale = vpnKeyRepository.findStale(border);
-
-        int ok = 0;
-        for (VpnKey k : stale) {
-            try {
-                finalizeIssueOutsideTx(k.getId());
-            } catch (Exception e) {
-                log.warn("Recovery не удался для keyId={}: {}", k.getId(), safeMsg(e));
+    public int purgeRevokedKeys(IntConsumer progress) {
+        long afterId = 0;
+        int removed = 0;
+        while (true) {
+            List<VpnKeyRepository.KeyRef> chunk = vpnKeyRepository.findRevokedRefsAfter(
+                    afterId, PageRequest.of(0, purgeChunkSize));
+            if (chunk.isEmpty()) break;
+            afterId = chunk.get(chunk.size() - 1).getId();
+
+            Set<UUID> failed = disableClientsQuietly(chunk);
+            List<Long> ids = chunk.stream()
+                    .filter(k -> k.getClientUuid() == null || !failed.contains(k.getClientUuid()))
+                    .map(VpnKeyRepository.KeyRef::getId)
+                    .toList();
+            if (!ids.isEmpty()) {
+                Integer deleted = tx.execute(status -> vpnKeyRepository.deleteRevokedByIds(ids));
+                removed += deleted == null ? 0 : deleted;
             }
+            progress.accept(removed);
+            if (chunk.size() < purgeChunkSize) break;
         }
-        return ok;
+        return removed;
     }
 
     /**
-     * Удалить все отключённые ключи (revoked/REVOKED).
-     * Возвращает количество удалённых записей.
+     * Удалить отключённых пользователей вместе с ключами — теми же пачками, что и purgeRevokedKeys.
+     * Пользователь, у которого не удалось выключить хотя бы один клиент, остаётся до следующей очистки.
      */
-    public int purgeRevokedKeys() {
-        List<VpnKey> revoked = vpnKeyRepository.findRevokedKeys();
-        if (revoked.isEmpty()) {
-            return 0;
-        }
-        for (VpnKey key : revoked) {
-            try {
-                if (key.getInboundId() != null && key.getClientUuid() != null) {
-                    xuiClient.disableClient(key.getInboundId(), key.getClientUuid());
-                }
-            } catch (Exception e) {
-                log.warn("Не удалось выключить клиента keyId={}: {}", key.getId(), safeMsg(e));
+    public int purgeDisabledUsers(IntConsumer progress) {
+        long afterId = 0;
+        int removed = 0;
+        while (true) {
+            List<Long> userIds = userRepository.findDisabledIdsAfter(afterId, PageRequest.of(0, purgeChunkSize));
+            if (userIds.isEmpty()) break;
+            afterId = userIds.get(userIds.size() - 1);
+
+            List<VpnKeyRepository.KeyRef> keys = vpnKeyRepository.findRefsByUserIds(userIds);
+            Set<UUID> failed = disableClientsQuietly(keys);
+            Set<Long> keep = new HashSet<>();
+            for (VpnKeyRepository.KeyRef key : keys) {
+                if (key.getClientUuid() != null && failed.contains(key.getClientUuid())) keep.add(key.getUserId());
+            }
+            List<Long> ids = userIds.stream().filter(id -> !keep.contains(id)).toList();
+            if (!ids.isEmpty()) {
+                Integer deleted = tx.execute(status -> userRepository.deleteDisabledByIds(ids));
+                removed += deleted == null ? 0 : deleted;
             }
+            progress.accept(removed);
+            if (userIds.size() < purgeChunkSize) break;
         }
-        List<Long> ids = revoked.stream().map(VpnKey::getId).toList();
-        tx.execute(status -> {
-            vpnKeyRepository.deleteAllByIdInBatch(ids);
-            return null;
-        });
-        return ids.size();
+        return removed;
     }
 
-    public int purgeDisabledUsers() {
-        List<User> disabled = userRepository.findByDisabledTrue();
-        if (disabled.isEmpty()) {
-            return 0;
-        }
-        for (User user : disabled) {
+    /**
+     * Выключить клиентов в 3x-ui по inbound. Возвращает uuid, которые выключить не удалось:
+     * при ошибке чтения inbound — все его uuid.
+     */
+    private Set<UUID> disableClientsQuietly(List<VpnKeyRepository.KeyRef> keys) {
+        Map<Long, List<UUID>> byInbound = new HashMap<>();
+        for (VpnKeyRepository.KeyRef key : keys) {
+            if (key.getInboundId() == null || key.getClientUuid() == null) continue;
+            byInbound.computeIfAbsent(key.getInboundId(), id -> new ArrayList<>()).add(key.getClientUuid());
+        }
+        Set<UUID> failed = new HashSet<>();
+        byInbound.forEach((inboundId, uuids) -> {
             try {
-                List<VpnKey> keys = vpnKeyRepository.findUserKeys(user.getId());
-                for (VpnKey key : keys) {
-                    try {
-                        if (key.getInboundId() != null && key.getClientUuid() != null) {
-                            xuiClient.disableClient(key.getInboundId(), key.getClientUuid());
-                        }
-                    } catch (Exception e) {
-                        log.warn("Не удалось выключить ключ клиента keyId={}: {}", key.getId(), safeMsg(e));
-                    }
-                }
+                failed.addAll(xuiClient.disableClients(inboundId, uuids));
             } catch (Exception e) {
-                log.warn("Ошибка при обработке отключенного пользователя userId={}: {}", user.getId(), safeMsg(e));
+                log.warn("Не удалось выключить клиентов inbound={} ({} шт.): {}", inboundId, uuids.size(), safeMsg(e));
+                failed.addAll(uuids);
             }
-        }
-        tx.execute(status -> {
-            userRepository.deleteAllInBatch(disabled);
-            return null;
         });
-        return disabled.size();
+        if (!failed.isEmpty()) {
+            log.warn("Очистка: {} клиентов не выключены в 3x-ui, их ключи оставлены до следующего запуска", failed.size());
+        }
+        return failed;
     }
 
-
-
     /**==========================================================
      * ====================ВНУТРЕННЯЯ ЛОГИКА=====================
      * ==========================================================
      */
 
     private VpnKey createNewPendingKeyTx(Long userId) {
-        userRepository.lockUser(userId);
+        guardUser(userId);
         ensureKeyLimit(userId);
-        return vpnKeyRepository.saveAndFlush(buildPendingKey(userId));
+        VpnKey key = saveNewKey(buildPendingKey(userId));
+        keysChanged(userId);
+        return key;
     }
 
     private Void ensureKeyForActiveSubscriptionTx(Long userId) {
-        userRepository.lockUser(userId);
+        guardUser(userId);
         List<ru.uzden.uzdenbot.entities.Subscription> unassigned = subscriptionRepository.findActiveUnassigned(
                 userRepository.getReferenceById(userId),
                 java.time.LocalDateTime.now()
@@ -376,18 +365,20 @@ public class VpnKeyService {
         VpnKey key = vpnKeyRepository.findFirstNonRevoked(userId).orElse(null);
         if (key == null) {
             ensureKeyLimit(userId);
-            key = vpnKeyRepository.saveAndFlush(buildPendingKey(userId));
+            key = saveNewKey(buildPendingKey(userId));
+            keysChanged(userId);
         }
 
         for (ru.uzden.uzdenbot.entities.Subscription sub : unassigned) {
             sub.setVpnKey(key);
             subscriptionRepository.save(sub);
+            subscriptionService.keyReassigned(sub, null);
         }
         return null;
     }
 
     private VpnKey createOrGetActiveOrPendingTx(Long userId) {
-        userRepository.lockUser(userId);
+        guardUser(userId);
 
         Optional<VpnKey> existing = vpnKeyRepository.findActiveOrPending(userId);
         if (existing.isPresent())
@@ -419,36 +410,15 @@ public class VpnKeyService {
         }
     }
 
-    private ReplaceContext replaceTx(Long userId) {
-        userRepository.lockUser(userId);
-
-        VpnKey old = vpnKeyRepository.findActiveOrPending(userId).orElse(null);
-        if (old != null) {
-            old.markRevoked();
-            old.setLastError(null);
-            vpnKeyRepository.save(old);
-            vpnKeyRepository.flush();
-        } else {
-            ensureKeyLimit(userId);
-        }
-
-        VpnKey pending = vpnKeyRepository.save(buildPendingKey(userId));
-        return new ReplaceContext(
-                pending.getId(),
-                old == null ? null : old.getInboundId(),
-                old == null ? null : old.getClientUuid()
-        );
-    }
-
     private ReplaceContext replaceKeyForUserTx(Long userId, long keyId) {
-        userRepository.lockUser(userId);
+        guardUser(userId);
 
         VpnKey old = vpnKeyRepository.findByIdAndUserId(keyId, userId).orElse(null);
         if (old == null) {
             throw new IllegalStateException("Ключ не найден");
         }
         if (old.getStatus() == VpnKey.Status.REVOKED || old.isRevoked()) {
-            throw new IllegalStateException("Ключ отозван");
+            throw new KeyRevokedException();
         }
         if (!subscriptionService.hasActiveSubscriptionForKey(old)) {
             throw new IllegalStateException("Нет активной подписки для этого ключа");
@@ -469,6 +439,8 @@ public class VpnKeyService {
         }
         activeSub.setVpnKey(pending);
         subscriptionRepository.save(activeSub);
+        subscriptionService.keyReassigned(activeSub, old);
+        keysChanged(userId);
 
         return new ReplaceContext(
                 pending.getId(),
@@ -503,9 +475,81 @@ public class VpnKeyService {
     }
 
     private void ensureKeyLimit(Long userId) {
-        long existing = vpnKeyRepository.countNonRevokedKeys(userId);
-        if (existing >= MAX_KEYS_PER_USER) {
-            throw new IllegalStateException("Достигнут лимит ключей (" + MAX_KEYS_PER_USER + ")");
+        // быстрая проверка; гарантию даёт CHECK на users.active_key_count при вставке ключа
+        if (userRepository.findActiveKeyCount(userId) >= MAX_KEYS_PER_USER) {
+            throw keyLimitReached();
+        }
+    }
+
+    private VpnKey saveNewKey(VpnKey pending) {
+        try {
+            return vpnKeyRepository.saveAndFlush(pending);
+        } catch (DataIntegrityViolationException e) {
+            if (isKeyLimitViolation(e)) {
+                throw keyLimitReached();
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isKeyLimitViolation(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            String m = t.getMessage();
+            if (m != null && m.contains("chk_users_active_key_count")) return true;
+        }
+        return false;
+    }
+
+    private static IllegalStateException keyLimitReached() {
+        return new IllegalStateException("Достигнут лимит ключей (" + MAX_KEYS_PER_USER + ")");
+    }
+
+    /**
+     * Сериализация изменений ключей одного пользователя.
+     * optimistic: версия users увеличивается при commit, конфликт повторяется в writeTx;
+     * pessimistic: SELECT ... FOR UPDATE на строку пользователя до конца транзакции.
+     */
+    private void guardUser(Long userId) {
+        if (optimisticLocking) {
+            userRepository.touchUser(userId);
+        } else {
+            userRepository.lockUser(userId);
+        }
+    }
+
+    /**
+     * Транзакция с ограниченным повтором при конфликте версий (users/vpn_keys).
+     * Внутри чужой транзакции конфликт всплывёт только при её commit, а повтор после ошибки
+     * упёрся бы в rollback-only — поэтому там выполняем один раз, повторяет внешний вызов.
+     */
+    private <T> T writeTx(TransactionCallback<T> action) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return tx.execute(action);
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return tx.execute(action);
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= optimisticRetries) {
+                    throw e;
+                }
+                log.debug("Конфликт версий, повтор {}/{}: {}", attempt, optimisticRetries, safeMsg(e));
+            }
+        }
+    }
+
+    public record PendingReplace(long newKeyId, Long oldInboundId, UUID oldClientUuid) {
+    }
+
+    public record KeysChangedEvent(Long userId) {
+    }
+
+    /**
+     * Ключ отозван, пока шла выдача или восстановление: повторять попытку бессмысленно.
+     */
+    public static class KeyRevokedException extends IllegalStateException {
+        public KeyRevokedException() {
+            super("Ключ отозван");
         }
     }
 
@@ -521,7 +565,7 @@ public class VpnKeyService {
         }
     }
 
-    private String normalizeUsername(String username) {
+    static String normalizeUsername(String username) {
         if (username == null) return null;
         String trimmed = username.trim();
         if (trimmed.isEmpty()) return null;
@@ -544,30 +588,17 @@ public class VpnKeyService {
     }
 
 
-    private VpnKey revokeTx(long userId) {
-        userRepository.lockUser(userId);
-
-        Optional<VpnKey> active = vpnKeyRepository.findActiveKey(userId);
-        if (active.isEmpty()) return null;
-
-        VpnKey key = active.get();
-        if (key.getStatus() == VpnKey.Status.REVOKED || key.isRevoked()) return key;
-
-        key.markRevoked();
-        key.setLastError(null);
-        return vpnKeyRepository.save(key);
-    }
-
     private VpnKey revokeByIdTx(long vpnKeyId) {
         VpnKey key = vpnKeyRepository.findById(vpnKeyId).orElse(null);
         if (key == null) return null;
 
-        userRepository.lockUser(key.getUser().getId());
+        guardUser(key.getUser().getId());
 
         if (key.getStatus() == VpnKey.Status.REVOKED || key.isRevoked()) return key;
 
         key.markRevoked();
         key.setLastError(null);
+        keysChanged(key.getUser().getId());
         return vpnKeyRepository.save(key);
     }
 
@@ -575,12 +606,13 @@ public class VpnKeyService {
         VpnKey key = vpnKeyRepository.findByIdAndUserId(vpnKeyId, userId).orElse(null);
         if (key == null) return null;
 
-        userRepository.lockUser(userId);
+        guardUser(userId);
 
         if (key.getStatus() == VpnKey.Status.REVOKED || key.isRevoked()) return key;
 
         key.markRevoked();
         key.setLastError(null);
+        keysChanged(userId);
         return vpnKeyRepository.save(key);
     }
 
@@ -594,78 +626,105 @@ public class VpnKeyService {
 
     private VpnKey markFailedTx(long vpnKeyId, String err) {
         VpnKey key = vpnKeyRepository.findById(vpnKeyId).orElseThrow();
-        key.markFailed(err);
+        if (key.isRevoked() || key.getStatus() == VpnKey.Status.REVOKED) {
+            key.setLastError(err);
+        } else {
+            key.markFailed(err);
+            keysChanged(key.getUser().getId());
+        }
         return vpnKeyRepository.save(key);
     }
 
     private VpnKey activateTx(long vpnKeyId, String keyValue) {
         VpnKey key = vpnKeyRepository.findById(vpnKeyId).orElseThrow();
+        // ключ могли отозвать, пока шёл выпуск в 3x-ui — не оживляем его
+        if (key.isRevoked() || key.getStatus() == VpnKey.Status.REVOKED) {
+            throw new KeyRevokedException();
+        }
         key.markActive(keyValue);
+        key.setLinkFingerprint(VlessLinkTemplate.fingerprintOfLink(keyValue));
+        keysChanged(key.getUser().getId());
         return vpnKeyRepository.save(key);
     }
 
-    /** ======================================================================
-     *  ================== ВНЕ TX: 3x-ui + построение ссылки =================
-     *  ======================================================================
+    /**
+     * Набор или статус ключей пользователя изменился. Слушатели получают событие после commit.
+     */
+    private void keysChanged(Long userId) {
+        eventPublisher.publishEvent(new KeysChangedEvent(userId));
+    }
 
-     /**
-     * Доводим ключ до ACTIVE:
-     *  - addClient (если он уже есть — можно обработать как идемпотентность)
-     *  - getInbound
-     *  - build vless://
-     *  - сохранить ACTIVE
-     *
-     * Важно: не держим транзакцию на время HTTP запросов.
+    /* ======================================================================
+     * ================== ВНЕ TX: 3x-ui + построение ссылки =================
+     * ======================================================================
      */
-    private VpnKey finalizeIssueOutsideTx(long keyId) {
-        VpnKey key = vpnKeyRepository.findById(keyId).orElseThrow();
 
-        // Если уже ACTIVE — вернуть
-        if (key.getStatus() == VpnKey.Status.ACTIVE && !key.isRevoked()) {
-            return key;
-        }
+    /**
+     * Одна попытка довести ключ до ACTIVE без компенсации при ошибке —
+     * повторы и markIssueFailed решает вызывающий (KeyIssuanceService).
+     * Время каждого этапа пишется в гистограмму vpn.key.issue.stage.
+     */
+    public VpnKey finalizeIssueAttempt(long keyId) {
+        VpnKey key = vpnKeyRepository.findById(keyId).orElseThrow();
 
         // Если отозван — не выдаём
         if (key.isRevoked() || key.getStatus() == VpnKey.Status.REVOKED) {
-            throw new IllegalStateException("Ключ отозван");
+            throw new KeyRevokedException();
         }
 
-        try {
-            // 1) создаём клиента в 3x-ui
-            xuiClient.addClient(key.getInboundId(), key.getClientUuid(), key.getClientEmail());
-
-            // 2) берём inbound json (твой inbound содержит streamSettings/settings)
-            String inboundJson = xuiClient.getInbound(key.getInboundId());
+        // Если уже ACTIVE — вернуть (при необходимости обновив ссылку)
+        if (key.getStatus() == VpnKey.Status.ACTIVE) {
+            return needsLinkRefresh(key) ? stage("refresh", () -> refreshActiveLink(key)) : key;
+        }
 
-            // 3) строим ссылку vless://... на основе inbound
-            String vlessLink = linkBuilder.buildRealityLink(
-                    inboundJson,
-                    publicHost,
-                    publicPort,
-                    key.getClientUuid(),
-                    linkTag
-            );
+        // 1) создаём клиента в 3x-ui (повтор идемпотентен: Duplicate email считается успехом)
+        stage("add_client", () -> {
+            xuiClient.addClient(key.getInboundId(), key.getClientUuid(), key.getClientEmail());
+            return null;
+        });
+        if (key.getStatus() == VpnKey.Status.FAILED) {
+            // после неудачного выпуска клиент отключён компенсацией — addClient его не включит
+            stage("enable_client", () -> {
+                xuiClient.enableClient(key.getInboundId(), key.getClientUuid());
+                return null;
+            });
+        }
 
-            // 4) финализируем в БД
-            return tx.execute(status -> activateTx(keyId, vlessLink));
+        // 2) строим ссылку vless://... по шаблону inbound (inbound json читается только при загрузке шаблона)
+        String vlessLink = stage("build_link", () -> linkTemplates.render(key.getInboundId(), key.getClientUuid()));
 
-        } catch (Exception e) {
-            log.error("Ошибка выпуска ключа keyId={} inbound={} uuid={}", keyId, key.getInboundId(), key.getClientUuid(), e);
+        // 3) финализируем в БД
+        return stage("activate", () -> writeTx(status -> activateTx(keyId, vlessLink)));
+    }
 
-            // помечаем FAILED
-            tx.execute(status -> markFailedTx(keyId, safeMsg(e)));
+    /**
+     * Выпуск окончательно не удался: FAILED в БД и disable клиента в 3x-ui.
+     */
+    public void markIssueFailed(long keyId, Exception e) {
+        VpnKey key = vpnKeyRepository.findById(keyId).orElse(null);
+        if (key == null) return;
+        log.error("Ошибка выпуска ключа keyId={} inbound={} uuid={}", keyId, key.getInboundId(), key.getClientUuid(), e);
 
-            // компенсация (по желанию):
-            // можно delete или disable — чаще disable безопаснее
-            try {
-                xuiClient.disableClient(key.getInboundId(), key.getClientUuid());
-            } catch (Exception ignored) {
-            }
+        // помечаем FAILED
+        writeTx(status -> markFailedTx(keyId, safeMsg(e)));
 
-            throw new IllegalStateException("Не удалось выпустить ключ: " + safeMsg(e), e);
+        // компенсация (по желанию):
+        // можно delete или disable — чаще disable безопаснее
+        try {
+            xuiClient.disableClient(key.getInboundId(), key.getClientUuid());
+        } catch (Exception ignored) {
         }
     }
 
+    private <T> T stage(String name, Supplier<T> action) {
+        Timer timer = stageTimers.computeIfAbsent(name, n -> Timer.builder("vpn.key.issue.stage")
+                .description("Длительность этапов выпуска ключа")
+                .tag("stage", n)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+        return timer.record(action);
+    }
+
     private String safeMsg(Throwable t) {
         String m = t.getMessage();
         return (m == null || m.isBlank()) ? t.getClass().getSimpleName() : m;
@@ -684,16 +743,9 @@ public class VpnKeyService {
 
     private VpnKey refreshActiveLink(VpnKey key) {
         try {
-            String inboundJson = xuiClient.getInbound(key.getInboundId());
-            String vlessLink = linkBuilder.buildRealityLink(
-                    inboundJson,
-                    publicHost,
-                    publicPort,
-                    key.getClientUuid(),
-                    linkTag
-            );
+            String vlessLink = linkTemplates.render(key.getInboundId(), key.getClientUuid());
             if (!vlessLink.equals(key.getKeyValue())) {
-                return tx.execute(status -> activateTx(key.getId(), vlessLink));
+                return writeTx(status -> activateTx(key.getId(), vlessLink));
             }
         } catch (Exception e) {
             log.warn("Не удалось обновить ссылку ACTIVE keyId={}: {}", key.getId(), safeMsg(e));
@@ -5,8 +5,14 @@ import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public final class BotMessageFactory {
 
+    // лимит Telegram — 4096 символов, оставляем запас
+    public static final int MAX_TEXT_LENGTH = 4000;
+
     private BotMessageFactory() {
     }
 
@@ -17,6 +23,26 @@ public final class BotMessageFactory {
                 .build();
     }
 
+    /**
+     * Разбить длинный текст по строкам на несколько сообщений в пределах лимита Telegram.
+     */
+    public static List<SendMessage> paginatedMessages(Long chatId, List<String> lines) {
+        List<SendMessage> out = new ArrayList<>();
+        StringBuilder page = new StringBuilder();
+        for (String line : lines) {
+            if (page.length() > 0 && page.length() + line.length() + 1 > MAX_TEXT_LENGTH) {
+                out.add(simpleMessage(chatId, page.toString()));
+                page.setLength(0);
+            }
+            if (page.length() > 0) page.append('\n');
+            page.append(line.length() > MAX_TEXT_LENGTH ? line.substring(0, MAX_TEXT_LENGTH) : line);
+        }
+        if (page.length() > 0) {
+            out.add(simpleMessage(chatId, page.toString()));
+        }
+        return out;
+    }
+
     public static EditMessageText editFromSendMessage(SendMessage sm, Long chatId, Integer messageId) {
         return EditMessageText.builder()
                 .chatId(chatId.toString())
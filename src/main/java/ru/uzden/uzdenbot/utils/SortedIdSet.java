@@ -0,0 +1,65 @@
+package ru.uzden.uzdenbot.utils;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемое отсортированное множество id на long[] (8 байт на элемент, без boxing).
+ * Изменения — copy-on-write: update возвращает новое множество.
+ */
+public final class SortedIdSet {
+
+    public static final SortedIdSet EMPTY = new SortedIdSet(new long[0]);
+
+    private final long[] ids;
+
+    private SortedIdSet(long[] ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * ids должны быть отсортированы по возрастанию и без повторов (order by id из БД).
+     */
+    public static SortedIdSet ofSorted(long[] ids, int size) {
+        return size == 0 ? EMPTY : new SortedIdSet(Arrays.copyOf(ids, size));
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean contains(long id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * До limit id строго больше afterId — страница для keyset-обхода.
+     */
+    public long[] after(long afterId, int limit) {
+        int pos = Arrays.binarySearch(ids, afterId);
+        int from = pos >= 0 ? pos + 1 : -pos - 1;
+        int to = (int) Math.min((long) from + limit, ids.length);
+        return from >= to ? new long[0] : Arrays.copyOfRange(ids, from, to);
+    }
+
+    /**
+     * Пачка изменений за один проход по массиву. add и remove отсортированы по возрастанию и без повторов.
+     */
+    public SortedIdSet update(long[] add, long[] remove) {
+        if (add.length == 0 && remove.length == 0) return this;
+        long[] next = new long[ids.length + add.length];
+        int i = 0, a = 0, r = 0, n = 0;
+        while (i < ids.length || a < add.length) {
+            long v;
+            if (a == add.length || (i < ids.length && ids[i] < add[a])) {
+                v = ids[i++];
+            } else {
+                if (i < ids.length && ids[i] == add[a]) i++;
+                v = add[a++];
+            }
+            while (r < remove.length && remove[r] < v) r++;
+            if (r < remove.length && remove[r] == v) continue;
+            next[n++] = v;
+        }
+        return ofSorted(next, n);
+    }
+}
@@ -2,6 +2,8 @@ package ru.uzden.uzdenbot.xui;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -29,6 +31,7 @@ public class ThreeXuiClient {
     private final RestClient rest;
     private final XuiProperties props;
     private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
     private final String normalizedBaseUrl;
     private final String normalizedBasePath;
 
@@ -57,14 +60,21 @@ public class ThreeXuiClient {
             "/panel/api/inbounds/list/"
     );
 
+    // id inbound'ов и UUID клиентов в пути -> {id}, чтобы тег endpoint не размножался
+    private static final Pattern PATH_ID = Pattern.compile("/(\\d+|[0-9a-fA-F-]{32,36})(?=/|$)");
+
+    private static final Pattern CLIENT_DISABLED = Pattern.compile("\"enable\"\\s*:\\s*false");
+
     private static final List<String> UPDATE_CLIENT_CANDIDATES = List.of(
             "/panel/api/inbounds/updateClient/%s",
             "/panel/api/inbounds/updateClient/%s/"
     );
 
-    public ThreeXuiClient(RestClient.Builder builder, XuiProperties props, ObjectMapper objectMapper) {
+    public ThreeXuiClient(RestClient.Builder builder, XuiProperties props, ObjectMapper objectMapper,
+                          MeterRegistry meterRegistry) {
         this.props = props;
         this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
 
         // Нормализация конфига: часто base-url и base-path путают местами.
         String bu = Objects.requireNonNull(props.baseUrl(), "xui.base-url is required").trim();
@@ -158,6 +168,45 @@ public class ThreeXuiClient {
     }
 
     public void disableClient(long inboundId, UUID clientUuid) {
+        setClientEnabled(inboundId, clientUuid, false);
+    }
+
+    /**
+     * Включить ранее отключённого клиента (повторный выпуск FAILED-ключа).
+     */
+    public void enableClient(long inboundId, UUID clientUuid) {
+        setClientEnabled(inboundId, clientUuid, true);
+    }
+
+    /**
+     * Отключить пачку клиентов одного inbound: inbound читается один раз,
+     * updateClient шлётся только для клиентов, которые ещё включены.
+     * Ошибка одного клиента не прерывает пачку. Возвращает uuid, которые отключить не удалось
+     * (отсутствующие в inbound и уже отключённые считаются успехом); ошибка чтения inbound — исключение.
+     */
+    public Set<UUID> disableClients(long inboundId, Collection<UUID> clientUuids) {
+        if (clientUuids == null || clientUuids.isEmpty()) return Set.of();
+        ensureLoggedIn();
+
+        String inbound = getInbound(inboundId);
+        String settings = JsonMini.unquoteIfString(JsonMini.extractFieldValue(inbound, "settings"));
+        Set<UUID> failed = new LinkedHashSet<>();
+        for (UUID clientUuid : clientUuids) {
+            String clientJson = extractClientObject(settings, clientUuid.toString());
+            if (clientJson == null || CLIENT_DISABLED.matcher(clientJson).find()) {
+                continue;
+            }
+            try {
+                updateClient(inboundId, clientUuid, setBooleanField(clientJson, "enable", false));
+            } catch (Exception e) {
+                log.warn("disableClient failed: inbound={}, uuid={}: {}", inboundId, clientUuid, e.getMessage());
+                failed.add(clientUuid);
+            }
+        }
+        return failed;
+    }
+
+    private void setClientEnabled(long inboundId, UUID clientUuid, boolean enabled) {
         ensureLoggedIn();
 
         String inbound = getInbound(inboundId);
@@ -166,8 +215,11 @@ public class ThreeXuiClient {
         if (clientJson == null) {
             return;
         }
-        String disabledClientJson = setBooleanField(clientJson, "enable", false);
-        String settingsJson = "{\"clients\":[" + disabledClientJson + "]}";
+        updateClient(inboundId, clientUuid, setBooleanField(clientJson, "enable", enabled));
+    }
+
+    private void updateClient(long inboundId, UUID clientUuid, String updatedClientJson) {
+        String settingsJson = "{\"clients\":[" + updatedClientJson + "]}";
 
         MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
         form.add("id", String.valueOf(inboundId));
@@ -339,7 +391,7 @@ public class ThreeXuiClient {
         return null;
     }
 
-    private static int indexOfId(String jsonArray, long id) {
+    static int indexOfId(String jsonArray, long id) {
         // ищем "id":<id> или "id": <id>
         String needle = "\"id\":" + id;
         int i = jsonArray.indexOf(needle);
@@ -392,12 +444,12 @@ public class ThreeXuiClient {
         // twoFactorCode отсутствует — оставляем пустым (если 2FA выключен)
         form.add("twoFactorCode", "");
 
-        var resp = rest.post()
+        var resp = timed("POST", LOGIN_PATH, () -> rest.post()
                 .uri(url(LOGIN_PATH))
                 .contentType(MediaType.APPLICATION_FORM_URLENCODED)
                 .body(form)
                 .retrieve()
-                .toEntity(String.class);
+                .toEntity(String.class));
 
         String setCookie = resp.getHeaders().getFirst(HttpHeaders.SET_COOKIE);
         if (setCookie == null || setCookie.isBlank()) {
@@ -434,19 +486,41 @@ public class ThreeXuiClient {
 
     /* ============================ http ============================ */
 
+    /**
+     * Таймер xui.request{method, endpoint, outcome} вокруг одного HTTP-вызова панели.
+     */
+    private <T> T timed(String method, String path, Supplier<T> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            T result = call.get();
+            outcome = "success";
+            return result;
+        } catch (HttpClientErrorException e) {
+            outcome = isAuthError(e) ? "auth_error" : "client_error";
+            throw e;
+        } finally {
+            sample.stop(Timer.builder("xui.request")
+                    .tag("method", method)
+                    .tag("endpoint", PATH_ID.matcher(path).replaceAll("/{id}"))
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+        }
+    }
+
     private String getWithAuth(String path) {
-        return rest.get()
+        return timed("GET", path, () -> rest.get()
                 .uri(url(path))
                 .header(HttpHeaders.COOKIE, authCookie)
                 .header(HttpHeaders.ACCEPT, "application/json, text/plain, */*")
                 .header("X-Requested-With", "XMLHttpRequest")
                 .header(HttpHeaders.REFERER, absolutePanelReferer())
                 .retrieve()
-                .body(String.class);
+                .body(String.class));
     }
 
     private String postFormWithAuth(String path, MultiValueMap<String, String> form) {
-        return rest.post()
+        return timed("POST", path, () -> rest.post()
                 .uri(url(path))
                 .header(HttpHeaders.COOKIE, authCookie)
                 .header(HttpHeaders.ACCEPT, "application/json, text/plain, */*")
@@ -455,11 +529,11 @@ public class ThreeXuiClient {
                 .contentType(MediaType.APPLICATION_FORM_URLENCODED)
                 .body(form)
                 .retrieve()
-                .body(String.class);
+                .body(String.class));
     }
 
     private void postJsonWithAuth(String path, String jsonBody) {
-        rest.post()
+        timed("POST", path, () -> rest.post()
                 .uri(url(path))
                 .header(HttpHeaders.COOKIE, authCookie)
                 .header(HttpHeaders.ACCEPT, "application/json, text/plain, */*")
@@ -468,7 +542,7 @@ public class ThreeXuiClient {
                 .contentType(MediaType.APPLICATION_JSON)
                 .body(jsonBody)
                 .retrieve()
-                .toBodilessEntity();
+                .toBodilessEntity());
     }
 
     /* ============================ json mini ============================ */
@@ -530,7 +604,7 @@ public class ThreeXuiClient {
         return t;
     }
 
-    private static String extractClientObject(String settingsJson, String clientUuid) {
+    static String extractClientObject(String settingsJson, String clientUuid) {
         if (settingsJson == null || settingsJson.isBlank() || clientUuid == null || clientUuid.isBlank()) return null;
         int idx = settingsJson.indexOf(clientUuid);
         if (idx < 0) return null;
@@ -543,7 +617,7 @@ public class ThreeXuiClient {
         return obj;
     }
 
-    private static String setBooleanField(String jsonObj, String field, boolean value) {
+    static String setBooleanField(String jsonObj, String field, boolean value) {
         if (jsonObj == null || jsonObj.isBlank() || field == null || field.isBlank()) return jsonObj;
         String v = value ? "true" : "false";
         Pattern p = Pattern.compile("\"" + Pattern.quote(field) + "\"\\s*:\\s*(true|false)");
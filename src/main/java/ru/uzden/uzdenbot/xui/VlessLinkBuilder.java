@@ -47,6 +47,31 @@ public class VlessLinkBuilder {
             int publicPort,
             String clientUuid,
             String linkTag
+    ) {
+        return compile(inboundJson, publicHost, publicPort, clientUuid, linkTag).render(clientUuid);
+    }
+
+    /**
+     * Разобрать inbound один раз и получить шаблон ссылки, общий для всех клиентов inbound:
+     * flow/encryption берутся с уровня inbound (наши клиенты создаются с одинаковыми настройками).
+     */
+    public VlessLinkTemplate compileRealityTemplate(
+            long inboundId,
+            String inboundJson,
+            String publicHost,
+            int publicPort,
+            String linkTag
+    ) {
+        VlessLinkTemplate t = compile(inboundJson, publicHost, publicPort, null, linkTag);
+        return new VlessLinkTemplate(inboundId, t.suffix());
+    }
+
+    private VlessLinkTemplate compile(
+            String inboundJson,
+            String publicHost,
+            int publicPort,
+            String clientUuid,
+            String linkTag
     ) {
         try {
             String inbound = JsonMini.unquoteIfString(inboundJson);
@@ -138,7 +163,7 @@ public class VlessLinkBuilder {
             }
 
             String tag = (linkTag == null || linkTag.isBlank()) ? "vpn" : linkTag;
-            return "vless://" + clientUuid + "@" + publicHost + ":" + publicPort + "?" + qs + "#" + urlFragment(tag);
+            return new VlessLinkTemplate(0, "@" + publicHost + ":" + publicPort + "?" + qs + "#" + urlFragment(tag));
 
         } catch (Exception e) {
             throw new IllegalStateException("Failed to build VLESS Reality link", e);
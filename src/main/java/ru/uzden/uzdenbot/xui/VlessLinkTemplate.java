@@ -0,0 +1,38 @@
+package ru.uzden.uzdenbot.xui;
+
+import java.util.UUID;
+
+/**
+ * Скомпилированная vless:// ссылка inbound'а: всё, кроме UUID клиента, уже собрано и закодировано.
+ * suffix = "@host:port?query#fragment".
+ */
+public record VlessLinkTemplate(long inboundId, String suffix) {
+
+    public String render(UUID clientUuid) {
+        return render(clientUuid.toString());
+    }
+
+    public String render(String clientUuid) {
+        return "vless://" + clientUuid + suffix;
+    }
+
+    /**
+     * Отпечаток параметров ссылки: меняется вместе с настройками Reality/stream inbound'а.
+     */
+    public String fingerprint() {
+        return fingerprintOf(suffix);
+    }
+
+    /**
+     * Отпечаток готовой ссылки; совпадает с fingerprint() шаблона, из которого она собрана.
+     */
+    public static String fingerprintOfLink(String link) {
+        if (link == null || !link.startsWith("vless://")) return null;
+        int at = link.indexOf('@');
+        return at < 0 ? null : fingerprintOf(link.substring(at));
+    }
+
+    private static String fingerprintOf(String suffix) {
+        return Integer.toHexString(suffix.hashCode());
+    }
+}
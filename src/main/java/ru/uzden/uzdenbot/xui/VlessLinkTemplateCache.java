@@ -0,0 +1,79 @@
+package ru.uzden.uzdenbot.xui;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Шаблоны vless:// ссылок по inbound'ам.
+ *
+ * Inbound JSON разбирается только при загрузке шаблона (раз в ttl или после invalidate),
+ * построение ссылки для ключа — склейка строк. При перезагрузке сравниваем отпечаток:
+ * если настройки stream/Reality поменялись, шаблон заменяется.
+ */
+@Slf4j
+@Component
+public class VlessLinkTemplateCache {
+
+    private final ThreeXuiClient xuiClient;
+    private final VlessLinkBuilder linkBuilder;
+    private final String publicHost;
+    private final int publicPort;
+    private final String linkTag;
+    private final long ttlMs;
+
+    private final Map<Long, Entry> templates = new ConcurrentHashMap<>();
+
+    public VlessLinkTemplateCache(
+            ThreeXuiClient xuiClient,
+            VlessLinkBuilder linkBuilder,
+            @Value("${xui.public-host:62.60.229.102}") String publicHost,
+            @Value("${xui.public-port:8441}") int publicPort,
+            @Value("${xui.link-tag:reality443-auto}") String linkTag,
+            @Value("${xui.link-template-ttl-ms:300000}") long ttlMs) {
+        this.xuiClient = xuiClient;
+        this.linkBuilder = linkBuilder;
+        this.publicHost = publicHost;
+        this.publicPort = publicPort;
+        this.linkTag = linkTag;
+        this.ttlMs = Math.max(0, ttlMs);
+    }
+
+    public String render(long inboundId, UUID clientUuid) {
+        return get(inboundId).render(clientUuid);
+    }
+
+    public VlessLinkTemplate get(long inboundId) {
+        Entry e = templates.get(inboundId);
+        if (e != null && System.currentTimeMillis() - e.loadedAt < ttlMs) {
+            return e.template;
+        }
+        return reload(inboundId);
+    }
+
+    /**
+     * Перечитать inbound из 3x-ui и пересобрать шаблон.
+     */
+    public VlessLinkTemplate reload(long inboundId) {
+        String inboundJson = xuiClient.getInbound(inboundId);
+        VlessLinkTemplate fresh = linkBuilder.compileRealityTemplate(
+                inboundId, inboundJson, publicHost, publicPort, linkTag);
+        Entry prev = templates.put(inboundId, new Entry(fresh, System.currentTimeMillis()));
+        if (prev != null && !prev.template.fingerprint().equals(fresh.fingerprint())) {
+            log.info("Настройки inbound {} изменились: шаблон ссылки {} -> {}",
+                    inboundId, prev.template.fingerprint(), fresh.fingerprint());
+        }
+        return fresh;
+    }
+
+    public void invalidate(long inboundId) {
+        templates.remove(inboundId);
+    }
+
+    private record Entry(VlessLinkTemplate template, long loadedAt) {
+    }
+}
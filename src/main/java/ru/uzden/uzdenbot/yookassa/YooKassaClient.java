@@ -1,9 +1,14 @@
 package ru.uzden.uzdenbot.yookassa;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestClientResponseException;
+
+import java.util.function.Supplier;
 
 @Service
 @RequiredArgsConstructor
@@ -11,6 +16,7 @@ public class YooKassaClient {
 
     private final RestClient.Builder restClientBuilder;
     private final YooKassaProperties properties;
+    private final MeterRegistry meterRegistry;
 
     private RestClient buildClient() {
         return restClientBuilder
@@ -20,21 +26,39 @@ public class YooKassaClient {
     }
 
     public YooKassaPayment createPayment(YooKassaCreatePaymentRequest request, String idempotencyKey) {
-        return buildClient()
+        return timed("create_payment", () -> buildClient()
                 .post()
                 .uri("/payments")
                 .header("Idempotence-Key", idempotencyKey)
                 .header(HttpHeaders.CONTENT_TYPE, "application/json")
                 .body(request)
                 .retrieve()
-                .body(YooKassaPayment.class);
+                .body(YooKassaPayment.class));
     }
 
     public YooKassaPayment getPayment(String paymentId) {
-        return buildClient()
+        return timed("get_payment", () -> buildClient()
                 .get()
                 .uri("/payments/{id}", paymentId)
                 .retrieve()
-                .body(YooKassaPayment.class);
+                .body(YooKassaPayment.class));
+    }
+
+    private <T> T timed(String operation, Supplier<T> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            T result = call.get();
+            outcome = "success";
+            return result;
+        } catch (RestClientResponseException e) {
+            outcome = "http_" + e.getStatusCode().value();
+            throw e;
+        } finally {
+            sample.stop(Timer.builder("yookassa.request")
+                    .tag("operation", operation)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry));
+        }
     }
 }
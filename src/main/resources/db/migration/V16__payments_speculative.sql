@@ -0,0 +1,10 @@
+-- =========================
+-- V16: Pre-created (speculative) checkout payments
+-- =========================
+
+ALTER TABLE payments
+  ADD COLUMN IF NOT EXISTS speculative BOOLEAN NOT NULL DEFAULT false;
+
+CREATE INDEX IF NOT EXISTS idx_payments_speculative_pending
+  ON payments(created_at)
+  WHERE speculative = true AND processed_at IS NULL;
@@ -0,0 +1,13 @@
+-- =========================
+-- V17: Partial indexes for pending (unprocessed) payments
+-- =========================
+
+-- reconcile: keyset-проход по необработанным платежам провайдера
+CREATE INDEX IF NOT EXISTS idx_payments_pending_provider_created
+  ON payments(provider, created_at, id)
+  WHERE processed_at IS NULL;
+
+-- сверка платежей конкретного пользователя при открытии меню
+CREATE INDEX IF NOT EXISTS idx_payments_pending_user_created
+  ON payments(user_id, provider, created_at)
+  WHERE processed_at IS NULL;
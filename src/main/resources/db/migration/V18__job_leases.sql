@@ -0,0 +1,15 @@
+-- =========================
+-- V18: Lease columns for claim-based scheduled jobs (multi-instance)
+-- =========================
+
+ALTER TABLE payments
+  ADD COLUMN IF NOT EXISTS lease_owner TEXT,
+  ADD COLUMN IF NOT EXISTS lease_until TIMESTAMP;
+
+ALTER TABLE vpn_keys
+  ADD COLUMN IF NOT EXISTS lease_owner TEXT,
+  ADD COLUMN IF NOT EXISTS lease_until TIMESTAMP;
+
+ALTER TABLE subscriptions
+  ADD COLUMN IF NOT EXISTS lease_owner TEXT,
+  ADD COLUMN IF NOT EXISTS lease_until TIMESTAMP;
@@ -0,0 +1,13 @@
+-- =========================
+-- V19: Partial indexes for expiry notifications
+-- =========================
+
+-- уведомление "через 2 дня": окно по end_date среди ещё не уведомлённых
+CREATE INDEX IF NOT EXISTS idx_subscriptions_notify_two_days
+  ON subscriptions(end_date)
+  WHERE notified_two_days_at IS NULL;
+
+-- уведомление "завтра"
+CREATE INDEX IF NOT EXISTS idx_subscriptions_notify_one_day
+  ON subscriptions(end_date)
+  WHERE notified_one_day_at IS NULL;
@@ -0,0 +1,21 @@
+-- =========================
+-- V20: Denormalized key expiry (max subscriptions.end_date per key)
+-- =========================
+
+ALTER TABLE vpn_keys
+  ADD COLUMN IF NOT EXISTS paid_until TIMESTAMP;
+
+UPDATE vpn_keys k
+SET paid_until = s.max_end
+FROM (
+  SELECT key_id, MAX(end_date) AS max_end
+  FROM subscriptions
+  WHERE key_id IS NOT NULL
+  GROUP BY key_id
+) s
+WHERE s.key_id = k.id;
+
+-- поиск активных ключей с истёкшей/отсутствующей оплатой
+CREATE INDEX IF NOT EXISTS idx_vpn_keys_active_paid_until
+  ON vpn_keys(paid_until)
+  WHERE is_revoked = false AND status = 'ACTIVE';
@@ -0,0 +1,8 @@
+-- =========================
+-- V21: Partial index for active subscriptions without a key
+-- =========================
+
+-- existsActiveUnassigned: проверка перед привязкой подписки к ключу
+CREATE INDEX IF NOT EXISTS idx_subscriptions_unassigned_user_end
+  ON subscriptions(user_id, end_date)
+  WHERE key_id IS NULL;
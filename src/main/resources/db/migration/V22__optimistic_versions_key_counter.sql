@@ -0,0 +1,52 @@
+-- =========================
+-- V22: Optimistic versions and per-user key counter
+-- =========================
+
+ALTER TABLE users
+  ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0,
+  ADD COLUMN IF NOT EXISTS active_key_count INT NOT NULL DEFAULT 0;
+
+ALTER TABLE vpn_keys
+  ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;
+
+-- счётчик не отозванных ключей (то же, что считал countNonRevokedKeys)
+UPDATE users u
+SET active_key_count = k.cnt
+FROM (
+  SELECT user_id, COUNT(*) AS cnt
+  FROM vpn_keys
+  WHERE is_revoked = false AND status <> 'REVOKED'
+  GROUP BY user_id
+) k
+WHERE k.user_id = u.id;
+
+CREATE OR REPLACE FUNCTION vpn_keys_count_trg() RETURNS trigger AS $$
+DECLARE
+  was_counted BOOLEAN := false;
+  is_counted  BOOLEAN := false;
+BEGIN
+  IF TG_OP IN ('UPDATE', 'DELETE') THEN
+    was_counted := (OLD.is_revoked = false AND OLD.status <> 'REVOKED');
+  END IF;
+  IF TG_OP IN ('INSERT', 'UPDATE') THEN
+    is_counted := (NEW.is_revoked = false AND NEW.status <> 'REVOKED');
+  END IF;
+
+  IF was_counted AND NOT is_counted THEN
+    UPDATE users SET active_key_count = active_key_count - 1 WHERE id = OLD.user_id;
+  ELSIF is_counted AND NOT was_counted THEN
+    UPDATE users SET active_key_count = active_key_count + 1 WHERE id = NEW.user_id;
+  END IF;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS trg_vpn_keys_count ON vpn_keys;
+CREATE TRIGGER trg_vpn_keys_count
+  AFTER INSERT OR DELETE OR UPDATE OF is_revoked, status ON vpn_keys
+  FOR EACH ROW EXECUTE FUNCTION vpn_keys_count_trg();
+
+-- лимит ключей (VpnKeyService.MAX_KEYS_PER_USER); NOT VALID — старые превышения не блокируют миграцию
+ALTER TABLE users
+  ADD CONSTRAINT chk_users_active_key_count
+  CHECK (active_key_count >= 0 AND active_key_count <= 3) NOT VALID;
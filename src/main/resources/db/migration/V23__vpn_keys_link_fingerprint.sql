@@ -0,0 +1,12 @@
+-- =========================
+-- V23: Fingerprint of the link template a key was built from
+-- =========================
+
+-- NULL — ссылка собрана до появления колонки; такие ключи пересоберёт первый проход LinkRefreshService
+ALTER TABLE vpn_keys
+  ADD COLUMN IF NOT EXISTS link_fingerprint VARCHAR(32);
+
+-- keyset-проход LinkRefreshService по ACTIVE-ключам inbound'а
+CREATE INDEX IF NOT EXISTS idx_vpn_keys_active_inbound_id
+  ON vpn_keys(inbound_id, id)
+  WHERE is_revoked = false AND status = 'ACTIVE';
@@ -0,0 +1,12 @@
+-- =========================
+-- V24: Attempt counter and backoff for stale key recovery
+-- =========================
+
+ALTER TABLE vpn_keys
+  ADD COLUMN IF NOT EXISTS recovery_attempts INT NOT NULL DEFAULT 0,
+  ADD COLUMN IF NOT EXISTS next_recovery_at TIMESTAMP;
+
+-- lockRecoverable: только незавершённые ключи
+CREATE INDEX IF NOT EXISTS idx_vpn_keys_recoverable
+  ON vpn_keys(updated_at)
+  WHERE is_revoked = false AND status IN ('PENDING', 'FAILED');
@@ -0,0 +1,27 @@
+-- =========================
+-- V25: Persistent broadcast jobs (resumable after restart)
+-- =========================
+
+CREATE TABLE IF NOT EXISTS broadcast_jobs (
+  id                BIGSERIAL PRIMARY KEY,
+  admin_chat_id     BIGINT NOT NULL,
+  status_message_id INT,
+  text              TEXT NOT NULL,
+  audience          VARCHAR(32) NOT NULL DEFAULT 'ALL',
+  status            VARCHAR(16) NOT NULL DEFAULT 'RUNNING',
+  total             INT NOT NULL DEFAULT 0,
+  -- keyset-курсор: последний обработанный users.id
+  cursor_user_id    BIGINT NOT NULL DEFAULT 0,
+  delivered         INT NOT NULL DEFAULT 0,
+  blocked           INT NOT NULL DEFAULT 0,
+  failed            INT NOT NULL DEFAULT 0,
+  lease_owner       TEXT,
+  lease_until       TIMESTAMP,
+  created_at        TIMESTAMP NOT NULL DEFAULT now(),
+  updated_at        TIMESTAMP NOT NULL DEFAULT now(),
+  finished_at       TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS idx_broadcast_jobs_running
+  ON broadcast_jobs(id)
+  WHERE status = 'RUNNING';
@@ -0,0 +1,45 @@
+-- =========================
+-- V26: Admin bulk jobs (mass grant/revoke of subscriptions)
+-- =========================
+
+CREATE TABLE IF NOT EXISTS admin_bulk_jobs (
+  id                BIGSERIAL PRIMARY KEY,
+  admin_chat_id     BIGINT NOT NULL,
+  status_message_id INT,
+  operation         VARCHAR(16) NOT NULL,
+  days              INT NOT NULL DEFAULT 0,
+  -- источник получателей: сегмент, список из сообщения или файл Telegram
+  audience          VARCHAR(32),
+  source_text       TEXT,
+  file_id           TEXT,
+  status            VARCHAR(16) NOT NULL DEFAULT 'RESOLVING',
+  total             INT NOT NULL DEFAULT 0,
+  not_found         INT NOT NULL DEFAULT 0,
+  not_found_sample  TEXT,
+  -- keyset-курсор: последний обработанный users.id
+  cursor_user_id    BIGINT NOT NULL DEFAULT 0,
+  applied           INT NOT NULL DEFAULT 0,
+  skipped           INT NOT NULL DEFAULT 0,
+  failed            INT NOT NULL DEFAULT 0,
+  -- почему задание остановлено без обработки (например, файл не скачался)
+  error             TEXT,
+  lease_owner       TEXT,
+  lease_until       TIMESTAMP,
+  created_at        TIMESTAMP NOT NULL DEFAULT now(),
+  updated_at        TIMESTAMP NOT NULL DEFAULT now(),
+  finished_at       TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS idx_admin_bulk_jobs_open
+  ON admin_bulk_jobs(id)
+  WHERE status <> 'DONE';
+
+-- найденные получатели списка/файла; для сегмента не заполняется
+CREATE TABLE IF NOT EXISTS admin_bulk_job_targets (
+  job_id  BIGINT NOT NULL REFERENCES admin_bulk_jobs(id) ON DELETE CASCADE,
+  user_id BIGINT NOT NULL,
+  PRIMARY KEY (job_id, user_id)
+);
+
+-- поиск по @username без учёта регистра пачками
+CREATE INDEX IF NOT EXISTS idx_users_username_lower ON users(lower(username));
@@ -0,0 +1,10 @@
+-- =========================
+-- V27: Admin bulk jobs — пользователи из страниц, не применившихся после всех повторов
+-- =========================
+
+ALTER TABLE admin_bulk_job_targets
+  ADD COLUMN IF NOT EXISTS failed BOOLEAN NOT NULL DEFAULT false;
+
+CREATE INDEX IF NOT EXISTS idx_admin_bulk_job_targets_failed
+  ON admin_bulk_job_targets(job_id)
+  WHERE failed;
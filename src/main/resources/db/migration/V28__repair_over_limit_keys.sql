@@ -0,0 +1,42 @@
+-- =========================
+-- V28: Repair users over the key limit and validate chk_users_active_key_count
+-- =========================
+
+-- NOT VALID из V22 проверяется на каждом UPDATE users: у пользователя с legacy-превышением
+-- падали touchUser / updateProfile / updateDisabled, и он не мог даже отозвать лишний ключ.
+-- Снимаем ограничение на время починки: иначе сами уменьшения счётчика триггером (5 -> 4) не пройдут.
+ALTER TABLE users DROP CONSTRAINT IF EXISTS chk_users_active_key_count;
+
+-- у каждого пользователя остаются три самых старых не отозванных ключа, более новые отзываются;
+-- клиентов в 3x-ui выключит очистка отозванных ключей (purgeRevokedKeys)
+UPDATE vpn_keys k
+SET is_revoked = true,
+    status = 'REVOKED',
+    last_error = 'revoked by V28: over the 3-key limit',
+    updated_at = now(),
+    version = version + 1
+FROM (
+  SELECT id,
+         row_number() OVER (PARTITION BY user_id ORDER BY created_at ASC, id ASC) AS rn
+  FROM vpn_keys
+  WHERE is_revoked = false AND status <> 'REVOKED'
+) ranked
+WHERE ranked.id = k.id
+  AND ranked.rn > 3;
+
+-- счётчик заново по факту (триггер уже поправил его выше, это страховка от прежнего дрейфа)
+UPDATE users u
+SET active_key_count = COALESCE(k.cnt, 0)
+FROM (
+  SELECT u2.id AS user_id,
+         (SELECT COUNT(*) FROM vpn_keys vk
+          WHERE vk.user_id = u2.id AND vk.is_revoked = false AND vk.status <> 'REVOKED') AS cnt
+  FROM users u2
+) k
+WHERE k.user_id = u.id
+  AND u.active_key_count IS DISTINCT FROM k.cnt;
+
+-- лимит ключей (VpnKeyService.MAX_KEYS_PER_USER); теперь проверяется и для существующих строк
+ALTER TABLE users
+  ADD CONSTRAINT chk_users_active_key_count
+  CHECK (active_key_count >= 0 AND active_key_count <= 3);
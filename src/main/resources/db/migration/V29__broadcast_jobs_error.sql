@@ -0,0 +1,6 @@
+-- =========================
+-- V29: Broadcast jobs — причина остановки (аудитория не распознана)
+-- =========================
+
+ALTER TABLE broadcast_jobs
+  ADD COLUMN IF NOT EXISTS error TEXT;
@@ -0,0 +1,65 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import ru.uzden.uzdenbot.services.CallbackCodec;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Нагрузочный прогон бота против локальных fake Telegram / 3x-ui / YooKassa.
+ * Запуск: mvn -Pload-test test (PostgreSQL и Redis — как для обычного запуска приложения).
+ */
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class BotLoadTest {
+
+    static final FakeTelegram TELEGRAM = new FakeTelegram(Faults.fromSystemProperties("telegram"));
+    static final FakeXuiPanel XUI = new FakeXuiPanel(Faults.fromSystemProperties("xui"));
+    static final FakeYooKassa YOOKASSA = new FakeYooKassa(Faults.fromSystemProperties("yookassa"));
+
+    @LocalServerPort
+    int port;
+
+    @Autowired
+    CallbackCodec callbackCodec;
+
+    @DynamicPropertySource
+    static void fakes(DynamicPropertyRegistry registry) {
+        registry.add("telegram.bot.api-url", () -> TELEGRAM.baseUrl() + "/bot");
+        registry.add("telegram.bot.token", () -> "loadtest");
+        registry.add("telegram.bot.username", () -> "loadtest_bot");
+        registry.add("xui.base-url", XUI::baseUrl);
+        registry.add("xui.base-path", () -> "");
+        registry.add("xui.username", () -> "admin");
+        registry.add("xui.password", () -> "admin");
+        registry.add("xui.inbound-id", () -> FakeXuiPanel.INBOUND_ID);
+        registry.add("yookassa.api-base", YOOKASSA::apiBase);
+        registry.add("yookassa.shop-id", () -> "loadtest");
+        registry.add("yookassa.secret-key", () -> "loadtest");
+        registry.add("yookassa.webhook-secret", () -> "");
+        // сессии драйвера шагают быстрее пользовательского лимита
+        registry.add("app.rate-limit.max-requests", () -> 1_000_000);
+    }
+
+    @AfterAll
+    static void stopFakes() {
+        TELEGRAM.close();
+        XUI.close();
+        YOOKASSA.close();
+    }
+
+    @Test
+    void replaySyntheticSessions() throws Exception {
+        LoadDriver driver = new LoadDriver(TELEGRAM, YOOKASSA, callbackCodec, "http://127.0.0.1:" + port,
+                LoadDriver.Config.fromSystemProperties());
+        FlowStats stats = driver.run();
+        assertTrue(stats.completed("start") > 0, "no session got past /start");
+    }
+}
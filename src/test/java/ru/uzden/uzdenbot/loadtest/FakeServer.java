@@ -0,0 +1,123 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Основа fake-сервисов: JDK HttpServer на свободном порту 127.0.0.1, задержки/ошибки из Faults.
+ */
+abstract class FakeServer implements AutoCloseable {
+
+    protected final ObjectMapper json = new ObjectMapper();
+    private final Faults faults;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    FakeServer(String name, Faults faults) {
+        this.faults = faults;
+        try {
+            this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot start " + name, e);
+        }
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::dispatch);
+        server.start();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    protected abstract Response handle(Request request) throws Exception;
+
+    /**
+     * Long-poll и служебные вызовы не должны получать искусственных задержек.
+     */
+    protected boolean injectFaults(Request request) {
+        return true;
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Request request = new Request(
+                    exchange.getRequestMethod(),
+                    exchange.getRequestURI().getPath(),
+                    exchange.getRequestURI().getRawQuery(),
+                    body,
+                    exchange.getRequestHeaders());
+            Response response;
+            if (injectFaults(request) && applyFaults()) {
+                response = new Response(500, "{\"error\":\"injected\"}", Map.of());
+            } else {
+                response = handle(request);
+            }
+            byte[] bytes = response.body().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            response.headers().forEach((k, v) -> exchange.getResponseHeaders().add(k, v));
+            exchange.sendResponseHeaders(response.status(), bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        } catch (Exception e) {
+            exchange.sendResponseHeaders(500, -1);
+        }
+    }
+
+    private boolean applyFaults() throws InterruptedException {
+        faults.delay();
+        return faults.fail();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static Map<String, String> parseForm(String body) {
+        Map<String, String> out = new HashMap<>();
+        if (body == null || body.isBlank()) return out;
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            String k = eq < 0 ? pair : pair.substring(0, eq);
+            String v = eq < 0 ? "" : pair.substring(eq + 1);
+            out.put(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    record Request(String method, String path, String query, String body, Headers headers) {
+    }
+
+    record Response(int status, String body, Map<String, String> headers) {
+
+        static Response ok(String body) {
+            return new Response(200, body, Map.of());
+        }
+
+        static Response status(int status, String body) {
+            return new Response(status, body, Map.of());
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import ru.uzden.uzdenbot.services.CallbackCodec;
+import ru.uzden.uzdenbot.services.CallbackOp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Fake Telegram Bot API для long-polling бота.
+ *
+ * Драйвер кладёт апдейты (сообщения и нажатия кнопок) в очередь, которую бот забирает getUpdates;
+ * исходящие sendMessage/editMessageText складываются в журнал чата, где их ждёт драйвер.
+ */
+class FakeTelegram extends FakeServer {
+
+    private static final long MAX_POLL_WAIT_MS = 1000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasUpdates = lock.newCondition();
+    private final List<ObjectNode> pending = new ArrayList<>();
+    private final AtomicLong nextUpdateId = new AtomicLong(1);
+    private final AtomicInteger nextMessageId = new AtomicInteger(1);
+    private final AtomicLong nextCallbackId = new AtomicLong(1);
+    private final Map<Long, ChatLog> chats = new ConcurrentHashMap<>();
+
+    FakeTelegram(Faults faults) {
+        super("fake-telegram", faults);
+    }
+
+    ChatLog chat(long chatId) {
+        return chats.computeIfAbsent(chatId, id -> new ChatLog());
+    }
+
+    void pushMessage(long userId, String text) {
+        ObjectNode message = message(userId, nextMessageId.incrementAndGet(), text);
+        message.set("from", user(userId));
+        ObjectNode update = json.createObjectNode();
+        update.set("message", message);
+        enqueue(update);
+    }
+
+    void pushCallback(long userId, int messageId, String data) {
+        ObjectNode cq = json.createObjectNode();
+        cq.put("id", "cb" + nextCallbackId.getAndIncrement());
+        cq.set("from", user(userId));
+        cq.set("message", message(userId, messageId, "menu"));
+        cq.put("chat_instance", Long.toString(userId));
+        cq.put("data", data);
+        ObjectNode update = json.createObjectNode();
+        update.set("callback_query", cq);
+        enqueue(update);
+    }
+
+    @Override
+    protected boolean injectFaults(Request request) {
+        String method = method(request);
+        return !method.equals("getupdates") && !method.equals("deletewebhook") && !method.equals("getme");
+    }
+
+    @Override
+    protected Response handle(Request request) throws Exception {
+        String method = method(request);
+        JsonNode body = request.body().isBlank() ? json.createObjectNode() : json.readTree(request.body());
+        return switch (method) {
+            case "getupdates" -> ok(poll(body.path("offset").asLong(0), body.path("limit").asInt(100),
+                    body.path("timeout").asLong(0)));
+            case "getme" -> ok(bot());
+            case "sendmessage" -> ok(record(body, nextMessageId.incrementAndGet()));
+            case "editmessagetext" -> ok(record(body, body.path("message_id").asInt()));
+            default -> ok(json.getNodeFactory().booleanNode(true));
+        };
+    }
+
+    private ArrayNode poll(long offset, int limit, long timeoutSeconds) throws InterruptedException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(Math.min(MAX_POLL_WAIT_MS, TimeUnit.SECONDS.toMillis(timeoutSeconds)));
+        lock.lock();
+        try {
+            pending.removeIf(u -> u.path("update_id").asLong() < offset);
+            while (pending.isEmpty()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) break;
+                hasUpdates.awaitNanos(left);
+            }
+            ArrayNode out = json.createArrayNode();
+            for (int i = 0; i < pending.size() && i < limit; i++) {
+                out.add(pending.get(i));
+            }
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(ObjectNode update) {
+        lock.lock();
+        try {
+            update.put("update_id", nextUpdateId.getAndIncrement());
+            pending.add(update);
+            hasUpdates.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ObjectNode record(JsonNode body, int messageId) {
+        long chatId = body.path("chat_id").asLong();
+        List<String> callbacks = new ArrayList<>();
+        for (JsonNode row : body.path("reply_markup").path("inline_keyboard")) {
+            for (JsonNode button : row) {
+                if (button.hasNonNull("callback_data")) callbacks.add(button.get("callback_data").asText());
+            }
+        }
+        String text = body.path("text").asText("");
+        chat(chatId).add(new Outgoing(messageId, text, callbacks, System.nanoTime()));
+        return message(chatId, messageId, text);
+    }
+
+    private ObjectNode message(long chatId, int messageId, String text) {
+        ObjectNode message = json.createObjectNode();
+        message.put("message_id", messageId);
+        message.put("date", System.currentTimeMillis() / 1000);
+        ObjectNode chat = message.putObject("chat");
+        chat.put("id", chatId);
+        chat.put("type", "private");
+        message.put("text", text);
+        return message;
+    }
+
+    private ObjectNode user(long userId) {
+        ObjectNode user = json.createObjectNode();
+        user.put("id", userId);
+        user.put("is_bot", false);
+        user.put("first_name", "Load");
+        user.put("username", "lt_" + userId);
+        return user;
+    }
+
+    private ObjectNode bot() {
+        ObjectNode user = json.createObjectNode();
+        user.put("id", 1);
+        user.put("is_bot", true);
+        user.put("first_name", "LoadTest");
+        user.put("username", "loadtest_bot");
+        return user;
+    }
+
+    private Response ok(JsonNode result) throws Exception {
+        ObjectNode root = json.createObjectNode();
+        root.put("ok", true);
+        root.set("result", result);
+        return Response.ok(json.writeValueAsString(root));
+    }
+
+    private static String method(Request request) {
+        String path = request.path();
+        return path.substring(path.lastIndexOf('/') + 1).toLowerCase();
+    }
+
+    /**
+     * Исходящее сообщение или правка сообщения бота.
+     */
+    record Outgoing(int messageId, String text, List<String> callbacks, long atNanos) {
+
+        String callbackFor(CallbackOp op) {
+            return callbacks.stream().filter(c -> CallbackCodec.peekOp(c) == op).findFirst().orElse(null);
+        }
+    }
+
+    /**
+     * Журнал исходящих в один чат. mark() + await(from, ...) — ждать ответ на конкретный шаг.
+     */
+    static final class ChatLog {
+        private final List<Outgoing> items = new ArrayList<>();
+
+        synchronized int mark() {
+            return items.size();
+        }
+
+        synchronized void add(Outgoing outgoing) {
+            items.add(outgoing);
+            notifyAll();
+        }
+
+        synchronized Outgoing await(int from, Predicate<Outgoing> match, Duration timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout.toMillis();
+            int i = from;
+            while (true) {
+                for (; i < items.size(); i++) {
+                    if (match.test(items.get(i))) return items.get(i);
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return null;
+                wait(left);
+            }
+        }
+
+        synchronized Outgoing last(Predicate<Outgoing> match) {
+            for (int i = items.size() - 1; i >= 0; i--) {
+                if (match.test(items.get(i))) return items.get(i);
+            }
+            return null;
+        }
+    }
+}
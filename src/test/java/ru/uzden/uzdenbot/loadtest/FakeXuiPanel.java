@@ -0,0 +1,147 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fake панели 3x-ui: login, addClient, get/list inbound, updateClient, delClient.
+ * Один Reality-inbound, клиенты хранятся в памяти; без cookie /panel/* отвечает 401.
+ */
+class FakeXuiPanel extends FakeServer {
+
+    static final long INBOUND_ID = 1;
+    private static final String COOKIE = "3x-ui=loadtest";
+    private static final Pattern GET_INBOUND = Pattern.compile("/panel/api/inbounds/get/(\\d+)/?");
+    private static final Pattern UPDATE_CLIENT = Pattern.compile("/panel/api/inbounds/updateClient/([^/]+)/?");
+    private static final Pattern DEL_CLIENT = Pattern.compile("/panel/api/inbounds/(\\d+)/delClient/([^/]+)/?");
+
+    private final List<ObjectNode> clients = new ArrayList<>();
+    private final AtomicInteger addClientCalls = new AtomicInteger();
+
+    FakeXuiPanel(Faults faults) {
+        super("fake-xui", faults);
+    }
+
+    int addClientCalls() {
+        return addClientCalls.get();
+    }
+
+    @Override
+    protected Response handle(Request request) throws Exception {
+        String path = request.path();
+        if (path.equals("/login")) {
+            return new Response(200, "{\"success\":true,\"msg\":\"\",\"obj\":null}",
+                    Map.of("Set-Cookie", COOKIE + "; Path=/; HttpOnly"));
+        }
+        String cookie = request.headers().getFirst("Cookie");
+        if (cookie == null || !cookie.contains(COOKIE)) {
+            return Response.status(401, "");
+        }
+        if (path.startsWith("/panel/api/inbounds/addClient")) {
+            addClientCalls.incrementAndGet();
+            return addClients(parseForm(request.body()));
+        }
+        Matcher m = GET_INBOUND.matcher(path);
+        if (m.matches()) {
+            if (Long.parseLong(m.group(1)) != INBOUND_ID) return envelope(false, "Inbound not found", null);
+            return envelope(true, "", inbound());
+        }
+        if (path.startsWith("/panel/api/inbounds/list")) {
+            ArrayNode list = json.createArrayNode();
+            list.add(inbound());
+            return envelope(true, "", list);
+        }
+        m = UPDATE_CLIENT.matcher(path);
+        if (m.matches()) {
+            return updateClient(m.group(1), parseForm(request.body()));
+        }
+        m = DEL_CLIENT.matcher(path);
+        if (m.matches()) {
+            String uuid = m.group(2);
+            synchronized (clients) {
+                clients.removeIf(c -> uuid.equals(c.path("id").asText()));
+            }
+            return envelope(true, "", null);
+        }
+        return envelope(true, "", null);
+    }
+
+    private Response addClients(Map<String, String> form) throws Exception {
+        JsonNode settings = json.readTree(form.getOrDefault("settings", "{}"));
+        synchronized (clients) {
+            for (JsonNode c : settings.path("clients")) {
+                String email = c.path("email").asText();
+                boolean duplicate = clients.stream().anyMatch(e -> email.equals(e.path("email").asText()));
+                if (duplicate) return envelope(false, "Duplicate email: " + email, null);
+            }
+            for (JsonNode c : settings.path("clients")) {
+                clients.add((ObjectNode) c.deepCopy());
+            }
+        }
+        return envelope(true, "Client(s) added", null);
+    }
+
+    private Response updateClient(String uuid, Map<String, String> form) throws Exception {
+        JsonNode settings = json.readTree(form.getOrDefault("settings", "{}"));
+        JsonNode updated = settings.path("clients").path(0);
+        synchronized (clients) {
+            for (int i = 0; i < clients.size(); i++) {
+                if (uuid.equals(clients.get(i).path("id").asText())) {
+                    if (updated.isObject()) clients.set(i, (ObjectNode) updated.deepCopy());
+                    return envelope(true, "Client updated", null);
+                }
+            }
+        }
+        return envelope(false, "Client not found", null);
+    }
+
+    private ObjectNode inbound() throws Exception {
+        ObjectNode settings = json.createObjectNode();
+        synchronized (clients) {
+            ArrayNode arr = settings.putArray("clients");
+            clients.forEach(arr::add);
+        }
+        settings.put("decryption", "none");
+
+        ObjectNode reality = json.createObjectNode();
+        reality.put("show", false);
+        reality.put("dest", "www.example.com:443");
+        reality.putArray("serverNames").add("www.example.com");
+        reality.putArray("shortIds").add("0123abcd");
+        reality.put("publicKey", "loadtestPublicKey0000000000000000000000000000");
+        reality.put("fingerprint", "chrome");
+        reality.put("spiderX", "/");
+        ObjectNode stream = json.createObjectNode();
+        stream.put("network", "tcp");
+        stream.put("security", "reality");
+        stream.set("realitySettings", reality);
+
+        ObjectNode inbound = json.createObjectNode();
+        inbound.put("id", INBOUND_ID);
+        inbound.put("remark", "loadtest");
+        inbound.put("enable", true);
+        inbound.put("port", 443);
+        inbound.put("protocol", "vless");
+        // как в настоящей панели: settings и streamSettings — JSON-строки
+        inbound.put("settings", json.writeValueAsString(settings));
+        inbound.put("streamSettings", json.writeValueAsString(stream));
+        inbound.putArray("clientStats");
+        return inbound;
+    }
+
+    private Response envelope(boolean success, String msg, JsonNode obj) throws Exception {
+        ObjectNode root = json.createObjectNode();
+        root.put("success", success);
+        root.put("msg", msg);
+        root.set("obj", obj);
+        return Response.ok(json.writeValueAsString(root));
+    }
+}
@@ -0,0 +1,85 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fake YooKassa API v3: создание и получение платежа. Оплату "совершает" драйвер через succeed(),
+ * после чего сам отправляет боту webhook payment.succeeded.
+ */
+class FakeYooKassa extends FakeServer {
+
+    private static final String PAYMENTS = "/v3/payments";
+
+    private final Map<String, ObjectNode> payments = new ConcurrentHashMap<>();
+
+    FakeYooKassa(Faults faults) {
+        super("fake-yookassa", faults);
+    }
+
+    String apiBase() {
+        return baseUrl() + "/v3";
+    }
+
+    static String paymentIdFromConfirmationUrl(String url) {
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Отметить платёж оплаченным и вернуть тело webhook'а для бота.
+     */
+    String succeed(String paymentId) throws Exception {
+        ObjectNode payment = payments.get(paymentId);
+        if (payment == null) throw new IllegalArgumentException("Unknown payment " + paymentId);
+        synchronized (payment) {
+            payment.put("status", "succeeded");
+            payment.put("paid", true);
+            payment.put("captured_at", Instant.now().toString());
+        }
+        ObjectNode webhook = json.createObjectNode();
+        webhook.put("type", "notification");
+        webhook.put("event", "payment.succeeded");
+        synchronized (payment) {
+            webhook.set("object", payment.deepCopy());
+        }
+        return json.writeValueAsString(webhook);
+    }
+
+    @Override
+    protected Response handle(Request request) throws Exception {
+        String path = request.path();
+        if ("POST".equals(request.method()) && (path.equals(PAYMENTS) || path.equals(PAYMENTS + "/"))) {
+            return create(json.readTree(request.body()));
+        }
+        if ("GET".equals(request.method()) && path.startsWith(PAYMENTS + "/")) {
+            ObjectNode payment = payments.get(path.substring(PAYMENTS.length() + 1));
+            if (payment == null) return Response.status(404, "{\"type\":\"error\",\"code\":\"not_found\"}");
+            synchronized (payment) {
+                return Response.ok(json.writeValueAsString(payment));
+            }
+        }
+        return Response.status(404, "{\"type\":\"error\",\"code\":\"not_found\"}");
+    }
+
+    private Response create(JsonNode body) throws Exception {
+        String id = UUID.randomUUID().toString();
+        ObjectNode payment = json.createObjectNode();
+        payment.put("id", id);
+        payment.put("status", "pending");
+        payment.put("paid", false);
+        payment.set("amount", body.path("amount").deepCopy());
+        payment.put("description", body.path("description").asText(""));
+        if (body.has("metadata")) payment.set("metadata", body.get("metadata").deepCopy());
+        ObjectNode confirmation = payment.putObject("confirmation");
+        confirmation.put("type", "redirect");
+        confirmation.put("confirmation_url", baseUrl() + "/checkout/" + id);
+        payment.put("created_at", Instant.now().toString());
+        payments.put(id, payment);
+        return Response.ok(json.writeValueAsString(payment));
+    }
+}
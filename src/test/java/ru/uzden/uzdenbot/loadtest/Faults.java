@@ -0,0 +1,29 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Искусственная задержка и доля ошибок (HTTP 500) для fake-сервера.
+ */
+record Faults(long latencyMs, long jitterMs, double errorRate) {
+
+    static Faults none() {
+        return new Faults(0, 0, 0);
+    }
+
+    static Faults fromSystemProperties(String prefix) {
+        return new Faults(
+                Long.getLong("loadtest." + prefix + "-latency-ms", 0),
+                Long.getLong("loadtest." + prefix + "-jitter-ms", 0),
+                Double.parseDouble(System.getProperty("loadtest." + prefix + "-error-rate", "0")));
+    }
+
+    void delay() throws InterruptedException {
+        long ms = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+        if (ms > 0) Thread.sleep(ms);
+    }
+
+    boolean fail() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+}
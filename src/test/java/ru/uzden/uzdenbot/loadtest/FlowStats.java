@@ -0,0 +1,57 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Латентности и ошибки по сценариям (start, buy, issue_key, replace_key).
+ */
+final class FlowStats {
+
+    private final Map<String, Flow> flows = new ConcurrentSkipListMap<>();
+
+    void record(String flow, long nanos) {
+        flows.computeIfAbsent(flow, f -> new Flow()).samples.add(nanos);
+    }
+
+    void fail(String flow) {
+        flows.computeIfAbsent(flow, f -> new Flow()).failures.incrementAndGet();
+    }
+
+    int completed(String flow) {
+        Flow f = flows.get(flow);
+        return f == null ? 0 : f.samples.size();
+    }
+
+    void print(PrintStream out, long elapsedNanos) {
+        double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+        out.printf("%n%-12s %8s %8s %10s %10s %10s %10s%n", "flow", "ok", "failed", "ops/s", "p50 ms", "p99 ms", "max ms");
+        flows.forEach((name, f) -> {
+            long[] sorted = f.samples.stream().mapToLong(Long::longValue).sorted().toArray();
+            out.printf("%-12s %8d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                    name, sorted.length, f.failures.get(), sorted.length / seconds,
+                    millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                    millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+        });
+        out.printf("elapsed: %.1f s%n%n", seconds);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static final class Flow {
+        final ConcurrentLinkedQueue<Long> samples = new ConcurrentLinkedQueue<>();
+        final AtomicInteger failures = new AtomicInteger();
+    }
+}
@@ -0,0 +1,157 @@
+package ru.uzden.uzdenbot.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.uzden.uzdenbot.services.CallbackCodec;
+import ru.uzden.uzdenbot.services.CallbackOp;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Прогон синтетических пользовательских сессий через fake Telegram.
+ *
+ * Сессия: /start → покупка (BUY_1M, ждём ссылку на оплату) → оплата в fake YooKassa и webhook боту
+ * (ждём vless-ссылку) → замена ключа (KEY_SELECT → KEY_REPLACE, ждём новую ссылку).
+ * Латентность шага — от отправки апдейта/webhook'а до первого подходящего ответа бота.
+ * Сессии стартуют с частотой rate в секунду, одновременно выполняется не больше concurrency.
+ */
+@Slf4j
+final class LoadDriver {
+
+    private static final Pattern HREF = Pattern.compile("href=\"([^\"]+)\"");
+
+    private final FakeTelegram telegram;
+    private final FakeYooKassa yookassa;
+    private final CallbackCodec callbackCodec;
+    private final String webhookUrl;
+    private final Config config;
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final FlowStats stats = new FlowStats();
+
+    LoadDriver(FakeTelegram telegram, FakeYooKassa yookassa, CallbackCodec callbackCodec,
+               String botBaseUrl, Config config) {
+        this.telegram = telegram;
+        this.yookassa = yookassa;
+        this.callbackCodec = callbackCodec;
+        this.webhookUrl = botBaseUrl + "/webhooks/yookassa";
+        this.config = config;
+    }
+
+    FlowStats run() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(config.concurrency());
+        ScheduledExecutorService starter = Executors.newSingleThreadScheduledExecutor();
+        CountDownLatch done = new CountDownLatch(config.sessions());
+        // свежие telegram id на каждый прогон: пользователи из прошлых прогонов остаются в БД
+        long userIdBase = System.currentTimeMillis() * 1000;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.rate());
+        long started = System.nanoTime();
+        try {
+            for (int i = 0; i < config.sessions(); i++) {
+                long userId = userIdBase + i;
+                starter.schedule(() -> workers.execute(() -> {
+                    try {
+                        runSession(userId);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        log.debug("Session {} failed: {}", userId, e.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                }), i * intervalNanos, TimeUnit.NANOSECONDS);
+            }
+            long maxWait = config.sessions() * intervalNanos
+                    + TimeUnit.MILLISECONDS.toNanos(config.stepTimeout().toMillis() * 4);
+            done.await(maxWait, TimeUnit.NANOSECONDS);
+        } finally {
+            starter.shutdownNow();
+            workers.shutdownNow();
+        }
+        stats.print(System.out, System.nanoTime() - started);
+        return stats;
+    }
+
+    private void runSession(long userId) throws Exception {
+        FakeTelegram.ChatLog chat = telegram.chat(userId);
+
+        int mark = chat.mark();
+        long t0 = System.nanoTime();
+        telegram.pushMessage(userId, "/start");
+        FakeTelegram.Outgoing menu = chat.await(mark, o -> !o.callbacks().isEmpty(), config.stepTimeout());
+        if (!step("start", t0, menu)) return;
+
+        mark = chat.mark();
+        t0 = System.nanoTime();
+        telegram.pushCallback(userId, menu.messageId(), callbackCodec.encode(CallbackOp.BUY_1M));
+        FakeTelegram.Outgoing invoice = chat.await(mark, o -> HREF.matcher(o.text()).find(), config.stepTimeout());
+        if (!step("buy", t0, invoice)) return;
+        Matcher href = HREF.matcher(invoice.text());
+        href.find();
+        String paymentId = FakeYooKassa.paymentIdFromConfirmationUrl(href.group(1));
+
+        String webhook = yookassa.succeed(paymentId);
+        mark = chat.mark();
+        t0 = System.nanoTime();
+        HttpResponse<String> resp = http.send(HttpRequest.newBuilder(URI.create(webhookUrl))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(webhook))
+                        .timeout(config.stepTimeout())
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        FakeTelegram.Outgoing key = resp.statusCode() == 200
+                ? chat.await(mark, o -> o.text().contains("vless://"), config.stepTimeout())
+                : null;
+        if (!step("issue_key", t0, key)) return;
+
+        FakeTelegram.Outgoing keys = chat.await(mark, o -> o.callbackFor(CallbackOp.KEY_SELECT) != null,
+                config.stepTimeout());
+        if (keys == null) {
+            stats.fail("replace_key");
+            return;
+        }
+        mark = chat.mark();
+        t0 = System.nanoTime();
+        telegram.pushCallback(userId, keys.messageId(), keys.callbackFor(CallbackOp.KEY_SELECT));
+        FakeTelegram.Outgoing keyMenu = chat.await(mark, o -> o.callbackFor(CallbackOp.KEY_REPLACE) != null,
+                config.stepTimeout());
+        if (keyMenu == null) {
+            stats.fail("replace_key");
+            return;
+        }
+        int replaceMark = chat.mark();
+        telegram.pushCallback(userId, keyMenu.messageId(), keyMenu.callbackFor(CallbackOp.KEY_REPLACE));
+        FakeTelegram.Outgoing replaced = chat.await(replaceMark,
+                o -> o.text().contains("vless://") && o.text().contains("заменён"), config.stepTimeout());
+        step("replace_key", t0, replaced);
+    }
+
+    private boolean step(String flow, long startedNanos, FakeTelegram.Outgoing response) {
+        if (response == null) {
+            stats.fail(flow);
+            return false;
+        }
+        stats.record(flow, response.atNanos() - startedNanos);
+        return true;
+    }
+
+    record Config(int sessions, int rate, int concurrency, Duration stepTimeout) {
+
+        static Config fromSystemProperties() {
+            return new Config(
+                    Integer.getInteger("loadtest.sessions", 50),
+                    Integer.getInteger("loadtest.rate", 5),
+                    Integer.getInteger("loadtest.concurrency", 16),
+                    Duration.ofSeconds(Long.getLong("loadtest.step-timeout-seconds", 30)));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ru.uzden.uzdenbot.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import ru.uzden.uzdenbot.repositories.SubscriptionRepository;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ActiveSubscriptionCacheTest {
+
+    private final SubscriptionRepository repository = mock(SubscriptionRepository.class);
+
+    @Test
+    void activeSubscriptionIsCachedForFullTtl() {
+        ActiveSubscriptionCache cache = cache(0);
+        LocalDateTime end = LocalDateTime.now().plusDays(3);
+        when(repository.findMaxEndDateByUserId(1L)).thenReturn(end);
+
+        cache.getMaxEndDate(1L);
+        assertEquals(end, cache.getMaxEndDate(1L).orElseThrow());
+
+        verify(repository, times(1)).findMaxEndDateByUserId(1L);
+    }
+
+    @Test
+    void missingOrExpiredSubscriptionIsNotCachedPastNegativeTtl() {
+        ActiveSubscriptionCache cache = cache(0);
+        LocalDateTime end = LocalDateTime.now().plusDays(3);
+        when(repository.findMaxEndDateByUserId(1L)).thenReturn(null, end);
+        when(repository.findMaxEndDateByUserId(2L)).thenReturn(LocalDateTime.now().minusDays(1));
+
+        cache.getMaxEndDate(1L);
+        // оплата прошла на другом инстансе, инвалидации сюда не было
+        assertEquals(end, cache.getMaxEndDate(1L).orElseThrow());
+        cache.getMaxEndDate(2L);
+        cache.getMaxEndDate(2L);
+
+        verify(repository, times(2)).findMaxEndDateByUserId(1L);
+        verify(repository, times(2)).findMaxEndDateByUserId(2L);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ActiveSubscriptionCache cache(long negativeTtlMs) {
+        return new ActiveSubscriptionCache(repository, mock(ObjectProvider.class), mock(ObjectProvider.class),
+                100, 600_000, negativeTtlMs, false);
+    }
+}
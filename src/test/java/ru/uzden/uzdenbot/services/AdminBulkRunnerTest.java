@@ -0,0 +1,199 @@
+package ru.uzden.uzdenbot.services;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.uzden.uzdenbot.bots.MainBot;
+import ru.uzden.uzdenbot.entities.AdminBulkJob;
+import ru.uzden.uzdenbot.repositories.AdminBulkJobRepository;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AdminBulkRunnerTest {
+
+    private static final long JOB_ID = 7L;
+
+    private final AdminBulkJobRepository repository = mock(AdminBulkJobRepository.class);
+    private final SubscriptionService subscriptionService = mock(SubscriptionService.class);
+    private final NamedParameterJdbcTemplate jdbc = mock(NamedParameterJdbcTemplate.class);
+    private final JdbcOperations jdbcOperations = mock(JdbcOperations.class);
+
+    // chunk-size 2, 3 попытки без пауз
+    private final AdminBulkRunner runner = new AdminBulkRunner(repository, subscriptionService,
+            mock(AudienceSegmentService.class), mock(JobLeaseService.class), jdbc,
+            new TransactionTemplate(new NoopTransactionManager()), mock(MainBot.class),
+            2, 3, 0, 1000, 50_000, 1_048_576, 3000, 300);
+
+    @Test
+    void resumesFromSavedCursorAndSavesCursorPerChunk() throws Exception {
+        when(jdbc.update(anyString(), any(SqlParameterSource.class))).thenReturn(1);
+        when(repository.findTargetsAfter(JOB_ID, 10L, 2)).thenReturn(List.of(11L, 12L));
+        when(repository.findTargetsAfter(JOB_ID, 12L, 2)).thenReturn(List.of(13L));
+        when(subscriptionService.extendSubscriptions(anyList(), eq(30)))
+                .thenReturn(new SubscriptionService.BulkResult(1, 1), new SubscriptionService.BulkResult(1, 0));
+        AdminBulkJob job = job(10L);
+
+        runner.run(job, "owner");
+
+        assertEquals(13L, job.getCursorUserId());
+        assertEquals(2, job.getApplied());
+        assertEquals(1, job.getSkipped());
+        assertEquals(0, job.getFailed());
+        verify(subscriptionService).extendSubscriptions(List.of(11L, 12L), 30);
+        verify(subscriptionService).extendSubscriptions(List.of(13L), 30);
+        assertEquals(List.of(12L, 13L), savedCursors());
+        verify(jdbc).update(contains("status = 'DONE'"), any(SqlParameterSource.class));
+    }
+
+    @Test
+    void failedChunkIsRetriedBeforeCounting() throws Exception {
+        when(jdbc.update(anyString(), any(SqlParameterSource.class))).thenReturn(1);
+        when(repository.findTargetsAfter(JOB_ID, 0L, 2)).thenReturn(List.of(1L));
+        when(subscriptionService.extendSubscriptions(anyList(), eq(30)))
+                .thenThrow(new IllegalStateException("deadlock"))
+                .thenReturn(new SubscriptionService.BulkResult(1, 0));
+        AdminBulkJob job = job(0L);
+
+        runner.run(job, "owner");
+
+        verify(subscriptionService, times(2)).extendSubscriptions(List.of(1L), 30);
+        assertEquals(1, job.getApplied());
+        assertEquals(0, job.getFailed());
+        verify(jdbc, never()).getJdbcOperations();
+    }
+
+    @Test
+    void chunkFailingAllAttemptsMarksItsUsersAndMovesOn() throws Exception {
+        when(jdbc.update(anyString(), any(SqlParameterSource.class))).thenReturn(1);
+        when(jdbc.getJdbcOperations()).thenReturn(jdbcOperations);
+        when(repository.findTargetsAfter(JOB_ID, 0L, 2)).thenReturn(List.of(1L, 2L));
+        when(repository.findTargetsAfter(JOB_ID, 2L, 2)).thenReturn(List.of(3L));
+        when(subscriptionService.extendSubscriptions(List.of(1L, 2L), 30))
+                .thenThrow(new IllegalStateException("boom"));
+        when(subscriptionService.extendSubscriptions(List.of(3L), 30))
+                .thenReturn(new SubscriptionService.BulkResult(1, 0));
+        AdminBulkJob job = job(0L);
+
+        runner.run(job, "owner");
+
+        verify(subscriptionService, times(3)).extendSubscriptions(List.of(1L, 2L), 30);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Object[]>> rows = ArgumentCaptor.forClass(List.class);
+        verify(jdbcOperations).batchUpdate(contains("failed = true"), rows.capture());
+        assertEquals(List.of(1L, 2L), rows.getValue().stream().map(r -> r[1]).toList());
+        assertEquals(2, job.getFailed());
+        assertEquals(1, job.getApplied());
+        assertEquals(3L, job.getCursorUserId());
+    }
+
+    @Test
+    void lostLeaseStopsWithoutMovingCursor() throws Exception {
+        when(jdbc.update(anyString(), any(SqlParameterSource.class))).thenReturn(0);
+        when(repository.findTargetsAfter(JOB_ID, 0L, 2)).thenReturn(List.of(1L, 2L));
+        when(subscriptionService.extendSubscriptions(anyList(), anyInt()))
+                .thenReturn(new SubscriptionService.BulkResult(2, 0));
+        AdminBulkJob job = job(0L);
+
+        runner.run(job, "owner");
+
+        assertEquals(0L, job.getCursorUserId());
+        assertEquals(0, job.getApplied());
+        verify(repository, times(1)).findTargetsAfter(anyLong(), anyLong(), anyInt());
+        verify(jdbc, never()).update(contains("status = 'DONE'"), any(SqlParameterSource.class));
+    }
+
+    @Test
+    void unknownAudienceAbortsInsteadOfWidening() throws Exception {
+        AdminBulkJob job = job(0L);
+        job.setOperation(AdminBulkJob.Operation.REVOKE);
+        job.setAudience("ACTIVE_V2");
+
+        runner.run(job, "owner");
+
+        verify(repository).markAborted(eq(JOB_ID), contains("ACTIVE_V2"), eq("owner"));
+        verify(subscriptionService, never()).revokeActiveSubscriptions(anyList());
+        verify(jdbc, never()).update(contains("status = 'DONE'"), any(SqlParameterSource.class));
+    }
+
+    private List<Object> savedCursors() {
+        ArgumentCaptor<SqlParameterSource> params = ArgumentCaptor.forClass(SqlParameterSource.class);
+        verify(jdbc, atLeastOnce()).update(contains("cursor_user_id"), params.capture());
+        return params.getAllValues().stream().map(p -> p.getValue("cursor")).toList();
+    }
+
+    private static AdminBulkJob job(long cursor) {
+        AdminBulkJob job = new AdminBulkJob();
+        job.setId(JOB_ID);
+        job.setAdminChatId(1L);
+        job.setOperation(AdminBulkJob.Operation.GRANT);
+        job.setDays(30);
+        job.setStatus(AdminBulkJob.Status.RUNNING);
+        job.setCursorUserId(cursor);
+        return job;
+    }
+
+    @Test
+    void parsesIdsAndUsernamesWithDedupe() {
+        AdminBulkRunner.Identifiers ids = AdminBulkRunner.parseIdentifiers(
+                "@Alice, 123\n@alice;bob\t123 \"@b@d\" 99999999999999999999", 100);
+
+        assertEquals(Set.of(123L), ids.telegramIds());
+        assertEquals(Set.of("alice", "bob"), ids.usernames());
+        assertEquals(List.of("@b@d", "99999999999999999999"), ids.invalid());
+        assertEquals(0, ids.overLimit());
+    }
+
+    @Test
+    void countsEntriesOverLimit() {
+        AdminBulkRunner.Identifiers ids = AdminBulkRunner.parseIdentifiers("1 2 @c @d 3", 2);
+
+        assertEquals(Set.of(1L, 2L), ids.telegramIds());
+        assertEquals(Set.of(), ids.usernames());
+        assertEquals(3, ids.overLimit());
+    }
+
+    /**
+     * Транзакции без БД: только commit/rollback-only семантика TransactionTemplate.
+     */
+    private static final class NoopTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
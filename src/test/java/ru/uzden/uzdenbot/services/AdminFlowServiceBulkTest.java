@@ -0,0 +1,91 @@
+package ru.uzden.uzdenbot.services;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import ru.uzden.uzdenbot.entities.AdminBulkJob;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AdminFlowServiceBulkTest {
+
+    private static final long CHAT = 1L;
+
+    private final AdminStateService adminState = new AdminStateService(new LocalConversationStateStore(1800, 100));
+    private final AudienceSegmentService audienceSegmentService = mock(AudienceSegmentService.class);
+    private final AdminBulkService adminBulkService = mock(AdminBulkService.class);
+
+    @Test
+    void segmentRevokeWaitsForConfirmation() throws Exception {
+        AdminFlowService flow = flow(100);
+        when(audienceSegmentService.size("ACTIVE")).thenReturn(1234);
+        when(audienceSegmentService.label("ACTIVE")).thenReturn("Активные");
+        when(adminBulkService.createForSegment(eq(CHAT), any(), anyInt(), any())).thenReturn(job(7L));
+        adminState.set(CHAT, AdminAction.BULK_REVOKE);
+
+        List<SendMessage> ask = flow.handleAdminInput(CHAT, "active", AdminAction.BULK_REVOKE);
+
+        assertEquals(1, ask.size());
+        assertTrue(ask.get(0).getText().contains("Активные"));
+        assertTrue(ask.get(0).getText().contains("1234"));
+        assertInstanceOf(InlineKeyboardMarkup.class, ask.get(0).getReplyMarkup());
+        verify(adminBulkService, never()).createForSegment(anyLong(), any(), anyInt(), any());
+
+        List<SendMessage> done = flow.confirmBulk(CHAT);
+
+        assertTrue(done.get(0).getText().contains("#7"));
+        verify(adminBulkService).createForSegment(CHAT, AdminBulkJob.Operation.REVOKE, 0, AudienceSegment.ACTIVE);
+        assertTrue(adminState.get(CHAT).isEmpty());
+        // повторное нажатие ничего не ставит
+        flow.confirmBulk(CHAT);
+        verify(adminBulkService).createForSegment(anyLong(), any(), anyInt(), any());
+    }
+
+    @Test
+    void onlyLargeListsNeedConfirmation() throws Exception {
+        AdminFlowService flow = flow(2);
+        when(adminBulkService.createForList(eq(CHAT), any(), anyInt(), anyString())).thenReturn(job(8L));
+        adminState.set(CHAT, AdminAction.BULK_REVOKE);
+
+        flow.handleAdminInput(CHAT, "@a @b", AdminAction.BULK_REVOKE);
+        verify(adminBulkService).createForList(CHAT, AdminBulkJob.Operation.REVOKE, 0, "@a @b");
+
+        adminState.set(CHAT, AdminAction.BULK_REVOKE);
+        List<SendMessage> ask = flow.handleAdminInput(CHAT, "@a @b 123", AdminAction.BULK_REVOKE);
+        assertTrue(ask.get(0).getText().contains("3 получателей"));
+        verify(adminBulkService, never()).createForList(anyLong(), any(), anyInt(), eq("@a @b 123"));
+
+        flow.confirmBulk(CHAT);
+        verify(adminBulkService).createForList(CHAT, AdminBulkJob.Operation.REVOKE, 0, "@a @b 123");
+    }
+
+    private AdminFlowService flow(int confirmThreshold) throws Exception {
+        AdminFlowService flow = new AdminFlowService(adminState, mock(SubscriptionService.class),
+                mock(UserService.class), mock(VpnKeyService.class), mock(BroadcastService.class),
+                audienceSegmentService, new CallbackCodec("test-secret", null), adminBulkService);
+        Field f = AdminFlowService.class.getDeclaredField("bulkConfirmThreshold");
+        f.setAccessible(true);
+        f.set(flow, confirmThreshold);
+        return flow;
+    }
+
+    private static AdminBulkJob job(long id) {
+        AdminBulkJob job = new AdminBulkJob();
+        job.setId(id);
+        return job;
+    }
+}
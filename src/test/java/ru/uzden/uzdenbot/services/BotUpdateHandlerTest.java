@@ -24,6 +24,8 @@ import static org.mockito.Mockito.*;
 
 class BotUpdateHandlerTest {
 
+    private static final CallbackCodec CODEC = new CallbackCodec("test-secret", null);
+
     @Test
     void startMessageShowsMainMenu() throws Exception {
         BotMenuService botMenuService = mock(BotMenuService.class);
@@ -36,6 +38,8 @@ class BotUpdateHandlerTest {
         PaymentService paymentService = mock(PaymentService.class);
         SubscriptionPlansProperties plans = new SubscriptionPlansProperties();
         ReferralService referralService = mock(ReferralService.class);
+        KeyIssuanceService keyIssuanceService = mock(KeyIssuanceService.class);
+        PurgeService purgeService = mock(PurgeService.class);
 
         BotUpdateHandler handler = new BotUpdateHandler(
                 botMenuService,
@@ -47,7 +51,10 @@ class BotUpdateHandlerTest {
                 idempotencyService,
                 paymentService,
                 plans,
-                referralService
+                referralService,
+                keyIssuanceService,
+                purgeService,
+                CODEC
         );
         setIdempotencyTtl(handler, 10L);
 
@@ -83,6 +90,8 @@ class BotUpdateHandlerTest {
         PaymentService paymentService = mock(PaymentService.class);
         SubscriptionPlansProperties plans = new SubscriptionPlansProperties();
         ReferralService referralService = mock(ReferralService.class);
+        KeyIssuanceService keyIssuanceService = mock(KeyIssuanceService.class);
+        PurgeService purgeService = mock(PurgeService.class);
 
         BotUpdateHandler handler = new BotUpdateHandler(
                 botMenuService,
@@ -94,7 +103,10 @@ class BotUpdateHandlerTest {
                 idempotencyService,
                 paymentService,
                 plans,
-                referralService
+                referralService,
+                keyIssuanceService,
+                purgeService,
+                CODEC
         );
         setIdempotencyTtl(handler, 10L);
 
@@ -104,7 +116,7 @@ class BotUpdateHandlerTest {
         when(userService.registerOrUpdate(any(org.telegram.telegrambots.meta.api.objects.User.class))).thenReturn(user);
         when(idempotencyService.tryAcquire(any(), any())).thenReturn(false);
 
-        Update update = callbackUpdate(1L, 100L, "cb1", "BUY_1M");
+        Update update = callbackUpdate(1L, 100L, "cb1", CODEC.encode(CallbackOp.BUY_1M));
         List<BotApiMethod<?>> result = handler.handle(update);
 
         assertEquals(1, result.size());
@@ -124,6 +136,8 @@ class BotUpdateHandlerTest {
         PaymentService paymentService = mock(PaymentService.class);
         SubscriptionPlansProperties plans = new SubscriptionPlansProperties();
         ReferralService referralService = mock(ReferralService.class);
+        KeyIssuanceService keyIssuanceService = mock(KeyIssuanceService.class);
+        PurgeService purgeService = mock(PurgeService.class);
 
         BotUpdateHandler handler = new BotUpdateHandler(
                 botMenuService,
@@ -135,7 +149,10 @@ class BotUpdateHandlerTest {
                 idempotencyService,
                 paymentService,
                 plans,
-                referralService
+                referralService,
+                keyIssuanceService,
+                purgeService,
+                CODEC
         );
         setIdempotencyTtl(handler, 10L);
 
@@ -146,10 +163,10 @@ class BotUpdateHandlerTest {
         when(idempotencyService.tryAcquire(any(), any())).thenReturn(true);
         SendMessage menu = SendMessage.builder().chatId("1").text("keys").build();
         when(botMenuService.myKeysMenu(1L, user)).thenReturn(menu);
-        when(vpnKeyService.getKeyForUser(eq(user), eq(1L)))
+        when(vpnKeyService.findIssuableKey(eq(user), eq(1L)))
                 .thenThrow(new IllegalStateException("Нет активной подписки"));
 
-        Update update = callbackUpdate(1L, 100L, "cb2", "KEY_GET:1");
+        Update update = callbackUpdate(1L, 100L, "cb2", CODEC.encode(CallbackOp.KEY_GET, 1L, 1L));
         List<BotApiMethod<?>> result = handler.handle(update);
 
         assertEquals(3, result.size());
@@ -170,6 +187,8 @@ class BotUpdateHandlerTest {
         PaymentService paymentService = mock(PaymentService.class);
         SubscriptionPlansProperties plans = new SubscriptionPlansProperties();
         ReferralService referralService = mock(ReferralService.class);
+        KeyIssuanceService keyIssuanceService = mock(KeyIssuanceService.class);
+        PurgeService purgeService = mock(PurgeService.class);
 
         BotUpdateHandler handler = new BotUpdateHandler(
                 botMenuService,
@@ -181,7 +200,10 @@ class BotUpdateHandlerTest {
                 idempotencyService,
                 paymentService,
                 plans,
-                referralService
+                referralService,
+                keyIssuanceService,
+                purgeService,
+                CODEC
         );
         setIdempotencyTtl(handler, 10L);
 
@@ -190,7 +212,7 @@ class BotUpdateHandlerTest {
         user.setDisabled(true);
         when(userService.registerOrUpdate(any(org.telegram.telegrambots.meta.api.objects.User.class))).thenReturn(user);
 
-        Update update = callbackUpdate(1L, 100L, "cb3", "MENU_SUBSCRIPTION");
+        Update update = callbackUpdate(1L, 100L, "cb3", CODEC.encode(CallbackOp.MENU_SUBSCRIPTION));
         List<BotApiMethod<?>> result = handler.handle(update);
 
         assertEquals(2, result.size());
@@ -198,6 +220,16 @@ class BotUpdateHandlerTest {
         assertInstanceOf(AnswerCallbackQuery.class, result.get(1));
     }
 
+    @Test
+    void callbackRouteTagsOnlyKnownOps() {
+        assertEquals("callback:KEY_GET", BotUpdateHandler.route(
+                callbackUpdate(1L, 1L, "cb", CODEC.encode(CallbackOp.KEY_GET, 1L, 42L))));
+        assertEquals("callback:KEY_GET", BotUpdateHandler.route(callbackUpdate(1L, 1L, "cb", "KEY_GET:42")));
+        assertEquals("callback:MENU_BACK", BotUpdateHandler.route(callbackUpdate(1L, 1L, "cb", "MENU_BACK")));
+        assertEquals("callback:other", BotUpdateHandler.route(callbackUpdate(1L, 1L, "cb", "RANDOM_123:1")));
+        assertEquals("callback:other", BotUpdateHandler.route(callbackUpdate(1L, 1L, "cb", "~zzzz")));
+    }
+
     private static Update messageUpdate(long chatId, long userId, String text) {
         Update update = new Update();
         Message msg = new Message();
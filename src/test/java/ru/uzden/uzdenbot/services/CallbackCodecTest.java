@@ -0,0 +1,59 @@
+package ru.uzden.uzdenbot.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallbackCodecTest {
+
+    private final CallbackCodec codec = new CallbackCodec("test-secret", null);
+
+    @Test
+    void keyCallbackRoundTripsWithinTelegramLimit() {
+        String data = codec.encode(CallbackOp.KEY_REPLACE, 100L, Long.MAX_VALUE);
+
+        assertTrue(data.length() <= 64);
+        CallbackCodec.Callback cb = codec.decode(data, 100L);
+        assertEquals(CallbackOp.KEY_REPLACE, cb.op());
+        assertEquals(Long.MAX_VALUE, cb.arg());
+        assertEquals(CallbackOp.KEY_REPLACE, CallbackCodec.peekOp(data));
+        assertEquals(CallbackOp.MENU_KEYS, codec.decode(codec.encode(CallbackOp.MENU_KEYS), 5L).op());
+    }
+
+    @Test
+    void tamperedOrForeignCallbackIsRejected() {
+        String data = codec.encode(CallbackOp.KEY_GET, 100L, 42);
+        char last = data.charAt(data.length() - 1);
+        String tampered = data.substring(0, data.length() - 1) + (last == 'A' ? 'B' : 'A');
+
+        assertNull(codec.decode(tampered, 100L));
+        assertNull(codec.decode(data, 101L));
+        assertNull(new CallbackCodec("other-secret", null).decode(data, 100L));
+        assertNull(codec.decode("~garbage", 100L));
+        assertNull(codec.decode("KEY_GET:42", 100L));
+        assertNull(codec.decode("BUY_1M", 100L));
+    }
+
+    @Test
+    void legacyCallbacksAreAcceptedOnlyWithinMigrationWindow() {
+        CallbackCodec migrating = new CallbackCodec("test-secret", Instant.now().plus(Duration.ofHours(1)).toString());
+        CallbackCodec.Callback cb = migrating.decode("KEY_SELECT:123", 1L);
+        assertEquals(CallbackOp.KEY_SELECT, cb.op());
+        assertEquals(123L, cb.arg());
+        assertEquals(CallbackOp.ADMIN_BCAST_REFERRED, migrating.decode("ADMIN_BCAST_AUD:REFERRED", 1L).op());
+        CallbackCodec.Callback aud = migrating.decode("ADMIN_BCAST_AUD:NO_KEYS", 1L);
+        assertEquals(AudienceSegment.NO_KEYS, AudienceSegment.byCode(aud.arg()));
+        assertNull(migrating.decode("KEY_SELECT:abc", 1L));
+
+        CallbackCodec expired = new CallbackCodec("test-secret", Instant.now().minusSeconds(1).toString());
+        assertNull(expired.decode("MENU_KEYS", 1L));
+        assertThrows(IllegalStateException.class, () -> new CallbackCodec("test-secret",
+                Instant.now().plus(CallbackCodec.MAX_LEGACY_WINDOW).plus(Duration.ofDays(1)).toString()));
+    }
+}
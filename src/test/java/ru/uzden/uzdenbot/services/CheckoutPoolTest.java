@@ -0,0 +1,49 @@
+package ru.uzden.uzdenbot.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CheckoutPoolTest {
+
+    @Test
+    void reservedSlotIsNotReservedTwice() {
+        CheckoutPool pool = new CheckoutPool(true, 600);
+        String key = CheckoutPool.key(1L, null, 30);
+
+        assertTrue(pool.reserve(key));
+        assertFalse(pool.reserve(key));
+        assertTrue(pool.take(key).isEmpty());
+
+        pool.release(key);
+        assertTrue(pool.reserve(key));
+    }
+
+    @Test
+    void completedEntryIsTakenOnlyOnce() {
+        CheckoutPool pool = new CheckoutPool(true, 600);
+        String key = CheckoutPool.key(1L, 5L, 60);
+
+        pool.reserve(key);
+        pool.complete(key, 10L, "https://pay/10");
+
+        var taken = pool.take(key);
+        assertTrue(taken.isPresent());
+        assertEquals(10L, taken.get().paymentId());
+        assertEquals("https://pay/10", taken.get().confirmationUrl());
+        assertTrue(pool.take(key).isEmpty());
+    }
+
+    @Test
+    void expiredEntryIsNotReturned() {
+        CheckoutPool pool = new CheckoutPool(true, -1);
+        String key = CheckoutPool.key(1L, null, 30);
+
+        pool.complete(key, 10L, "https://pay/10");
+
+        assertTrue(pool.take(key).isEmpty());
+        assertTrue(pool.reserve(key));
+    }
+}
@@ -0,0 +1,69 @@
+package ru.uzden.uzdenbot.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest;
+import org.springframework.boot.jdbc.test.autoconfigure.AutoConfigureTestDatabase;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Лимит ключей в БД после V28: ограничение проверено для всех строк, превышений нет,
+ * а у пользователя на лимите работают обычные записи в users.
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class KeyLimitConstraintTest {
+
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Test
+    void constraintIsValidatedAndNoUserIsOverLimit() {
+        Boolean validated = jdbc.queryForObject(
+                "select convalidated from pg_constraint where conname = 'chk_users_active_key_count'",
+                Boolean.class);
+        assertTrue(validated);
+        assertEquals(0, jdbc.queryForObject("""
+                select count(*) from users u
+                where u.active_key_count <> (select count(*) from vpn_keys k
+                                             where k.user_id = u.id and k.is_revoked = false
+                                               and k.status <> 'REVOKED')
+                   or u.active_key_count > 3
+                """, Integer.class));
+    }
+
+    @Test
+    void userAtLimitCanStillBeUpdatedAndRevokeButNotAddKeys() {
+        long userId = jdbc.queryForObject("""
+                insert into users (telegram_id)
+                values ((select coalesce(max(telegram_id), 0) + 1 from users))
+                returning id
+                """, Long.class);
+        long first = key(userId);
+        key(userId);
+        key(userId);
+
+        // touchUser / updateDisabled на пользователе с тремя ключами
+        assertEquals(1, jdbc.update("update users set version = version + 1, is_disabled = false where id = ?", userId));
+        jdbc.update("update vpn_keys set is_revoked = true, status = 'REVOKED' where id = ?", first);
+        assertEquals(2, jdbc.queryForObject("select active_key_count from users where id = ?", Integer.class, userId));
+
+        key(userId);
+        assertThrows(DataIntegrityViolationException.class, () -> key(userId));
+    }
+
+    private long key(long userId) {
+        return jdbc.queryForObject("""
+                insert into vpn_keys (user_id, key_value)
+                values (?, ?)
+                returning id
+                """, Long.class, userId, "vless://limit-test-" + UUID.randomUUID());
+    }
+}
@@ -0,0 +1,52 @@
+package ru.uzden.uzdenbot.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+class MyKeysViewCacheTest {
+
+    @SuppressWarnings("unchecked")
+    private final MyKeysViewCache cache = new MyKeysViewCache(new ObjectMapper(),
+            mock(ObjectProvider.class), mock(ObjectProvider.class), true, 100, 600_000, false);
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    @Test
+    void repeatedOpensRenderOnceUntilInvalidated() {
+        cache.get(1L, 100L, () -> render(100L, Long.MAX_VALUE));
+        cache.get(1L, 100L, () -> render(100L, Long.MAX_VALUE));
+        assertEquals(1, renders.get());
+
+        cache.onKeysChanged(new VpnKeyService.KeysChangedEvent(1L));
+        cache.get(1L, 100L, () -> render(100L, Long.MAX_VALUE));
+        assertEquals(2, renders.get());
+
+        cache.onSubscriptionChanged(new SubscriptionService.SubscriptionChangedEvent(1L, 5L, null));
+        cache.get(1L, 100L, () -> render(100L, Long.MAX_VALUE));
+        assertEquals(3, renders.get());
+    }
+
+    @Test
+    void otherChatOrDaysLeftBoundaryRendersAgain() {
+        cache.get(1L, 100L, () -> render(100L, Long.MAX_VALUE));
+        cache.get(1L, 200L, () -> render(200L, Long.MAX_VALUE));
+        assertEquals(2, renders.get());
+
+        cache.get(2L, 100L, () -> render(100L, System.currentTimeMillis() - 1));
+        cache.get(2L, 100L, () -> render(100L, System.currentTimeMillis() - 1));
+        assertEquals(4, renders.get());
+    }
+
+    private MyKeysViewCache.View render(long chatId, long expiresAt) {
+        renders.incrementAndGet();
+        return new MyKeysViewCache.View(chatId, "🔑 Мои ключи",
+                MenuTemplates.markup(List.of(List.of(MenuTemplates.button("⬅️ Назад", "~x")))), expiresAt);
+    }
+}
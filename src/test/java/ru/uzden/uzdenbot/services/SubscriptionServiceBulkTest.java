@@ -0,0 +1,189 @@
+package ru.uzden.uzdenbot.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest;
+import org.springframework.boot.jdbc.test.autoconfigure.AutoConfigureTestDatabase;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.context.event.ApplicationEvents;
+import org.springframework.test.context.event.RecordApplicationEvents;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Массовые SQL SubscriptionService против схемы из Flyway (та же PostgreSQL, что у UzdenBotApplicationTests).
+ * Каждый тест откатывается.
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(SubscriptionService.class)
+@RecordApplicationEvents
+class SubscriptionServiceBulkTest {
+
+    private static final long MISSING_USER_ID = -1L;
+
+    @Autowired
+    SubscriptionService subscriptionService;
+
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Autowired
+    ApplicationEvents events;
+
+    @MockitoBean
+    ActiveSubscriptionCache activeSubscriptionCache;
+
+    @Test
+    void grantContinuesFromPaidUntilOrFromNow() {
+        LocalDateTime paidUntil = LocalDateTime.now().plusDays(10).truncatedTo(ChronoUnit.SECONDS);
+        long paid = user(false);
+        long paidKey = key(paid, paidUntil);
+        subscription(paid, paidKey, paidUntil.minusDays(20), paidUntil);
+        long lapsed = user(false);
+        long lapsedKey = key(lapsed, LocalDateTime.now().minusDays(5));
+        subscription(lapsed, lapsedKey, LocalDateTime.now().minusDays(35), LocalDateTime.now().minusDays(5));
+
+        SubscriptionService.BulkResult r = subscriptionService.extendSubscriptions(List.of(paid, lapsed), 30);
+
+        assertEquals(new SubscriptionService.BulkResult(2, 0), r);
+        Map<String, Object> paidSub = latestSubscription(paid);
+        assertEquals(paidKey, paidSub.get("key_id"));
+        assertEquals(paidUntil, start(paidSub));
+        assertEquals(paidUntil.plusDays(30), end(paidSub));
+        assertEquals(paidUntil.plusDays(30), paidUntil(paidKey));
+
+        Map<String, Object> lapsedSub = latestSubscription(lapsed);
+        assertAround(LocalDateTime.now(), start(lapsedSub));
+        assertAround(LocalDateTime.now().plusDays(30), end(lapsedSub));
+        assertEquals(end(lapsedSub), paidUntil(lapsedKey));
+        assertEquals(2, events.stream(SubscriptionService.SubscriptionChangedEvent.class).count());
+    }
+
+    @Test
+    void keylessUserContinuesFromLatestSubscription() {
+        LocalDateTime end = LocalDateTime.now().plusDays(3).truncatedTo(ChronoUnit.SECONDS);
+        long keyless = user(false);
+        subscription(keyless, null, end.minusDays(27), end);
+        long revokedOnly = user(false);
+        long revokedKey = key(revokedOnly, null);
+        jdbc.update("update vpn_keys set is_revoked = true, status = 'REVOKED' where id = ?", revokedKey);
+
+        subscriptionService.extendSubscriptions(List.of(keyless, revokedOnly), 7);
+
+        Map<String, Object> sub = latestSubscription(keyless);
+        assertNull(sub.get("key_id"));
+        assertEquals(end, start(sub));
+        assertEquals(end.plusDays(7), end(sub));
+        // отозванный ключ не продлевается: подписка «висящая», paid_until не трогаем
+        Map<String, Object> revokedSub = latestSubscription(revokedOnly);
+        assertNull(revokedSub.get("key_id"));
+        assertAround(LocalDateTime.now().plusDays(7), end(revokedSub));
+        assertNull(paidUntil(revokedKey));
+    }
+
+    @Test
+    void disabledAndMissingUsersAreSkipped() {
+        long active = user(false);
+        long disabled = user(true);
+
+        SubscriptionService.BulkResult r = subscriptionService.extendSubscriptions(
+                List.of(active, disabled, MISSING_USER_ID), 30);
+
+        assertEquals(new SubscriptionService.BulkResult(1, 2), r);
+        assertEquals(0, count("select count(*) from subscriptions where user_id = ?", disabled));
+        assertEquals(1, count("select count(*) from subscriptions where user_id = ?", active));
+    }
+
+    @Test
+    void revokeCutsActiveSubscriptionsAndResyncsPaidUntil() {
+        LocalDateTime past = LocalDateTime.now().minusDays(10).truncatedTo(ChronoUnit.SECONDS);
+        long withActive = user(false);
+        long key = key(withActive, LocalDateTime.now().plusDays(20));
+        subscription(withActive, key, past.minusDays(30), past);
+        subscription(withActive, key, past, LocalDateTime.now().plusDays(20));
+        long expiredOnly = user(false);
+        subscription(expiredOnly, null, past.minusDays(30), past);
+
+        SubscriptionService.BulkResult r = subscriptionService.revokeActiveSubscriptions(
+                List.of(withActive, expiredOnly, MISSING_USER_ID));
+
+        assertEquals(new SubscriptionService.BulkResult(1, 2), r);
+        Map<String, Object> cut = latestSubscription(withActive);
+        assertAround(LocalDateTime.now(), end(cut));
+        assertFalse((Boolean) cut.get("is_active"));
+        assertEquals(end(cut), paidUntil(key));
+        // истёкшие подписки не трогаем
+        assertEquals(1, count("select count(*) from subscriptions where user_id = ? and is_active", withActive));
+        assertEquals(past, end(latestSubscription(expiredOnly)));
+        assertEquals(1, events.stream(SubscriptionService.SubscriptionChangedEvent.class).count());
+    }
+
+    private long user(boolean disabled) {
+        return jdbc.queryForObject("""
+                insert into users (telegram_id, is_disabled)
+                values ((select coalesce(max(telegram_id), 0) + 1 from users), ?)
+                returning id
+                """, Long.class, disabled);
+    }
+
+    private long key(long userId, LocalDateTime paidUntil) {
+        return jdbc.queryForObject("""
+                insert into vpn_keys (user_id, key_value, paid_until)
+                values (?, ?, ?)
+                returning id
+                """, Long.class, userId, "vless://bulk-test-" + UUID.randomUUID(),
+                paidUntil == null ? null : Timestamp.valueOf(paidUntil));
+    }
+
+    private void subscription(long userId, Long keyId, LocalDateTime start, LocalDateTime end) {
+        jdbc.update("""
+                insert into subscriptions (user_id, key_id, start_date, end_date, is_active)
+                values (?, ?, ?, ?, true)
+                """, userId, keyId, Timestamp.valueOf(start), Timestamp.valueOf(end));
+    }
+
+    private Map<String, Object> latestSubscription(long userId) {
+        return jdbc.queryForMap("""
+                select key_id, start_date, end_date, is_active from subscriptions
+                where user_id = ?
+                order by id desc
+                limit 1
+                """, userId);
+    }
+
+    private LocalDateTime paidUntil(long keyId) {
+        Timestamp t = jdbc.queryForObject("select paid_until from vpn_keys where id = ?", Timestamp.class, keyId);
+        return t == null ? null : t.toLocalDateTime();
+    }
+
+    private int count(String sql, long userId) {
+        return jdbc.queryForObject(sql, Integer.class, userId);
+    }
+
+    private static LocalDateTime start(Map<String, Object> sub) {
+        return ((Timestamp) sub.get("start_date")).toLocalDateTime();
+    }
+
+    private static LocalDateTime end(Map<String, Object> sub) {
+        return ((Timestamp) sub.get("end_date")).toLocalDateTime();
+    }
+
+    private static void assertAround(LocalDateTime expected, LocalDateTime actual) {
+        assertTrue(Duration.between(expected, actual).abs().toMinutes() < 1,
+                () -> "expected ~" + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,27 @@
+package ru.uzden.uzdenbot.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class SortedIdSetTest {
+
+    @Test
+    void updateMergesAddsAndRemovesInOnePass() {
+        SortedIdSet set = SortedIdSet.ofSorted(new long[]{2, 4, 6, 8}, 4);
+
+        SortedIdSet next = set.update(new long[]{1, 4, 7, 9}, new long[]{3, 6, 8});
+
+        assertArrayEquals(new long[]{1, 2, 4, 7, 9}, next.after(0, 100));
+        assertArrayEquals(new long[]{2, 4, 6, 8}, set.after(0, 100));
+    }
+
+    @Test
+    void emptyUpdateKeepsSameSet() {
+        SortedIdSet set = SortedIdSet.ofSorted(new long[]{1}, 1);
+
+        assertSame(set, set.update(new long[0], new long[0]));
+        assertSame(SortedIdSet.EMPTY, set.update(new long[0], new long[]{1}));
+    }
+}